@@ -0,0 +1,197 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.applier;
+
+import com.google.archivepatcher.shared.JreDeflateParameters;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An {@link ApplyMetricsListener} that aggregates everything it receives: the total time and bytes
+ * of each phase, the latest progress, the shape of the deltas applied and the number of bytes
+ * recompressed with each set of parameters. It can be shared between appliers and read at any
+ * time.
+ */
+public class ApplyMetricsCollector implements ApplyMetricsListener {
+  private final Map<Phase, Long> phaseNanos = new EnumMap<>(Phase.class);
+  private final Map<Phase, Long> phaseBytes = new EnumMap<>(Phase.class);
+  private final Map<JreDeflateParameters, Long> recompressedBytes = new LinkedHashMap<>();
+  private long bytesProduced = 0;
+  private long totalBytes = 0;
+  private long controlEntries = 0;
+  private long diffBytes = 0;
+  private long copyBytes = 0;
+  private long oldDataSeeks = 0;
+  private long oldDataSeekDistance = 0;
+
+  @Override
+  public synchronized void progress(long bytesProduced, long totalBytes) {
+    this.bytesProduced = bytesProduced;
+    this.totalBytes = totalBytes;
+  }
+
+  @Override
+  public synchronized void phaseCompleted(Phase phase, long durationNanos, long bytesProcessed) {
+    add(phaseNanos, phase, durationNanos);
+    add(phaseBytes, phase, bytesProcessed);
+  }
+
+  @Override
+  public synchronized void deltaApplied(
+      long controlEntries,
+      long diffBytes,
+      long copyBytes,
+      long oldDataSeeks,
+      long oldDataSeekDistance) {
+    this.controlEntries += controlEntries;
+    this.diffBytes += diffBytes;
+    this.copyBytes += copyBytes;
+    this.oldDataSeeks += oldDataSeeks;
+    this.oldDataSeekDistance += oldDataSeekDistance;
+  }
+
+  @Override
+  public synchronized void rangeRecompressed(
+      JreDeflateParameters parameters, long uncompressedBytes) {
+    add(recompressedBytes, parameters, uncompressedBytes);
+  }
+
+  private static <K> void add(Map<K, Long> map, K key, long value) {
+    Long existing = map.get(key);
+    map.put(key, existing == null ? value : existing + value);
+  }
+
+  /**
+   * Returns the total time spent in the specified phase, in nanoseconds.
+   *
+   * @param phase the phase
+   * @return as described; zero if the phase never completed
+   */
+  public synchronized long getPhaseNanos(Phase phase) {
+    Long result = phaseNanos.get(phase);
+    return result == null ? 0 : result;
+  }
+
+  /**
+   * Returns the total number of bytes processed in the specified phase.
+   *
+   * @param phase the phase
+   * @return as described; zero if the phase never completed
+   */
+  public synchronized long getPhaseBytes(Phase phase) {
+    Long result = phaseBytes.get(phase);
+    return result == null ? 0 : result;
+  }
+
+  /**
+   * Returns the number of bytes of the delta-friendly new blob produced, as of the latest progress
+   * report.
+   *
+   * @return as described
+   */
+  public synchronized long getBytesProduced() {
+    return bytesProduced;
+  }
+
+  /**
+   * Returns the total size of the delta-friendly new blob, as of the latest progress report.
+   *
+   * @return as described
+   */
+  public synchronized long getTotalBytes() {
+    return totalBytes;
+  }
+
+  /**
+   * Returns the total number of control entries in the deltas applied.
+   *
+   * @return as described
+   */
+  public synchronized long getControlEntries() {
+    return controlEntries;
+  }
+
+  /**
+   * Returns the total number of bytes produced by adding diff bytes to old bytes.
+   *
+   * @return as described
+   */
+  public synchronized long getDiffBytes() {
+    return diffBytes;
+  }
+
+  /**
+   * Returns the total number of bytes copied verbatim from the deltas.
+   *
+   * @return as described
+   */
+  public synchronized long getCopyBytes() {
+    return copyBytes;
+  }
+
+  /**
+   * Returns the total number of seeks in the old data.
+   *
+   * @return as described
+   */
+  public synchronized long getOldDataSeeks() {
+    return oldDataSeeks;
+  }
+
+  /**
+   * Returns the total absolute distance of the seeks in the old data, in bytes.
+   *
+   * @return as described
+   */
+  public synchronized long getOldDataSeekDistance() {
+    return oldDataSeekDistance;
+  }
+
+  /**
+   * Returns the number of uncompressed bytes recompressed with each set of parameters.
+   *
+   * @return a copy of the counts, in the order that the parameters were first seen
+   */
+  public synchronized Map<JreDeflateParameters, Long> getRecompressedBytes() {
+    return Collections.unmodifiableMap(new LinkedHashMap<>(recompressedBytes));
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "ApplyMetricsCollector [phaseNanos="
+        + phaseNanos
+        + ", phaseBytes="
+        + phaseBytes
+        + ", progress="
+        + bytesProduced
+        + "/"
+        + totalBytes
+        + ", controlEntries="
+        + controlEntries
+        + ", diffBytes="
+        + diffBytes
+        + ", copyBytes="
+        + copyBytes
+        + ", oldDataSeeks="
+        + oldDataSeeks
+        + ", oldDataSeekDistance="
+        + oldDataSeekDistance
+        + ", recompressedBytes="
+        + recompressedBytes
+        + "]";
+  }
+}
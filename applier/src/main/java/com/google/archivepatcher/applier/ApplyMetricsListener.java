@@ -0,0 +1,126 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.applier;
+
+import com.google.archivepatcher.shared.JreDeflateParameters;
+
+/**
+ * Receives progress and measurements of where the time of patch application goes. Callbacks are
+ * made on the applying thread, so they should return quickly.
+ *
+ * <p>Use {@link #NO_OP} when nothing is wanted; nothing is timed or counted beyond what applying
+ * the patch needs anyway in that case. {@link ApplyMetricsCollector} is a simple implementation
+ * that aggregates the measurements.
+ */
+public interface ApplyMetricsListener {
+  /**
+   * The phases of patch application. The delta is applied and the new file is recompressed in a
+   * single streaming pass, so {@link #APPLY_DELTA} includes the time spent in {@link #RECOMPRESS}.
+   */
+  public enum Phase {
+    /**
+     * Uncompressing entries of the old file into the delta-friendly old blob. Bytes are the bytes
+     * of the delta-friendly old blob.
+     */
+    WRITE_DELTA_FRIENDLY_OLD_BLOB,
+
+    /**
+     * Applying the delta to the delta-friendly old blob, including recompressing the output. Bytes
+     * are the bytes of the delta-friendly new blob.
+     */
+    APPLY_DELTA,
+
+    /**
+     * Recompressing ranges of the delta-friendly new blob into the new file. Bytes are the
+     * uncompressed bytes recompressed.
+     */
+    RECOMPRESS
+  }
+
+  /**
+   * A listener that ignores everything.
+   */
+  public static final ApplyMetricsListener NO_OP =
+      new ApplyMetricsListener() {
+        @Override
+        public void progress(long bytesProduced, long totalBytes) {
+          // Nothing
+        }
+
+        @Override
+        public void phaseCompleted(Phase phase, long durationNanos, long bytesProcessed) {
+          // Nothing
+        }
+
+        @Override
+        public void deltaApplied(
+            long controlEntries,
+            long diffBytes,
+            long copyBytes,
+            long oldDataSeeks,
+            long oldDataSeekDistance) {
+          // Nothing
+        }
+
+        @Override
+        public void rangeRecompressed(JreDeflateParameters parameters, long uncompressedBytes) {
+          // Nothing
+        }
+      };
+
+  /**
+   * Invoked from time to time as the delta is applied, and once when it has been applied
+   * completely. Progress is measured in bytes of the delta-friendly new blob, whose size is known
+   * up front, rather than in bytes of the new file, whose size is not.
+   *
+   * @param bytesProduced the number of bytes of the delta-friendly new blob produced so far
+   * @param totalBytes the total size of the delta-friendly new blob
+   */
+  void progress(long bytesProduced, long totalBytes);
+
+  /**
+   * Invoked when a phase completes successfully.
+   *
+   * @param phase the phase
+   * @param durationNanos the wall time that the phase took, in nanoseconds
+   * @param bytesProcessed the number of bytes processed, as described for each phase
+   */
+  void phaseCompleted(Phase phase, long durationNanos, long bytesProcessed);
+
+  /**
+   * Invoked when a bsdiff delta has been applied, with counters that describe its shape.
+   *
+   * @param controlEntries the number of control entries in the delta
+   * @param diffBytes the number of bytes produced by adding diff bytes to old bytes
+   * @param copyBytes the number of bytes copied verbatim from the delta ("extra" bytes in bsdiff)
+   * @param oldDataSeeks the number of times that reading the old data did not continue where the
+   *     previous read ended
+   * @param oldDataSeekDistance the total absolute distance of those seeks, in bytes
+   */
+  void deltaApplied(
+      long controlEntries,
+      long diffBytes,
+      long copyBytes,
+      long oldDataSeeks,
+      long oldDataSeekDistance);
+
+  /**
+   * Invoked when a range of the delta-friendly new blob has been recompressed.
+   *
+   * @param parameters the parameters the range was compressed with
+   * @param uncompressedBytes the number of uncompressed bytes in the range
+   */
+  void rangeRecompressed(JreDeflateParameters parameters, long uncompressedBytes);
+}
@@ -0,0 +1,96 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.applier;
+
+import com.google.archivepatcher.shared.TypedRange;
+import java.util.List;
+
+/**
+ * The outcome of applying a patch with {@link FileByFileV1DeltaApplier#applyDeltaWithResult(
+ * java.io.File, java.io.InputStream, java.io.OutputStream, java.util.Set)}: the digests of the new
+ * archive that were requested, computed as the archive was written.
+ */
+public final class ApplyResult {
+  /**
+   * The digests that can be requested. Each is computed inline over the bytes as they are written,
+   * so that the caller doesn't have to read the new archive again to verify it.
+   */
+  public static enum Digest {
+    /** The CRC-32 of the new archive. */
+    CRC32,
+
+    /** The SHA-256 digest of the new archive. */
+    SHA256,
+
+    /**
+     * The CRC-32 of the uncompressed data of each entry that the patch recompresses, which is the
+     * value of the CRC-32 field of that entry in the new archive.
+     */
+    ENTRY_CRC32;
+  }
+
+  /** The CRC-32 of the new archive, or null if not computed. */
+  private final Long crc32;
+
+  /** The SHA-256 digest of the new archive, or null if not computed. */
+  private final byte[] sha256;
+
+  /** The CRC-32 of each recompressed entry, or null if not computed. */
+  private final List<TypedRange<Long>> entryCrc32s;
+
+  /**
+   * Creates a new result.
+   *
+   * @param crc32 the CRC-32 of the new archive, or null if not computed
+   * @param sha256 the SHA-256 digest of the new archive, or null if not computed
+   * @param entryCrc32s the CRC-32 of each recompressed entry, or null if not computed
+   */
+  public ApplyResult(Long crc32, byte[] sha256, List<TypedRange<Long>> entryCrc32s) {
+    this.crc32 = crc32;
+    this.sha256 = sha256;
+    this.entryCrc32s = entryCrc32s;
+  }
+
+  /**
+   * Returns the CRC-32 of the new archive.
+   *
+   * @return the CRC-32, or null if {@link Digest#CRC32} wasn't requested
+   */
+  public Long getCrc32() {
+    return crc32;
+  }
+
+  /**
+   * Returns the SHA-256 digest of the new archive. This is also computed if the patch records the
+   * expected digest, in which case the new archive has already been verified against it.
+   *
+   * @return the digest, or null if {@link Digest#SHA256} wasn't requested and the patch doesn't
+   *     record the expected digest
+   */
+  public byte[] getSha256() {
+    return sha256;
+  }
+
+  /**
+   * Returns the CRC-32 of the uncompressed data of each entry that the patch recompresses, as the
+   * range of the entry's uncompressed data in the delta-friendly new file with the CRC-32 as
+   * metadata, in file order.
+   *
+   * @return the CRC-32s, or null if {@link Digest#ENTRY_CRC32} wasn't requested
+   */
+  public List<TypedRange<Long>> getEntryCrc32s() {
+    return entryCrc32s;
+  }
+}
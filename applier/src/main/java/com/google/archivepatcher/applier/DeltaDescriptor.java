@@ -41,7 +41,8 @@ public class DeltaDescriptor {
   private final TypedRange<Void> deltaFriendlyNewFileRange;
 
   /**
-   * The number of bytes of delta data in the patch stream.
+   * The number of bytes of delta data in the patch stream, or {@link
+   * PatchConstants#STREAMED_DELTA_LENGTH} if the delta extends to the end of the patch stream.
    */
   private final long deltaLength;
 
@@ -50,7 +51,8 @@ public class DeltaDescriptor {
    * @param format the format of the delta
    * @param deltaFriendlyOldFileRange the work range for the delta-friendly old file
    * @param deltaFriendlyNewFileRange the work range for the delta-friendly new file
-   * @param deltaLength the number of bytes of delta data in the patch stream
+   * @param deltaLength the number of bytes of delta data in the patch stream, or {@link
+   *     PatchConstants#STREAMED_DELTA_LENGTH} if the delta extends to the end of the patch stream
    */
   public DeltaDescriptor(
       DeltaFormat format,
@@ -88,7 +90,8 @@ public class DeltaDescriptor {
   }
 
   /**
-   * Returns the number of bytes of delta data in the patch stream.
+   * Returns the number of bytes of delta data in the patch stream, or {@link
+   * PatchConstants#STREAMED_DELTA_LENGTH} if the delta extends to the end of the patch stream.
    * @return as described
    */
   public long getDeltaLength() {
@@ -0,0 +1,92 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.applier;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+/**
+ * An {@link OutputStream} that computes the CRC-32 and/or the SHA-256 digest of the bytes that are
+ * written through it to another stream.
+ */
+class DigestingOutputStream extends FilterOutputStream {
+  /** The CRC-32 of the bytes written so far, or null if not computed. */
+  private final CRC32 crc32;
+
+  /** The digester for the bytes written so far, or null if not computed. */
+  private final MessageDigest sha256;
+
+  /**
+   * Creates a new stream that writes to the specified stream.
+   *
+   * @param out the stream to write to
+   * @param computeCrc32 whether to compute the CRC-32
+   * @param computeSha256 whether to compute the SHA-256 digest
+   */
+  DigestingOutputStream(OutputStream out, boolean computeCrc32, boolean computeSha256) {
+    super(out);
+    this.crc32 = computeCrc32 ? new CRC32() : null;
+    try {
+      this.sha256 = computeSha256 ? MessageDigest.getInstance("SHA-256") : null;
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException("System doesn't support SHA-256", e);
+    }
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    out.write(b);
+    if (crc32 != null) {
+      crc32.update(b);
+    }
+    if (sha256 != null) {
+      sha256.update((byte) b);
+    }
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    // Unlike FilterOutputStream, pass whole buffers through to the underlying stream.
+    out.write(b, off, len);
+    if (crc32 != null) {
+      crc32.update(b, off, len);
+    }
+    if (sha256 != null) {
+      sha256.update(b, off, len);
+    }
+  }
+
+  /**
+   * Returns the CRC-32 of the bytes written so far.
+   *
+   * @return the CRC-32, or null if not computed
+   */
+  Long getCrc32() {
+    return crc32 == null ? null : crc32.getValue();
+  }
+
+  /**
+   * Returns the SHA-256 digest of the bytes written; no more bytes may be written afterwards.
+   *
+   * @return the digest, or null if not computed
+   */
+  byte[] getSha256() {
+    return sha256 == null ? null : sha256.digest();
+  }
+}
@@ -15,12 +15,20 @@
 package com.google.archivepatcher.applier;
 
 import com.google.archivepatcher.applier.bsdiff.BsDiffDeltaApplier;
+import com.google.archivepatcher.applier.gdiff.GdiffDeltaApplier;
+import com.google.archivepatcher.shared.ArchiveFingerprint;
+import com.google.archivepatcher.shared.DeflateUncompressor;
 import com.google.archivepatcher.shared.DeltaFriendlyFile;
+import com.google.archivepatcher.shared.PatchConstants;
+import com.google.archivepatcher.shared.StreamingUncompressor;
 import com.google.archivepatcher.shared.RandomAccessFileOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
 
 /**
  * Applies V1 patches.
@@ -30,13 +38,18 @@ public class FileByFileV1DeltaApplier implements DeltaApplier {
   /**
    * Default size of the buffer to use for copying bytes in the recompression stream.
    */
-  private static final int DEFAULT_COPY_BUFFER_SIZE = 32768;
+  static final int DEFAULT_COPY_BUFFER_SIZE = 32768;
 
   /**
    * The temp directory to use.
    */
   private final File tempDir;
 
+  /**
+   * The listener to report progress and measurements to.
+   */
+  private final ApplyMetricsListener metricsListener;
+
   /**
    * Creates a new delta applier that will use the default temp directory for working files. This is
    * equivalent to calling {@link #FileByFileV1DeltaApplier(File)} with a <code>null</code> file
@@ -53,15 +66,57 @@ public class FileByFileV1DeltaApplier implements DeltaApplier {
    *     patch application process; if null, the system's default temporary directory is used
    */
   public FileByFileV1DeltaApplier(File tempDir) {
+    this(tempDir, ApplyMetricsListener.NO_OP);
+  }
+
+  /**
+   * Creates a new delta applier that will use the specified temp directory and report progress,
+   * the time spent in each phase and the shape of the patch to the specified listener.
+   *
+   * @param tempDir a temp directory where the delta-friendly old blob can be written during the
+   *     patch application process; if null, the system's default temporary directory is used
+   * @param metricsListener the listener to report to; use {@link ApplyMetricsListener#NO_OP} to
+   *     report nothing
+   */
+  public FileByFileV1DeltaApplier(File tempDir, ApplyMetricsListener metricsListener) {
     if (tempDir == null) {
       tempDir = new File(System.getProperty("java.io.tmpdir"));
     }
+    if (metricsListener == null) {
+      throw new IllegalArgumentException("metricsListener cannot be null");
+    }
     this.tempDir = tempDir;
+    this.metricsListener = metricsListener;
   }
 
   @Override
   public void applyDelta(File oldBlob, InputStream deltaIn, OutputStream newBlobOut)
       throws IOException {
+    applyDeltaWithResult(
+        oldBlob, deltaIn, newBlobOut, EnumSet.noneOf(ApplyResult.Digest.class));
+  }
+
+  /**
+   * Like {@link #applyDelta(File, InputStream, OutputStream)}, but also computes the specified
+   * digests of the new blob as it is written, so that the caller doesn't need to read it back to
+   * verify it. If the patch records the expected SHA-256 digest of the new blob, it is computed and
+   * checked regardless of the digests requested.
+   *
+   * @param oldBlob the old blob
+   * @param deltaIn the patch stream
+   * @param newBlobOut the stream to write the new blob to
+   * @param digests the digests to compute; may be empty
+   * @return the digests that were computed
+   * @throws VerificationException if the old blob doesn't match the fingerprint recorded in the
+   *     patch, or the new blob doesn't match the digest recorded in the patch
+   * @throws IOException if anything else goes wrong
+   */
+  public ApplyResult applyDeltaWithResult(
+      File oldBlob, InputStream deltaIn, OutputStream newBlobOut, Set<ApplyResult.Digest> digests)
+      throws IOException {
+    if (digests == null) {
+      throw new IllegalArgumentException("digests cannot be null");
+    }
     if (!tempDir.exists()) {
       // Be nice, try to create the temp directory. Don't bother to check return value as the code
       // will fail when it tries to create the file in a few more lines anyways.
@@ -69,7 +124,7 @@ public class FileByFileV1DeltaApplier implements DeltaApplier {
     }
     File tempFile = File.createTempFile("gfbfv1", "old", tempDir);
     try {
-      applyDeltaInternal(oldBlob, tempFile, deltaIn, newBlobOut);
+      return applyDeltaInternal(oldBlob, tempFile, deltaIn, newBlobOut, digests);
     } finally {
       tempFile.delete();
     }
@@ -81,33 +136,103 @@ public class FileByFileV1DeltaApplier implements DeltaApplier {
    * @param deltaFriendlyOldBlob the location in which to store the delta-friendly old blob
    * @param deltaIn the patch stream
    * @param newBlobOut the stream to write the new blob to after applying the delta
+   * @param digests the digests of the new blob to compute
+   * @return the digests that were computed
    * @throws IOException if anything goes wrong
    */
-  private void applyDeltaInternal(
-      File oldBlob, File deltaFriendlyOldBlob, InputStream deltaIn, OutputStream newBlobOut)
+  private ApplyResult applyDeltaInternal(
+      File oldBlob,
+      File deltaFriendlyOldBlob,
+      InputStream deltaIn,
+      OutputStream newBlobOut,
+      Set<ApplyResult.Digest> digests)
       throws IOException {
 
     // First, read the patch plan from the patch stream.
     PatchReader patchReader = new PatchReader();
     PatchApplyPlan plan = patchReader.readPatchApplyPlan(deltaIn);
+    // Check that this is the right old blob before doing any of the expensive work.
+    byte[] expectedOldFingerprint = plan.getExpectedOldArchiveFingerprint();
+    if (expectedOldFingerprint != null
+        && !Arrays.equals(expectedOldFingerprint, ArchiveFingerprint.compute(oldBlob))) {
+      throw new VerificationException("Old archive does not match the fingerprint in the patch");
+    }
+    long startNanos = System.nanoTime();
     writeDeltaFriendlyOldBlob(plan, oldBlob, deltaFriendlyOldBlob);
-    // Apply the delta. In v1 there is always exactly one delta descriptor, it is bsdiff, and it
-    // takes up the rest of the patch stream - so there is no need to examine the list of
-    // DeltaDescriptors in the patch at all.
-    long deltaLength = plan.getDeltaDescriptors().get(0).getDeltaLength();
-    DeltaApplier deltaApplier = getDeltaApplier();
-    // Don't close this stream, as it is just a limiting wrapper.
+    metricsListener.phaseCompleted(
+        ApplyMetricsListener.Phase.WRITE_DELTA_FRIENDLY_OLD_BLOB,
+        System.nanoTime() - startNanos,
+        plan.getDeltaFriendlyOldFileSize());
+    // Apply the delta. In v1 there is always exactly one delta descriptor and it takes up the rest
+    // of the patch stream - so only its format needs to be examined.
+    DeltaDescriptor deltaDescriptor = plan.getDeltaDescriptors().get(0);
+    long deltaLength = deltaDescriptor.getDeltaLength();
+    DeltaApplier deltaApplier = getDeltaApplier(deltaDescriptor);
+    // A streamed delta has no recorded length, but it ends with the patch stream. Otherwise, don't
+    // close this stream, as it is just a limiting wrapper.
+    @SuppressWarnings("resource")
+    InputStream limitedDeltaIn =
+        deltaLength == PatchConstants.STREAMED_DELTA_LENGTH
+            ? deltaIn
+            : new LimitedInputStream(deltaIn, deltaLength);
+    // The digests are computed inline as the bytes flow through, rather than by reading the new
+    // blob back afterwards: the whole-blob digests over the recompressed output, and the per-entry
+    // CRC-32s over the uncompressed data before it is recompressed. The digesting streams are only
+    // added when needed. None of these streams are closed, as that would close the underlying
+    // OutputStream (that we don't own).
+    byte[] expectedSha256 = plan.getExpectedNewArchiveSha256();
+    boolean computeCrc32 = digests.contains(ApplyResult.Digest.CRC32);
+    boolean computeSha256 = digests.contains(ApplyResult.Digest.SHA256) || expectedSha256 != null;
     @SuppressWarnings("resource")
-    LimitedInputStream limitedDeltaIn = new LimitedInputStream(deltaIn, deltaLength);
-    // Don't close this stream, as it would close the underlying OutputStream (that we don't own).
+    DigestingOutputStream digestingNewBlobOut =
+        computeCrc32 || computeSha256
+            ? new DigestingOutputStream(newBlobOut, computeCrc32, computeSha256)
+            : null;
     @SuppressWarnings("resource")
     PartiallyCompressingOutputStream recompressingNewBlobOut =
         new PartiallyCompressingOutputStream(
             plan.getDeltaFriendlyNewFileRecompressionPlan(),
-            newBlobOut,
-            DEFAULT_COPY_BUFFER_SIZE);
-    deltaApplier.applyDelta(deltaFriendlyOldBlob, limitedDeltaIn, recompressingNewBlobOut);
+            digestingNewBlobOut != null ? digestingNewBlobOut : newBlobOut,
+            DEFAULT_COPY_BUFFER_SIZE,
+            metricsListener);
+    @SuppressWarnings("resource")
+    RangeCrc32OutputStream entryCrc32Out =
+        digests.contains(ApplyResult.Digest.ENTRY_CRC32)
+            ? new RangeCrc32OutputStream(
+                plan.getDeltaFriendlyNewFileRecompressionPlan(), recompressingNewBlobOut)
+            : null;
+    OutputStream deltaOut = entryCrc32Out != null ? entryCrc32Out : recompressingNewBlobOut;
+    startNanos = System.nanoTime();
+    if (plan.getDeltaCompression() == PatchConstants.DeltaCompression.NONE) {
+      deltaApplier.applyDelta(deltaFriendlyOldBlob, limitedDeltaIn, deltaOut);
+    } else {
+      // Uncompress the delta as it is consumed. Closing this stream leaves the patch stream open.
+      try (InputStream uncompressedDeltaIn =
+          getDeltaUncompressor(plan.getDeltaCompression()).newUncompressingStream(limitedDeltaIn)) {
+        deltaApplier.applyDelta(deltaFriendlyOldBlob, uncompressedDeltaIn, deltaOut);
+      }
+    }
     recompressingNewBlobOut.flush();
+    metricsListener.phaseCompleted(
+        ApplyMetricsListener.Phase.APPLY_DELTA,
+        System.nanoTime() - startNanos,
+        deltaDescriptor.getDeltaFriendlyNewFileRange().getLength());
+    metricsListener.phaseCompleted(
+        ApplyMetricsListener.Phase.RECOMPRESS,
+        recompressingNewBlobOut.getCompressionNanos(),
+        recompressingNewBlobOut.getBytesCompressed());
+
+    Long crc32 = null;
+    byte[] sha256 = null;
+    if (digestingNewBlobOut != null) {
+      crc32 = digestingNewBlobOut.getCrc32();
+      sha256 = digestingNewBlobOut.getSha256();
+    }
+    if (expectedSha256 != null && !Arrays.equals(expectedSha256, sha256)) {
+      throw new VerificationException("New archive does not match the SHA-256 in the patch");
+    }
+    return new ApplyResult(
+        crc32, sha256, entryCrc32Out == null ? null : entryCrc32Out.getRangeCrc32s());
   }
 
   /**
@@ -140,12 +265,42 @@ public class FileByFileV1DeltaApplier implements DeltaApplier {
   }
 
   /**
-   * Return an instance of a {@link DeltaApplier} suitable for applying the deltas within the patch
-   * stream.
+   * Return an instance of a {@link DeltaApplier} suitable for applying the specified delta within
+   * the patch stream.
+   * @param deltaDescriptor the descriptor of the delta
    * @return the applier
+   * @throws PatchFormatException if the format of the delta is not supported
    */
   // Visible for testing only
-  protected DeltaApplier getDeltaApplier() {
-    return new BsDiffDeltaApplier();
+  protected DeltaApplier getDeltaApplier(DeltaDescriptor deltaDescriptor)
+      throws PatchFormatException {
+    switch (deltaDescriptor.getFormat()) {
+      case BSDIFF:
+      case BSDIFF_SECTIONED:
+        return new BsDiffDeltaApplier(metricsListener, tempDir);
+      case GDIFF:
+        return new GdiffDeltaApplier(deltaDescriptor.getDeltaFriendlyNewFileRange().getLength());
+      default:
+        throw new PatchFormatException("Unsupported delta format: " + deltaDescriptor.getFormat());
+    }
+  }
+
+  /**
+   * Return an instance of a {@link StreamingUncompressor} suitable for uncompressing deltas that
+   * were compressed as specified. Subclasses can override this to support other compressions.
+   * @param deltaCompression the compression of the deltas
+   * @return the uncompressor
+   * @throws PatchFormatException if the compression is not supported
+   */
+  protected StreamingUncompressor getDeltaUncompressor(
+      PatchConstants.DeltaCompression deltaCompression) throws PatchFormatException {
+    switch (deltaCompression) {
+      case DEFLATE:
+        DeflateUncompressor uncompressor = new DeflateUncompressor();
+        uncompressor.setNowrap(true);
+        return uncompressor;
+      default:
+        throw new PatchFormatException("Unsupported delta compression: " + deltaCompression);
+    }
   }
 }
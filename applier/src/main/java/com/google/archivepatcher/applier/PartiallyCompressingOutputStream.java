@@ -76,6 +76,26 @@ public class PartiallyCompressingOutputStream extends FilterOutputStream {
    */
   private JreDeflateParameters lastDeflateParameters = null;
 
+  /**
+   * The listener to report each recompressed range to.
+   */
+  private final ApplyMetricsListener metricsListener;
+
+  /**
+   * Whether to measure the time spent compressing; only done if there is a listener to tell.
+   */
+  private final boolean measureCompressionTime;
+
+  /**
+   * The total time spent compressing so far, in nanoseconds, if measured.
+   */
+  private long compressionNanos = 0;
+
+  /**
+   * The total number of uncompressed bytes compressed so far.
+   */
+  private long bytesCompressed = 0;
+
   /**
    * Creates a new stream that wraps the specified other stream, compressing the specified ranges
    * with the specified parameters. All unspecified ranges are implicitly copied without
@@ -88,9 +108,32 @@ public class PartiallyCompressingOutputStream extends FilterOutputStream {
       List<TypedRange<JreDeflateParameters>> compressionRanges,
       OutputStream out,
       int compressionBufferSize) {
+    this(compressionRanges, out, compressionBufferSize, ApplyMetricsListener.NO_OP);
+  }
+
+  /**
+   * Creates a new stream as in {@link #PartiallyCompressingOutputStream(List, OutputStream, int)}
+   * that also reports each range to the specified listener once it has been compressed.
+   * @param compressionRanges ranges to be compressed, with accompanying parameters
+   * @param out the stream to write to
+   * @param compressionBufferSize the size of the buffer to use when compressing data
+   * @param metricsListener the listener to report to; unless this is {@link
+   *     ApplyMetricsListener#NO_OP}, the time spent compressing is also measured and made
+   *     available via {@link #getCompressionNanos()}
+   */
+  public PartiallyCompressingOutputStream(
+      List<TypedRange<JreDeflateParameters>> compressionRanges,
+      OutputStream out,
+      int compressionBufferSize,
+      ApplyMetricsListener metricsListener) {
     super(out);
+    if (metricsListener == null) {
+      throw new IllegalArgumentException("metricsListener cannot be null");
+    }
     this.normalOut = out;
     this.compressionBufferSize = compressionBufferSize;
+    this.metricsListener = metricsListener;
+    this.measureCompressionTime = metricsListener != ApplyMetricsListener.NO_OP;
     rangeIterator = compressionRanges.iterator();
     if (rangeIterator.hasNext()) {
       nextCompressedRange = rangeIterator.next();
@@ -165,16 +208,22 @@ public class PartiallyCompressingOutputStream extends FilterOutputStream {
       }
     }
 
+    boolean compressing = currentlyCompressing();
+    long startNanos = compressing && measureCompressionTime ? System.nanoTime() : 0;
     writeTarget.write(buffer, offset, numBytesToWrite);
     numBytesWritten += numBytesToWrite;
 
-    if (currentlyCompressing() && bytesTillCompressionEnds() == 0) {
+    if (compressing) {
+      bytesCompressed += numBytesToWrite;
+    }
+    if (compressing && bytesTillCompressionEnds() == 0) {
       // Compression range complete. Finish the output and set up for the next run.
       deflaterOut.finish();
       deflaterOut.flush();
       deflaterOut = null;
       deflater.reset();
       lastDeflateParameters = nextCompressedRange.getMetadata();
+      long completedRangeLength = nextCompressedRange.getLength();
       if (rangeIterator.hasNext()) {
         // More compression ranges await in the future.
         nextCompressedRange = rangeIterator.next();
@@ -184,11 +233,36 @@ public class PartiallyCompressingOutputStream extends FilterOutputStream {
         deflater.end();
         deflater = null;
       }
+      if (measureCompressionTime) {
+        compressionNanos += System.nanoTime() - startNanos;
+      }
+      metricsListener.rangeRecompressed(lastDeflateParameters, completedRangeLength);
+    } else if (compressing && measureCompressionTime) {
+      compressionNanos += System.nanoTime() - startNanos;
     }
 
     return numBytesToWrite;
   }
 
+  /**
+   * Returns the total time spent compressing so far. This is only measured if the stream was
+   * created with a listener other than {@link ApplyMetricsListener#NO_OP}.
+   *
+   * @return the time in nanoseconds, or zero if not measured
+   */
+  public long getCompressionNanos() {
+    return compressionNanos;
+  }
+
+  /**
+   * Returns the total number of uncompressed bytes compressed so far.
+   *
+   * @return as described
+   */
+  public long getBytesCompressed() {
+    return bytesCompressed;
+  }
+
   private boolean currentlyCompressing() {
     return deflaterOut != null;
   }
@@ -0,0 +1,177 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.applier;
+
+import com.google.archivepatcher.shared.JreDeflateParameters;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The predicted cost of applying a patch, as computed by a {@link PatchApplyEstimator}.
+ */
+public class PatchApplyEstimate {
+  /** The peak number of bytes of temporary storage needed. */
+  private final long peakTempDiskBytes;
+
+  /** The peak number of bytes of Java heap used by buffers. */
+  private final long peakHeapBytes;
+
+  /** The peak number of bytes of native memory used by zlib. */
+  private final long peakNativeBytes;
+
+  /** The number of uncompressed bytes produced by inflating entries of the old file. */
+  private final long bytesToInflate;
+
+  /** The number of uncompressed bytes to recompress, by the parameters to recompress them with. */
+  private final Map<JreDeflateParameters, Long> bytesToRecompressByParameters;
+
+  /** The estimated time to apply the patch, in nanoseconds. */
+  private final long estimatedNanos;
+
+  /**
+   * Creates a new estimate with the specified values.
+   *
+   * @param peakTempDiskBytes the peak number of bytes of temporary storage needed
+   * @param peakHeapBytes the peak number of bytes of Java heap used by buffers
+   * @param peakNativeBytes the peak number of bytes of native memory used by zlib
+   * @param bytesToInflate the number of uncompressed bytes produced by inflating entries of the
+   *     old file
+   * @param bytesToRecompressByParameters the number of uncompressed bytes to recompress, by the
+   *     parameters to recompress them with
+   * @param estimatedNanos the estimated time to apply the patch, in nanoseconds
+   */
+  PatchApplyEstimate(
+      long peakTempDiskBytes,
+      long peakHeapBytes,
+      long peakNativeBytes,
+      long bytesToInflate,
+      Map<JreDeflateParameters, Long> bytesToRecompressByParameters,
+      long estimatedNanos) {
+    this.peakTempDiskBytes = peakTempDiskBytes;
+    this.peakHeapBytes = peakHeapBytes;
+    this.peakNativeBytes = peakNativeBytes;
+    this.bytesToInflate = bytesToInflate;
+    this.bytesToRecompressByParameters = Collections.unmodifiableMap(bytesToRecompressByParameters);
+    this.estimatedNanos = estimatedNanos;
+  }
+
+  /**
+   * Returns the peak number of bytes of temporary storage needed, i.e. the size of the
+   * delta-friendly old blob. This does not include the storage for the patch or for the new file
+   * that is written.
+   *
+   * @return as described
+   */
+  public long getPeakTempDiskBytes() {
+    return peakTempDiskBytes;
+  }
+
+  /**
+   * Returns the peak number of bytes of Java heap used by the buffers of the applier. This does
+   * not include the fixed overhead of the objects involved or any buffering done by the caller's
+   * streams.
+   *
+   * @return as described
+   */
+  public long getPeakHeapBytes() {
+    return peakHeapBytes;
+  }
+
+  /**
+   * Returns the peak number of bytes of native memory used by the zlib state of the inflater or
+   * deflater, which is not part of the Java heap.
+   *
+   * @return as described
+   */
+  public long getPeakNativeBytes() {
+    return peakNativeBytes;
+  }
+
+  /**
+   * Returns the number of uncompressed bytes produced by inflating entries of the old file.
+   *
+   * @return as described
+   */
+  public long getBytesToInflate() {
+    return bytesToInflate;
+  }
+
+  /**
+   * Returns the number of uncompressed bytes to recompress, by the parameters to recompress them
+   * with. Parameters that aren't used are absent.
+   *
+   * @return as described
+   */
+  public Map<JreDeflateParameters, Long> getBytesToRecompressByParameters() {
+    return bytesToRecompressByParameters;
+  }
+
+  /**
+   * Returns the number of uncompressed bytes to recompress with the specified level, with any
+   * strategy.
+   *
+   * @param level the level, from 1 to 9
+   * @return as described
+   */
+  public long getBytesToRecompress(int level) {
+    long total = 0;
+    for (Map.Entry<JreDeflateParameters, Long> entry : bytesToRecompressByParameters.entrySet()) {
+      if (entry.getKey().level == level) {
+        total += entry.getValue();
+      }
+    }
+    return total;
+  }
+
+  /**
+   * Returns the total number of uncompressed bytes to recompress.
+   *
+   * @return as described
+   */
+  public long getTotalBytesToRecompress() {
+    long total = 0;
+    for (long bytes : bytesToRecompressByParameters.values()) {
+      total += bytes;
+    }
+    return total;
+  }
+
+  /**
+   * Returns the estimated time to apply the patch on the device that the estimator was configured
+   * for.
+   *
+   * @return the time, in milliseconds, rounded up
+   */
+  public long getEstimatedMillis() {
+    return (estimatedNanos + 999999) / 1000000;
+  }
+
+  @Override
+  public String toString() {
+    return "PatchApplyEstimate [peakTempDiskBytes="
+        + peakTempDiskBytes
+        + ", peakHeapBytes="
+        + peakHeapBytes
+        + ", peakNativeBytes="
+        + peakNativeBytes
+        + ", bytesToInflate="
+        + bytesToInflate
+        + ", bytesToRecompressByParameters="
+        + bytesToRecompressByParameters
+        + ", estimatedMillis="
+        + getEstimatedMillis()
+        + "]";
+  }
+}
@@ -0,0 +1,213 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.applier;
+
+import com.google.archivepatcher.applier.bsdiff.BsPatch;
+import com.google.archivepatcher.shared.DeviceCostModel;
+import com.google.archivepatcher.shared.JreDeflateParameters;
+import com.google.archivepatcher.shared.PatchConstants;
+import com.google.archivepatcher.shared.PatchConstants.DeltaCompression;
+import com.google.archivepatcher.shared.PatchConstants.DeltaFormat;
+import com.google.archivepatcher.shared.TypedRange;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Predicts the resources and time that {@link FileByFileV1DeltaApplier} needs to apply a patch,
+ * without applying it. Only the plan at the start of the patch is read (see {@link
+ * PatchReader#readPatchApplyPlan(InputStream)}), so an estimate is cheap enough to make before
+ * deciding whether to apply a patch now, defer it until the device is idle, or download the new
+ * file in full instead.
+ *
+ * <p>Applying a patch happens in two phases: first the delta-friendly old blob is written by
+ * inflating entries of the old file, then the delta is applied to it and the output is recompressed
+ * as it is written. The time estimate is the sum of the estimated time of each kind of work on the
+ * device described by a {@link DeviceCostModel}:
+ *
+ * <ul>
+ *   <li>inflating the entries of the old file,
+ *   <li>writing the delta-friendly old blob and reading it back while applying the delta,
+ *   <li>applying the delta, and
+ *   <li>recompressing the entries of the new file, with their respective parameters.
+ * </ul>
+ *
+ * <p>The temporary storage is the delta-friendly old blob, plus the control and extra sections of
+ * a {@link DeltaFormat#BSDIFF_SECTIONED} delta if they are too large to buffer in memory. Their
+ * length isn't recorded in the plan, so the most they can be expected to take is used instead,
+ * both for the storage and for the memory they take when they are small enough.
+ */
+public class PatchApplyEstimator {
+  /**
+   * The Java heap used by the buffers of the first phase: the copy buffer of the applier, plus the
+   * input and output buffers of the inflater.
+   */
+  private static final long FIRST_PHASE_HEAP_BYTES =
+      FileByFileV1DeltaApplier.DEFAULT_COPY_BUFFER_SIZE + 32768 + 32768;
+
+  /**
+   * The Java heap used by the buffers of the second phase: the two 50 KiB working buffers of
+   * bspatch and its 4 KiB input and 16 KiB output buffers, plus the buffer of the recompressor.
+   */
+  private static final long SECOND_PHASE_HEAP_BYTES =
+      (2 * 50 + 4 + 16) * 1024 + FileByFileV1DeltaApplier.DEFAULT_COPY_BUFFER_SIZE;
+
+  /**
+   * The Java heap used in the second phase by the input buffer of the inflater that uncompresses
+   * the delta, if it is compressed.
+   */
+  private static final long DELTA_INFLATE_HEAP_BYTES = 32768;
+
+  /** The native memory used by zlib to inflate: the state plus a 32 KiB window. */
+  private static final long INFLATE_NATIVE_BYTES = 7 * 1024 + 32 * 1024;
+
+  /**
+   * The native memory used by zlib to deflate with the default window and memory level: the state
+   * plus 128 KiB each for the window and the hash chains.
+   */
+  private static final long DEFLATE_NATIVE_BYTES = 6 * 1024 + 256 * 1024;
+
+  /** The model of the device that will apply the patch. */
+  private final DeviceCostModel costModel;
+
+  /**
+   * Creates a new estimator for applying patches on a device described by the specified model.
+   *
+   * @param costModel the model of the device
+   */
+  public PatchApplyEstimator(DeviceCostModel costModel) {
+    if (costModel == null) {
+      throw new IllegalArgumentException("costModel cannot be null");
+    }
+    this.costModel = costModel;
+  }
+
+  /**
+   * Reads the plan from the specified patch stream and estimates the cost of applying it. When
+   * this method returns, the stream is positioned at the first byte of the delta.
+   *
+   * @param patchIn the patch stream
+   * @param oldFileLength the length of the old file that the patch will be applied to
+   * @return the estimate
+   * @throws IOException if unable to read the plan from the stream
+   */
+  public PatchApplyEstimate estimate(InputStream patchIn, long oldFileLength) throws IOException {
+    return estimate(new PatchReader().readPatchApplyPlan(patchIn), oldFileLength);
+  }
+
+  /**
+   * Estimates the cost of applying the specified plan.
+   *
+   * @param plan the plan, as read by {@link PatchReader#readPatchApplyPlan(InputStream)}
+   * @param oldFileLength the length of the old file that the patch will be applied to; needed
+   *     because the patch records only the size of the delta-friendly old blob
+   * @return the estimate
+   * @throws IllegalArgumentException if the old file length is inconsistent with the plan
+   */
+  public PatchApplyEstimate estimate(PatchApplyPlan plan, long oldFileLength) {
+    long compressedBytesToInflate = 0;
+    for (TypedRange<Void> range : plan.getOldFileUncompressionPlan()) {
+      compressedBytesToInflate += range.getLength();
+    }
+    long deltaFriendlyOldFileSize = plan.getDeltaFriendlyOldFileSize();
+    // The delta-friendly old blob is the old file with each range replaced by its uncompressed
+    // form.
+    long bytesToInflate = deltaFriendlyOldFileSize - oldFileLength + compressedBytesToInflate;
+    if (bytesToInflate < 0 || compressedBytesToInflate > oldFileLength) {
+      throw new IllegalArgumentException(
+          "Old file length " + oldFileLength + " is inconsistent with the patch");
+    }
+
+    Map<JreDeflateParameters, Long> bytesToRecompressByParameters =
+        new EnumMap<>(JreDeflateParameters.class);
+    for (TypedRange<JreDeflateParameters> range : plan.getDeltaFriendlyNewFileRecompressionPlan()) {
+      Long bytes = bytesToRecompressByParameters.get(range.getMetadata());
+      bytesToRecompressByParameters.put(
+          range.getMetadata(), (bytes == null ? 0 : bytes) + range.getLength());
+    }
+
+    long deltaFriendlyNewFileSize = 0;
+    for (DeltaDescriptor descriptor : plan.getDeltaDescriptors()) {
+      TypedRange<Void> newRange = descriptor.getDeltaFriendlyNewFileRange();
+      deltaFriendlyNewFileSize =
+          Math.max(deltaFriendlyNewFileSize, newRange.getOffset() + newRange.getLength());
+    }
+
+    long nanos = costModel.estimateInflateNanos(bytesToInflate);
+    nanos += costModel.estimateIoNanos(deltaFriendlyOldFileSize);
+    nanos += costModel.estimateDeltaApplyNanos(deltaFriendlyNewFileSize);
+    for (Map.Entry<JreDeflateParameters, Long> entry : bytesToRecompressByParameters.entrySet()) {
+      nanos += costModel.estimateDeflateNanos(entry.getKey(), entry.getValue());
+    }
+
+    boolean deltaCompressed = plan.getDeltaCompression() != DeltaCompression.NONE;
+    long secondPhaseHeapBytes = SECOND_PHASE_HEAP_BYTES;
+    if (deltaCompressed) {
+      secondPhaseHeapBytes += DELTA_INFLATE_HEAP_BYTES;
+    }
+
+    // The control and extra sections of a sectioned delta are buffered while it is applied, in
+    // memory if they are small and otherwise in a temp file next to the delta-friendly old blob.
+    long sectionBytes = 0;
+    for (DeltaDescriptor descriptor : plan.getDeltaDescriptors()) {
+      if (descriptor.getFormat() == DeltaFormat.BSDIFF_SECTIONED) {
+        sectionBytes = Math.max(sectionBytes, getMaxSectionBytes(descriptor, deltaCompressed));
+      }
+    }
+    secondPhaseHeapBytes += Math.min(sectionBytes, BsPatch.SECTION_BUFFER_IN_MEMORY_LIMIT);
+    long sectionTempDiskBytes =
+        sectionBytes > BsPatch.SECTION_BUFFER_IN_MEMORY_LIMIT ? sectionBytes : 0;
+
+    // The first phase inflates entries of the old file. The second phase recompresses entries of
+    // the new file while inflating the delta, if it is compressed.
+    long firstPhaseNativeBytes = 0;
+    if (!plan.getOldFileUncompressionPlan().isEmpty()) {
+      firstPhaseNativeBytes = INFLATE_NATIVE_BYTES;
+    }
+    long secondPhaseNativeBytes = 0;
+    if (!bytesToRecompressByParameters.isEmpty()) {
+      secondPhaseNativeBytes += DEFLATE_NATIVE_BYTES;
+    }
+    if (deltaCompressed) {
+      secondPhaseNativeBytes += INFLATE_NATIVE_BYTES;
+    }
+
+    return new PatchApplyEstimate(
+        deltaFriendlyOldFileSize + sectionTempDiskBytes,
+        Math.max(FIRST_PHASE_HEAP_BYTES, secondPhaseHeapBytes),
+        Math.max(firstPhaseNativeBytes, secondPhaseNativeBytes),
+        bytesToInflate,
+        bytesToRecompressByParameters,
+        nanos);
+  }
+
+  /**
+   * Returns the most that the control and extra sections of a sectioned delta can be expected to
+   * take. They are part of the delta, so are no longer than it if its length is known and it isn't
+   * compressed. Otherwise the extra bytes are bounded by the length of the output of the delta, and
+   * the control entries are assumed to be negligible next to them.
+   *
+   * @param descriptor the descriptor of the delta
+   * @param deltaCompressed whether the delta is compressed
+   * @return the expected maximum length of the sections
+   */
+  private static long getMaxSectionBytes(DeltaDescriptor descriptor, boolean deltaCompressed) {
+    if (!deltaCompressed && descriptor.getDeltaLength() != PatchConstants.STREAMED_DELTA_LENGTH) {
+      return descriptor.getDeltaLength();
+    }
+    return descriptor.getDeltaFriendlyNewFileRange().getLength();
+  }
+}
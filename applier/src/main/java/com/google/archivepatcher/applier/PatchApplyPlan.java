@@ -15,6 +15,7 @@
 package com.google.archivepatcher.applier;
 
 import com.google.archivepatcher.shared.JreDeflateParameters;
+import com.google.archivepatcher.shared.PatchConstants.DeltaCompression;
 import com.google.archivepatcher.shared.TypedRange;
 
 import java.util.List;
@@ -63,7 +64,23 @@ public class PatchApplyPlan {
   private final List<DeltaDescriptor> deltaDescriptors;
 
   /**
-   * Constructs a new plan.
+   * The compression of the deltas in the patch stream.
+   */
+  private final DeltaCompression deltaCompression;
+
+  /**
+   * The expected SHA-256 digest of the new archive, or null if the patch doesn't record it.
+   */
+  private final byte[] expectedNewArchiveSha256;
+
+  /**
+   * The expected fingerprint of the old archive, or null if the patch doesn't record it.
+   */
+  private final byte[] expectedOldArchiveFingerprint;
+
+  /**
+   * Constructs a new plan for uncompressed deltas that records neither the expected digest of the
+   * new archive nor the expected fingerprint of the old archive.
    * @param oldFileUncompressionPlan the plan for uncompressing the old file, in file order
    * @param deltaFriendlyOldFileSize the expected size of the delta-friendly old file, after
    * executing the plan in oldFileUncompressionPlan; this can be used to pre-allocate the necessary
@@ -77,10 +94,48 @@ public class PatchApplyPlan {
       long deltaFriendlyOldFileSize,
       List<TypedRange<JreDeflateParameters>> deltaFriendlyNewFileRecompressionPlan,
       List<DeltaDescriptor> deltaDescriptors) {
+    this(
+        oldFileUncompressionPlan,
+        deltaFriendlyOldFileSize,
+        deltaFriendlyNewFileRecompressionPlan,
+        deltaDescriptors,
+        DeltaCompression.NONE,
+        null,
+        null);
+  }
+
+  /**
+   * Constructs a new plan, optionally recording the expected digest of the new archive and the
+   * expected fingerprint of the old archive.
+   * @param oldFileUncompressionPlan the plan for uncompressing the old file, in file order
+   * @param deltaFriendlyOldFileSize the expected size of the delta-friendly old file, after
+   * executing the plan in oldFileUncompressionPlan; this can be used to pre-allocate the necessary
+   * space to hold the delta-friendly old file
+   * @param deltaFriendlyNewFileRecompressionPlan the plan for recompressing the delta-friendly new
+   * file, in file order
+   * @param deltaDescriptors the descriptors for the deltas in the patch stream
+   * @param deltaCompression the compression of the deltas in the patch stream
+   * @param expectedNewArchiveSha256 the expected SHA-256 digest of the new archive, or null if the
+   * patch doesn't record it
+   * @param expectedOldArchiveFingerprint the expected {@link
+   * com.google.archivepatcher.shared.ArchiveFingerprint} of the old archive, or null if the patch
+   * doesn't record it
+   */
+  public PatchApplyPlan(
+      List<TypedRange<Void>> oldFileUncompressionPlan,
+      long deltaFriendlyOldFileSize,
+      List<TypedRange<JreDeflateParameters>> deltaFriendlyNewFileRecompressionPlan,
+      List<DeltaDescriptor> deltaDescriptors,
+      DeltaCompression deltaCompression,
+      byte[] expectedNewArchiveSha256,
+      byte[] expectedOldArchiveFingerprint) {
     this.oldFileUncompressionPlan = oldFileUncompressionPlan;
     this.deltaFriendlyOldFileSize = deltaFriendlyOldFileSize;
     this.deltaFriendlyNewFileRecompressionPlan = deltaFriendlyNewFileRecompressionPlan;
     this.deltaDescriptors = deltaDescriptors;
+    this.deltaCompression = deltaCompression;
+    this.expectedNewArchiveSha256 = expectedNewArchiveSha256;
+    this.expectedOldArchiveFingerprint = expectedOldArchiveFingerprint;
   }
 
   /**
@@ -116,4 +171,29 @@ public class PatchApplyPlan {
   public List<DeltaDescriptor> getDeltaDescriptors() {
     return deltaDescriptors;
   }
+
+  /**
+   * Returns the compression of the deltas in the patch stream.
+   * @return as described
+   */
+  public DeltaCompression getDeltaCompression() {
+    return deltaCompression;
+  }
+
+  /**
+   * Returns the expected SHA-256 digest of the new archive.
+   * @return the digest, or null if the patch doesn't record it
+   */
+  public byte[] getExpectedNewArchiveSha256() {
+    return expectedNewArchiveSha256;
+  }
+
+  /**
+   * Returns the expected {@link com.google.archivepatcher.shared.ArchiveFingerprint} of the old
+   * archive.
+   * @return the fingerprint, or null if the patch doesn't record it
+   */
+  public byte[] getExpectedOldArchiveFingerprint() {
+    return expectedOldArchiveFingerprint;
+  }
 }
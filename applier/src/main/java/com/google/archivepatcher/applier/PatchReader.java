@@ -49,13 +49,43 @@ public class PatchReader {
     DataInputStream dataIn = new DataInputStream(in);
 
     // Read header and flags.
-    byte[] expectedIdentifier = PatchConstants.IDENTIFIER.getBytes("US-ASCII");
-    byte[] actualIdentifier = new byte[expectedIdentifier.length];
+    byte[] actualIdentifier = new byte[PatchConstants.IDENTIFIER.length()];
     dataIn.readFully(actualIdentifier);
-    if (!Arrays.equals(expectedIdentifier, actualIdentifier)) {
+    boolean extendedHeader =
+        Arrays.equals(PatchConstants.EXTENDED_IDENTIFIER.getBytes("US-ASCII"), actualIdentifier);
+    if (!extendedHeader
+        && !Arrays.equals(PatchConstants.IDENTIFIER.getBytes("US-ASCII"), actualIdentifier)) {
       throw new PatchFormatException("Bad identifier");
     }
-    dataIn.skip(4); // Flags (ignored in v1)
+    // Flags. Only the delta compression and the presence of the new archive digest and the old
+    // archive fingerprint are defined; the other bits are reserved.
+    int flags = dataIn.readInt();
+    if ((flags
+            & ~(PatchConstants.DELTA_COMPRESSION_FLAGS_MASK
+                | PatchConstants.NEW_ARCHIVE_SHA256_FLAG
+                | PatchConstants.OLD_ARCHIVE_FINGERPRINT_FLAG))
+        != 0) {
+      throw new PatchFormatException("Bad value for flags: " + flags);
+    }
+    if (extendedHeader != ((flags & PatchConstants.EXTENDED_HEADER_FLAGS) != 0)) {
+      throw new PatchFormatException("Flags don't match the identifier: " + flags);
+    }
+    PatchConstants.DeltaCompression deltaCompression =
+        PatchConstants.DeltaCompression.fromPatchValue(
+            (byte) (flags & PatchConstants.DELTA_COMPRESSION_FLAGS_MASK));
+    if (deltaCompression == null) {
+      throw new PatchFormatException("Bad value for delta compression: " + flags);
+    }
+    byte[] expectedNewArchiveSha256 = null;
+    if ((flags & PatchConstants.NEW_ARCHIVE_SHA256_FLAG) != 0) {
+      expectedNewArchiveSha256 = new byte[PatchConstants.SHA256_LENGTH];
+      dataIn.readFully(expectedNewArchiveSha256);
+    }
+    byte[] expectedOldArchiveFingerprint = null;
+    if ((flags & PatchConstants.OLD_ARCHIVE_FINGERPRINT_FLAG) != 0) {
+      expectedOldArchiveFingerprint = new byte[PatchConstants.SHA256_LENGTH];
+      dataIn.readFully(expectedOldArchiveFingerprint);
+    }
     long deltaFriendlyOldFileSize = checkNonNegative(
         dataIn.readLong(), "delta-friendly old file size");
 
@@ -115,7 +145,7 @@ public class PatchReader {
     }
 
     // Read the delta metadata, but stop before the first byte of the actual delta.
-    // V1 has exactly one delta and it must be bsdiff.
+    // V1 has exactly one delta and it must be bsdiff (either layout) or gdiff.
     int numDeltaRecords = (int) checkRange(dataIn.readInt(), 1, 1, "num delta records");
 
     List<DeltaDescriptor> deltaDescriptors = new ArrayList<DeltaDescriptor>(numDeltaRecords);
@@ -124,7 +154,7 @@ public class PatchReader {
       checkRange(
           dataIn.readByte(),
           PatchConstants.DeltaFormat.BSDIFF.patchValue,
-          PatchConstants.DeltaFormat.BSDIFF.patchValue,
+          PatchConstants.DeltaFormat.BSDIFF_SECTIONED.patchValue,
           "delta format");
       long deltaFriendlyOldFileWorkRangeOffset = checkNonNegative(
           dataIn.readLong(), "delta-friendly old file work range offset");
@@ -134,7 +164,11 @@ public class PatchReader {
           dataIn.readLong(), "delta-friendly new file work range offset");
       long deltaFriendlyNewFileWorkRangeLength = checkNonNegative(
           dataIn.readLong(), "delta-friendly new file work range length");
-      long deltaLength = checkNonNegative(dataIn.readLong(), "delta length");
+      long deltaLength = dataIn.readLong();
+      // A streamed delta extends to the end of the patch, which is fine as it is the only one.
+      if (deltaLength != PatchConstants.STREAMED_DELTA_LENGTH) {
+        checkNonNegative(deltaLength, "delta length");
+      }
       DeltaDescriptor descriptor =
           new DeltaDescriptor(
               PatchConstants.DeltaFormat.fromPatchValue(deltaFormatByte),
@@ -150,7 +184,10 @@ public class PatchReader {
         Collections.unmodifiableList(oldFileUncompressionPlan),
         deltaFriendlyOldFileSize,
         Collections.unmodifiableList(deltaFriendlyNewFileRecompressionPlan),
-        Collections.unmodifiableList(deltaDescriptors));
+        Collections.unmodifiableList(deltaDescriptors),
+        deltaCompression,
+        expectedNewArchiveSha256,
+        expectedOldArchiveFingerprint);
   }
 
   /**
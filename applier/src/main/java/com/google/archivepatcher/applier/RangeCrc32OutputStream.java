@@ -0,0 +1,99 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.applier;
+
+import com.google.archivepatcher.shared.TypedRange;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An {@link OutputStream} that computes the CRC-32 of each of a list of ranges of the bytes that
+ * are written through it to another stream.
+ */
+class RangeCrc32OutputStream extends FilterOutputStream {
+  /** The ranges whose CRC-32s have yet to be completed. */
+  private final Iterator<? extends TypedRange<?>> rangeIterator;
+
+  /** The CRC-32s of the ranges that have been completed. */
+  private final List<TypedRange<Long>> rangeCrc32s = new ArrayList<TypedRange<Long>>();
+
+  /** The CRC-32 of the current range so far. */
+  private final CRC32 crc32 = new CRC32();
+
+  /** The range that is being worked on or that is coming up next, or null if there are none. */
+  private TypedRange<?> currentRange;
+
+  /** The number of bytes written so far. */
+  private long numBytesWritten = 0;
+
+  /** Used when writing one byte at a time. */
+  private final byte[] singleByte = new byte[1];
+
+  /**
+   * Creates a new stream that writes to the specified stream.
+   *
+   * @param ranges the ranges to compute the CRC-32s of, in ascending order and not overlapping
+   * @param out the stream to write to
+   */
+  RangeCrc32OutputStream(List<? extends TypedRange<?>> ranges, OutputStream out) {
+    super(out);
+    rangeIterator = ranges.iterator();
+    currentRange = rangeIterator.hasNext() ? rangeIterator.next() : null;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    singleByte[0] = (byte) b;
+    write(singleByte, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    out.write(b, off, len);
+    long start = numBytesWritten;
+    long end = start + len;
+    while (currentRange != null) {
+      long rangeEnd = currentRange.getOffset() + currentRange.getLength();
+      long from = Math.max(start, currentRange.getOffset());
+      long to = Math.min(end, rangeEnd);
+      if (from < to) {
+        crc32.update(b, off + (int) (from - start), (int) (to - from));
+      }
+      if (end < rangeEnd) {
+        break;
+      }
+      rangeCrc32s.add(
+          new TypedRange<Long>(
+              currentRange.getOffset(), currentRange.getLength(), crc32.getValue()));
+      crc32.reset();
+      currentRange = rangeIterator.hasNext() ? rangeIterator.next() : null;
+    }
+    numBytesWritten = end;
+  }
+
+  /**
+   * Returns the CRC-32s of the ranges that have been completely written so far, in order.
+   *
+   * @return the ranges, with the CRC-32 of each as metadata
+   */
+  List<TypedRange<Long>> getRangeCrc32s() {
+    return rangeCrc32s;
+  }
+}
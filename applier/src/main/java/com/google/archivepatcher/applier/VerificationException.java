@@ -0,0 +1,32 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.applier;
+
+import java.io.IOException;
+
+/**
+ * Thrown when an archive does not match the digest that a patch records for it.
+ */
+@SuppressWarnings("serial")
+public class VerificationException extends IOException {
+
+  /**
+   * Constructs a new exception with the specified message.
+   * @param message the message
+   */
+  public VerificationException(String message) {
+    super(message);
+  }
+}
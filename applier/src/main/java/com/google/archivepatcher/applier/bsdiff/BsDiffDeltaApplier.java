@@ -14,8 +14,8 @@
 
 package com.google.archivepatcher.applier.bsdiff;
 
+import com.google.archivepatcher.applier.ApplyMetricsListener;
 import com.google.archivepatcher.applier.DeltaApplier;
-
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -23,9 +23,53 @@ import java.io.OutputStream;
 import java.io.RandomAccessFile;
 
 /**
- * An implementation of {@link DeltaApplier} that uses {@link BsPatch} to apply a bsdiff patch.
+ * An implementation of {@link DeltaApplier} that uses {@link BsPatch} to apply a bsdiff patch,
+ * whether its contents are interleaved or in separate sections.
  */
 public class BsDiffDeltaApplier implements DeltaApplier {
+  /**
+   * The listener to report progress and the shape of the patch to.
+   */
+  private final ApplyMetricsListener metricsListener;
+
+  /**
+   * The directory to buffer the sections of sectioned patches in, or null for the default temp
+   * directory.
+   */
+  private final File tempDir;
+
+  /**
+   * Creates a new applier that reports nothing.
+   */
+  public BsDiffDeltaApplier() {
+    this(ApplyMetricsListener.NO_OP);
+  }
+
+  /**
+   * Creates a new applier that reports progress and the shape of each patch it applies to the
+   * specified listener.
+   *
+   * @param metricsListener the listener to report to
+   */
+  public BsDiffDeltaApplier(ApplyMetricsListener metricsListener) {
+    this(metricsListener, null);
+  }
+
+  /**
+   * Creates a new applier as in {@link #BsDiffDeltaApplier(ApplyMetricsListener)} that buffers
+   * the sections of sectioned patches that are too large to buffer in memory in the specified
+   * directory.
+   *
+   * @param metricsListener the listener to report to
+   * @param tempDir the directory to buffer sections in, or null for the default temp directory
+   */
+  public BsDiffDeltaApplier(ApplyMetricsListener metricsListener, File tempDir) {
+    if (metricsListener == null) {
+      throw new IllegalArgumentException("metricsListener cannot be null");
+    }
+    this.metricsListener = metricsListener;
+    this.tempDir = tempDir;
+  }
 
   @Override
   public void applyDelta(File oldBlob, InputStream deltaIn, OutputStream newBlobOut)
@@ -33,7 +77,7 @@ public class BsDiffDeltaApplier implements DeltaApplier {
     RandomAccessFile oldBlobRaf = null;
     try {
       oldBlobRaf = new RandomAccessFile(oldBlob, "r");
-      BsPatch.applyPatch(oldBlobRaf, newBlobOut, deltaIn);
+      BsPatch.applyPatch(oldBlobRaf, newBlobOut, deltaIn, null, tempDir, metricsListener);
     } finally {
       try {
         oldBlobRaf.close();
@@ -14,9 +14,14 @@
 
 package com.google.archivepatcher.applier.bsdiff;
 
+import com.google.archivepatcher.applier.ApplyMetricsListener;
 import com.google.archivepatcher.applier.PatchFormatException;
+import com.google.archivepatcher.shared.RandomAccessFileInputStream;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -28,6 +33,21 @@ import java.util.logging.Logger;
  * A Java implementation of the "bspatch" algorithm based on the BSD-2 licensed source code
  * available here: https://github.com/mendsley/bsdiff. This implementation supports a maximum file
  * size of 2GB for all binaries involved (old, new and patch binaries).
+ *
+ * <p>Patches in which the control entries, diff bytes and extra bytes are interleaved (signature
+ * "ENDSLEY/BSDIFF43") and patches in which they are in separate sections (signature
+ * "BSDIFF/SECTIONED") are both supported; the layout is detected from the signature. A sectioned
+ * patch consists of:
+ *
+ * <pre>
+ * signature (16 bytes) | new size | control length | extra length | control | extra | diff
+ * </pre>
+ *
+ * where the sizes and lengths are longs in the same format as the control entries, the control
+ * section holds the same entries as an interleaved patch, and the diff section extends to the end
+ * of the patch. The diff section, which is usually by far the largest, comes last so that it can be
+ * read straight from the patch stream; the control and extra sections are buffered in memory or,
+ * if they are large, in a temp file.
  */
 public class BsPatch {
   /** If true, output verbose debugging information. */
@@ -36,6 +56,18 @@ public class BsPatch {
   /** Standard header found at the start of every patch. */
   private static final String SIGNATURE = "ENDSLEY/BSDIFF43";
 
+  /** Header found at the start of every patch whose contents are in separate sections. */
+  private static final String SECTIONED_SIGNATURE = "BSDIFF/SECTIONED";
+
+  /** The length of a control entry, which is three longs. */
+  private static final int CONTROL_ENTRY_LENGTH = 3 * 8;
+
+  /**
+   * The control and extra sections of a sectioned patch are buffered in memory if together they
+   * are no larger than this, and in a temp file otherwise.
+   */
+  public static final int SECTION_BUFFER_IN_MEMORY_LIMIT = 1024 * 1024;
+
   /**
    * Default buffer size is 50 kibibytes, a reasonable tradeoff between size and speed.
    */
@@ -58,6 +90,12 @@ public class BsPatch {
    */
   private static final int OUTPUT_STREAM_BUFFER_SIZE = 16 * 1024;
 
+  /**
+   * Progress is reported to the listener each time at least this many more bytes of the new data
+   * have been produced, so that listeners aren't flooded by patches with many short directives.
+   */
+  private static final long PROGRESS_INTERVAL_BYTES = 1024 * 1024;
+
   /** An instance of Java logger for use with the {@code VERBOSE} mode. */
   private static final Logger logger = Logger.getLogger(BsPatch.class.getName());
 
@@ -91,10 +129,59 @@ public class BsPatch {
   public static void applyPatch(
       RandomAccessFile oldData, OutputStream newData, InputStream patchData, Long expectedNewSize)
       throws PatchFormatException, IOException {
+    applyPatch(oldData, newData, patchData, expectedNewSize, ApplyMetricsListener.NO_OP);
+  }
+
+  /**
+   * Applies a patch as in {@link #applyPatch(RandomAccessFile, OutputStream, InputStream, Long)},
+   * reporting progress and the shape of the patch to the specified listener.
+   *
+   * @param oldData data to which the patch should be applied
+   * @param newData stream to write the new artifact to
+   * @param patchData stream to read patch instructions from
+   * @param expectedNewSize the expected number of bytes in |newData| when patching completes. Can
+   *     be null in which case no expectedNewSize checks will be performed.
+   * @param metricsListener the listener to report progress and counters to
+   * @throws PatchFormatException if the patch stream is invalid
+   * @throws IOException if unable to read or write any of the data
+   */
+  public static void applyPatch(
+      RandomAccessFile oldData,
+      OutputStream newData,
+      InputStream patchData,
+      Long expectedNewSize,
+      ApplyMetricsListener metricsListener)
+      throws PatchFormatException, IOException {
+    applyPatch(oldData, newData, patchData, expectedNewSize, null, metricsListener);
+  }
+
+  /**
+   * Applies a patch as in {@link #applyPatch(RandomAccessFile, OutputStream, InputStream, Long,
+   * ApplyMetricsListener)}, buffering the control and extra sections of a sectioned patch in the
+   * specified directory if they are too large to buffer in memory.
+   *
+   * @param oldData data to which the patch should be applied
+   * @param newData stream to write the new artifact to
+   * @param patchData stream to read patch instructions from
+   * @param expectedNewSize the expected number of bytes in |newData| when patching completes. Can
+   *     be null in which case no expectedNewSize checks will be performed.
+   * @param tempDir the directory to buffer sections in, or null for the default temp directory
+   * @param metricsListener the listener to report progress and counters to
+   * @throws PatchFormatException if the patch stream is invalid
+   * @throws IOException if unable to read or write any of the data
+   */
+  public static void applyPatch(
+      RandomAccessFile oldData,
+      OutputStream newData,
+      InputStream patchData,
+      Long expectedNewSize,
+      File tempDir,
+      ApplyMetricsListener metricsListener)
+      throws PatchFormatException, IOException {
     patchData = new BufferedInputStream(patchData, PATCH_STREAM_BUFFER_SIZE);
     newData = new BufferedOutputStream(newData, OUTPUT_STREAM_BUFFER_SIZE);
     try {
-      applyPatchInternal(oldData, newData, patchData, expectedNewSize);
+      applyPatchInternal(oldData, newData, patchData, expectedNewSize, tempDir, metricsListener);
     } finally {
       newData.flush();
     }
@@ -105,7 +192,9 @@ public class BsPatch {
       final RandomAccessFile oldData,
       final OutputStream newData,
       final InputStream patchData,
-      final Long expectedNewSize)
+      final Long expectedNewSize,
+      final File tempDir,
+      final ApplyMetricsListener metricsListener)
       throws PatchFormatException, IOException {
     final byte[] signatureBuffer = new byte[SIGNATURE.length()];
     try {
@@ -115,7 +204,8 @@ public class BsPatch {
     }
 
     String signature = new String(signatureBuffer, 0, signatureBuffer.length, "US-ASCII");
-    if (!SIGNATURE.equals(signature)) {
+    final boolean sectioned = SECTIONED_SIGNATURE.equals(signature);
+    if (!sectioned && !SIGNATURE.equals(signature)) {
       throw new PatchFormatException("bad signature");
     }
 
@@ -132,6 +222,117 @@ public class BsPatch {
       throw new PatchFormatException("expectedNewSize != newSize");
     }
 
+    if (!sectioned) {
+      applyEntries(oldData, newData, patchData, patchData, patchData, newSize, metricsListener);
+      return;
+    }
+    final long controlLength = readBsdiffLong(patchData);
+    if (controlLength < 0
+        || controlLength > Integer.MAX_VALUE
+        || controlLength % CONTROL_ENTRY_LENGTH != 0) {
+      throw new PatchFormatException("bad controlLength");
+    }
+    final long extraLength = readBsdiffLong(patchData);
+    if (extraLength < 0 || extraLength > newSize) {
+      throw new PatchFormatException("bad extraLength");
+    }
+    final long bufferedLength = controlLength + extraLength;
+    if (bufferedLength <= SECTION_BUFFER_IN_MEMORY_LIMIT) {
+      final byte[] sections = new byte[(int) bufferedLength];
+      readFully(patchData, sections, 0, sections.length);
+      applySections(
+          oldData,
+          newData,
+          new ByteArrayInputStream(sections, 0, (int) controlLength),
+          patchData,
+          new ByteArrayInputStream(sections, (int) controlLength, (int) extraLength),
+          newSize,
+          metricsListener);
+      return;
+    }
+    final File sectionsFile = File.createTempFile("bspatch", "sections", tempDir);
+    try {
+      try (FileOutputStream sectionsOut = new FileOutputStream(sectionsFile)) {
+        final byte[] buffer = new byte[PATCH_BUFFER_SIZE];
+        for (long remaining = bufferedLength; remaining > 0; ) {
+          final int copyLength = (int) Math.min(buffer.length, remaining);
+          pipe(patchData, sectionsOut, buffer, copyLength);
+          remaining -= copyLength;
+        }
+      }
+      try (InputStream controlIn =
+              new BufferedInputStream(
+                  new RandomAccessFileInputStream(sectionsFile, 0, controlLength),
+                  PATCH_STREAM_BUFFER_SIZE);
+          InputStream extraIn =
+              new BufferedInputStream(
+                  new RandomAccessFileInputStream(sectionsFile, controlLength, extraLength),
+                  PATCH_STREAM_BUFFER_SIZE)) {
+        applySections(
+            oldData, newData, controlIn, patchData, extraIn, newSize, metricsListener);
+      }
+    } finally {
+      sectionsFile.delete();
+    }
+  }
+
+  /**
+   * Applies the entries of a sectioned patch and checks that they used up the control and extra
+   * sections. The diff section extends to the end of the patch, so it needs no such check.
+   *
+   * @param oldData data to which the patch should be applied
+   * @param newData stream to write the new artifact to
+   * @param controlIn stream to read the control section from
+   * @param diffIn stream to read the diff section from
+   * @param extraIn stream to read the extra section from
+   * @param newSize the number of bytes that the patch produces
+   * @param metricsListener the listener to report progress and counters to
+   * @throws PatchFormatException if the patch is invalid
+   * @throws IOException if unable to read or write any of the data
+   */
+  private static void applySections(
+      final RandomAccessFile oldData,
+      final OutputStream newData,
+      final InputStream controlIn,
+      final InputStream diffIn,
+      final InputStream extraIn,
+      final long newSize,
+      final ApplyMetricsListener metricsListener)
+      throws PatchFormatException, IOException {
+    applyEntries(oldData, newData, controlIn, diffIn, extraIn, newSize, metricsListener);
+    if (controlIn.read() != -1) {
+      throw new PatchFormatException("unused control entries");
+    }
+    if (extraIn.read() != -1) {
+      throw new PatchFormatException("unused extra bytes");
+    }
+  }
+
+  /**
+   * Applies control entries until |newSize| bytes have been written to |newData|. For an
+   * interleaved patch, all three streams are the patch stream itself.
+   *
+   * @param oldData data to which the patch should be applied
+   * @param newData stream to write the new artifact to
+   * @param controlIn stream to read control entries from
+   * @param diffIn stream to read the addends for "similar" bytes from
+   * @param extraIn stream to read bytes that are copied verbatim into |newData| from
+   * @param newSize the number of bytes that the patch produces
+   * @param metricsListener the listener to report progress and counters to
+   * @throws PatchFormatException if the patch is invalid
+   * @throws IOException if unable to read or write any of the data
+   */
+  private static void applyEntries(
+      final RandomAccessFile oldData,
+      final OutputStream newData,
+      final InputStream controlIn,
+      final InputStream diffIn,
+      final InputStream extraIn,
+      final long newSize,
+      final ApplyMetricsListener metricsListener)
+      throws PatchFormatException, IOException {
+    final long oldSize = oldData.length();
+
     // These buffers are used for performing transformations and copies. They are not stateful.
     final byte[] buffer1 = new byte[PATCH_BUFFER_SIZE];
     final byte[] buffer2 = new byte[PATCH_BUFFER_SIZE];
@@ -141,23 +342,32 @@ public class BsPatch {
     long newDataBytesWritten = 0; // monotonically increases from 0 .. |expectedNewSize|
     int numDirectives = 0; // only used for debugging output
 
+    // Counters for the listener. They are cheap enough to keep even when nobody is listening.
+    long controlEntries = 0;
+    long diffBytes = 0;
+    long copyBytes = 0;
+    long oldDataSeeks = 0;
+    long oldDataSeekDistance = 0;
+    long oldDataPosition = oldData.getFilePointer(); // where the last read of |oldData| ended
+    long nextProgressReport = PROGRESS_INTERVAL_BYTES;
+
     while (newDataBytesWritten < newSize) {
       // Read "control data" for the operation. There are three values here:
       // 1. |diffSegmentLength| defines a number of "similar" bytes that can be transformed
       //    from |oldData| to |newData| by applying byte-by-byte addends. The addend bytes are
-      //    read from |patchData|. If zero, no "similar" bytes are transformed in this
+      //    read from |diffIn|. If zero, no "similar" bytes are transformed in this
       //    operation.
-      final long diffSegmentLength = readBsdiffLong(patchData);
+      final long diffSegmentLength = readBsdiffLong(controlIn);
 
-      // 2. |copySegmentLength| defines a number of identical bytes that can be copied from
-      //    |oldData| to |newData|. If zero, no identical bytes are copied in this operation.
-      final long copySegmentLength = readBsdiffLong(patchData);
+      // 2. |copySegmentLength| defines a number of bytes that are copied verbatim from
+      //    |extraIn| to |newData|. If zero, no bytes are copied in this operation.
+      final long copySegmentLength = readBsdiffLong(controlIn);
 
       // 3. |offsetToNextInput| defines a relative offset to the next position in |oldData| to
       //    jump do after the current operation completes. Strangely, this compensates for
       //    |diffSegmentLength| but not for |copySegmentLength|, so |diffSegmentLength| must
       //    be accumulated into |oldDataOffset| while |copySegmentLength| must NOT be.
-      final long offsetToNextInput = readBsdiffLong(patchData);
+      final long offsetToNextInput = readBsdiffLong(controlIn);
 
       if (VERBOSE) {
         numDirectives++;
@@ -203,16 +413,31 @@ public class BsPatch {
       }
 
       // At this point everything is known to be sane, and the operations should all succeed.
+      controlEntries++;
+      if (oldDataOffset != oldDataPosition) {
+        oldDataSeeks++;
+        oldDataSeekDistance += Math.abs(oldDataOffset - oldDataPosition);
+      }
       oldData.seek(oldDataOffset);
       if (diffSegmentLength > 0) {
-        transformBytes((int) diffSegmentLength, patchData, oldData, newData, buffer1, buffer2);
+        transformBytes((int) diffSegmentLength, diffIn, oldData, newData, buffer1, buffer2);
       }
       if (copySegmentLength > 0) {
-        pipe(patchData, newData, buffer1, (int) copySegmentLength);
+        pipe(extraIn, newData, buffer1, (int) copySegmentLength);
       }
+      diffBytes += diffSegmentLength;
+      copyBytes += copySegmentLength;
+      oldDataPosition = oldDataOffset + diffSegmentLength;
       newDataBytesWritten = expectedFinalNewDataBytesWritten;
       oldDataOffset = expectedFinalOldDataOffset;
+      if (newDataBytesWritten >= nextProgressReport && newDataBytesWritten < newSize) {
+        metricsListener.progress(newDataBytesWritten, newSize);
+        nextProgressReport = newDataBytesWritten + PROGRESS_INTERVAL_BYTES;
+      }
     }
+    metricsListener.progress(newDataBytesWritten, newSize);
+    metricsListener.deltaApplied(
+        controlEntries, diffBytes, copyBytes, oldDataSeeks, oldDataSeekDistance);
   }
 
   /**
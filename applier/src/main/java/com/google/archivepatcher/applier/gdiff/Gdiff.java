@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 
 /** Clean implementation of http://www.w3.org/TR/NOTE-gdiff-19970901 */
 public class Gdiff {
@@ -53,12 +54,6 @@ public class Gdiff {
   private static final int COPY_INT_INT = 254;
   private static final int COPY_LONG_INT = 255;
 
-  /**
-   * We're patching APKs which are big. We might as well use a big buffer. TODO: 64k? This would
-   * allow us to do the USHORT copies in a single pass.
-   */
-  private static final int COPY_BUFFER_SIZE = 16 * 1024;
-
   /**
    * The patch is typically compressed and the input stream is decompressing on-the-fly. A small
    * buffer greatly improves efficiency on complicated patches with lots of short directives. See
@@ -66,6 +61,13 @@ public class Gdiff {
    */
   private static final int PATCH_STREAM_BUFFER_SIZE = 4 * 1024;
 
+  /**
+   * The output of consecutive commands is gathered in a buffer of this size and written in bulk,
+   * so that patches with many short commands don't cost a write to the output for each of them.
+   * This is also large enough to do the USHORT copies in a single pass.
+   */
+  private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
   /**
    * Apply a patch to a file.
    *
@@ -81,7 +83,37 @@ public class Gdiff {
       OutputStream output,
       long expectedOutputSize)
       throws IOException {
-    byte[] buffer = new byte[COPY_BUFFER_SIZE];
+    return patch(new RandomAccessFileOriginal(inputFile), patchFile, output, expectedOutputSize);
+  }
+
+  /**
+   * Apply a patch to a base that is held in a buffer, typically a file mapped into memory. Each
+   * copy from the base is then a memory copy rather than a seek and a read, which is much faster
+   * for patches with many short copies.
+   *
+   * @param input base, from position zero to its limit; its position is not changed
+   * @param patchFile patch file
+   * @param output output stream to write the file to
+   * @param expectedOutputSize expected size of the output.
+   * @throws IOException on file I/O as well as when patch under/over run happens.
+   */
+  public static long patch(
+      ByteBuffer input,
+      InputStream patchFile,
+      OutputStream output,
+      long expectedOutputSize)
+      throws IOException {
+    return patch(new ByteBufferOriginal(input), patchFile, output, expectedOutputSize);
+  }
+
+  /** Applies a patch to the specified base; see the public methods. */
+  private static long patch(
+      Original inputFile,
+      InputStream patchFile,
+      OutputStream output,
+      long expectedOutputSize)
+      throws IOException {
+    GatheringOutput gatheringOutput = new GatheringOutput(output);
     long outputSize = 0;
 
     // Wrap patchfile with a small buffer to cushion the 1,2,4,8 byte reads
@@ -110,14 +142,15 @@ public class Gdiff {
           case -1:
             throw new IOException("Patch file overrun");
           case EOF:
+            gatheringOutput.writeGathered();
             return outputSize;
           case DATA_USHORT:
             copyLength = patchDataStream.readUnsignedShort();
-            copyFromPatch(buffer, patchDataStream, output, copyLength, maxCopyLength);
+            copyFromPatch(patchDataStream, gatheringOutput, copyLength, maxCopyLength);
             break;
           case DATA_INT:
             copyLength = patchDataStream.readInt();
-            copyFromPatch(buffer, patchDataStream, output, copyLength, maxCopyLength);
+            copyFromPatch(patchDataStream, gatheringOutput, copyLength, maxCopyLength);
             break;
           case COPY_USHORT_UBYTE:
             copyOffset = patchDataStream.readUnsignedShort();
@@ -125,17 +158,17 @@ public class Gdiff {
             if (copyLength == -1) {
               throw new IOException("Unexpected end of patch");
             }
-            copyFromOriginal(buffer, inputFile, output, copyOffset, copyLength, maxCopyLength);
+            copyFromOriginal(inputFile, gatheringOutput, copyOffset, copyLength, maxCopyLength);
             break;
           case COPY_USHORT_USHORT:
             copyOffset = patchDataStream.readUnsignedShort();
             copyLength = patchDataStream.readUnsignedShort();
-            copyFromOriginal(buffer, inputFile, output, copyOffset, copyLength, maxCopyLength);
+            copyFromOriginal(inputFile, gatheringOutput, copyOffset, copyLength, maxCopyLength);
             break;
           case COPY_USHORT_INT:
             copyOffset = patchDataStream.readUnsignedShort();
             copyLength = patchDataStream.readInt();
-            copyFromOriginal(buffer, inputFile, output, copyOffset, copyLength, maxCopyLength);
+            copyFromOriginal(inputFile, gatheringOutput, copyOffset, copyLength, maxCopyLength);
             break;
           case COPY_INT_UBYTE:
             copyOffset = patchDataStream.readInt();
@@ -143,28 +176,28 @@ public class Gdiff {
             if (copyLength == -1) {
               throw new IOException("Unexpected end of patch");
             }
-            copyFromOriginal(buffer, inputFile, output, copyOffset, copyLength, maxCopyLength);
+            copyFromOriginal(inputFile, gatheringOutput, copyOffset, copyLength, maxCopyLength);
             break;
           case COPY_INT_USHORT:
             copyOffset = patchDataStream.readInt();
             copyLength = patchDataStream.readUnsignedShort();
-            copyFromOriginal(buffer, inputFile, output, copyOffset, copyLength, maxCopyLength);
+            copyFromOriginal(inputFile, gatheringOutput, copyOffset, copyLength, maxCopyLength);
             break;
           case COPY_INT_INT:
             copyOffset = patchDataStream.readInt();
             copyLength = patchDataStream.readInt();
-            copyFromOriginal(buffer, inputFile, output, copyOffset, copyLength, maxCopyLength);
+            copyFromOriginal(inputFile, gatheringOutput, copyOffset, copyLength, maxCopyLength);
             break;
           case COPY_LONG_INT:
             copyOffset = patchDataStream.readLong();
             copyLength = patchDataStream.readInt();
-            copyFromOriginal(buffer, inputFile, output, copyOffset, copyLength, maxCopyLength);
+            copyFromOriginal(inputFile, gatheringOutput, copyOffset, copyLength, maxCopyLength);
             break;
           default:
             // The only possible bytes remaining are DATA_MIN through DATA_MAX,
             // barring any programming error.
             copyLength = command;
-            copyFromPatch(buffer, patchDataStream, output, copyLength, maxCopyLength);
+            copyFromPatch(patchDataStream, gatheringOutput, copyLength, maxCopyLength);
             break;
         }
         outputSize += copyLength;
@@ -176,9 +209,8 @@ public class Gdiff {
 
   /** Copy a series of inline bytes from the patch file to the output file */
   private static void copyFromPatch(
-      byte[] buffer,
       DataInputStream patchDataStream,
-      OutputStream output,
+      GatheringOutput output,
       int copyLength,
       long maxCopyLength)
       throws IOException {
@@ -190,9 +222,9 @@ public class Gdiff {
     }
     try {
       while (copyLength > 0) {
-        int spanLength = (copyLength < COPY_BUFFER_SIZE) ? copyLength : COPY_BUFFER_SIZE;
-        patchDataStream.readFully(buffer, 0, spanLength);
-        output.write(buffer, 0, spanLength);
+        int spanLength = output.reserve(copyLength);
+        patchDataStream.readFully(output.buffer, output.size, spanLength);
+        output.size += spanLength;
         copyLength -= spanLength;
       }
     } catch (EOFException e) {
@@ -202,9 +234,8 @@ public class Gdiff {
 
   /** Copy a series of bytes from the input (original) file to the output file */
   private static void copyFromOriginal(
-      byte[] buffer,
-      RandomAccessFile inputFile,
-      OutputStream output,
+      Original inputFile,
+      GatheringOutput output,
       long inputOffset,
       int copyLength,
       long maxCopyLength)
@@ -219,15 +250,98 @@ public class Gdiff {
       throw new IOException("Output length overrun");
     }
     try {
-      inputFile.seek(inputOffset);
+      inputFile.seek(inputOffset, copyLength);
       while (copyLength > 0) {
-        int spanLength = (copyLength < COPY_BUFFER_SIZE) ? copyLength : COPY_BUFFER_SIZE;
-        inputFile.readFully(buffer, 0, spanLength);
-        output.write(buffer, 0, spanLength);
+        int spanLength = output.reserve(copyLength);
+        inputFile.readFully(output.buffer, output.size, spanLength);
+        output.size += spanLength;
         copyLength -= spanLength;
       }
     } catch (EOFException e) {
       throw new IOException("patch underrun", e);
     }
   }
+
+  /** Gathers the output of consecutive commands so that it can be written in bulk. */
+  private static final class GatheringOutput {
+    private final OutputStream output;
+    private final byte[] buffer = new byte[OUTPUT_BUFFER_SIZE];
+    private int size = 0;
+
+    GatheringOutput(OutputStream output) {
+      this.output = output;
+    }
+
+    /**
+     * Makes room in the buffer, writing what has been gathered if it is full, and returns the
+     * number of bytes that can be gathered next.
+     */
+    int reserve(int length) throws IOException {
+      if (size == buffer.length) {
+        writeGathered();
+      }
+      return Math.min(length, buffer.length - size);
+    }
+
+    /** Writes what has been gathered to the output. */
+    void writeGathered() throws IOException {
+      output.write(buffer, 0, size);
+      size = 0;
+    }
+  }
+
+  /** The base that the patch copies from. */
+  private interface Original {
+    /**
+     * Prepares to read the specified range.
+     *
+     * @throws IOException if unable to read, including if the range is beyond the end of the base
+     */
+    void seek(long offset, int length) throws IOException;
+
+    /** Reads the next bytes of the range. */
+    void readFully(byte[] buffer, int offset, int length) throws IOException;
+  }
+
+  /** A base in a file. */
+  private static final class RandomAccessFileOriginal implements Original {
+    private final RandomAccessFile file;
+
+    RandomAccessFileOriginal(RandomAccessFile file) {
+      this.file = file;
+    }
+
+    @Override
+    public void seek(long offset, int length) throws IOException {
+      file.seek(offset);
+    }
+
+    @Override
+    public void readFully(byte[] buffer, int offset, int length) throws IOException {
+      file.readFully(buffer, offset, length);
+    }
+  }
+
+  /** A base in a buffer. */
+  private static final class ByteBufferOriginal implements Original {
+    private final ByteBuffer view;
+
+    ByteBufferOriginal(ByteBuffer input) {
+      // A view of the buffer, so that the position of the original doesn't change.
+      view = input.duplicate();
+    }
+
+    @Override
+    public void seek(long offset, int length) throws IOException {
+      if (offset > view.limit() - (long) length) {
+        throw new EOFException();
+      }
+      view.position((int) offset);
+    }
+
+    @Override
+    public void readFully(byte[] buffer, int offset, int length) {
+      view.get(buffer, offset, length);
+    }
+  }
 }
@@ -0,0 +1,69 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.applier.gdiff;
+
+import com.google.archivepatcher.applier.DeltaApplier;
+import com.google.archivepatcher.applier.PatchFormatException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An implementation of {@link DeltaApplier} that uses {@link Gdiff} to apply a gdiff patch.
+ */
+public class GdiffDeltaApplier implements DeltaApplier {
+  /**
+   * The size of the new blob that the patch must produce.
+   */
+  private final long expectedNewSize;
+
+  /**
+   * Creates a new applier for patches that produce a new blob of the specified size.
+   *
+   * @param expectedNewSize the size of the new blob; a patch that produces more or fewer bytes is
+   *     rejected
+   */
+  public GdiffDeltaApplier(long expectedNewSize) {
+    if (expectedNewSize < 0) {
+      throw new IllegalArgumentException("expectedNewSize cannot be negative: " + expectedNewSize);
+    }
+    this.expectedNewSize = expectedNewSize;
+  }
+
+  @Override
+  public void applyDelta(File oldBlob, InputStream deltaIn, OutputStream newBlobOut)
+      throws IOException {
+    try (RandomAccessFile oldBlobRaf = new RandomAccessFile(oldBlob, "r")) {
+      long newSize;
+      if (oldBlobRaf.length() <= Integer.MAX_VALUE) {
+        // Map the old blob, so that copies from it don't cost a seek and a read each. The mapping
+        // is released when it is garbage collected.
+        MappedByteBuffer oldData =
+            oldBlobRaf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, oldBlobRaf.length());
+        newSize = Gdiff.patch(oldData, deltaIn, newBlobOut, expectedNewSize);
+      } else {
+        newSize = Gdiff.patch(oldBlobRaf, deltaIn, newBlobOut, expectedNewSize);
+      }
+      if (newSize != expectedNewSize) {
+        throw new PatchFormatException(
+            "Patch produced " + newSize + " bytes, expected " + expectedNewSize);
+      }
+    }
+  }
+}
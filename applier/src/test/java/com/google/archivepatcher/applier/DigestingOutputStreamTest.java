@@ -0,0 +1,60 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.applier;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.zip.CRC32;
+
+/**
+ * Tests for {@link DigestingOutputStream}.
+ */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class DigestingOutputStreamTest {
+  private static final byte[] DATA = "The quick brown fox jumps over the lazy dog".getBytes();
+
+  @Test
+  public void testDigests() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    DigestingOutputStream stream = new DigestingOutputStream(out, true, true);
+    // Mix single bytes and arrays
+    stream.write(DATA[0]);
+    stream.write(DATA, 1, 10);
+    stream.write(DATA, 11, DATA.length - 11);
+    Assert.assertArrayEquals(DATA, out.toByteArray());
+    CRC32 crc32 = new CRC32();
+    crc32.update(DATA);
+    Assert.assertEquals(Long.valueOf(crc32.getValue()), stream.getCrc32());
+    Assert.assertArrayEquals(
+        MessageDigest.getInstance("SHA-256").digest(DATA), stream.getSha256());
+  }
+
+  @Test
+  public void testDigests_NoneRequested() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    DigestingOutputStream stream = new DigestingOutputStream(out, false, false);
+    stream.write(DATA);
+    Assert.assertArrayEquals(DATA, out.toByteArray());
+    Assert.assertNull(stream.getCrc32());
+    Assert.assertNull(stream.getSha256());
+  }
+}
@@ -14,8 +14,11 @@
 
 package com.google.archivepatcher.applier;
 
+import com.google.archivepatcher.shared.ArchiveFingerprint;
+import com.google.archivepatcher.shared.DeflateCompressor;
 import com.google.archivepatcher.shared.JreDeflateParameters;
 import com.google.archivepatcher.shared.PatchConstants;
+import com.google.archivepatcher.shared.TypedRange;
 import com.google.archivepatcher.shared.UnitTestZipEntry;
 
 import org.junit.After;
@@ -35,6 +38,10 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.zip.CRC32;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -146,12 +153,12 @@ public class FileByFileV1DeltaApplierTest {
     expectedNewBytes = buffer.toByteArray();
 
     // Finally, write the patch that should transform old to new
-    patchBytes = writePatch();
+    patchBytes = writePatch(PatchConstants.DeltaCompression.NONE, false);
 
     // Initialize fake delta applier to mock out dependency on bsdiff
     fakeApplier = new FileByFileV1DeltaApplier(tempDir) {
           @Override
-          protected DeltaApplier getDeltaApplier() {
+          protected DeltaApplier getDeltaApplier(DeltaDescriptor deltaDescriptor) {
             return new FakeDeltaApplier();
           }
         };
@@ -159,10 +166,31 @@ public class FileByFileV1DeltaApplierTest {
 
   /**
    * Write a patch that will convert the old file to the new file, and return it.
+   * @param deltaCompression the compression to apply to the delta
+   * @param streamed whether to record the delta length as that of a streamed delta
    * @return the patch, as a byte array
    * @throws IOException if anything goes wrong
    */
-  private byte[] writePatch() throws IOException {
+  private byte[] writePatch(PatchConstants.DeltaCompression deltaCompression, boolean streamed)
+      throws IOException {
+    return writePatch(deltaCompression, streamed, null, null);
+  }
+
+  /**
+   * Write a patch that will convert the old file to the new file, and return it.
+   * @param deltaCompression the compression to apply to the delta
+   * @param streamed whether to record the delta length as that of a streamed delta
+   * @param newArchiveSha256 the digest of the new file to record in the patch, or null
+   * @param oldArchiveFingerprint the fingerprint of the old file to record in the patch, or null
+   * @return the patch, as a byte array
+   * @throws IOException if anything goes wrong
+   */
+  private byte[] writePatch(
+      PatchConstants.DeltaCompression deltaCompression,
+      boolean streamed,
+      byte[] newArchiveSha256,
+      byte[] oldArchiveFingerprint)
+      throws IOException {
     long deltaFriendlyOldFileSize =
         UNCOMPRESSED_HEADER.length + UNCOMPRESSED_OLD_CONTENT.length + UNCOMPRESSED_TRAILER.length;
     long deltaFriendlyNewFileSize =
@@ -171,8 +199,25 @@ public class FileByFileV1DeltaApplierTest {
     ByteArrayOutputStream buffer = new ByteArrayOutputStream();
     DataOutputStream dataOut = new DataOutputStream(buffer);
     // Now write a patch, independent of the PatchWrite code.
-    dataOut.write(PatchConstants.IDENTIFIER.getBytes("US-ASCII"));
-    dataOut.writeInt(0); // Flags (reserved)
+    // Compression, the digest and the fingerprint need the extended identifier
+    dataOut.write(
+        (deltaCompression != PatchConstants.DeltaCompression.NONE
+                || newArchiveSha256 != null
+                || oldArchiveFingerprint != null
+                ? PatchConstants.EXTENDED_IDENTIFIER
+                : PatchConstants.IDENTIFIER)
+            .getBytes("US-ASCII"));
+    // Flags: the compression, and whether the digest and then the fingerprint follow
+    dataOut.writeInt(
+        deltaCompression.patchValue
+            | (newArchiveSha256 != null ? 0x100 : 0)
+            | (oldArchiveFingerprint != null ? 0x200 : 0));
+    if (newArchiveSha256 != null) {
+      dataOut.write(newArchiveSha256);
+    }
+    if (oldArchiveFingerprint != null) {
+      dataOut.write(oldArchiveFingerprint);
+    }
     dataOut.writeLong(deltaFriendlyOldFileSize);
 
     // Write a single uncompress instruction to uncompress the compressed content in oldFile
@@ -200,8 +245,14 @@ public class FileByFileV1DeltaApplierTest {
 
     // Write the length of the delta and the delta itself. Again, this test class uses its own
     // delta applier; so this is irrelevant.
-    dataOut.writeLong(BSDIFF_DELTA.length());
-    dataOut.write(BSDIFF_DELTA.getBytes("US-ASCII"));
+    byte[] delta = BSDIFF_DELTA.getBytes("US-ASCII");
+    if (deltaCompression == PatchConstants.DeltaCompression.DEFLATE) {
+      ByteArrayOutputStream compressedDelta = new ByteArrayOutputStream();
+      new DeflateCompressor().compress(new ByteArrayInputStream(delta), compressedDelta);
+      delta = compressedDelta.toByteArray();
+    }
+    dataOut.writeLong(streamed ? PatchConstants.STREAMED_DELTA_LENGTH : delta.length);
+    dataOut.write(delta);
     dataOut.flush();
     return buffer.toByteArray();
   }
@@ -216,6 +267,7 @@ public class FileByFileV1DeltaApplierTest {
       byte[] actualDeltaDataRead = new byte[BSDIFF_DELTA.length()];
       deltaData.readFully(actualDeltaDataRead);
       Assert.assertArrayEquals(BSDIFF_DELTA.getBytes("US-ASCII"), actualDeltaDataRead);
+      Assert.assertEquals(-1, deltaData.read());
 
       // Check that the old data is as expected
       int oldSize = (int) oldBlob.length();
@@ -252,6 +304,53 @@ public class FileByFileV1DeltaApplierTest {
     Assert.assertArrayEquals(expectedNewBytes, actualNewBlobOut.toByteArray());
   }
 
+  @Test
+  public void testApplyDelta_StreamedDelta() throws IOException {
+    byte[] streamedPatchBytes = writePatch(PatchConstants.DeltaCompression.NONE, true);
+    ByteArrayOutputStream actualNewBlobOut = new ByteArrayOutputStream();
+    fakeApplier.applyDelta(oldFile, new ByteArrayInputStream(streamedPatchBytes), actualNewBlobOut);
+    Assert.assertArrayEquals(expectedNewBytes, actualNewBlobOut.toByteArray());
+  }
+
+  @Test
+  public void testApplyDelta_CompressedDelta() throws IOException {
+    for (boolean streamed : new boolean[] {false, true}) {
+      byte[] compressedPatchBytes = writePatch(PatchConstants.DeltaCompression.DEFLATE, streamed);
+      ByteArrayOutputStream actualNewBlobOut = new ByteArrayOutputStream();
+      fakeApplier.applyDelta(
+          oldFile, new ByteArrayInputStream(compressedPatchBytes), actualNewBlobOut);
+      Assert.assertArrayEquals(expectedNewBytes, actualNewBlobOut.toByteArray());
+    }
+  }
+
+  @Test
+  public void testApplyDelta_ReportsMetrics() throws IOException {
+    ApplyMetricsCollector collector = new ApplyMetricsCollector();
+    FileByFileV1DeltaApplier applier =
+        new FileByFileV1DeltaApplier(tempDir, collector) {
+          @Override
+          protected DeltaApplier getDeltaApplier(DeltaDescriptor deltaDescriptor) {
+            return new FakeDeltaApplier();
+          }
+        };
+    ByteArrayOutputStream actualNewBlobOut = new ByteArrayOutputStream();
+    applier.applyDelta(oldFile, new ByteArrayInputStream(patchBytes), actualNewBlobOut);
+    Assert.assertArrayEquals(expectedNewBytes, actualNewBlobOut.toByteArray());
+    Assert.assertEquals(
+        UNCOMPRESSED_HEADER.length + UNCOMPRESSED_OLD_CONTENT.length + UNCOMPRESSED_TRAILER.length,
+        collector.getPhaseBytes(ApplyMetricsListener.Phase.WRITE_DELTA_FRIENDLY_OLD_BLOB));
+    Assert.assertEquals(
+        UNCOMPRESSED_HEADER.length + UNCOMPRESSED_NEW_CONTENT.length + UNCOMPRESSED_TRAILER.length,
+        collector.getPhaseBytes(ApplyMetricsListener.Phase.APPLY_DELTA));
+    Assert.assertEquals(
+        UNCOMPRESSED_NEW_CONTENT.length,
+        collector.getPhaseBytes(ApplyMetricsListener.Phase.RECOMPRESS));
+    Assert.assertTrue(collector.getPhaseNanos(ApplyMetricsListener.Phase.APPLY_DELTA) > 0);
+    Assert.assertEquals(
+        Collections.singletonMap(PARAMS1, (long) UNCOMPRESSED_NEW_CONTENT.length),
+        collector.getRecompressedBytes());
+  }
+
   @Test
   public void testApplyDelta_DoesntCloseStream() throws IOException {
     // Test for https://github.com/andrewhayden/archive-patcher/issues/6
@@ -267,4 +366,114 @@ public class FileByFileV1DeltaApplierTest {
     Assert.assertFalse(closed.get());
   }
 
+  @Test
+  public void testApplyDeltaWithResult() throws IOException {
+    ByteArrayOutputStream actualNewBlobOut = new ByteArrayOutputStream();
+    ApplyResult result =
+        fakeApplier.applyDeltaWithResult(
+            oldFile,
+            new ByteArrayInputStream(patchBytes),
+            actualNewBlobOut,
+            EnumSet.allOf(ApplyResult.Digest.class));
+    Assert.assertArrayEquals(expectedNewBytes, actualNewBlobOut.toByteArray());
+    CRC32 crc32 = new CRC32();
+    crc32.update(expectedNewBytes);
+    Assert.assertEquals(Long.valueOf(crc32.getValue()), result.getCrc32());
+    Assert.assertArrayEquals(sha256(expectedNewBytes), result.getSha256());
+    // The entry CRC-32 is that of the uncompressed data, as recorded in the new archive.
+    CRC32 entryCrc32 = new CRC32();
+    entryCrc32.update(UNCOMPRESSED_NEW_CONTENT);
+    Assert.assertEquals(
+        Collections.singletonList(
+            new TypedRange<Long>(
+                UNCOMPRESSED_HEADER.length,
+                UNCOMPRESSED_NEW_CONTENT.length,
+                entryCrc32.getValue())),
+        result.getEntryCrc32s());
+  }
+
+  @Test
+  public void testApplyDeltaWithResult_NoDigests() throws IOException {
+    ByteArrayOutputStream actualNewBlobOut = new ByteArrayOutputStream();
+    ApplyResult result =
+        fakeApplier.applyDeltaWithResult(
+            oldFile,
+            new ByteArrayInputStream(patchBytes),
+            actualNewBlobOut,
+            EnumSet.noneOf(ApplyResult.Digest.class));
+    Assert.assertArrayEquals(expectedNewBytes, actualNewBlobOut.toByteArray());
+    Assert.assertNull(result.getCrc32());
+    Assert.assertNull(result.getSha256());
+    Assert.assertNull(result.getEntryCrc32s());
+  }
+
+  @Test
+  public void testApplyDelta_NewArchiveSha256() throws IOException {
+    byte[] verifiedPatchBytes =
+        writePatch(PatchConstants.DeltaCompression.NONE, false, sha256(expectedNewBytes), null);
+    ByteArrayOutputStream actualNewBlobOut = new ByteArrayOutputStream();
+    ApplyResult result =
+        fakeApplier.applyDeltaWithResult(
+            oldFile,
+            new ByteArrayInputStream(verifiedPatchBytes),
+            actualNewBlobOut,
+            EnumSet.noneOf(ApplyResult.Digest.class));
+    Assert.assertArrayEquals(expectedNewBytes, actualNewBlobOut.toByteArray());
+    Assert.assertArrayEquals(sha256(expectedNewBytes), result.getSha256());
+  }
+
+  @Test(expected = VerificationException.class)
+  public void testApplyDelta_NewArchiveSha256Mismatch() throws IOException {
+    byte[] verifiedPatchBytes =
+        writePatch(PatchConstants.DeltaCompression.NONE, false, sha256(oldFileBytes), null);
+    fakeApplier.applyDelta(
+        oldFile, new ByteArrayInputStream(verifiedPatchBytes), new ByteArrayOutputStream());
+  }
+
+  @Test
+  public void testApplyDelta_OldArchiveFingerprint() throws IOException {
+    byte[] verifiedPatchBytes =
+        writePatch(
+            PatchConstants.DeltaCompression.NONE,
+            false,
+            sha256(expectedNewBytes),
+            ArchiveFingerprint.compute(oldFile));
+    ByteArrayOutputStream actualNewBlobOut = new ByteArrayOutputStream();
+    fakeApplier.applyDelta(oldFile, new ByteArrayInputStream(verifiedPatchBytes), actualNewBlobOut);
+    Assert.assertArrayEquals(expectedNewBytes, actualNewBlobOut.toByteArray());
+  }
+
+  @Test
+  public void testApplyDelta_OldArchiveFingerprintMismatch() throws IOException {
+    byte[] fingerprint = ArchiveFingerprint.compute(oldFile);
+    fingerprint[0] ^= 1;
+    byte[] verifiedPatchBytes =
+        writePatch(PatchConstants.DeltaCompression.NONE, false, null, fingerprint);
+    ApplyMetricsCollector collector = new ApplyMetricsCollector();
+    FileByFileV1DeltaApplier applier =
+        new FileByFileV1DeltaApplier(tempDir, collector) {
+          @Override
+          protected DeltaApplier getDeltaApplier(DeltaDescriptor deltaDescriptor) {
+            return new FakeDeltaApplier();
+          }
+        };
+    ByteArrayOutputStream actualNewBlobOut = new ByteArrayOutputStream();
+    try {
+      applier.applyDelta(oldFile, new ByteArrayInputStream(verifiedPatchBytes), actualNewBlobOut);
+      Assert.fail("Expected a VerificationException");
+    } catch (VerificationException expected) {
+      // Nothing was done: no phases were completed and nothing was written.
+      Assert.assertEquals(
+          0, collector.getPhaseBytes(ApplyMetricsListener.Phase.WRITE_DELTA_FRIENDLY_OLD_BLOB));
+      Assert.assertEquals(0, actualNewBlobOut.size());
+    }
+  }
+
+  private static byte[] sha256(byte[] data) throws IOException {
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(data);
+    } catch (Exception e) {
+      throw new IOException(e);
+    }
+  }
 }
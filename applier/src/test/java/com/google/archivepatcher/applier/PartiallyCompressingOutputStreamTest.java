@@ -29,6 +29,8 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Tests for {@link PartiallyCompressingOutputStream}.
@@ -116,6 +118,27 @@ public class PartiallyCompressingOutputStreamTest {
     Assert.assertArrayEquals(ENTRY1.getCompressedBinaryContent(), outBuffer.toByteArray());
   }
 
+  @Test
+  public void testWrite_ReportsRecompressedRanges() throws IOException {
+    ApplyMetricsCollector collector = new ApplyMetricsCollector();
+    stream =
+        new PartiallyCompressingOutputStream(
+            Arrays.asList(COMPRESS_RANGE_1, COMPRESS_RANGE_2), outBuffer, 32768, collector);
+    stream.write(
+        fuse(
+            PREAMBLE_BYTES,
+            ENTRY1.getUncompressedBinaryContent(),
+            GAP1_BYTES,
+            ENTRY2.getUncompressedBinaryContent()));
+    stream.flush();
+    Assert.assertEquals(LENGTH1 + LENGTH2, stream.getBytesCompressed());
+    Assert.assertTrue(stream.getCompressionNanos() > 0);
+    Map<JreDeflateParameters, Long> expected = new HashMap<>();
+    expected.put(PARAMS1, LENGTH1);
+    expected.put(PARAMS2, LENGTH2);
+    Assert.assertEquals(expected, collector.getRecompressedBytes());
+  }
+
   @Test
   public void testWrite_GapAndCompression() throws IOException {
     // Write uncompressed data followed by compressed data
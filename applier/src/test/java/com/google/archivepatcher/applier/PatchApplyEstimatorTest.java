@@ -0,0 +1,308 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.applier;
+
+import com.google.archivepatcher.applier.bsdiff.BsPatch;
+import com.google.archivepatcher.shared.DeviceCostModel;
+import com.google.archivepatcher.shared.JreDeflateParameters;
+import com.google.archivepatcher.shared.PatchConstants;
+import com.google.archivepatcher.shared.TypedRange;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link PatchApplyEstimator}.
+ */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class PatchApplyEstimatorTest {
+  private static final JreDeflateParameters LEVEL_1 = JreDeflateParameters.of(1, 0, true);
+  private static final JreDeflateParameters LEVEL_9 = JreDeflateParameters.of(9, 0, true);
+
+  /**
+   * A device that inflates at 10 MB/s, deflates at 4 MB/s at level 1 and 1 MB/s otherwise, applies
+   * deltas at 20 MB/s and takes 10 ns per byte of temporary storage.
+   */
+  private static final DeviceCostModel MODEL =
+      new DeviceCostModel.Builder()
+          .withInflateBytesPerSecond(10 * 1000 * 1000)
+          .withDeflateBytesPerSecond(1000 * 1000)
+          .withDeflateBytesPerSecond(LEVEL_1, 4 * 1000 * 1000)
+          .withDeltaApplyBytesPerSecond(20 * 1000 * 1000)
+          .withIoNanosPerByte(10)
+          .build();
+
+  /** An old file of 1 MB, with two ranges of 100 KB each that inflate to 300 KB each. */
+  private static final long OLD_FILE_LENGTH = 1000 * 1000;
+
+  private static final List<TypedRange<Void>> OLD_FILE_UNCOMPRESSION_PLAN =
+      Arrays.asList(
+          new TypedRange<Void>(1000, 100 * 1000, null),
+          new TypedRange<Void>(500 * 1000, 100 * 1000, null));
+
+  private static final long DELTA_FRIENDLY_OLD_FILE_SIZE = OLD_FILE_LENGTH + 2 * 200 * 1000;
+
+  /** A delta-friendly new file of 2 MB, with ranges to recompress at levels 1 and 9. */
+  private static final long DELTA_FRIENDLY_NEW_FILE_SIZE = 2 * 1000 * 1000;
+
+  private static final List<TypedRange<JreDeflateParameters>> NEW_FILE_RECOMPRESSION_PLAN =
+      Arrays.asList(
+          new TypedRange<JreDeflateParameters>(0, 400 * 1000, LEVEL_1),
+          new TypedRange<JreDeflateParameters>(500 * 1000, 200 * 1000, LEVEL_9),
+          new TypedRange<JreDeflateParameters>(800 * 1000, 300 * 1000, LEVEL_9));
+
+  private static PatchApplyPlan makePlan(
+      List<TypedRange<Void>> oldFileUncompressionPlan,
+      long deltaFriendlyOldFileSize,
+      List<TypedRange<JreDeflateParameters>> newFileRecompressionPlan) {
+    return makePlan(
+        oldFileUncompressionPlan,
+        deltaFriendlyOldFileSize,
+        newFileRecompressionPlan,
+        PatchConstants.DeltaCompression.NONE);
+  }
+
+  private static PatchApplyPlan makePlan(
+      List<TypedRange<Void>> oldFileUncompressionPlan,
+      long deltaFriendlyOldFileSize,
+      List<TypedRange<JreDeflateParameters>> newFileRecompressionPlan,
+      PatchConstants.DeltaCompression deltaCompression) {
+    return new PatchApplyPlan(
+        oldFileUncompressionPlan,
+        deltaFriendlyOldFileSize,
+        newFileRecompressionPlan,
+        Collections.singletonList(
+            new DeltaDescriptor(
+                PatchConstants.DeltaFormat.BSDIFF,
+                new TypedRange<Void>(0, deltaFriendlyOldFileSize, null),
+                new TypedRange<Void>(0, DELTA_FRIENDLY_NEW_FILE_SIZE, null),
+                12345)),
+        deltaCompression,
+        null,
+        null);
+  }
+
+  private static PatchApplyPlan makePlan(
+      PatchConstants.DeltaFormat deltaFormat,
+      long deltaLength,
+      PatchConstants.DeltaCompression deltaCompression) {
+    return new PatchApplyPlan(
+        OLD_FILE_UNCOMPRESSION_PLAN,
+        DELTA_FRIENDLY_OLD_FILE_SIZE,
+        NEW_FILE_RECOMPRESSION_PLAN,
+        Collections.singletonList(
+            new DeltaDescriptor(
+                deltaFormat,
+                new TypedRange<Void>(0, DELTA_FRIENDLY_OLD_FILE_SIZE, null),
+                new TypedRange<Void>(0, DELTA_FRIENDLY_NEW_FILE_SIZE, null),
+                deltaLength)),
+        deltaCompression,
+        null,
+        null);
+  }
+
+  @Test
+  public void testEstimate() {
+    PatchApplyEstimate estimate =
+        new PatchApplyEstimator(MODEL)
+            .estimate(
+                makePlan(
+                    OLD_FILE_UNCOMPRESSION_PLAN,
+                    DELTA_FRIENDLY_OLD_FILE_SIZE,
+                    NEW_FILE_RECOMPRESSION_PLAN),
+                OLD_FILE_LENGTH);
+    Assert.assertEquals(DELTA_FRIENDLY_OLD_FILE_SIZE, estimate.getPeakTempDiskBytes());
+    Assert.assertEquals(600 * 1000, estimate.getBytesToInflate());
+    Assert.assertEquals(400 * 1000, estimate.getBytesToRecompress(1));
+    Assert.assertEquals(500 * 1000, estimate.getBytesToRecompress(9));
+    Assert.assertEquals(0, estimate.getBytesToRecompress(6));
+    Assert.assertEquals(900 * 1000, estimate.getTotalBytesToRecompress());
+    Assert.assertEquals(2, estimate.getBytesToRecompressByParameters().size());
+    Assert.assertTrue(estimate.getPeakHeapBytes() > 0);
+    Assert.assertTrue(estimate.getPeakNativeBytes() > 0);
+    // Inflate: 60 ms. I/O: 14 ms. Delta: 100 ms. Deflate: 100 ms at level 1 + 500 ms at level 9.
+    Assert.assertEquals(60 + 14 + 100 + 100 + 500, estimate.getEstimatedMillis());
+  }
+
+  @Test
+  public void testEstimate_NothingToDo() {
+    PatchApplyEstimate estimate =
+        new PatchApplyEstimator(MODEL)
+            .estimate(
+                makePlan(
+                    Collections.<TypedRange<Void>>emptyList(),
+                    OLD_FILE_LENGTH,
+                    Collections.<TypedRange<JreDeflateParameters>>emptyList()),
+                OLD_FILE_LENGTH);
+    Assert.assertEquals(0, estimate.getBytesToInflate());
+    Assert.assertEquals(0, estimate.getTotalBytesToRecompress());
+    Assert.assertEquals(0, estimate.getPeakNativeBytes());
+    // I/O: 10 ms. Delta: 100 ms.
+    Assert.assertEquals(10 + 100, estimate.getEstimatedMillis());
+  }
+
+  @Test
+  public void testEstimate_CompressedDelta() {
+    PatchApplyEstimator estimator = new PatchApplyEstimator(MODEL);
+    PatchApplyEstimate uncompressed =
+        estimator.estimate(
+            makePlan(
+                OLD_FILE_UNCOMPRESSION_PLAN,
+                DELTA_FRIENDLY_OLD_FILE_SIZE,
+                NEW_FILE_RECOMPRESSION_PLAN,
+                PatchConstants.DeltaCompression.NONE),
+            OLD_FILE_LENGTH);
+    PatchApplyEstimate compressed =
+        estimator.estimate(
+            makePlan(
+                OLD_FILE_UNCOMPRESSION_PLAN,
+                DELTA_FRIENDLY_OLD_FILE_SIZE,
+                NEW_FILE_RECOMPRESSION_PLAN,
+                PatchConstants.DeltaCompression.DEFLATE),
+            OLD_FILE_LENGTH);
+    // The delta is inflated while the new file is recompressed.
+    Assert.assertTrue(compressed.getPeakHeapBytes() > uncompressed.getPeakHeapBytes());
+    Assert.assertTrue(compressed.getPeakNativeBytes() > uncompressed.getPeakNativeBytes());
+  }
+
+  @Test
+  public void testEstimate_CompressedDelta_NothingToDo() {
+    PatchApplyEstimate estimate =
+        new PatchApplyEstimator(MODEL)
+            .estimate(
+                makePlan(
+                    Collections.<TypedRange<Void>>emptyList(),
+                    OLD_FILE_LENGTH,
+                    Collections.<TypedRange<JreDeflateParameters>>emptyList(),
+                    PatchConstants.DeltaCompression.DEFLATE),
+                OLD_FILE_LENGTH);
+    // Inflating the delta still needs native memory.
+    Assert.assertTrue(estimate.getPeakNativeBytes() > 0);
+  }
+
+  @Test
+  public void testEstimate_SectionedDelta_Small() {
+    PatchApplyEstimator estimator = new PatchApplyEstimator(MODEL);
+    PatchApplyEstimate interleaved =
+        estimator.estimate(
+            makePlan(
+                PatchConstants.DeltaFormat.BSDIFF, 12345, PatchConstants.DeltaCompression.NONE),
+            OLD_FILE_LENGTH);
+    PatchApplyEstimate sectioned =
+        estimator.estimate(
+            makePlan(
+                PatchConstants.DeltaFormat.BSDIFF_SECTIONED,
+                12345,
+                PatchConstants.DeltaCompression.NONE),
+            OLD_FILE_LENGTH);
+    // The sections are no larger than the delta, so they are buffered in memory.
+    Assert.assertEquals(interleaved.getPeakHeapBytes() + 12345, sectioned.getPeakHeapBytes());
+    Assert.assertEquals(DELTA_FRIENDLY_OLD_FILE_SIZE, sectioned.getPeakTempDiskBytes());
+  }
+
+  @Test
+  public void testEstimate_SectionedDelta_Large() {
+    PatchApplyEstimator estimator = new PatchApplyEstimator(MODEL);
+    PatchApplyEstimate interleaved =
+        estimator.estimate(
+            makePlan(
+                PatchConstants.DeltaFormat.BSDIFF,
+                5 * 1000 * 1000,
+                PatchConstants.DeltaCompression.NONE),
+            OLD_FILE_LENGTH);
+    PatchApplyEstimate sectioned =
+        estimator.estimate(
+            makePlan(
+                PatchConstants.DeltaFormat.BSDIFF_SECTIONED,
+                5 * 1000 * 1000,
+                PatchConstants.DeltaCompression.NONE),
+            OLD_FILE_LENGTH);
+    // The sections may be as large as the delta, so they may be buffered in a temp file.
+    Assert.assertEquals(
+        interleaved.getPeakHeapBytes() + BsPatch.SECTION_BUFFER_IN_MEMORY_LIMIT,
+        sectioned.getPeakHeapBytes());
+    Assert.assertEquals(
+        DELTA_FRIENDLY_OLD_FILE_SIZE + 5 * 1000 * 1000, sectioned.getPeakTempDiskBytes());
+  }
+
+  @Test
+  public void testEstimate_SectionedDelta_Compressed() {
+    PatchApplyEstimate estimate =
+        new PatchApplyEstimator(MODEL)
+            .estimate(
+                makePlan(
+                    PatchConstants.DeltaFormat.BSDIFF_SECTIONED,
+                    12345,
+                    PatchConstants.DeltaCompression.DEFLATE),
+                OLD_FILE_LENGTH);
+    // The sections may be as large as the output of the delta once uncompressed.
+    Assert.assertEquals(
+        DELTA_FRIENDLY_OLD_FILE_SIZE + DELTA_FRIENDLY_NEW_FILE_SIZE,
+        estimate.getPeakTempDiskBytes());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testEstimate_WrongOldFileLength() {
+    new PatchApplyEstimator(MODEL)
+        .estimate(
+            makePlan(
+                OLD_FILE_UNCOMPRESSION_PLAN,
+                DELTA_FRIENDLY_OLD_FILE_SIZE,
+                NEW_FILE_RECOMPRESSION_PLAN),
+            DELTA_FRIENDLY_OLD_FILE_SIZE + 1000 * 1000);
+  }
+
+  @Test
+  public void testEstimate_FromPatchStream() throws IOException {
+    // A minimal patch: no uncompression, one range to recompress at level 9.
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    DataOutputStream patchOut = new DataOutputStream(buffer);
+    patchOut.write(PatchConstants.IDENTIFIER.getBytes("US-ASCII"));
+    patchOut.writeInt(0); // Flags
+    patchOut.writeLong(OLD_FILE_LENGTH);
+    patchOut.writeInt(0); // Old file uncompression instructions
+    patchOut.writeInt(1); // New file recompression instructions
+    patchOut.writeLong(0);
+    patchOut.writeLong(1000 * 1000);
+    patchOut.write(PatchConstants.CompatibilityWindowId.DEFAULT_DEFLATE.patchValue);
+    patchOut.write(9);
+    patchOut.write(0);
+    patchOut.write(1);
+    patchOut.writeInt(1); // Delta descriptors
+    patchOut.write(PatchConstants.DeltaFormat.BSDIFF.patchValue);
+    patchOut.writeLong(0);
+    patchOut.writeLong(OLD_FILE_LENGTH);
+    patchOut.writeLong(0);
+    patchOut.writeLong(DELTA_FRIENDLY_NEW_FILE_SIZE);
+    patchOut.writeLong(3);
+    patchOut.write(new byte[] {1, 2, 3});
+    patchOut.flush();
+
+    ByteArrayInputStream patchIn = new ByteArrayInputStream(buffer.toByteArray());
+    PatchApplyEstimate estimate = new PatchApplyEstimator(MODEL).estimate(patchIn, OLD_FILE_LENGTH);
+    Assert.assertEquals(1000 * 1000, estimate.getBytesToRecompress(9));
+    // The stream is left at the start of the delta.
+    Assert.assertEquals(3, patchIn.available());
+  }
+}
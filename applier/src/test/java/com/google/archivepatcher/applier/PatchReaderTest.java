@@ -88,6 +88,16 @@ public class PatchReaderTest {
   private static final List<DeltaDescriptor> DELTA_DESCRIPTORS =
       Collections.singletonList(DELTA_DESCRIPTOR);
 
+  private static final byte[] NEW_ARCHIVE_SHA256 = new byte[32];
+  private static final byte[] OLD_ARCHIVE_FINGERPRINT = new byte[32];
+
+  static {
+    for (int x = 0; x < NEW_ARCHIVE_SHA256.length; x++) {
+      NEW_ARCHIVE_SHA256[x] = (byte) (x + 1);
+      OLD_ARCHIVE_FINGERPRINT[x] = (byte) (x + 100);
+    }
+  }
+
   private Corruption corruption = null;
 
   /**
@@ -95,6 +105,12 @@ public class PatchReaderTest {
    */
   private static class Corruption {
     boolean corruptIdentifier = false;
+    boolean corruptExtendedIdentifier = false;
+    boolean corruptFlags = false;
+    boolean corruptDeltaCompression = false;
+    boolean compressDelta = false;
+    boolean includeNewArchiveSha256 = false;
+    boolean includeOldArchiveFingerprint = false;
     boolean corruptDeltaFriendlyOldFileSize = false;
     boolean corruptOldFileUncompressionInstructionCount = false;
     boolean corruptOldFileUncompressionInstructionOffset = false;
@@ -115,6 +131,7 @@ public class PatchReaderTest {
     boolean corruptDeltaFriendlyNewFileWorkRangeOffset = false;
     boolean corruptDeltaFriendlyNewFileWorkRangeLength = false;
     boolean corruptDeltaLength = false;
+    boolean streamDelta = false;
   }
 
   @Before
@@ -137,11 +154,37 @@ public class PatchReaderTest {
     // expected format and otherwise escape detection.
     ByteArrayOutputStream out = new ByteArrayOutputStream();
     DataOutputStream patchOut = new DataOutputStream(out);
+    // Compressed deltas and header fields after the flags need the extended identifier
+    boolean extendedHeader =
+        (corruption.compressDelta
+                || corruption.corruptDeltaCompression
+                || corruption.includeNewArchiveSha256
+                || corruption.includeOldArchiveFingerprint)
+            != corruption.corruptExtendedIdentifier;
     patchOut.write(
         corruption.corruptIdentifier
             ? new byte[8]
-            : PatchConstants.IDENTIFIER.getBytes("US-ASCII")); // header
-    patchOut.writeInt(0); // Flags, all reserved in v1
+            : extendedHeader
+                ? PatchConstants.EXTENDED_IDENTIFIER.getBytes("US-ASCII")
+                : PatchConstants.IDENTIFIER.getBytes("US-ASCII")); // header
+    // Flags, all reserved in v1 except for the delta compression in the lowest byte and the
+    // presence of the new archive digest and the old archive fingerprint in the next two bits
+    patchOut.writeInt(
+        (corruption.corruptFlags
+                ? 0x8000
+                : corruption.corruptDeltaCompression
+                    ? 0x7f
+                    : corruption.compressDelta
+                        ? PatchConstants.DeltaCompression.DEFLATE.patchValue
+                        : PatchConstants.DeltaCompression.NONE.patchValue)
+            | (corruption.includeNewArchiveSha256 ? 0x100 : 0)
+            | (corruption.includeOldArchiveFingerprint ? 0x200 : 0));
+    if (corruption.includeNewArchiveSha256) {
+      patchOut.write(NEW_ARCHIVE_SHA256);
+    }
+    if (corruption.includeOldArchiveFingerprint) {
+      patchOut.write(OLD_ARCHIVE_FINGERPRINT);
+    }
     patchOut.writeLong(
         corruption.corruptDeltaFriendlyOldFileSize ? -1 : DELTA_FRIENDLY_OLD_FILE_SIZE);
 
@@ -215,7 +258,13 @@ public class PatchReaderTest {
           corruption.corruptDeltaFriendlyNewFileWorkRangeLength
               ? -1
               : descriptor.getDeltaFriendlyNewFileRange().getLength());
-      patchOut.writeLong(corruption.corruptDeltaLength ? -1 : descriptor.getDeltaLength());
+      // -1 is the streamed delta length, so use another negative value for corruption.
+      patchOut.writeLong(
+          corruption.corruptDeltaLength
+              ? -2
+              : corruption.streamDelta
+                  ? PatchConstants.STREAMED_DELTA_LENGTH
+                  : descriptor.getDeltaLength());
     }
 
     // Finally, the delta bytes
@@ -232,6 +281,9 @@ public class PatchReaderTest {
     Assert.assertEquals(
         NEW_DELTA_FRIENDLY_RECOMPRESS_PLAN, plan.getDeltaFriendlyNewFileRecompressionPlan());
     Assert.assertEquals(DELTA_DESCRIPTORS, plan.getDeltaDescriptors());
+    Assert.assertEquals(PatchConstants.DeltaCompression.NONE, plan.getDeltaCompression());
+    Assert.assertNull(plan.getExpectedNewArchiveSha256());
+    Assert.assertNull(plan.getExpectedOldArchiveFingerprint());
   }
 
   @Test(expected = PatchFormatException.class)
@@ -240,6 +292,90 @@ public class PatchReaderTest {
     new PatchReader().readPatchApplyPlan(new ByteArrayInputStream(writeTestPatch()));
   }
 
+  @Test(expected = PatchFormatException.class)
+  public void testReadPatchApplyPlan_NewArchiveSha256WithoutExtendedIdentifier()
+      throws IOException {
+    corruption.includeNewArchiveSha256 = true;
+    corruption.corruptExtendedIdentifier = true;
+    new PatchReader().readPatchApplyPlan(new ByteArrayInputStream(writeTestPatch()));
+  }
+
+  @Test(expected = PatchFormatException.class)
+  public void testReadPatchApplyPlan_OldArchiveFingerprintWithoutExtendedIdentifier()
+      throws IOException {
+    corruption.includeOldArchiveFingerprint = true;
+    corruption.corruptExtendedIdentifier = true;
+    new PatchReader().readPatchApplyPlan(new ByteArrayInputStream(writeTestPatch()));
+  }
+
+  @Test(expected = PatchFormatException.class)
+  public void testReadPatchApplyPlan_DeltaCompressionWithoutExtendedIdentifier()
+      throws IOException {
+    corruption.compressDelta = true;
+    corruption.corruptExtendedIdentifier = true;
+    new PatchReader().readPatchApplyPlan(new ByteArrayInputStream(writeTestPatch()));
+  }
+
+  @Test(expected = PatchFormatException.class)
+  public void testReadPatchApplyPlan_ExtendedIdentifierWithoutHeaderFields() throws IOException {
+    corruption.corruptExtendedIdentifier = true;
+    new PatchReader().readPatchApplyPlan(new ByteArrayInputStream(writeTestPatch()));
+  }
+
+  @Test
+  public void testReadPatchApplyPlan_DeltaCompression() throws IOException {
+    corruption.compressDelta = true;
+    PatchApplyPlan plan =
+        new PatchReader().readPatchApplyPlan(new ByteArrayInputStream(writeTestPatch()));
+    Assert.assertEquals(PatchConstants.DeltaCompression.DEFLATE, plan.getDeltaCompression());
+    Assert.assertEquals(DELTA_DESCRIPTORS, plan.getDeltaDescriptors());
+  }
+
+  @Test
+  public void testReadPatchApplyPlan_NewArchiveSha256() throws IOException {
+    corruption.includeNewArchiveSha256 = true;
+    PatchApplyPlan plan =
+        new PatchReader().readPatchApplyPlan(new ByteArrayInputStream(writeTestPatch()));
+    Assert.assertArrayEquals(NEW_ARCHIVE_SHA256, plan.getExpectedNewArchiveSha256());
+    Assert.assertEquals(DELTA_FRIENDLY_OLD_FILE_SIZE, plan.getDeltaFriendlyOldFileSize());
+    Assert.assertEquals(DELTA_DESCRIPTORS, plan.getDeltaDescriptors());
+  }
+
+  @Test
+  public void testReadPatchApplyPlan_OldArchiveFingerprint() throws IOException {
+    corruption.includeOldArchiveFingerprint = true;
+    PatchApplyPlan plan =
+        new PatchReader().readPatchApplyPlan(new ByteArrayInputStream(writeTestPatch()));
+    Assert.assertNull(plan.getExpectedNewArchiveSha256());
+    Assert.assertArrayEquals(OLD_ARCHIVE_FINGERPRINT, plan.getExpectedOldArchiveFingerprint());
+    Assert.assertEquals(DELTA_FRIENDLY_OLD_FILE_SIZE, plan.getDeltaFriendlyOldFileSize());
+    Assert.assertEquals(DELTA_DESCRIPTORS, plan.getDeltaDescriptors());
+  }
+
+  @Test
+  public void testReadPatchApplyPlan_NewArchiveSha256AndOldArchiveFingerprint()
+      throws IOException {
+    corruption.includeNewArchiveSha256 = true;
+    corruption.includeOldArchiveFingerprint = true;
+    PatchApplyPlan plan =
+        new PatchReader().readPatchApplyPlan(new ByteArrayInputStream(writeTestPatch()));
+    Assert.assertArrayEquals(NEW_ARCHIVE_SHA256, plan.getExpectedNewArchiveSha256());
+    Assert.assertArrayEquals(OLD_ARCHIVE_FINGERPRINT, plan.getExpectedOldArchiveFingerprint());
+    Assert.assertEquals(DELTA_DESCRIPTORS, plan.getDeltaDescriptors());
+  }
+
+  @Test(expected = PatchFormatException.class)
+  public void testReadPatchApplyPlan_CorruptFlags() throws IOException {
+    corruption.corruptFlags = true;
+    new PatchReader().readPatchApplyPlan(new ByteArrayInputStream(writeTestPatch()));
+  }
+
+  @Test(expected = PatchFormatException.class)
+  public void testReadPatchApplyPlan_CorruptDeltaCompression() throws IOException {
+    corruption.corruptDeltaCompression = true;
+    new PatchReader().readPatchApplyPlan(new ByteArrayInputStream(writeTestPatch()));
+  }
+
   @Test(expected = PatchFormatException.class)
   public void testReadPatchApplyPlan_CorruptDeltaFriendlyOldFileSize() throws IOException {
     corruption.corruptDeltaFriendlyOldFileSize = true;
@@ -371,4 +507,17 @@ public class PatchReaderTest {
     corruption.corruptDeltaLength = true;
     new PatchReader().readPatchApplyPlan(new ByteArrayInputStream(writeTestPatch()));
   }
+
+  @Test
+  public void testReadPatchApplyPlan_StreamedDelta() throws IOException {
+    corruption.streamDelta = true;
+    PatchApplyPlan plan =
+        new PatchReader().readPatchApplyPlan(new ByteArrayInputStream(writeTestPatch()));
+    Assert.assertEquals(1, plan.getDeltaDescriptors().size());
+    DeltaDescriptor descriptor = plan.getDeltaDescriptors().get(0);
+    Assert.assertEquals(PatchConstants.STREAMED_DELTA_LENGTH, descriptor.getDeltaLength());
+    Assert.assertEquals(
+        DELTA_DESCRIPTORS.get(0).getDeltaFriendlyNewFileRange(),
+        descriptor.getDeltaFriendlyNewFileRange());
+  }
 }
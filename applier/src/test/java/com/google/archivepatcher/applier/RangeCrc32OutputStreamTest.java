@@ -0,0 +1,105 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.applier;
+
+import com.google.archivepatcher.shared.TypedRange;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Tests for {@link RangeCrc32OutputStream}.
+ */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class RangeCrc32OutputStreamTest {
+  private static final byte[] DATA = new byte[100];
+
+  static {
+    for (int x = 0; x < DATA.length; x++) {
+      DATA[x] = (byte) (x * 7);
+    }
+  }
+
+  // Ranges with a gap before, between and after them, one of them adjacent to the next
+  private static final List<TypedRange<Object>> RANGES =
+      Arrays.asList(
+          new TypedRange<Object>(5, 20, null),
+          new TypedRange<Object>(25, 1, null),
+          new TypedRange<Object>(40, 50, null));
+
+  private static List<TypedRange<Long>> expectedCrc32s() {
+    List<TypedRange<Long>> expected = new ArrayList<TypedRange<Long>>();
+    for (TypedRange<Object> range : RANGES) {
+      CRC32 crc32 = new CRC32();
+      crc32.update(DATA, (int) range.getOffset(), (int) range.getLength());
+      expected.add(new TypedRange<Long>(range.getOffset(), range.getLength(), crc32.getValue()));
+    }
+    return expected;
+  }
+
+  @Test
+  public void testWrite_SingleBytes() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    RangeCrc32OutputStream stream = new RangeCrc32OutputStream(RANGES, out);
+    for (byte b : DATA) {
+      stream.write(b);
+    }
+    Assert.assertArrayEquals(DATA, out.toByteArray());
+    Assert.assertEquals(expectedCrc32s(), stream.getRangeCrc32s());
+  }
+
+  @Test
+  public void testWrite_Chunks() throws IOException {
+    // Try every chunk size, so that chunks start and end everywhere relative to the ranges.
+    for (int chunkSize = 1; chunkSize <= DATA.length; chunkSize++) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      RangeCrc32OutputStream stream = new RangeCrc32OutputStream(RANGES, out);
+      for (int offset = 0; offset < DATA.length; offset += chunkSize) {
+        stream.write(DATA, offset, Math.min(chunkSize, DATA.length - offset));
+      }
+      Assert.assertArrayEquals(DATA, out.toByteArray());
+      Assert.assertEquals(expectedCrc32s(), stream.getRangeCrc32s());
+    }
+  }
+
+  @Test
+  public void testWrite_Incomplete() throws IOException {
+    RangeCrc32OutputStream stream =
+        new RangeCrc32OutputStream(RANGES, new ByteArrayOutputStream());
+    stream.write(DATA, 0, 30);
+    Assert.assertEquals(expectedCrc32s().subList(0, 2), stream.getRangeCrc32s());
+  }
+
+  @Test
+  public void testWrite_NoRanges() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    RangeCrc32OutputStream stream =
+        new RangeCrc32OutputStream(Collections.<TypedRange<Object>>emptyList(), out);
+    stream.write(DATA);
+    Assert.assertArrayEquals(DATA, out.toByteArray());
+    Assert.assertTrue(stream.getRangeCrc32s().isEmpty());
+  }
+}
@@ -14,6 +14,8 @@
 
 package com.google.archivepatcher.applier.bsdiff;
 
+import com.google.archivepatcher.applier.ApplyMetricsCollector;
+import com.google.archivepatcher.applier.ApplyMetricsListener;
 import com.google.archivepatcher.applier.PatchFormatException;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -37,6 +39,7 @@ import org.junit.runners.JUnit4;
 public class BsPatchTest {
 
   private static final String SIGNATURE = "ENDSLEY/BSDIFF43";
+  private static final String SECTIONED_SIGNATURE = "BSDIFF/SECTIONED";
   private byte[] buffer1;
   private byte[] buffer2;
 
@@ -153,6 +156,160 @@ public class BsPatchTest {
         "bsdifftest_minimal_blob_b.bin");
   }
 
+  @Test
+  public void testApplyPatch_ReportsMetrics() throws Exception {
+    createEmptyOldFile(20);
+    ByteArrayOutputStream patch = new ByteArrayOutputStream();
+    patch.write(SIGNATURE.getBytes("US-ASCII"));
+    writeBsdiffLong(12, patch); // newLength
+    // Diff 4 bytes from old offset 0 and copy 2 bytes, then jump to old offset 10.
+    writeBsdiffLong(4, patch);
+    writeBsdiffLong(2, patch);
+    writeBsdiffLong(6, patch);
+    patch.write(new byte[] {0, 0, 0, 0, 1, 2});
+    // Diff 3 bytes from old offset 10 (a seek of 6), then jump back to old offset 0.
+    writeBsdiffLong(3, patch);
+    writeBsdiffLong(0, patch);
+    writeBsdiffLong(-13, patch);
+    patch.write(new byte[3]);
+    // Diff 3 bytes from old offset 0 (a seek of 13).
+    writeBsdiffLong(3, patch);
+    writeBsdiffLong(0, patch);
+    writeBsdiffLong(0, patch);
+    patch.write(new byte[3]);
+
+    ApplyMetricsCollector collector = new ApplyMetricsCollector();
+    ByteArrayOutputStream newData = new ByteArrayOutputStream();
+    try (RandomAccessFile oldData = new RandomAccessFile(oldFile, "r")) {
+      BsPatch.applyPatch(
+          oldData, newData, new ByteArrayInputStream(patch.toByteArray()), 12L, collector);
+    }
+    Assert.assertArrayEquals(
+        new byte[] {0, 0, 0, 0, 1, 2, 0, 0, 0, 0, 0, 0}, newData.toByteArray());
+    Assert.assertEquals(3, collector.getControlEntries());
+    Assert.assertEquals(10, collector.getDiffBytes());
+    Assert.assertEquals(2, collector.getCopyBytes());
+    Assert.assertEquals(2, collector.getOldDataSeeks());
+    Assert.assertEquals(19, collector.getOldDataSeekDistance());
+    Assert.assertEquals(12, collector.getBytesProduced());
+    Assert.assertEquals(12, collector.getTotalBytes());
+  }
+
+  @Test
+  public void testApplyPatch_Sectioned() throws Exception {
+    createEmptyOldFile(20);
+    // The same entries as in testApplyPatch_ReportsMetrics.
+    ByteArrayOutputStream control = new ByteArrayOutputStream();
+    writeControlEntry(4, 2, 6, control);
+    writeControlEntry(3, 0, -13, control);
+    writeControlEntry(3, 0, 0, control);
+    InputStream patchIn =
+        makeSectionedPatch(
+            12,
+            control.toByteArray(),
+            new byte[] {1, 2}, // extra
+            new byte[] {0, 0, 0, 0, 0, 0, 0, 0, 0, 1}); // diff
+
+    ApplyMetricsCollector collector = new ApplyMetricsCollector();
+    ByteArrayOutputStream newData = new ByteArrayOutputStream();
+    try (RandomAccessFile oldData = new RandomAccessFile(oldFile, "r")) {
+      BsPatch.applyPatch(oldData, newData, patchIn, 12L, collector);
+    }
+    Assert.assertArrayEquals(
+        new byte[] {0, 0, 0, 0, 1, 2, 0, 0, 0, 0, 0, 1}, newData.toByteArray());
+    Assert.assertEquals(3, collector.getControlEntries());
+    Assert.assertEquals(10, collector.getDiffBytes());
+    Assert.assertEquals(2, collector.getCopyBytes());
+  }
+
+  @Test
+  public void testApplyPatch_Sectioned_BufferedInTempFile() throws Exception {
+    createEmptyOldFile(10);
+    byte[] extra = new byte[BsPatch.SECTION_BUFFER_IN_MEMORY_LIMIT];
+    for (int x = 0; x < extra.length; x++) {
+      extra[x] = (byte) x;
+    }
+    ByteArrayOutputStream control = new ByteArrayOutputStream();
+    writeControlEntry(10, extra.length, 0, control);
+    byte[] diff = new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+    InputStream patchIn = makeSectionedPatch(10 + extra.length, control.toByteArray(), extra, diff);
+
+    File tempDir = File.createTempFile("archive_patcher", "dir");
+    tempDir.delete();
+    tempDir.mkdir();
+    ByteArrayOutputStream newData = new ByteArrayOutputStream();
+    try (RandomAccessFile oldData = new RandomAccessFile(oldFile, "r")) {
+      BsPatch.applyPatch(
+          oldData, newData, patchIn, null, tempDir, ApplyMetricsListener.NO_OP);
+    } finally {
+      // The buffered sections must have been deleted.
+      Assert.assertEquals(0, tempDir.list().length);
+      tempDir.delete();
+    }
+    byte[] actual = newData.toByteArray();
+    Assert.assertTrue(regionEquals(diff, 0, actual, 0, diff.length));
+    Assert.assertTrue(regionEquals(extra, 0, actual, diff.length, extra.length));
+    Assert.assertEquals(diff.length + extra.length, actual.length);
+  }
+
+  @Test
+  public void testApplyPatch_Sectioned_UnusedControlEntries() throws Exception {
+    createEmptyOldFile(10);
+    ByteArrayOutputStream control = new ByteArrayOutputStream();
+    writeControlEntry(10, 0, 0, control);
+    writeControlEntry(0, 0, 0, control);
+    InputStream patchIn = makeSectionedPatch(10, control.toByteArray(), new byte[0], new byte[10]);
+    try {
+      BsPatch.applyPatch(new RandomAccessFile(oldFile, "r"), new ByteArrayOutputStream(), patchIn);
+      Assert.fail("Read patch with unused control entries");
+    } catch (PatchFormatException expected) {
+      Assert.assertEquals("unused control entries", expected.getMessage());
+    }
+  }
+
+  @Test
+  public void testApplyPatch_Sectioned_UnusedExtraBytes() throws Exception {
+    createEmptyOldFile(10);
+    ByteArrayOutputStream control = new ByteArrayOutputStream();
+    writeControlEntry(9, 1, 0, control);
+    InputStream patchIn = makeSectionedPatch(10, control.toByteArray(), new byte[2], new byte[9]);
+    try {
+      BsPatch.applyPatch(new RandomAccessFile(oldFile, "r"), new ByteArrayOutputStream(), patchIn);
+      Assert.fail("Read patch with unused extra bytes");
+    } catch (PatchFormatException expected) {
+      Assert.assertEquals("unused extra bytes", expected.getMessage());
+    }
+  }
+
+  @Test
+  public void testApplyPatch_Sectioned_BadControlLength() throws Exception {
+    createEmptyOldFile(10);
+    ByteArrayOutputStream control = new ByteArrayOutputStream();
+    writeControlEntry(10, 0, 0, control);
+    control.write(0); // Not a whole number of entries
+    InputStream patchIn = makeSectionedPatch(10, control.toByteArray(), new byte[0], new byte[10]);
+    try {
+      BsPatch.applyPatch(new RandomAccessFile(oldFile, "r"), new ByteArrayOutputStream(), patchIn);
+      Assert.fail("Read patch with bad control length");
+    } catch (PatchFormatException expected) {
+      Assert.assertEquals("bad controlLength", expected.getMessage());
+    }
+  }
+
+  @Test
+  public void testApplyPatch_Sectioned_BadExtraLength() throws Exception {
+    createEmptyOldFile(10);
+    ByteArrayOutputStream control = new ByteArrayOutputStream();
+    writeControlEntry(0, 10, 0, control);
+    InputStream patchIn = makeSectionedPatch(10, control.toByteArray(), new byte[11], new byte[0]);
+    try {
+      BsPatch.applyPatch(new RandomAccessFile(oldFile, "r"), new ByteArrayOutputStream(), patchIn);
+      Assert.fail("Read patch with bad extra length");
+    } catch (PatchFormatException expected) {
+      Assert.assertEquals("bad extraLength", expected.getMessage());
+    }
+  }
+
   @Test
   public void testApplyPatch_BadSignature() throws Exception {
     createEmptyOldFile(10);
@@ -740,6 +897,36 @@ public class BsPatchTest {
     return new ByteArrayInputStream(out.toByteArray());
   }
 
+  /**
+   * Create a patch with its contents in separate sections.
+   * @param newLength the expected length of the "new" file produced by applying the patch
+   * @param control the control section
+   * @param extra the extra section
+   * @param diff the diff section
+   * @return the bytes constituting the patch
+   * @throws IOException
+   */
+  private static InputStream makeSectionedPatch(
+      long newLength, byte[] control, byte[] extra, byte[] diff) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(SECTIONED_SIGNATURE.getBytes("US-ASCII"));
+    writeBsdiffLong(newLength, out);
+    writeBsdiffLong(control.length, out);
+    writeBsdiffLong(extra.length, out);
+    out.write(control);
+    out.write(extra);
+    out.write(diff);
+    return new ByteArrayInputStream(out.toByteArray());
+  }
+
+  private static void writeControlEntry(
+      long diffSegmentLength, long copySegmentLength, long offsetToNextInput, OutputStream out)
+      throws IOException {
+    writeBsdiffLong(diffSegmentLength, out);
+    writeBsdiffLong(copySegmentLength, out);
+    writeBsdiffLong(offsetToNextInput, out);
+  }
+
   // Copied from com.google.archivepatcher.generator.bsdiff.BsUtil for convenience.
   private static void writeBsdiffLong(final long value, OutputStream out) throws IOException {
     long y = value;
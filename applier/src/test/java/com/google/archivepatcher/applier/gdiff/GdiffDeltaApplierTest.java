@@ -0,0 +1,86 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.applier.gdiff;
+
+import com.google.archivepatcher.applier.PatchFormatException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link GdiffDeltaApplier}.
+ */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class GdiffDeltaApplierTest {
+  // The example in http://www.w3.org/TR/NOTE-gdiff-19970901
+  private static final byte[] OLD_BYTES = "ABCDEFG".getBytes();
+  private static final byte[] NEW_BYTES = "ABXYCDBCDE".getBytes();
+  private static final byte[] PATCH = new byte[] {
+      (byte) 0xd1, (byte) 0xff, (byte) 0xd1, (byte) 0xff, (byte) 4,  // magic+version
+      (byte) 249, 0, 0, 2,                                           // COPY_USHORT_UBYTE 0, 2
+      (byte) 2, (byte) 'X', (byte) 'Y',                              // DATA_2
+      (byte) 249, 0, 2, 2,                                           // COPY_USHORT_UBYTE 2, 2
+      (byte) 249, 0, 1, 4,                                           // COPY_USHORT_UBYTE 1, 4
+      0 };                                                           // EOF
+
+  private File oldFile;
+
+  @Before
+  public void setUp() throws IOException {
+    oldFile = File.createTempFile("GdiffDeltaApplierTest", "old");
+    try (FileOutputStream out = new FileOutputStream(oldFile)) {
+      out.write(OLD_BYTES);
+    }
+  }
+
+  @After
+  public void tearDown() {
+    oldFile.delete();
+  }
+
+  @Test
+  public void testApplyDelta() throws IOException {
+    ByteArrayOutputStream newOut = new ByteArrayOutputStream();
+    new GdiffDeltaApplier(NEW_BYTES.length)
+        .applyDelta(oldFile, new ByteArrayInputStream(PATCH), newOut);
+    Assert.assertArrayEquals(NEW_BYTES, newOut.toByteArray());
+  }
+
+  @Test(expected = PatchFormatException.class)
+  public void testApplyDelta_Underrun() throws IOException {
+    new GdiffDeltaApplier(NEW_BYTES.length + 1)
+        .applyDelta(oldFile, new ByteArrayInputStream(PATCH), new ByteArrayOutputStream());
+  }
+
+  @Test(expected = IOException.class)
+  public void testApplyDelta_Overrun() throws IOException {
+    new GdiffDeltaApplier(NEW_BYTES.length - 1)
+        .applyDelta(oldFile, new ByteArrayInputStream(PATCH), new ByteArrayOutputStream());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructor_NegativeSize() {
+    new GdiffDeltaApplier(-1);
+  }
+}
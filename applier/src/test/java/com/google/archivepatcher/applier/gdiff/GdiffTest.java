@@ -16,10 +16,12 @@ package com.google.archivepatcher.applier.gdiff;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.Random;
 import org.junit.Assert;
 import org.junit.Test;
@@ -330,5 +332,89 @@ public class GdiffTest {
     } catch (IOException expected) {
     }
     Assert.assertTrue(outputStream.size() <= outputLimit);
+
+    // The same must be true when the input is in a buffer.
+    patchStream = new ByteArrayInputStream(patchBytes, 0, patchLimit);
+    outputStream = new ByteArrayOutputStream();
+    try {
+      Gdiff.patch(
+          ByteBuffer.wrap(inputBytes, 0, inputLimit).slice(),
+          patchStream,
+          outputStream,
+          outputLimit);
+      Assert.fail("Expected IOException");
+    } catch (IOException expected) {
+    }
+    Assert.assertTrue(outputStream.size() <= outputLimit);
+  }
+
+  /**
+   * Tests that applying a patch of many short commands, whose output spans several gathered
+   * writes, gives the same result whether the input is in a file or in a buffer.
+   */
+  @Test
+  public void testManyShortCommands() throws IOException {
+    Random random = new Random(1234);
+    byte[] oldBytes = new byte[100000];
+    random.nextBytes(oldBytes);
+    ByteArrayOutputStream expectedOut = new ByteArrayOutputStream();
+    ByteArrayOutputStream patchOut = new ByteArrayOutputStream();
+    DataOutputStream patchDataOut = new DataOutputStream(patchOut);
+    patchDataOut.writeInt(0xD1FFD1FF);
+    patchDataOut.write(4);
+    for (int x = 0; x < 20000; x++) {
+      if (random.nextBoolean()) {
+        // COPY_INT_UBYTE
+        int offset = random.nextInt(oldBytes.length - 255);
+        int length = 1 + random.nextInt(255);
+        patchDataOut.write(252);
+        patchDataOut.writeInt(offset);
+        patchDataOut.write(length);
+        expectedOut.write(oldBytes, offset, length);
+      } else {
+        // DATA_n
+        byte[] data = new byte[1 + random.nextInt(246)];
+        random.nextBytes(data);
+        patchDataOut.write(data.length);
+        patchDataOut.write(data);
+        expectedOut.write(data);
+      }
+    }
+    // COPY_USHORT_INT of the whole input
+    patchDataOut.write(251);
+    patchDataOut.writeShort(0);
+    patchDataOut.writeInt(oldBytes.length);
+    expectedOut.write(oldBytes);
+    patchDataOut.write(0);
+    byte[] expected = expectedOut.toByteArray();
+
+    File inputFile = File.createTempFile("testManyShortCommands", null);
+    try {
+      FileOutputStream writeInputFile = new FileOutputStream(inputFile);
+      writeInputFile.write(oldBytes);
+      writeInputFile.close();
+      RandomAccessFile readInputFile = new RandomAccessFile(inputFile, "r");
+      ByteArrayOutputStream fileOut = new ByteArrayOutputStream();
+      Assert.assertEquals(
+          expected.length,
+          Gdiff.patch(
+              readInputFile,
+              new ByteArrayInputStream(patchOut.toByteArray()),
+              fileOut,
+              expected.length));
+      readInputFile.close();
+      Assert.assertArrayEquals(expected, fileOut.toByteArray());
+    } finally {
+      inputFile.delete();
+    }
+
+    ByteBuffer input = ByteBuffer.wrap(oldBytes);
+    ByteArrayOutputStream bufferOut = new ByteArrayOutputStream();
+    Assert.assertEquals(
+        expected.length,
+        Gdiff.patch(
+            input, new ByteArrayInputStream(patchOut.toByteArray()), bufferOut, expected.length));
+    Assert.assertArrayEquals(expected, bufferOut.toByteArray());
+    Assert.assertEquals(0, input.position());
   }
 }
@@ -0,0 +1,246 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generates reproducible inputs for the benchmarks. The same profile, size and seed always produce
+ * the same bytes, so that results can be compared across runs and machines.
+ */
+public final class BenchmarkInputs {
+  /**
+   * The seed that the benchmarks use by default.
+   */
+  public static final long DEFAULT_SEED = 20161018L;
+
+  /**
+   * The shape of generated data, which matters a great deal to both compression and suffix sorting.
+   */
+  public enum EntropyProfile {
+    /**
+     * A short block repeated over and over with rare changes, like padded resource tables or
+     * zero-filled sections of native libraries. The worst case for suffix sorting.
+     */
+    REPETITIVE,
+
+    /**
+     * Words from a small vocabulary, like source code or markup. Compresses roughly 3:1.
+     */
+    TEXT,
+
+    /**
+     * Uniformly random bytes, like already-compressed media. Does not compress.
+     */
+    RANDOM
+  }
+
+  /**
+   * The size of the block that {@link EntropyProfile#REPETITIVE} data repeats.
+   */
+  private static final int REPETITIVE_BLOCK_SIZE = 64;
+
+  /**
+   * {@link EntropyProfile#REPETITIVE} data has one byte changed in every this many bytes.
+   */
+  private static final int REPETITIVE_CHANGE_INTERVAL = 4096;
+
+  /**
+   * The number of words in the vocabulary of {@link EntropyProfile#TEXT} data.
+   */
+  private static final int VOCABULARY_SIZE = 512;
+
+  /**
+   * {@link #mutate(byte[], long)} makes one edit for every this many bytes, on average.
+   */
+  private static final int MEAN_BYTES_BETWEEN_EDITS = 100;
+
+  /**
+   * The maximum length of a single edit made by {@link #mutate(byte[], long)}.
+   */
+  private static final int MAX_EDIT_LENGTH = 16;
+
+  private BenchmarkInputs() {
+    // Static utilities only
+  }
+
+  /**
+   * Generates data of the specified profile and size.
+   *
+   * @param profile the shape of the data
+   * @param size the number of bytes to generate
+   * @param seed the seed for the random number generator
+   * @return the data
+   */
+  public static byte[] generate(EntropyProfile profile, int size, long seed) {
+    Random random = new Random(seed);
+    byte[] result = new byte[size];
+    switch (profile) {
+      case REPETITIVE:
+        byte[] block = new byte[REPETITIVE_BLOCK_SIZE];
+        random.nextBytes(block);
+        for (int x = 0; x < size; x++) {
+          result[x] = block[x % block.length];
+        }
+        for (int x = random.nextInt(REPETITIVE_CHANGE_INTERVAL);
+            x < size;
+            x += REPETITIVE_CHANGE_INTERVAL) {
+          result[x] = (byte) random.nextInt(256);
+        }
+        break;
+      case TEXT:
+        byte[][] vocabulary = makeVocabulary(random);
+        int position = 0;
+        while (position < size) {
+          byte[] word = vocabulary[random.nextInt(vocabulary.length)];
+          int length = Math.min(word.length, size - position);
+          System.arraycopy(word, 0, result, position, length);
+          position += length;
+          if (position < size) {
+            result[position++] = (byte) (random.nextInt(8) == 0 ? '\n' : ' ');
+          }
+        }
+        break;
+      case RANDOM:
+        random.nextBytes(result);
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown profile: " + profile);
+    }
+    return result;
+  }
+
+  /**
+   * Makes a vocabulary of lower-case words of 2 to 10 letters.
+   *
+   * @param random the random number generator to use
+   * @return the words
+   */
+  private static byte[][] makeVocabulary(Random random) {
+    byte[][] vocabulary = new byte[VOCABULARY_SIZE][];
+    for (int x = 0; x < vocabulary.length; x++) {
+      vocabulary[x] = new byte[2 + random.nextInt(9)];
+      for (int y = 0; y < vocabulary[x].length; y++) {
+        vocabulary[x][y] = (byte) ('a' + random.nextInt(26));
+      }
+    }
+    return vocabulary;
+  }
+
+  /**
+   * Returns a copy of the specified data with small edits scattered through it, as a stand-in for
+   * the next version of a file: on average one edit per {@link #MEAN_BYTES_BETWEEN_EDITS} bytes,
+   * each of which overwrites, inserts or deletes up to {@link #MAX_EDIT_LENGTH} bytes.
+   *
+   * @param data the data to edit, which is not modified
+   * @param seed the seed for the random number generator
+   * @return the edited copy
+   */
+  public static byte[] mutate(byte[] data, long seed) {
+    Random random = new Random(seed);
+    ByteArrayOutputStream result = new ByteArrayOutputStream(data.length + data.length / 16);
+    int position = 0;
+    while (position < data.length) {
+      int unchanged =
+          Math.min(random.nextInt(2 * MEAN_BYTES_BETWEEN_EDITS), data.length - position);
+      result.write(data, position, unchanged);
+      position += unchanged;
+      int editLength = 1 + random.nextInt(MAX_EDIT_LENGTH);
+      switch (random.nextInt(3)) {
+        case 0: // Overwrite
+          position += editLength;
+          // fall through
+        case 1: // Insert
+          for (int x = 0; x < editLength; x++) {
+            result.write(random.nextInt(256));
+          }
+          break;
+        default: // Delete
+          position += editLength;
+          break;
+      }
+    }
+    return result.toByteArray();
+  }
+
+  /**
+   * Writes a zip archive of deflated entries whose contents, concatenated, are data of the
+   * specified profile and size.
+   *
+   * @param file the file to write the archive to
+   * @param profile the shape of the entries' contents
+   * @param size the total uncompressed size of the entries
+   * @param entrySize the uncompressed size of each entry; the last entry may be smaller
+   * @param level the deflate level to compress the entries with
+   * @param seed the seed for the random number generator
+   * @throws IOException if unable to write the file
+   */
+  public static void writeArchive(
+      File file, EntropyProfile profile, int size, int entrySize, int level, long seed)
+      throws IOException {
+    byte[] data = generate(profile, size, seed);
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file))) {
+      out.setLevel(level);
+      for (int offset = 0; offset < size; offset += entrySize) {
+        out.putNextEntry(new ZipEntry(String.format("entry%08d", offset / entrySize)));
+        out.write(data, offset, Math.min(entrySize, size - offset));
+        out.closeEntry();
+      }
+    }
+  }
+
+  /**
+   * Writes the specified data to a new temp file, which is deleted when the VM exits.
+   *
+   * @param data the data to write
+   * @return the file
+   * @throws IOException if unable to write the file
+   */
+  public static File writeTempFile(byte[] data) throws IOException {
+    File file = File.createTempFile("archive-patcher-benchmark", ".bin");
+    file.deleteOnExit();
+    try (OutputStream out = new FileOutputStream(file)) {
+      out.write(data);
+    }
+    return file;
+  }
+
+  /**
+   * Returns a stream that discards everything written to it, so that benchmarks measure producing
+   * their output and not storing it.
+   *
+   * @return the stream
+   */
+  public static OutputStream discardingOutputStream() {
+    return new OutputStream() {
+      @Override
+      public void write(int b) {
+        // Nothing
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) {
+        // Nothing
+      }
+    };
+  }
+}
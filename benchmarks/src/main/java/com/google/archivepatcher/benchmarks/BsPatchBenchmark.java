@@ -0,0 +1,82 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.benchmarks;
+
+import com.google.archivepatcher.applier.bsdiff.BsPatch;
+import com.google.archivepatcher.benchmarks.BenchmarkInputs.EntropyProfile;
+import com.google.archivepatcher.generator.bsdiff.BsDiffPatchWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks {@link BsPatch#applyPatch(RandomAccessFile, java.io.OutputStream,
+ * java.io.InputStream)} with the old data in a file, as on a device. The new data is the old data
+ * with small edits scattered through it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BsPatchBenchmark {
+  @Param({"65536", "1048576", "8388608"})
+  public int size;
+
+  @Param({"REPETITIVE", "TEXT", "RANDOM"})
+  public EntropyProfile profile;
+
+  private File oldFile;
+  private RandomAccessFile oldData;
+  private byte[] patch;
+
+  @Setup
+  public void setUp() throws Exception {
+    byte[] oldBytes = BenchmarkInputs.generate(profile, size, BenchmarkInputs.DEFAULT_SEED);
+    byte[] newBytes = BenchmarkInputs.mutate(oldBytes, BenchmarkInputs.DEFAULT_SEED);
+    ByteArrayOutputStream patchOut = new ByteArrayOutputStream();
+    BsDiffPatchWriter.generatePatch(oldBytes, newBytes, patchOut);
+    patch = patchOut.toByteArray();
+    oldFile = BenchmarkInputs.writeTempFile(oldBytes);
+    oldData = new RandomAccessFile(oldFile, "r");
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    oldData.close();
+    oldFile.delete();
+  }
+
+  @Benchmark
+  public void applyPatch() throws Exception {
+    BsPatch.applyPatch(
+        oldData, BenchmarkInputs.discardingOutputStream(), new ByteArrayInputStream(patch));
+  }
+}
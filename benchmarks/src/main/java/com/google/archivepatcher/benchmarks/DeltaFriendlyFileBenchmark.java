@@ -0,0 +1,83 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.benchmarks;
+
+import com.google.archivepatcher.benchmarks.BenchmarkInputs.EntropyProfile;
+import com.google.archivepatcher.generator.MinimalZipArchive;
+import com.google.archivepatcher.generator.MinimalZipEntry;
+import com.google.archivepatcher.shared.DeltaFriendlyFile;
+import com.google.archivepatcher.shared.TypedRange;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks {@link DeltaFriendlyFile#generateDeltaFriendlyFile(List, File,
+ * java.io.OutputStream)}, uncompressing every entry of an archive of 16 KiB entries. This is the
+ * first step of both generating and applying a patch.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DeltaFriendlyFileBenchmark {
+  @Param({"1048576", "8388608"})
+  public int size;
+
+  @Param({"REPETITIVE", "TEXT", "RANDOM"})
+  public EntropyProfile profile;
+
+  private File archive;
+  private List<TypedRange<Void>> rangesToUncompress;
+
+  @Setup
+  public void setUp() throws Exception {
+    archive = File.createTempFile("archive-patcher-benchmark", ".zip");
+    BenchmarkInputs.writeArchive(
+        archive, profile, size, 16 * 1024, 6, BenchmarkInputs.DEFAULT_SEED);
+    rangesToUncompress = new ArrayList<TypedRange<Void>>();
+    for (MinimalZipEntry entry : MinimalZipArchive.listEntries(archive)) {
+      rangesToUncompress.add(
+          new TypedRange<Void>(
+              entry.getFileOffsetOfCompressedData(), entry.getCompressedSize(), null));
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    archive.delete();
+  }
+
+  @Benchmark
+  public List<TypedRange<Void>> generateDeltaFriendlyFile() throws Exception {
+    return DeltaFriendlyFile.generateDeltaFriendlyFile(
+        rangesToUncompress, archive, BenchmarkInputs.discardingOutputStream());
+  }
+}
@@ -0,0 +1,87 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.benchmarks;
+
+import com.google.archivepatcher.applier.PartiallyCompressingOutputStream;
+import com.google.archivepatcher.benchmarks.BenchmarkInputs.EntropyProfile;
+import com.google.archivepatcher.shared.JreDeflateParameters;
+import com.google.archivepatcher.shared.TypedRange;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks recompressing a delta-friendly new file with {@link PartiallyCompressingOutputStream}:
+ * 16 KiB ranges compressed with the specified level alternate with 1 KiB ranges that are copied.
+ * Data is written in 16 KiB chunks, as {@link com.google.archivepatcher.applier.bsdiff.BsPatch}
+ * does.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PartiallyCompressingOutputStreamBenchmark {
+  private static final int COMPRESSED_RANGE_SIZE = 16 * 1024;
+  private static final int GAP_SIZE = 1024;
+  private static final int CHUNK_SIZE = 16 * 1024;
+
+  @Param({"1048576", "8388608"})
+  public int size;
+
+  @Param({"REPETITIVE", "TEXT", "RANDOM"})
+  public EntropyProfile profile;
+
+  @Param({"1", "6", "9"})
+  public int level;
+
+  private byte[] data;
+  private List<TypedRange<JreDeflateParameters>> compressionRanges;
+
+  @Setup
+  public void setUp() {
+    data = BenchmarkInputs.generate(profile, size, BenchmarkInputs.DEFAULT_SEED);
+    JreDeflateParameters parameters = JreDeflateParameters.of(level, 0, true);
+    compressionRanges = new ArrayList<TypedRange<JreDeflateParameters>>();
+    for (int offset = GAP_SIZE; offset < size; offset += GAP_SIZE + COMPRESSED_RANGE_SIZE) {
+      compressionRanges.add(
+          new TypedRange<JreDeflateParameters>(
+              offset, Math.min(COMPRESSED_RANGE_SIZE, size - offset), parameters));
+    }
+  }
+
+  @Benchmark
+  public void write() throws Exception {
+    PartiallyCompressingOutputStream out =
+        new PartiallyCompressingOutputStream(
+            compressionRanges, BenchmarkInputs.discardingOutputStream(), 32768);
+    for (int offset = 0; offset < size; offset += CHUNK_SIZE) {
+      out.write(data, offset, Math.min(CHUNK_SIZE, size - offset));
+    }
+    out.flush();
+  }
+}
@@ -0,0 +1,89 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator.bsdiff;
+
+import com.google.archivepatcher.benchmarks.BenchmarkInputs;
+import com.google.archivepatcher.benchmarks.BenchmarkInputs.EntropyProfile;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks the search for matches with {@link BsDiffMatcher} on its own, given a precomputed
+ * suffix array, and the whole of {@link BsDiffPatchWriter#generatePatch(byte[], byte[],
+ * java.io.OutputStream)}. The new data is the old data with small edits scattered through it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BsDiffBenchmark {
+  @Param({"65536", "1048576", "4194304"})
+  public int size;
+
+  @Param({"REPETITIVE", "TEXT", "RANDOM"})
+  public EntropyProfile profile;
+
+  private byte[] oldBytes;
+  private byte[] newBytes;
+  private RandomAccessObject oldData;
+  private RandomAccessObject newData;
+  private RandomAccessObject groupArray;
+  private ByteArrayOutputStream patchOut;
+
+  @Setup
+  public void setUp() throws Exception {
+    oldBytes = BenchmarkInputs.generate(profile, size, BenchmarkInputs.DEFAULT_SEED);
+    newBytes = BenchmarkInputs.mutate(oldBytes, BenchmarkInputs.DEFAULT_SEED);
+    oldData = new RandomAccessObject.RandomAccessByteArrayObject(oldBytes);
+    newData = new RandomAccessObject.RandomAccessByteArrayObject(newBytes);
+    groupArray =
+        new DivSuffixSorter(new RandomAccessObjectFactory.RandomAccessByteArrayObjectFactory())
+            .suffixSort(oldData);
+    patchOut = new ByteArrayOutputStream(size);
+  }
+
+  @Benchmark
+  public void match(Blackhole blackhole) throws Exception {
+    Matcher matcher =
+        new BsDiffMatcher(
+            oldData, newData, groupArray, BsDiffPatchWriter.DEFAULT_MINIMUM_MATCH_LENGTH);
+    Matcher.NextMatch nextMatch;
+    do {
+      nextMatch = matcher.next();
+      blackhole.consume(nextMatch);
+    } while (nextMatch.didFindMatch);
+  }
+
+  @Benchmark
+  public int generatePatch() throws Exception {
+    patchOut.reset();
+    BsDiffPatchWriter.generatePatch(oldBytes, newBytes, patchOut);
+    return patchOut.size();
+  }
+}
@@ -0,0 +1,196 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator;
+
+import com.google.archivepatcher.shared.DeviceCostModel;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Limits the estimated time that a device needs to apply a patch via the {@link
+ * RecommendationModifier} interface, choosing the entries to uncompress that save the most patch
+ * size within that time.
+ *
+ * <p>Unlike {@link TotalRecompressionLimiter}, which counts bytes, this uses a {@link
+ * DeviceCostModel} measured on the target device, so that it accounts for recompression at level 9
+ * costing far more than recompression at level 1, and for the cost of inflating old entries and of
+ * the extra temporary storage that uncompressed entries occupy.
+ *
+ * <p>This class implements the following algorithm:
+ *
+ * <ol>
+ *   <li>Identify all of the {@link QualifiedRecommendation}s that have {@link
+ *       Recommendation#uncompressOldEntry} or {@link Recommendation#uncompressNewEntry} set to
+ *       <code>true</code>. These are the only ones that cost anything to apply.
+ *   <li>Estimate the cost of each one: the time to inflate the old entry if it is uncompressed, the
+ *       time to deflate the new entry with its parameters (see {@link
+ *       QualifiedRecommendation#getNewEntryDeflateParameters()}) if it is uncompressed, and the
+ *       time to write and read the bytes that uncompressing adds to the delta-friendly files.
+ *   <li>Estimate the patch size saved by each one as the compressed size of the new entry. When an
+ *       entry is left compressed, a change to its content typically changes most of its compressed
+ *       bytes, so the delta ends up holding most of them as a literal copy.
+ *   <li>Choose the set of recommendations with the largest total savings whose total cost is within
+ *       the limit. This is a 0-1 knapsack problem, solved exactly by dynamic programming after
+ *       rounding each cost up to a multiple of 1/{@value #COST_RESOLUTION} of the limit; rounding
+ *       up means the limit is never exceeded, at the price of occasionally leaving a little of the
+ *       limit unused.
+ *   <li>Replace every other costly recommendation with one that uncompresses neither entry, and
+ *       return the recommendations in their original order.
+ * </ol>
+ *
+ * <p>Please note that this does not account for the time to apply the delta itself, which depends
+ * on the delta algorithm rather than on the recommendations; leave headroom in the limit for it.
+ */
+public class ApplyTimeLimiter implements RecommendationModifier {
+  /** The number of units that the limit is divided into when solving the knapsack problem. */
+  // Visible for testing only
+  static final int COST_RESOLUTION = 1024;
+
+  /** The model of the device that will apply the patch. */
+  private final DeviceCostModel costModel;
+
+  /** The maximum estimated time to allow, in nanoseconds. */
+  private final long maxApplyNanos;
+
+  /**
+   * Create a new limiter that will restrict the estimated time to apply the patch on a device
+   * described by the specified model to the specified quantity.
+   *
+   * @param costModel the model of the device that will apply the patch
+   * @param maxApplyMillis the maximum estimated time to allow, in milliseconds; must be greater
+   *     than or equal to zero
+   */
+  public ApplyTimeLimiter(DeviceCostModel costModel, long maxApplyMillis) {
+    if (costModel == null) {
+      throw new IllegalArgumentException("costModel cannot be null");
+    }
+    if (maxApplyMillis < 0) {
+      throw new IllegalArgumentException("maxApplyMillis must be non-negative: " + maxApplyMillis);
+    }
+    this.costModel = costModel;
+    this.maxApplyNanos = maxApplyMillis * 1000000L;
+  }
+
+  @Override
+  public List<QualifiedRecommendation> getModifiedRecommendations(
+      File oldFile, File newFile, List<QualifiedRecommendation> originalRecommendations) {
+    List<Integer> candidates = new ArrayList<>();
+    for (int x = 0; x < originalRecommendations.size(); x++) {
+      Recommendation recommendation = originalRecommendations.get(x).getRecommendation();
+      if (recommendation.uncompressOldEntry || recommendation.uncompressNewEntry) {
+        candidates.add(x);
+      }
+    }
+
+    // Round each cost up to a whole number of units.
+    long unitNanos = Math.max(1, (maxApplyNanos + COST_RESOLUTION - 1) / COST_RESOLUTION);
+    int capacity = (int) Math.min(COST_RESOLUTION, maxApplyNanos / unitNanos);
+    int[] weights = new int[candidates.size()];
+    long[] values = new long[candidates.size()];
+    for (int x = 0; x < candidates.size(); x++) {
+      QualifiedRecommendation candidate = originalRecommendations.get(candidates.get(x));
+      long units = (estimateCostNanos(candidate) + unitNanos - 1) / unitNanos;
+      // Anything that can never fit is given a weight that the solver always rejects.
+      weights[x] = (int) Math.min(units, capacity + 1);
+      values[x] = candidate.getNewEntry().getCompressedSize();
+    }
+    boolean[] retained = solveKnapsack(weights, values, capacity);
+
+    List<QualifiedRecommendation> result = new ArrayList<>(originalRecommendations);
+    for (int x = 0; x < candidates.size(); x++) {
+      if (!retained[x]) {
+        QualifiedRecommendation original = result.get(candidates.get(x));
+        result.set(
+            candidates.get(x),
+            new QualifiedRecommendation(
+                original.getOldEntry(),
+                original.getNewEntry(),
+                Recommendation.UNCOMPRESS_NEITHER,
+                RecommendationReason.RESOURCE_CONSTRAINED));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Estimates the time it takes to apply the specified recommendation, as described in the class
+   * documentation.
+   *
+   * @param qualifiedRecommendation the recommendation
+   * @return the estimated time, in nanoseconds
+   */
+  // Visible for testing only
+  long estimateCostNanos(QualifiedRecommendation qualifiedRecommendation) {
+    long nanos = 0;
+    if (qualifiedRecommendation.getRecommendation().uncompressOldEntry) {
+      MinimalZipEntry oldEntry = qualifiedRecommendation.getOldEntry();
+      nanos += costModel.estimateInflateNanos(oldEntry.getUncompressedSize());
+      nanos += costModel.estimateIoNanos(getGrowth(oldEntry));
+    }
+    if (qualifiedRecommendation.getRecommendation().uncompressNewEntry) {
+      MinimalZipEntry newEntry = qualifiedRecommendation.getNewEntry();
+      nanos +=
+          costModel.estimateDeflateNanos(
+              qualifiedRecommendation.getNewEntryDeflateParameters(),
+              newEntry.getUncompressedSize());
+      nanos += costModel.estimateIoNanos(getGrowth(newEntry));
+    }
+    return nanos;
+  }
+
+  /**
+   * Returns the number of bytes by which uncompressing the specified entry grows the
+   * delta-friendly file that contains it.
+   */
+  private static long getGrowth(MinimalZipEntry entry) {
+    return Math.max(0, entry.getUncompressedSize() - entry.getCompressedSize());
+  }
+
+  /**
+   * Solves the 0-1 knapsack problem: chooses items whose total weight is at most the capacity and
+   * whose total value is as large as possible. Items with a weight of zero are always chosen.
+   *
+   * @param weights the weight of each item
+   * @param values the value of each item
+   * @param capacity the maximum total weight
+   * @return for each item, whether it is chosen
+   */
+  // Visible for testing only
+  static boolean[] solveKnapsack(int[] weights, long[] values, int capacity) {
+    // best[w] is the largest value achievable with total weight at most w using the items seen so
+    // far; taken[x][w] records whether item x is part of that solution.
+    long[] best = new long[capacity + 1];
+    boolean[][] taken = new boolean[weights.length][capacity + 1];
+    for (int x = 0; x < weights.length; x++) {
+      for (int w = capacity; w >= weights[x]; w--) {
+        long withItem = best[w - weights[x]] + values[x];
+        if (withItem > best[w] || (withItem == best[w] && weights[x] == 0)) {
+          best[w] = withItem;
+          taken[x][w] = true;
+        }
+      }
+    }
+    boolean[] chosen = new boolean[weights.length];
+    int w = capacity;
+    for (int x = weights.length - 1; x >= 0; x--) {
+      if (taken[x][w]) {
+        chosen[x] = true;
+        w -= weights[x];
+      }
+    }
+    return chosen;
+  }
+}
@@ -0,0 +1,240 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator;
+
+import com.google.archivepatcher.shared.ArchiveFingerprint;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * SHA-256 digests of the compressed data of the entries in an archive, so that entries whose
+ * compressed bytes are identical can be found by comparing digests instead of reading and comparing
+ * the bytes of each pair of entries. The digests are computed in a single sequential pass over the
+ * archive, and can be saved with {@link #writeTo(OutputStream)} and loaded with {@link
+ * #readFrom(InputStream)} so that they need only be computed once per archive.
+ *
+ * <p>Digests are keyed by the offset and length of the compressed data, which only identify an
+ * entry within one archive. Before using saved digests, callers must check with {@link
+ * #isFor(File)} that they were computed for the archive at hand, which compares the length and the
+ * {@link ArchiveFingerprint} of the archive.
+ */
+public class CompressedDataDigests {
+  /** Identifies the serialized form, which is versioned for forward compatibility. */
+  private static final String IDENTIFIER = "CDDigestsv2";
+
+  /** The algorithm used to compute digests. */
+  private static final String ALGORITHM = "SHA-256";
+
+  /** The length of a digest in bytes. */
+  private static final int DIGEST_LENGTH = 32;
+
+  /** Size of the buffer used to read the archive. */
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /** The length of the archive that the digests were computed for. */
+  private final long archiveLength;
+
+  /** The {@link ArchiveFingerprint} of the archive that the digests were computed for. */
+  private final byte[] archiveFingerprint;
+
+  /**
+   * The digests, keyed by the offset of the compressed data. Sorted, so that the serialized form
+   * is the same every time.
+   */
+  private final TreeMap<Long, Digest> digestsByOffset;
+
+  /** The digest of the compressed data at an offset, and the length of the data. */
+  private static final class Digest {
+    final long length;
+    final byte[] value;
+
+    Digest(long length, byte[] value) {
+      this.length = length;
+      this.value = value;
+    }
+  }
+
+  private CompressedDataDigests(
+      long archiveLength, byte[] archiveFingerprint, TreeMap<Long, Digest> digestsByOffset) {
+    this.archiveLength = archiveLength;
+    this.archiveFingerprint = archiveFingerprint;
+    this.digestsByOffset = digestsByOffset;
+  }
+
+  /**
+   * Computes the digests of the compressed data of the specified entries, reading the archive
+   * once from start to end.
+   *
+   * @param archive the archive
+   * @param entries the entries to compute digests for, in any order
+   * @return the digests
+   * @throws IOException if unable to read the archive
+   */
+  public static CompressedDataDigests compute(File archive, Collection<MinimalZipEntry> entries)
+      throws IOException {
+    List<MinimalZipEntry> sortedEntries = new ArrayList<MinimalZipEntry>(entries);
+    Collections.sort(
+        sortedEntries,
+        new Comparator<MinimalZipEntry>() {
+          @Override
+          public int compare(MinimalZipEntry entry1, MinimalZipEntry entry2) {
+            return Long.compare(
+                entry1.getFileOffsetOfCompressedData(), entry2.getFileOffsetOfCompressedData());
+          }
+        });
+
+    MessageDigest digester = newDigester();
+    TreeMap<Long, Digest> digestsByOffset = new TreeMap<Long, Digest>();
+    byte[] buffer = new byte[BUFFER_SIZE];
+    try (RandomAccessFile raf = new RandomAccessFile(archive, "r")) {
+      for (MinimalZipEntry entry : sortedEntries) {
+        long offset = entry.getFileOffsetOfCompressedData();
+        long remaining = entry.getCompressedSize();
+        if (offset < 0 || offset + remaining > raf.length()) {
+          throw new IOException("Entry data is outside of the archive: " + entry.getFileName());
+        }
+        raf.seek(offset);
+        while (remaining > 0) {
+          int numRead = raf.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+          if (numRead < 0) {
+            throw new IOException("Unexpected end of archive");
+          }
+          digester.update(buffer, 0, numRead);
+          remaining -= numRead;
+        }
+        digestsByOffset.put(offset, new Digest(entry.getCompressedSize(), digester.digest()));
+      }
+      return new CompressedDataDigests(
+          raf.length(), ArchiveFingerprint.compute(archive), digestsByOffset);
+    }
+  }
+
+  /**
+   * Returns the length of the archive that the digests were computed for.
+   *
+   * @return as described
+   */
+  public long getArchiveLength() {
+    return archiveLength;
+  }
+
+  /**
+   * Returns whether the digests were computed for the specified archive, judging by its length and
+   * its {@link ArchiveFingerprint}.
+   *
+   * @param archive the archive
+   * @return true if the digests can be used for the archive
+   * @throws IOException if unable to read the archive
+   */
+  public boolean isFor(File archive) throws IOException {
+    return archive.length() == archiveLength
+        && Arrays.equals(archiveFingerprint, ArchiveFingerprint.compute(archive));
+  }
+
+  /**
+   * Returns the digest of the compressed data of the specified entry.
+   *
+   * @param entry the entry
+   * @return the digest, or null if no digest was computed for the entry
+   */
+  public byte[] getDigest(MinimalZipEntry entry) {
+    Digest digest = digestsByOffset.get(entry.getFileOffsetOfCompressedData());
+    if (digest == null || digest.length != entry.getCompressedSize()) {
+      return null;
+    }
+    return digest.value.clone();
+  }
+
+  /**
+   * Writes the digests to the specified stream, from which they can be read with {@link
+   * #readFrom(InputStream)}. The stream is not closed.
+   *
+   * @param out the stream to write to
+   * @throws IOException if unable to write
+   */
+  public void writeTo(OutputStream out) throws IOException {
+    // Deliberately left open, as closing it would close the stream that was passed in.
+    @SuppressWarnings("resource")
+    DataOutputStream dataOut = new DataOutputStream(out);
+    dataOut.write(IDENTIFIER.getBytes("US-ASCII"));
+    dataOut.writeLong(archiveLength);
+    dataOut.write(archiveFingerprint);
+    dataOut.writeInt(digestsByOffset.size());
+    for (Map.Entry<Long, Digest> entry : digestsByOffset.entrySet()) {
+      dataOut.writeLong(entry.getKey());
+      dataOut.writeLong(entry.getValue().length);
+      dataOut.write(entry.getValue().value);
+    }
+    dataOut.flush();
+  }
+
+  /**
+   * Reads digests previously written with {@link #writeTo(OutputStream)}. The stream is not
+   * closed.
+   *
+   * @param in the stream to read from
+   * @return the digests
+   * @throws IOException if unable to read, or if the data is not a valid set of digests
+   */
+  public static CompressedDataDigests readFrom(InputStream in) throws IOException {
+    // Deliberately left open, as closing it would close the stream that was passed in.
+    @SuppressWarnings("resource")
+    DataInputStream dataIn = new DataInputStream(in);
+    byte[] identifier = new byte[IDENTIFIER.length()];
+    dataIn.readFully(identifier);
+    if (!Arrays.equals(IDENTIFIER.getBytes("US-ASCII"), identifier)) {
+      throw new IOException("Not a compressed data digests file");
+    }
+    long archiveLength = dataIn.readLong();
+    byte[] archiveFingerprint = new byte[DIGEST_LENGTH];
+    dataIn.readFully(archiveFingerprint);
+    int count = dataIn.readInt();
+    if (archiveLength < 0 || count < 0) {
+      throw new IOException("Corrupt compressed data digests file");
+    }
+    TreeMap<Long, Digest> digestsByOffset = new TreeMap<Long, Digest>();
+    for (int x = 0; x < count; x++) {
+      long offset = dataIn.readLong();
+      long length = dataIn.readLong();
+      byte[] value = new byte[DIGEST_LENGTH];
+      dataIn.readFully(value);
+      digestsByOffset.put(offset, new Digest(length, value));
+    }
+    return new CompressedDataDigests(archiveLength, archiveFingerprint, digestsByOffset);
+  }
+
+  private static MessageDigest newDigester() {
+    try {
+      return MessageDigest.getInstance(ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException("System doesn't support " + ALGORITHM, e);
+    }
+  }
+}
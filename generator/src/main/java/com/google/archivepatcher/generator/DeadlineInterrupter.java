@@ -0,0 +1,132 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Interrupts a thread when a deadline passes, so that the work it is doing stops at the next point
+ * where it checks {@link Thread#interrupted()}: the suffix sorters, the bsdiff and gdiff matchers
+ * and the diviner all check regularly. Call {@link #stop()} or {@link #stopAfterInterrupt()} when
+ * the work is done; they report whether the deadline interrupted the thread and clear that
+ * interrupt if it is still pending, so that the thread can carry on with other work.
+ *
+ * <p>Interrupts from elsewhere are preserved: if the thread has already been interrupted when the
+ * deadline passes, the interrupter leaves it alone and doesn't count the deadline as having fired,
+ * and an interrupt that arrives after the work has stopped for the deadline's is left pending.
+ * Java keeps a single interrupt status per thread, though, so an interrupt that arrives after the
+ * deadline has fired but before the work notices it can't be told apart from the deadline's own.
+ */
+final class DeadlineInterrupter {
+  /** The thread to interrupt. */
+  private final Thread target;
+
+  /** Guards the state below, and is notified when the interrupter is stopped. */
+  private final Object lock = new Object();
+
+  /** Whether {@link #stop()} has been called. */
+  private boolean stopped = false;
+
+  /**
+   * Whether the deadline passed, and so the interrupter interrupted the target, before the
+   * interrupter was stopped.
+   */
+  private boolean fired = false;
+
+  /**
+   * Starts an interrupter that interrupts the current thread after the specified time.
+   *
+   * @param timeoutNanos the time to wait before interrupting the current thread
+   * @return the interrupter
+   */
+  static DeadlineInterrupter start(long timeoutNanos) {
+    DeadlineInterrupter interrupter = new DeadlineInterrupter(Thread.currentThread());
+    interrupter.startTimer(System.nanoTime(), timeoutNanos);
+    return interrupter;
+  }
+
+  private DeadlineInterrupter(Thread target) {
+    this.target = target;
+  }
+
+  private void startTimer(final long startNanos, final long timeoutNanos) {
+    Thread timer =
+        new Thread(
+            new Runnable() {
+              @Override
+              public void run() {
+                synchronized (lock) {
+                  try {
+                    long remainingNanos;
+                    while (!stopped
+                        && (remainingNanos = timeoutNanos - (System.nanoTime() - startNanos)) > 0) {
+                      TimeUnit.NANOSECONDS.timedWait(lock, remainingNanos);
+                    }
+                  } catch (InterruptedException e) {
+                    return;
+                  }
+                  // If the target is already interrupted, that interrupt isn't ours and will stop
+                  // the work anyway.
+                  if (!stopped && !target.isInterrupted()) {
+                    fired = true;
+                    target.interrupt();
+                  }
+                }
+              }
+            },
+            "archive-patcher-deadline");
+    timer.setDaemon(true);
+    timer.start();
+  }
+
+  /**
+   * Stops the interrupter after the work completed, or failed in a way that doesn't clear the
+   * interrupt status, e.g. with a {@link java.nio.channels.ClosedByInterruptException}. If the
+   * deadline interrupted the thread, the interrupt is assumed to still be pending and is cleared;
+   * this must therefore be called on the thread that started the interrupter. Calling this, or
+   * {@link #stopAfterInterrupt()}, more than once has no further effect.
+   *
+   * @return true if the deadline interrupted the thread before the interrupter was first stopped
+   */
+  boolean stop() {
+    return stop(false);
+  }
+
+  /**
+   * Stops the interrupter after the work stopped by throwing an {@link InterruptedException} or an
+   * {@link java.io.InterruptedIOException}, which cleared the interrupt status. Any interrupt that
+   * is pending now arrived afterwards, so isn't the deadline's, and is left in place. Calling this,
+   * or {@link #stop()}, more than once has no further effect.
+   *
+   * @return true if the deadline interrupted the thread before the interrupter was first stopped
+   */
+  boolean stopAfterInterrupt() {
+    return stop(true);
+  }
+
+  private boolean stop(boolean interruptCleared) {
+    synchronized (lock) {
+      if (!stopped) {
+        stopped = true;
+        lock.notifyAll();
+        if (fired && !interruptCleared) {
+          // Clear the interrupt in case the work completed before noticing it.
+          Thread.interrupted();
+        }
+      }
+      return fired;
+    }
+  }
+}
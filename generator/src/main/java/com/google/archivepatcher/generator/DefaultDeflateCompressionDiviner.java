@@ -22,6 +22,7 @@ import com.google.archivepatcher.shared.RandomAccessFileInputStreamFactory;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -44,6 +45,32 @@ public class DefaultDeflateCompressionDiviner {
   /** The levels to try for each strategy, in the order to attempt them. */
   private static final Map<Integer, List<Integer>> LEVELS_BY_STRATEGY = getLevelsByStrategy();
 
+  /** The maximum number of levels to try for each strategy. */
+  private final int maxLevelsPerStrategy;
+
+  /** Creates a diviner that tries every level that makes sense for each strategy. */
+  public DefaultDeflateCompressionDiviner() {
+    this(Integer.MAX_VALUE);
+  }
+
+  /**
+   * Creates a diviner that tries at most the specified number of levels for each strategy, in
+   * order of their popularity. Trying fewer levels makes divination of entries compressed with a
+   * rarely used level faster to give up on, at the cost of leaving those entries compressed in the
+   * delta-friendly files, which makes the patch for them larger. Entries compressed with the
+   * default level (6) are always divined.
+   *
+   * @param maxLevelsPerStrategy the maximum number of levels to try for each strategy; must be
+   *     positive
+   */
+  public DefaultDeflateCompressionDiviner(int maxLevelsPerStrategy) {
+    if (maxLevelsPerStrategy <= 0) {
+      throw new IllegalArgumentException(
+          "maxLevelsPerStrategy must be positive: " + maxLevelsPerStrategy);
+    }
+    this.maxLevelsPerStrategy = maxLevelsPerStrategy;
+  }
+
   /**
    * A simple struct that contains a {@link MinimalZipEntry} describing a specific entry from a zip
    * archive along with an optional accompanying {@link JreDeflateParameters} describing the
@@ -86,11 +113,16 @@ public class DefaultDeflateCompressionDiviner {
    * {@link MinimalZipEntry#getCompressionMethod()} to see if the result is or is not compressed,
    * and by checking whether a non-null {@link JreDeflateParameters} was obtained.
    * @throws IOException if unable to read or parse the file
+   * @throws InterruptedIOException if the current thread is interrupted; this is checked before
+   *     each entry
    * @see DivinationResult 
    */
   public List<DivinationResult> divineDeflateParameters(File archiveFile) throws IOException {
     List<DivinationResult> results = new ArrayList<>();
     for (MinimalZipEntry minimalZipEntry : MinimalZipArchive.listEntries(archiveFile)) {
+      if (Thread.interrupted()) {
+        throw new InterruptedIOException("Interrupted while divining " + archiveFile);
+      }
       JreDeflateParameters divinedParameters = null;
       if (minimalZipEntry.isDeflateCompressed()) {
         // TODO(pasc): Reuse streams to avoid churning file descriptors
@@ -168,7 +200,8 @@ public class DefaultDeflateCompressionDiviner {
       strategy_loop:
       for (int strategy : new int[] {0, 1, 2}) {
         deflater.setStrategy(strategy);
-        for (int level : LEVELS_BY_STRATEGY.get(strategy)) {
+        List<Integer> levels = LEVELS_BY_STRATEGY.get(strategy);
+        for (int level : levels.subList(0, Math.min(levels.size(), maxLevelsPerStrategy))) {
           deflater.setLevel(level);
           inflater.reset();
           deflater.reset();
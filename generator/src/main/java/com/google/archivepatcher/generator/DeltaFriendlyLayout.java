@@ -0,0 +1,187 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator;
+
+import com.google.archivepatcher.shared.TypedRange;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Describes where the bytes of an archive end up in its delta-friendly form, without generating
+ * the delta-friendly file. Each range in the uncompression plan grows from its compressed size to
+ * the uncompressed size of the entry, as recorded in the archive's metadata; every other byte is
+ * copied as-is, shifted by the growth of the ranges before it.
+ *
+ * <p>The layout is only as accurate as the metadata it is computed from. Callers that use it to
+ * locate bytes in a delta-friendly file that was actually generated must tolerate a mismatch, e.g.
+ * by verifying the bytes they find there.
+ */
+class DeltaFriendlyLayout {
+  /** The offset in the original file of each range that is uncompressed, in ascending order. */
+  private final long[] originalOffsets;
+
+  /** The length in the original file of each range that is uncompressed. */
+  private final long[] originalLengths;
+
+  /** The offset in the delta-friendly file of each range that is uncompressed. */
+  private final long[] deltaFriendlyOffsets;
+
+  /** The length in the delta-friendly file of each range that is uncompressed. */
+  private final long[] deltaFriendlyLengths;
+
+  /** The total number of bytes by which the delta-friendly file is larger than the original. */
+  private final long growth;
+
+  /**
+   * Computes the layout of the delta-friendly old file for the specified plan.
+   *
+   * @param preDiffPlan the plan
+   * @return the layout
+   */
+  static DeltaFriendlyLayout forOldFile(PreDiffPlan preDiffPlan) {
+    Map<Long, Long> uncompressedSizesByOffset = new HashMap<Long, Long>();
+    for (QualifiedRecommendation qualifiedRecommendation :
+        preDiffPlan.getQualifiedRecommendations()) {
+      MinimalZipEntry entry = qualifiedRecommendation.getOldEntry();
+      uncompressedSizesByOffset.put(
+          entry.getFileOffsetOfCompressedData(), entry.getUncompressedSize());
+    }
+    return new DeltaFriendlyLayout(
+        preDiffPlan.getOldFileUncompressionPlan(), uncompressedSizesByOffset);
+  }
+
+  /**
+   * Computes the layout of the delta-friendly new file for the specified plan.
+   *
+   * @param preDiffPlan the plan
+   * @return the layout
+   */
+  static DeltaFriendlyLayout forNewFile(PreDiffPlan preDiffPlan) {
+    Map<Long, Long> uncompressedSizesByOffset = new HashMap<Long, Long>();
+    for (QualifiedRecommendation qualifiedRecommendation :
+        preDiffPlan.getQualifiedRecommendations()) {
+      MinimalZipEntry entry = qualifiedRecommendation.getNewEntry();
+      uncompressedSizesByOffset.put(
+          entry.getFileOffsetOfCompressedData(), entry.getUncompressedSize());
+    }
+    return new DeltaFriendlyLayout(
+        preDiffPlan.getNewFileUncompressionPlan(), uncompressedSizesByOffset);
+  }
+
+  /**
+   * Computes the layout for the specified uncompression plan.
+   *
+   * @param uncompressionPlan the ranges of the original file to be uncompressed, in ascending
+   *     order of offset, as found in a {@link PreDiffPlan}
+   * @param uncompressedSizesByOffset the uncompressed size of the entry whose compressed data
+   *     starts at each offset; must contain every offset in the plan
+   */
+  DeltaFriendlyLayout(
+      List<? extends TypedRange<?>> uncompressionPlan, Map<Long, Long> uncompressedSizesByOffset) {
+    int count = uncompressionPlan.size();
+    originalOffsets = new long[count];
+    originalLengths = new long[count];
+    deltaFriendlyOffsets = new long[count];
+    deltaFriendlyLengths = new long[count];
+    long growth = 0;
+    for (int x = 0; x < count; x++) {
+      TypedRange<?> range = uncompressionPlan.get(x);
+      Long uncompressedSize = uncompressedSizesByOffset.get(range.getOffset());
+      if (uncompressedSize == null) {
+        throw new IllegalArgumentException("No uncompressed size for range: " + range);
+      }
+      originalOffsets[x] = range.getOffset();
+      originalLengths[x] = range.getLength();
+      deltaFriendlyOffsets[x] = range.getOffset() + growth;
+      deltaFriendlyLengths[x] = uncompressedSize;
+      growth += uncompressedSize - range.getLength();
+    }
+    this.growth = growth;
+  }
+
+  /**
+   * Returns the length of the delta-friendly file.
+   *
+   * @param originalLength the length of the original file
+   * @return as described
+   */
+  long getDeltaFriendlyLength(long originalLength) {
+    return originalLength + growth;
+  }
+
+  /**
+   * Returns the ranges of the delta-friendly file that hold the uncompressed data of the ranges in
+   * the uncompression plan, with the same metadata. For the new file, this is the plan for
+   * recompressing the delta-friendly file.
+   *
+   * @param uncompressionPlan the plan that this layout was computed for
+   * @param <T> the type of the metadata
+   * @return the ranges, in file order
+   */
+  <T> List<TypedRange<T>> getDeltaFriendlyRanges(List<TypedRange<T>> uncompressionPlan) {
+    if (uncompressionPlan.size() != originalOffsets.length) {
+      throw new IllegalArgumentException("Not the plan that the layout was computed for");
+    }
+    List<TypedRange<T>> result = new ArrayList<TypedRange<T>>(uncompressionPlan.size());
+    for (int x = 0; x < originalOffsets.length; x++) {
+      result.add(
+          new TypedRange<T>(
+              deltaFriendlyOffsets[x],
+              deltaFriendlyLengths[x],
+              uncompressionPlan.get(x).getMetadata()));
+    }
+    return result;
+  }
+
+  /**
+   * Returns the offset in the delta-friendly file of the byte at the specified offset in the
+   * original file. The offset must not be inside a range that is uncompressed, as such bytes have
+   * no counterpart in the delta-friendly file; the start of such a range is allowed.
+   *
+   * @param originalOffset the offset in the original file
+   * @return as described
+   */
+  long toDeltaFriendlyOffset(long originalOffset) {
+    // Find the last range that starts at or before the offset.
+    int low = 0;
+    int high = originalOffsets.length - 1;
+    int index = -1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (originalOffsets[mid] <= originalOffset) {
+        index = mid;
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    if (index == -1) {
+      return originalOffset;
+    }
+    long offsetInRange = originalOffset - originalOffsets[index];
+    if (offsetInRange == 0) {
+      return deltaFriendlyOffsets[index];
+    }
+    if (offsetInRange < originalLengths[index]) {
+      throw new IllegalArgumentException(
+          "Offset is inside an uncompressed range: " + originalOffset);
+    }
+    return deltaFriendlyOffsets[index]
+        + deltaFriendlyLengths[index]
+        + (offsetInRange - originalLengths[index]);
+  }
+}
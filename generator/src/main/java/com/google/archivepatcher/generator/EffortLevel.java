@@ -0,0 +1,143 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator;
+
+import com.google.archivepatcher.generator.bsdiff.SuffixSorterAlgorithm;
+
+/**
+ * Named trade-offs between the time taken to generate a patch and its size, for use with {@link
+ * FileByFileV1DeltaGenerator.Builder#withEffortLevel(EffortLevel)}. Each level bundles the
+ * settings that most affect that trade-off; patches generated at any level are applied the same
+ * way.
+ *
+ * <p>As a rough guide, for a pair of 11 MB archives in which a fifth of the entries changed, {@link
+ * #FAST} generated the patch in 60% of the time taken by {@link #BALANCED} and the patch was 9%
+ * larger after compression, while {@link #MAX_COMPRESSION} took 90% of the time and the patch was
+ * 0.4% smaller. The differences depend heavily on the archives.
+ */
+public enum EffortLevel {
+  /**
+   * Generates patches quickly, e.g. for continuous integration builds that only need a patch to
+   * exist. Entries whose compressed bytes are unchanged are copied without being searched for
+   * matches, only the three most popular deflate levels are tried during divination, so entries
+   * compressed with other levels stay compressed in the patch, and the search for a match gives up
+   * sooner in repetitive data.
+   */
+  FAST(SuffixSorterAlgorithm.DIVSUFSORT, true, true, 16, 1L << 22, 3, false),
+
+  /**
+   * The default, equivalent to the settings of a {@link FileByFileV1DeltaGenerator} that has not
+   * been configured otherwise.
+   */
+  BALANCED(SuffixSorterAlgorithm.DIVSUFSORT, false, false, 16, 1L << 26, Integer.MAX_VALUE, false),
+
+  /**
+   * Generates the smallest patches, e.g. for release builds that are delivered to many devices.
+   * Entries that were renamed and modified are diffed against their old version, and the search for
+   * a match persists for longer in repetitive data. Finding similar entries reads the content of
+   * every added and removed entry, which can take much longer for archives with many of them; the
+   * seed index offsets some of the cost at the expense of up to 64 MiB of heap.
+   */
+  MAX_COMPRESSION(
+      SuffixSorterAlgorithm.DIVSUFSORT, true, false, 16, 1L << 30, Integer.MAX_VALUE, true);
+
+  private final SuffixSorterAlgorithm suffixSorterAlgorithm;
+  private final boolean useSeedIndex;
+  private final boolean useIdenticalEntryCopies;
+  private final int matchLengthBytes;
+  private final long totalMatchLengthBudget;
+  private final int maxDivinationLevelsPerStrategy;
+  private final boolean detectSimilarContent;
+
+  private EffortLevel(
+      SuffixSorterAlgorithm suffixSorterAlgorithm,
+      boolean useSeedIndex,
+      boolean useIdenticalEntryCopies,
+      int matchLengthBytes,
+      long totalMatchLengthBudget,
+      int maxDivinationLevelsPerStrategy,
+      boolean detectSimilarContent) {
+    this.suffixSorterAlgorithm = suffixSorterAlgorithm;
+    this.useSeedIndex = useSeedIndex;
+    this.useIdenticalEntryCopies = useIdenticalEntryCopies;
+    this.matchLengthBytes = matchLengthBytes;
+    this.totalMatchLengthBudget = totalMatchLengthBudget;
+    this.maxDivinationLevelsPerStrategy = maxDivinationLevelsPerStrategy;
+    this.detectSimilarContent = detectSimilarContent;
+  }
+
+  /**
+   * Returns the algorithm to sort the suffixes of the delta-friendly old blob with.
+   *
+   * @return as described
+   */
+  public SuffixSorterAlgorithm getSuffixSorterAlgorithm() {
+    return suffixSorterAlgorithm;
+  }
+
+  /**
+   * Returns whether to index the delta-friendly old blob to speed up the search for matches.
+   *
+   * @return as described
+   */
+  public boolean usesSeedIndex() {
+    return useSeedIndex;
+  }
+
+  /**
+   * Returns whether to copy entries with identical compressed bytes directly into the delta.
+   *
+   * @return as described
+   */
+  public boolean usesIdenticalEntryCopies() {
+    return useIdenticalEntryCopies;
+  }
+
+  /**
+   * Returns the minimum length of a match for bsdiff.
+   *
+   * @return as described
+   */
+  public int getMatchLengthBytes() {
+    return matchLengthBytes;
+  }
+
+  /**
+   * Returns the limit on the total match lengths bsdiff encounters while extending a single match.
+   *
+   * @return as described
+   */
+  public long getTotalMatchLengthBudget() {
+    return totalMatchLengthBudget;
+  }
+
+  /**
+   * Returns the maximum number of deflate levels to try for each strategy during divination.
+   *
+   * @return as described
+   */
+  public int getMaxDivinationLevelsPerStrategy() {
+    return maxDivinationLevelsPerStrategy;
+  }
+
+  /**
+   * Returns whether to detect renamed-and-modified entries by the similarity of their content.
+   *
+   * @return as described
+   */
+  public boolean detectsSimilarContent() {
+    return detectSimilarContent;
+  }
+}
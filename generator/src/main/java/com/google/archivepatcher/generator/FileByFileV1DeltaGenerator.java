@@ -15,23 +15,439 @@
 package com.google.archivepatcher.generator;
 
 import com.google.archivepatcher.generator.bsdiff.BsDiffDeltaGenerator;
+import com.google.archivepatcher.generator.bsdiff.BsDiffOptions;
+import com.google.archivepatcher.generator.bsdiff.CopyRange;
+import com.google.archivepatcher.generator.bsdiff.DirectByteBufferPool;
+import com.google.archivepatcher.generator.bsdiff.MemoryBudget;
+import com.google.archivepatcher.generator.bsdiff.SuffixSorterAlgorithm;
+import com.google.archivepatcher.generator.gdiff.GdiffDeltaGenerator;
+import com.google.archivepatcher.generator.gdiff.GdiffLiteralDeltaGenerator;
+import com.google.archivepatcher.shared.ArchiveFingerprint;
+import com.google.archivepatcher.shared.CountingOutputStream;
+import com.google.archivepatcher.shared.DeflateCompressor;
+import com.google.archivepatcher.shared.PatchConstants.DeltaCompression;
+import com.google.archivepatcher.shared.PatchConstants.DeltaFormat;
+import com.google.archivepatcher.shared.StreamingCompressor;
 import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Generates file-by-file patches.
  */
 public class FileByFileV1DeltaGenerator implements DeltaGenerator {
 
+  /**
+   * Builder for {@link FileByFileV1DeltaGenerator} instances.
+   */
+  public static final class Builder {
+    private List<RecommendationModifier> recommendationModifiers =
+        new ArrayList<RecommendationModifier>();
+    private MemoryBudget memoryBudget;
+    private DirectByteBufferPool directByteBufferPool;
+    private SuffixSorterAlgorithm suffixSorterAlgorithm = SuffixSorterAlgorithm.DIVSUFSORT;
+    private boolean useSeedIndex = false;
+    private boolean useIdenticalEntryCopies = false;
+    private boolean detectSimilarContent = false;
+    private int matchLengthBytes = BsDiffDeltaGenerator.DEFAULT_MATCH_LENGTH_BYTES;
+    private long totalMatchLengthBudget = BsDiffDeltaGenerator.DEFAULT_TOTAL_MATCH_LENGTH_BUDGET;
+    private int maxDivinationLevelsPerStrategy = Integer.MAX_VALUE;
+    private GenerationMetricsListener metricsListener = GenerationMetricsListener.NO_OP;
+    private DeltaFormat deltaFormat = DeltaFormat.BSDIFF;
+    private long timeoutMillis = NO_DEADLINE;
+    private boolean streamPatchOutput = false;
+    private File tempDir;
+    private DeltaCompression deltaCompression = DeltaCompression.NONE;
+    private boolean recordNewArchiveSha256 = false;
+    private boolean recordOldArchiveFingerprint = false;
+
+    /**
+     * Appends an optional {@link RecommendationModifier} to be used during the planning phase of
+     * patch generation. These can be used to, e.g., limit the total amount of recompression that a
+     * patch applier needs to do. Modifiers are applied in the order they are specified.
+     *
+     * @param recommendationModifier the modifier to add
+     * @return this builder
+     */
+    public Builder withRecommendationModifier(RecommendationModifier recommendationModifier) {
+      if (recommendationModifier == null) {
+        throw new IllegalArgumentException("recommendationModifier cannot be null");
+      }
+      this.recommendationModifiers.add(recommendationModifier);
+      return this;
+    }
+
+    /**
+     * Sets an optional {@link MemoryBudget} that limits how much memory the delta generation may
+     * use for the delta-friendly blobs and the ancillary data structures of bsdiff. Anything that
+     * doesn't fit in the budget is file-backed. Several generators can share one budget. If no
+     * budget is set, file-backed storage is always used.
+     *
+     * @param memoryBudget the budget to draw from
+     * @return this builder
+     */
+    public Builder withMemoryBudget(MemoryBudget memoryBudget) {
+      if (memoryBudget == null) {
+        throw new IllegalArgumentException("memoryBudget cannot be null");
+      }
+      this.memoryBudget = memoryBudget;
+      return this;
+    }
+
+    /**
+     * Sets an optional {@link DirectByteBufferPool} to allocate in-budget storage from, so that it
+     * lives off-heap and can be reused across jobs. Only has an effect if a memory budget is also
+     * set with {@link #withMemoryBudget(MemoryBudget)}.
+     *
+     * @param directByteBufferPool the pool to borrow buffers from
+     * @return this builder
+     */
+    public Builder withDirectByteBufferPool(DirectByteBufferPool directByteBufferPool) {
+      if (directByteBufferPool == null) {
+        throw new IllegalArgumentException("directByteBufferPool cannot be null");
+      }
+      this.directByteBufferPool = directByteBufferPool;
+      return this;
+    }
+
+    /**
+     * Sets the algorithm used to sort the suffixes of the delta-friendly old blob. All algorithms
+     * produce identical patches; the default, {@link SuffixSorterAlgorithm#DIVSUFSORT}, is usually
+     * fastest, while {@link SuffixSorterAlgorithm#SAIS} guarantees linear time on highly
+     * repetitive inputs at the cost of additional heap usage.
+     *
+     * @param suffixSorterAlgorithm the algorithm to use
+     * @return this builder
+     */
+    public Builder withSuffixSorterAlgorithm(SuffixSorterAlgorithm suffixSorterAlgorithm) {
+      if (suffixSorterAlgorithm == null) {
+        throw new IllegalArgumentException("suffixSorterAlgorithm cannot be null");
+      }
+      this.suffixSorterAlgorithm = suffixSorterAlgorithm;
+      return this;
+    }
+
+    /**
+     * Sets whether to index the delta-friendly old blob by the first few bytes of each suffix, so
+     * that the search for matches is narrowed to a small interval of the suffix array and positions
+     * in the new blob that match nothing are resolved immediately. The index does not change the
+     * generated patch but uses up to 64 MiB of additional heap. Off by default.
+     *
+     * @param useSeedIndex whether to use the index
+     * @return this builder
+     */
+    public Builder withSeedIndex(boolean useSeedIndex) {
+      this.useSeedIndex = useSeedIndex;
+      return this;
+    }
+
+    /**
+     * Sets whether entries whose compressed bytes are identical in the old and new archives (see
+     * {@link RecommendationReason#COMPRESSED_BYTES_IDENTICAL}) are written to the delta as direct
+     * copies, excluding them from the suffix sort and the search for matches. When most entries
+     * are unchanged this greatly reduces the time taken to generate the delta, at the cost of a
+     * possibly slightly larger delta, as the unchanged entries can no longer be the source of
+     * matches for changed ones. Only applies to {@link DeltaFormat#BSDIFF}. Off by default.
+     *
+     * @param useIdenticalEntryCopies whether to copy identical entries directly
+     * @return this builder
+     */
+    public Builder withIdenticalEntryCopies(boolean useIdenticalEntryCopies) {
+      this.useIdenticalEntryCopies = useIdenticalEntryCopies;
+      return this;
+    }
+
+    /**
+     * Sets whether to diff entries that were renamed and modified at the same time against the
+     * most similar entry of the old archive, as described in {@link
+     * PreDiffExecutor.Builder#withContentSimilarityDetection(boolean)}. Off by default.
+     *
+     * @param detectSimilarContent whether to detect renamed-and-modified entries
+     * @return this builder
+     */
+    public Builder withContentSimilarityDetection(boolean detectSimilarContent) {
+      this.detectSimilarContent = detectSimilarContent;
+      return this;
+    }
+
+    /**
+     * Applies the settings of the specified {@link EffortLevel}: the suffix sorter, whether to use
+     * a seed index and identical entry copies, the matching parameters of bsdiff, how many deflate
+     * levels to try during divination and whether to detect similar content. Settings made after
+     * this call, e.g. with {@link #withSeedIndex(boolean)}, override those of the level. The
+     * default settings are those of {@link EffortLevel#BALANCED}.
+     *
+     * @param effortLevel the level to apply
+     * @return this builder
+     */
+    public Builder withEffortLevel(EffortLevel effortLevel) {
+      if (effortLevel == null) {
+        throw new IllegalArgumentException("effortLevel cannot be null");
+      }
+      this.suffixSorterAlgorithm = effortLevel.getSuffixSorterAlgorithm();
+      this.useSeedIndex = effortLevel.usesSeedIndex();
+      this.useIdenticalEntryCopies = effortLevel.usesIdenticalEntryCopies();
+      this.matchLengthBytes = effortLevel.getMatchLengthBytes();
+      this.totalMatchLengthBudget = effortLevel.getTotalMatchLengthBudget();
+      this.maxDivinationLevelsPerStrategy = effortLevel.getMaxDivinationLevelsPerStrategy();
+      this.detectSimilarContent = effortLevel.detectsSimilarContent();
+      return this;
+    }
+
+    /**
+     * Sets a listener to report the duration and throughput of each stage of patch generation,
+     * the large buffers allocated and the temp-disk usage to. Defaults to {@link
+     * GenerationMetricsListener#NO_OP}.
+     *
+     * @param metricsListener the listener
+     * @return this builder
+     */
+    public Builder withMetricsListener(GenerationMetricsListener metricsListener) {
+      if (metricsListener == null) {
+        throw new IllegalArgumentException("metricsListener cannot be null");
+      }
+      this.metricsListener = metricsListener;
+      return this;
+    }
+
+    /**
+     * Sets the format of the delta between the delta-friendly files. The default, {@link
+     * DeltaFormat#BSDIFF}, produces the smallest patches. {@link DeltaFormat#GDIFF} uses a
+     * hash-based matcher without a suffix sort that generates patches in time linear in the size
+     * of the archives and with far less memory, at the cost of larger patches; it suits builds for
+     * which the time taken to generate the patch matters more than its size. Options that only
+     * affect bsdiff, such as {@link #withSuffixSorterAlgorithm(SuffixSorterAlgorithm)}, are ignored
+     * for gdiff. {@link DeltaFormat#BSDIFF_SECTIONED} produces the same delta as bsdiff with its
+     * control entries, extra bytes and diff bytes in separate sections, which makes for smaller
+     * patches when the delta is compressed, whether with {@link
+     * #withDeltaCompression(DeltaCompression)} or as the patch is served; the sections are
+     * buffered in temp files until the delta is complete, which takes as much temporary storage
+     * as the delta itself. Applying such a patch also takes temporary storage, as described in
+     * {@link DeltaFormat#BSDIFF_SECTIONED}.
+     *
+     * @param deltaFormat the format to use
+     * @return this builder
+     */
+    public Builder withDeltaFormat(DeltaFormat deltaFormat) {
+      if (deltaFormat == null) {
+        throw new IllegalArgumentException("deltaFormat cannot be null");
+      }
+      this.deltaFormat = deltaFormat;
+      return this;
+    }
+
+    /**
+     * Sets a deadline for generating each patch, measured from the start of generation. If the
+     * configured strategy has not produced a delta by then, generation falls back to cheaper
+     * strategies rather than failing, as described in {@link
+     * FileByFileV1DeltaGenerator#generateDeltaWithResult(File, File, OutputStream)}; in the worst
+     * case generation takes one and a half times the deadline, plus the time to copy the archives.
+     * The work in progress notices the deadline at the points where it checks whether its thread
+     * has been interrupted, which the suffix sorters, the matchers and the diviner do regularly. By
+     * default there is no deadline.
+     *
+     * @param timeoutMillis the time allowed for the configured strategy, in milliseconds; if zero,
+     *     the patch is generated with the copy-only strategy
+     * @return this builder
+     */
+    public Builder withDeadline(long timeoutMillis) {
+      if (timeoutMillis < 0) {
+        throw new IllegalArgumentException("timeoutMillis cannot be negative: " + timeoutMillis);
+      }
+      this.timeoutMillis = timeoutMillis;
+      return this;
+    }
+
+    /**
+     * Sets whether to stream the delta straight into the patch output stream as it is generated,
+     * rather than writing it to a temp file and copying it into the patch once complete. This saves
+     * a write and a read of the whole delta and lets the caller forward the start of the patch
+     * while the rest is still being generated. The patch records the delta length as {@link
+     * com.google.archivepatcher.shared.PatchConstants#STREAMED_DELTA_LENGTH}, which appliers that
+     * predate streaming reject. If a deadline is set, strategies that may be abandoned are not
+     * streamed. A {@link DeltaFormat#BSDIFF_SECTIONED} delta can only be written once all of its
+     * sections are complete, so it is still buffered in temp files in full and streaming only saves
+     * the copy of the delta into the patch. Off by default.
+     *
+     * @param streamPatchOutput whether to stream the delta into the patch
+     * @return this builder
+     */
+    public Builder withStreamedPatchOutput(boolean streamPatchOutput) {
+      this.streamPatchOutput = streamPatchOutput;
+      return this;
+    }
+
+    /**
+     * Sets the directory for the temp files of patch generation: the delta-friendly files, the
+     * delta unless it is streamed, and the sections of a {@link DeltaFormat#BSDIFF_SECTIONED}
+     * delta. File-backed storage for bsdiff outside the memory budget still uses the default temp
+     * directory. Defaults to the default temp directory.
+     *
+     * @param tempDir the directory, which must exist
+     * @return this builder
+     */
+    public Builder withTempDir(File tempDir) {
+      if (tempDir == null) {
+        throw new IllegalArgumentException("tempDir cannot be null");
+      }
+      this.tempDir = tempDir;
+      return this;
+    }
+
+    /**
+     * Sets the compression to apply to the delta as it is generated. Patches are usually
+     * compressed for transmission anyway; compressing the delta here instead saves a separate pass
+     * over the whole patch on both sides, as the applier uncompresses the delta as it applies it.
+     * The rest of the patch, which is small, is not compressed. A patch with compressed deltas
+     * begins with {@link com.google.archivepatcher.shared.PatchConstants#EXTENDED_IDENTIFIER}, so
+     * that appliers that predate delta compression reject it rather than apply the compressed
+     * delta as though it were uncompressed. Defaults to {@link DeltaCompression#NONE}.
+     *
+     * @param deltaCompression the compression to apply
+     * @return this builder
+     */
+    public Builder withDeltaCompression(DeltaCompression deltaCompression) {
+      if (deltaCompression == null) {
+        throw new IllegalArgumentException("deltaCompression cannot be null");
+      }
+      this.deltaCompression = deltaCompression;
+      return this;
+    }
+
+    /**
+     * Sets whether to record the SHA-256 digest of the new archive in the patch header. The
+     * applier then computes the digest of the new archive as it writes it and fails if they don't
+     * match, so that the caller doesn't have to read the new archive back to verify it. This costs
+     * one extra read of the new archive during generation and 32 bytes in the patch. The patch then
+     * begins with {@link com.google.archivepatcher.shared.PatchConstants#EXTENDED_IDENTIFIER}, so
+     * that appliers that predate the digest reject it rather than misread the digest as the rest of
+     * the header. Off by default.
+     *
+     * @param recordNewArchiveSha256 whether to record the digest of the new archive
+     * @return this builder
+     */
+    public Builder withNewArchiveSha256(boolean recordNewArchiveSha256) {
+      this.recordNewArchiveSha256 = recordNewArchiveSha256;
+      return this;
+    }
+
+    /**
+     * Sets whether to record the {@link ArchiveFingerprint} of the old archive in the patch header.
+     * The applier checks the old archive against it before building the delta-friendly old blob
+     * and applying the delta, so that a patch for a different old archive fails in moments rather
+     * than after all of that work. The fingerprint covers the central directory and samples of the
+     * rest of the archive, so it is cheap to compute on both sides; it costs 32 bytes in the patch.
+     * The patch then begins with {@link
+     * com.google.archivepatcher.shared.PatchConstants#EXTENDED_IDENTIFIER}, so that appliers that
+     * predate the fingerprint reject it rather than misread the fingerprint as the rest of the
+     * header. Off by default.
+     *
+     * @param recordOldArchiveFingerprint whether to record the fingerprint of the old archive
+     * @return this builder
+     */
+    public Builder withOldArchiveFingerprint(boolean recordOldArchiveFingerprint) {
+      this.recordOldArchiveFingerprint = recordOldArchiveFingerprint;
+      return this;
+    }
+
+    /**
+     * Builds and returns a {@link FileByFileV1DeltaGenerator} according to the current
+     * configuration.
+     *
+     * @return the generator
+     */
+    public FileByFileV1DeltaGenerator build() {
+      return new FileByFileV1DeltaGenerator(
+          recommendationModifiers,
+          memoryBudget,
+          directByteBufferPool,
+          suffixSorterAlgorithm,
+          useSeedIndex,
+          useIdenticalEntryCopies,
+          detectSimilarContent,
+          matchLengthBytes,
+          totalMatchLengthBudget,
+          maxDivinationLevelsPerStrategy,
+          metricsListener,
+          deltaFormat,
+          timeoutMillis,
+          streamPatchOutput,
+          tempDir,
+          deltaCompression,
+          recordNewArchiveSha256,
+          recordOldArchiveFingerprint);
+    }
+  }
+
+  /** The value of {@link #timeoutMillis} when there is no deadline. */
+  private static final long NO_DEADLINE = -1;
+
   /** Optional modifiers for planning and patch generation. */
   private final List<RecommendationModifier> recommendationModifiers;
 
+  /** Optional budget for the memory used by delta generation. */
+  private final MemoryBudget memoryBudget;
+
+  /** Optional pool for in-budget off-heap storage. */
+  private final DirectByteBufferPool directByteBufferPool;
+
+  /** The algorithm to sort the suffixes of the delta-friendly old blob with. */
+  private final SuffixSorterAlgorithm suffixSorterAlgorithm;
+
+  /** Whether to index the delta-friendly old blob to speed up the search for matches. */
+  private final boolean useSeedIndex;
+
+  /** Whether to copy entries with identical compressed bytes directly into the delta. */
+  private final boolean useIdenticalEntryCopies;
+
+  /** Whether to detect renamed-and-modified entries by the similarity of their content. */
+  private final boolean detectSimilarContent;
+
+  /** The minimum match length for bsdiff. */
+  private final int matchLengthBytes;
+
+  /** The limit on the total match lengths bsdiff encounters while extending a single match. */
+  private final long totalMatchLengthBudget;
+
+  /** The maximum number of deflate levels to try for each strategy during divination. */
+  private final int maxDivinationLevelsPerStrategy;
+
+  /** The listener to report measurements to. */
+  private final GenerationMetricsListener metricsListener;
+
+  /** The format of the delta between the delta-friendly files. */
+  private final DeltaFormat deltaFormat;
+
+  /** The time allowed for the configured strategy, or {@link #NO_DEADLINE}. */
+  private final long timeoutMillis;
+
+  /** Whether to stream the delta straight into the patch output stream. */
+  private final boolean streamPatchOutput;
+
+  /** The directory for temp files, or null for the default temp directory. */
+  private final File tempDir;
+
+  /** The compression to apply to the delta. */
+  private final DeltaCompression deltaCompression;
+
+  /** Whether to record the SHA-256 digest of the new archive in the patch. */
+  private final boolean recordNewArchiveSha256;
+
+  /** Whether to record the fingerprint of the old archive in the patch. */
+  private final boolean recordOldArchiveFingerprint;
+
   /**
    * Constructs a new generator for File-by-File v1 patches, using the specified configuration.
    *
@@ -47,6 +463,89 @@ public class FileByFileV1DeltaGenerator implements DeltaGenerator {
     } else {
       this.recommendationModifiers = Collections.emptyList();
     }
+    this.memoryBudget = null;
+    this.directByteBufferPool = null;
+    this.suffixSorterAlgorithm = SuffixSorterAlgorithm.DIVSUFSORT;
+    this.useSeedIndex = false;
+    this.useIdenticalEntryCopies = false;
+    this.detectSimilarContent = false;
+    this.matchLengthBytes = BsDiffDeltaGenerator.DEFAULT_MATCH_LENGTH_BYTES;
+    this.totalMatchLengthBudget = BsDiffDeltaGenerator.DEFAULT_TOTAL_MATCH_LENGTH_BUDGET;
+    this.maxDivinationLevelsPerStrategy = Integer.MAX_VALUE;
+    this.metricsListener = GenerationMetricsListener.NO_OP;
+    this.deltaFormat = DeltaFormat.BSDIFF;
+    this.timeoutMillis = NO_DEADLINE;
+    this.streamPatchOutput = false;
+    this.tempDir = null;
+    this.deltaCompression = DeltaCompression.NONE;
+    this.recordNewArchiveSha256 = false;
+    this.recordOldArchiveFingerprint = false;
+  }
+
+  /**
+   * Constructs a new generator for File-by-File v1 patches; use the {@link Builder} instead.
+   *
+   * @param recommendationModifiers the modifiers to use, in order
+   * @param memoryBudget optionally, the budget for memory used by delta generation
+   * @param directByteBufferPool optionally, the pool for in-budget off-heap storage
+   * @param suffixSorterAlgorithm the algorithm to sort the suffixes of the old blob with
+   * @param useSeedIndex whether to index the old blob to speed up the search for matches
+   * @param useIdenticalEntryCopies whether to copy entries with identical compressed bytes
+   *     directly into the delta
+   * @param detectSimilarContent whether to detect renamed-and-modified entries
+   * @param matchLengthBytes the minimum match length for bsdiff
+   * @param totalMatchLengthBudget the limit on the total match lengths bsdiff encounters while
+   *     extending a single match
+   * @param maxDivinationLevelsPerStrategy the maximum number of deflate levels to try for each
+   *     strategy during divination
+   * @param metricsListener the listener to report measurements to
+   * @param deltaFormat the format of the delta between the delta-friendly files
+   * @param timeoutMillis the time allowed for the configured strategy, or {@link #NO_DEADLINE}
+   * @param streamPatchOutput whether to stream the delta straight into the patch output stream
+   * @param tempDir the directory for temp files, or null for the default temp directory
+   * @param deltaCompression the compression to apply to the delta
+   * @param recordNewArchiveSha256 whether to record the SHA-256 digest of the new archive
+   * @param recordOldArchiveFingerprint whether to record the fingerprint of the old archive
+   */
+  private FileByFileV1DeltaGenerator(
+      List<RecommendationModifier> recommendationModifiers,
+      MemoryBudget memoryBudget,
+      DirectByteBufferPool directByteBufferPool,
+      SuffixSorterAlgorithm suffixSorterAlgorithm,
+      boolean useSeedIndex,
+      boolean useIdenticalEntryCopies,
+      boolean detectSimilarContent,
+      int matchLengthBytes,
+      long totalMatchLengthBudget,
+      int maxDivinationLevelsPerStrategy,
+      GenerationMetricsListener metricsListener,
+      DeltaFormat deltaFormat,
+      long timeoutMillis,
+      boolean streamPatchOutput,
+      File tempDir,
+      DeltaCompression deltaCompression,
+      boolean recordNewArchiveSha256,
+      boolean recordOldArchiveFingerprint) {
+    this.recommendationModifiers =
+        Collections.unmodifiableList(
+            new ArrayList<RecommendationModifier>(recommendationModifiers));
+    this.memoryBudget = memoryBudget;
+    this.directByteBufferPool = directByteBufferPool;
+    this.suffixSorterAlgorithm = suffixSorterAlgorithm;
+    this.useSeedIndex = useSeedIndex;
+    this.useIdenticalEntryCopies = useIdenticalEntryCopies;
+    this.detectSimilarContent = detectSimilarContent;
+    this.matchLengthBytes = matchLengthBytes;
+    this.totalMatchLengthBudget = totalMatchLengthBudget;
+    this.maxDivinationLevelsPerStrategy = maxDivinationLevelsPerStrategy;
+    this.metricsListener = metricsListener;
+    this.deltaFormat = deltaFormat;
+    this.timeoutMillis = timeoutMillis;
+    this.streamPatchOutput = streamPatchOutput;
+    this.tempDir = tempDir;
+    this.deltaCompression = deltaCompression;
+    this.recordNewArchiveSha256 = recordNewArchiveSha256;
+    this.recordOldArchiveFingerprint = recordOldArchiveFingerprint;
   }
 
   /**
@@ -65,36 +564,309 @@ public class FileByFileV1DeltaGenerator implements DeltaGenerator {
   @Override
   public void generateDelta(File oldFile, File newFile, OutputStream patchOut)
       throws IOException, InterruptedException {
-    try (TempFileHolder deltaFriendlyOldFile = new TempFileHolder();
-        TempFileHolder deltaFriendlyNewFile = new TempFileHolder();
-        TempFileHolder deltaFile = new TempFileHolder();
-        FileOutputStream deltaFileOut = new FileOutputStream(deltaFile.file);
-        BufferedOutputStream bufferedDeltaOut = new BufferedOutputStream(deltaFileOut)) {
-      PreDiffExecutor.Builder builder =
-          new PreDiffExecutor.Builder()
-              .readingOriginalFiles(oldFile, newFile)
-              .writingDeltaFriendlyFiles(deltaFriendlyOldFile.file, deltaFriendlyNewFile.file);
-      for (RecommendationModifier modifier : recommendationModifiers) {
-        builder.withRecommendationModifier(modifier);
-      }
-      PreDiffExecutor executor = builder.build();
-      PreDiffPlan preDiffPlan = executor.prepareForDiffing();
-      DeltaGenerator deltaGenerator = getDeltaGenerator();
-      deltaGenerator.generateDelta(
-          deltaFriendlyOldFile.file, deltaFriendlyNewFile.file, bufferedDeltaOut);
-      bufferedDeltaOut.close();
-      PatchWriter patchWriter =
-          new PatchWriter(
-              preDiffPlan,
-              deltaFriendlyOldFile.file.length(),
-              deltaFriendlyNewFile.file.length(),
-              deltaFile.file);
-      patchWriter.writeV1Patch(patchOut);
+    generateDeltaWithResult(oldFile, newFile, patchOut);
+  }
+
+  /**
+   * Generate a V1 patch as in {@link #generateDelta(File, File, OutputStream)}, and report how it
+   * was generated. If a deadline was set with {@link Builder#withDeadline(long)}, the strategies
+   * described in {@link GenerationResult.Strategy} are tried in turn until one completes in time:
+   * the configured strategy has until the deadline, the reduced strategy has half as long again,
+   * and the copy-only strategy, which takes time linear in the size of the archives, always
+   * completes. Nothing is written to the output stream until a strategy has completed, except that
+   * if the patch output is streamed, the strategy that has no time limit streams its delta as it
+   * goes. Stages of abandoned strategies are reported to the metrics listener along with those of
+   * the strategy that completed.
+   *
+   * @param oldFile the original old file to read (will not be modified)
+   * @param newFile the original new file to read (will not be modified)
+   * @param patchOut the stream to write the patch to
+   * @return the outcome
+   * @throws IOException if unable to complete the operation due to an I/O error
+   * @throws InterruptedException if any thread has interrupted the current thread
+   */
+  public GenerationResult generateDeltaWithResult(File oldFile, File newFile, OutputStream patchOut)
+      throws IOException, InterruptedException {
+    long startNanos = System.nanoTime();
+    // Every strategy patches the same archives, so their digests are computed only once.
+    byte[] newArchiveSha256 = recordNewArchiveSha256 ? sha256(newFile) : null;
+    byte[] oldArchiveFingerprint =
+        recordOldArchiveFingerprint ? ArchiveFingerprint.compute(oldFile) : null;
+    GenerationResult.Strategy strategy = GenerationResult.Strategy.CONFIGURED;
+    if (timeoutMillis != NO_DEADLINE) {
+      long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+      if (timeoutNanos > 0
+          && tryGenerateDelta(
+              oldFile,
+              newFile,
+              patchOut,
+              newArchiveSha256,
+              oldArchiveFingerprint,
+              strategy,
+              timeoutNanos)) {
+        return new GenerationResult(strategy, System.nanoTime() - startNanos);
+      }
+      strategy = GenerationResult.Strategy.REDUCED;
+      if (timeoutNanos / 2 > 0
+          && tryGenerateDelta(
+              oldFile,
+              newFile,
+              patchOut,
+              newArchiveSha256,
+              oldArchiveFingerprint,
+              strategy,
+              timeoutNanos / 2)) {
+        return new GenerationResult(strategy, System.nanoTime() - startNanos);
+      }
+      strategy = GenerationResult.Strategy.COPY_ONLY;
+    }
+    tryGenerateDelta(
+        oldFile,
+        newFile,
+        patchOut,
+        newArchiveSha256,
+        oldArchiveFingerprint,
+        strategy,
+        NO_DEADLINE);
+    return new GenerationResult(strategy, System.nanoTime() - startNanos);
+  }
+
+  /**
+   * Generates a patch with the specified strategy, abandoning it if it is not complete within the
+   * specified time. Unless there is no time limit and the patch output is streamed, the patch is
+   * only written to the output stream once the delta is complete.
+   *
+   * @param oldFile the original old file to read (will not be modified)
+   * @param newFile the original new file to read (will not be modified)
+   * @param patchOut the stream to write the patch to
+   * @param newArchiveSha256 the SHA-256 digest of the new archive to record, or null
+   * @param oldArchiveFingerprint the fingerprint of the old archive to record, or null
+   * @param strategy the strategy to generate the patch with
+   * @param timeoutNanos the time allowed for the strategy, or {@link #NO_DEADLINE} for no limit
+   * @return true if the patch was written, false if the strategy ran out of time
+   * @throws IOException if unable to complete the operation due to an I/O error
+   * @throws InterruptedException if any thread has interrupted the current thread
+   */
+  private boolean tryGenerateDelta(
+      File oldFile,
+      File newFile,
+      OutputStream patchOut,
+      byte[] newArchiveSha256,
+      byte[] oldArchiveFingerprint,
+      GenerationResult.Strategy strategy,
+      long timeoutNanos)
+      throws IOException, InterruptedException {
+    boolean configured = strategy == GenerationResult.Strategy.CONFIGURED;
+    boolean streamed = streamPatchOutput && timeoutNanos == NO_DEADLINE;
+    DeltaFormat patchDeltaFormat = configured ? deltaFormat : DeltaFormat.GDIFF;
+    try (TempFileHolder deltaFriendlyOldFile = new TempFileHolder(tempDir);
+        TempFileHolder deltaFriendlyNewFile = new TempFileHolder(tempDir);
+        TempFileHolder deltaFile = streamed ? null : new TempFileHolder(tempDir)) {
+      DeadlineInterrupter interrupter =
+          timeoutNanos == NO_DEADLINE ? null : DeadlineInterrupter.start(timeoutNanos);
+      PreDiffPlan preDiffPlan;
+      DeltaGenerator deltaGenerator;
+      try {
+        PreDiffExecutor.Builder builder =
+            new PreDiffExecutor.Builder()
+                .readingOriginalFiles(oldFile, newFile)
+                .writingDeltaFriendlyFiles(deltaFriendlyOldFile.file, deltaFriendlyNewFile.file)
+                .withContentSimilarityDetection(configured && detectSimilarContent)
+                .withMaxDivinationLevelsPerStrategy(maxDivinationLevelsPerStrategy)
+                .withMetricsListener(metricsListener);
+        for (RecommendationModifier modifier : recommendationModifiers) {
+          builder.withRecommendationModifier(modifier);
+        }
+        if (!configured) {
+          // Uncompress nothing, so that the delta-friendly files are copies of the archives.
+          // Nothing is recompressed either, so don't spend the time that divination takes again.
+          builder
+              .withDeflateDivination(false)
+              .withRecommendationModifier(new TotalRecompressionLimiter(0))
+              .withRecommendationModifier(new DeltaFriendlyOldBlobSizeLimiter(0));
+        }
+        PreDiffExecutor executor = builder.build();
+        preDiffPlan = executor.prepareForDiffing();
+        switch (strategy) {
+          case REDUCED:
+            deltaGenerator = new GdiffDeltaGenerator(metricsListener);
+            break;
+          case COPY_ONLY:
+            deltaGenerator = new GdiffLiteralDeltaGenerator(metricsListener);
+            break;
+          default:
+            deltaGenerator = getDeltaGenerator();
+        }
+        if (!streamed) {
+          try (FileOutputStream deltaFileOut = new FileOutputStream(deltaFile.file);
+              BufferedOutputStream bufferedDeltaOut = new BufferedOutputStream(deltaFileOut)) {
+            writeDelta(
+                deltaGenerator,
+                configured,
+                preDiffPlan,
+                deltaFriendlyOldFile.file,
+                deltaFriendlyNewFile.file,
+                bufferedDeltaOut);
+          }
+        }
+      } catch (InterruptedException | InterruptedIOException e) {
+        // Running out of time usually surfaces as one of these, which cleared the interrupt.
+        if (interrupter != null && interrupter.stopAfterInterrupt()) {
+          return false;
+        }
+        throw e;
+      } catch (IOException e) {
+        // Or as an IOException if the interrupt closed a channel, which leaves it pending.
+        if (interrupter != null && interrupter.stop()) {
+          return false;
+        }
+        throw e;
+      } finally {
+        if (interrupter != null) {
+          interrupter.stop();
+        }
+      }
+      // Don't close this stream, as it would close the output stream that we don't own.
+      @SuppressWarnings("resource")
+      CountingOutputStream countingPatchOut = new CountingOutputStream(patchOut);
+      long startNanos = System.nanoTime();
+      PatchWriter.Builder patchWriterBuilder =
+          new PatchWriter.Builder(
+                  preDiffPlan,
+                  deltaFriendlyOldFile.file.length(),
+                  deltaFriendlyNewFile.file.length())
+              .withDeltaFormat(patchDeltaFormat)
+              .withDeltaCompression(deltaCompression);
+      if (newArchiveSha256 != null) {
+        patchWriterBuilder.withNewArchiveSha256(newArchiveSha256);
+      }
+      if (oldArchiveFingerprint != null) {
+        patchWriterBuilder.withOldArchiveFingerprint(oldArchiveFingerprint);
+      }
+      if (streamed) {
+        patchWriterBuilder.build().writeV1PatchHeaderForStreamedDelta(countingPatchOut);
+        long headerNanos = System.nanoTime() - startNanos;
+        // Don't close this stream either, for the same reason; flushing it is enough.
+        @SuppressWarnings("resource")
+        BufferedOutputStream bufferedPatchOut = new BufferedOutputStream(countingPatchOut);
+        writeDelta(
+            deltaGenerator,
+            configured,
+            preDiffPlan,
+            deltaFriendlyOldFile.file,
+            deltaFriendlyNewFile.file,
+            bufferedPatchOut);
+        bufferedPatchOut.flush();
+        metricsListener.tempDiskUsage(
+            deltaFriendlyOldFile.file.length() + deltaFriendlyNewFile.file.length());
+        metricsListener.stageCompleted(
+            GenerationMetricsListener.Stage.WRITE_PATCH,
+            headerNanos,
+            countingPatchOut.getNumBytesWritten(),
+            0);
+      } else {
+        metricsListener.tempDiskUsage(
+            deltaFriendlyOldFile.file.length()
+                + deltaFriendlyNewFile.file.length()
+                + deltaFile.file.length());
+        patchWriterBuilder.withDeltaFile(deltaFile.file).build().writeV1Patch(countingPatchOut);
+        metricsListener.stageCompleted(
+            GenerationMetricsListener.Stage.WRITE_PATCH,
+            System.nanoTime() - startNanos,
+            countingPatchOut.getNumBytesWritten(),
+            0);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Writes the delta between the delta-friendly files with the specified generator, using
+   * identical entry copies if they are enabled and apply to the strategy, and compressing it if
+   * delta compression is enabled.
+   *
+   * @param deltaGenerator the generator to use
+   * @param configured whether the configured strategy is in use
+   * @param preDiffPlan the plan that the delta-friendly files were written with
+   * @param deltaFriendlyOldFile the delta-friendly old file
+   * @param deltaFriendlyNewFile the delta-friendly new file
+   * @param deltaOut the stream to write the delta to
+   * @throws IOException if unable to complete the operation due to an I/O error
+   * @throws InterruptedException if any thread has interrupted the current thread
+   */
+  private void writeDelta(
+      DeltaGenerator deltaGenerator,
+      boolean configured,
+      PreDiffPlan preDiffPlan,
+      File deltaFriendlyOldFile,
+      File deltaFriendlyNewFile,
+      OutputStream deltaOut)
+      throws IOException, InterruptedException {
+    if (deltaCompression != DeltaCompression.NONE) {
+      // Buffer ahead of the compressor, as the generators make many small writes. Closing these
+      // streams finishes the compressed delta but leaves deltaOut open; they are closed even if
+      // generation fails, so that the compressor releases its native memory.
+      try (OutputStream compressingDeltaOut =
+          new BufferedOutputStream(
+              getDeltaCompressor(deltaCompression).newCompressingStream(deltaOut))) {
+        generateDelta(
+            deltaGenerator,
+            configured,
+            preDiffPlan,
+            deltaFriendlyOldFile,
+            deltaFriendlyNewFile,
+            compressingDeltaOut);
+      }
+    } else {
+      generateDelta(
+          deltaGenerator,
+          configured,
+          preDiffPlan,
+          deltaFriendlyOldFile,
+          deltaFriendlyNewFile,
+          deltaOut);
+    }
+  }
+
+  /**
+   * Generates the delta between the delta-friendly files with the specified generator, using
+   * identical entry copies if they are enabled and apply to the strategy.
+   *
+   * @param deltaGenerator the generator to use
+   * @param configured whether the configured strategy is in use
+   * @param preDiffPlan the plan that the delta-friendly files were written with
+   * @param deltaFriendlyOldFile the delta-friendly old file
+   * @param deltaFriendlyNewFile the delta-friendly new file
+   * @param deltaOut the stream to write the delta to
+   * @throws IOException if unable to complete the operation due to an I/O error
+   * @throws InterruptedException if any thread has interrupted the current thread
+   */
+  private void generateDelta(
+      DeltaGenerator deltaGenerator,
+      boolean configured,
+      PreDiffPlan preDiffPlan,
+      File deltaFriendlyOldFile,
+      File deltaFriendlyNewFile,
+      OutputStream deltaOut)
+      throws IOException, InterruptedException {
+    if (configured
+        && useIdenticalEntryCopies
+        && deltaGenerator instanceof BsDiffDeltaGenerator) {
+      ((BsDiffDeltaGenerator) deltaGenerator)
+          .generateDelta(
+              deltaFriendlyOldFile,
+              deltaFriendlyNewFile,
+              getIdenticalEntryCopyRanges(preDiffPlan),
+              deltaOut);
+    } else {
+      deltaGenerator.generateDelta(deltaFriendlyOldFile, deltaFriendlyNewFile, deltaOut);
     }
   }
 
   /**
-   * Generate a V1 patch pre diffing plan.
+   * Generate a V1 patch pre diffing plan. Nothing is written to disk: the plan for recompressing
+   * the delta-friendly new file and the sizes of the delta-friendly files are computed from the
+   * metadata of the archives, as described in {@link PreDiffExecutor#prepareForDiffing()}.
    *
    * @param oldFile the original old file to read (will not be modified)
    * @param newFile the original new file to read (will not be modified)
@@ -104,24 +876,125 @@ public class FileByFileV1DeltaGenerator implements DeltaGenerator {
    */
   public PreDiffPlan generatePreDiffPlan(File oldFile, File newFile)
       throws IOException, InterruptedException {
-    try (TempFileHolder deltaFriendlyOldFile = new TempFileHolder();
-        TempFileHolder deltaFriendlyNewFile = new TempFileHolder()) {
-      PreDiffExecutor.Builder builder =
-          new PreDiffExecutor.Builder()
-              .readingOriginalFiles(oldFile, newFile)
-              .writingDeltaFriendlyFiles(deltaFriendlyOldFile.file, deltaFriendlyNewFile.file);
-      for (RecommendationModifier modifier : recommendationModifiers) {
-        builder.withRecommendationModifier(modifier);
+    PreDiffExecutor.Builder builder =
+        new PreDiffExecutor.Builder()
+            .readingOriginalFiles(oldFile, newFile)
+            .withContentSimilarityDetection(detectSimilarContent)
+            .withMaxDivinationLevelsPerStrategy(maxDivinationLevelsPerStrategy)
+            .withMetricsListener(metricsListener);
+    for (RecommendationModifier modifier : recommendationModifiers) {
+      builder.withRecommendationModifier(modifier);
+    }
+
+    PreDiffExecutor executor = builder.build();
+
+    return executor.prepareForDiffing();
+  }
+
+  /**
+   * Returns the ranges of the delta-friendly new file that hold entries whose compressed bytes are
+   * identical to those of entries in the old archive, mapped to where those entries are in the
+   * delta-friendly old file. Such entries are never uncompressed, so they are present verbatim in
+   * both delta-friendly files.
+   *
+   * @param preDiffPlan the plan that the delta-friendly files were generated from
+   * @return the ranges, in no particular order
+   */
+  // Visible for testing only
+  static List<CopyRange> getIdenticalEntryCopyRanges(PreDiffPlan preDiffPlan) {
+    DeltaFriendlyLayout oldLayout = DeltaFriendlyLayout.forOldFile(preDiffPlan);
+    DeltaFriendlyLayout newLayout = DeltaFriendlyLayout.forNewFile(preDiffPlan);
+
+    List<CopyRange> copyRanges = new ArrayList<CopyRange>();
+    for (QualifiedRecommendation qualifiedRecommendation :
+        preDiffPlan.getQualifiedRecommendations()) {
+      if (qualifiedRecommendation.getReason() != RecommendationReason.COMPRESSED_BYTES_IDENTICAL
+          || qualifiedRecommendation.getRecommendation() != Recommendation.UNCOMPRESS_NEITHER) {
+        continue;
       }
+      MinimalZipEntry oldEntry = qualifiedRecommendation.getOldEntry();
+      MinimalZipEntry newEntry = qualifiedRecommendation.getNewEntry();
+      copyRanges.add(
+          new CopyRange(
+              oldLayout.toDeltaFriendlyOffset(oldEntry.getFileOffsetOfCompressedData()),
+              newLayout.toDeltaFriendlyOffset(newEntry.getFileOffsetOfCompressedData()),
+              newEntry.getCompressedSize()));
+    }
+    return copyRanges;
+  }
 
-      PreDiffExecutor executor = builder.build();
+  /**
+   * Computes the SHA-256 digest of the specified file.
+   *
+   * @param file the file to digest
+   * @return the digest
+   * @throws IOException if unable to read the file
+   */
+  private static byte[] sha256(File file) throws IOException {
+    MessageDigest digester;
+    try {
+      digester = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException("System doesn't support SHA-256", e);
+    }
+    byte[] buffer = new byte[32 * 1024];
+    try (InputStream in = new FileInputStream(file)) {
+      int numRead;
+      while ((numRead = in.read(buffer)) >= 0) {
+        digester.update(buffer, 0, numRead);
+      }
+    }
+    return digester.digest();
+  }
 
-      return executor.prepareForDiffing();
+  /**
+   * Returns a {@link StreamingCompressor} that applies the specified compression to deltas.
+   * Appliers must be able to uncompress what it writes. Subclasses can override this to support
+   * other compressions.
+   *
+   * @param deltaCompression the compression to apply, other than {@link DeltaCompression#NONE}
+   * @return the compressor
+   */
+  protected StreamingCompressor getDeltaCompressor(DeltaCompression deltaCompression) {
+    switch (deltaCompression) {
+      case DEFLATE:
+        DeflateCompressor compressor = new DeflateCompressor();
+        compressor.setNowrap(true);
+        // The default level compresses deltas nearly as well as level 9 in a fraction of the time.
+        compressor.setCompressionLevel(6);
+        return compressor;
+      default:
+        throw new IllegalArgumentException("Unsupported delta compression: " + deltaCompression);
     }
   }
 
   // Visible for testing only
   protected DeltaGenerator getDeltaGenerator() {
-    return new BsDiffDeltaGenerator();
+    switch (deltaFormat) {
+      case GDIFF:
+        return new GdiffDeltaGenerator(metricsListener);
+      default:
+        BsDiffDeltaGenerator.Builder builder =
+            new BsDiffDeltaGenerator.Builder()
+                .withOptions(
+                    new BsDiffOptions.Builder()
+                        .withSuffixSorterAlgorithm(suffixSorterAlgorithm)
+                        .withSeedIndex(useSeedIndex)
+                        .withMinimumMatchLength(matchLengthBytes)
+                        .withTotalMatchLengthBudget(totalMatchLengthBudget)
+                        .withMetricsListener(metricsListener)
+                        .build())
+                .withSeparateSections(deltaFormat == DeltaFormat.BSDIFF_SECTIONED);
+        if (memoryBudget != null) {
+          builder.withMemoryBudget(memoryBudget);
+        }
+        if (directByteBufferPool != null) {
+          builder.withDirectByteBufferPool(directByteBufferPool);
+        }
+        if (tempDir != null) {
+          builder.withTempDir(tempDir);
+        }
+        return builder.build();
+    }
   }
 }
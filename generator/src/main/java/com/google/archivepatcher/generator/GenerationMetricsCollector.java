@@ -0,0 +1,198 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A {@link GenerationMetricsListener} that aggregates everything it receives: the number of times
+ * each stage completed with the total time, bytes and entries, the number and total size of large
+ * buffers, and the peak temp-disk usage. It can be shared between generators and read at any time,
+ * e.g. to export to a monitoring system with {@link #toMap()}.
+ */
+public class GenerationMetricsCollector implements GenerationMetricsListener {
+  /** The aggregated measurements of one stage. */
+  public static final class StageMetrics {
+    private long count;
+    private long totalNanos;
+    private long totalBytes;
+    private long totalEntries;
+
+    private StageMetrics() {}
+
+    private StageMetrics(StageMetrics other) {
+      this.count = other.count;
+      this.totalNanos = other.totalNanos;
+      this.totalBytes = other.totalBytes;
+      this.totalEntries = other.totalEntries;
+    }
+
+    /**
+     * Returns the number of times the stage completed.
+     *
+     * @return as described
+     */
+    public long getCount() {
+      return count;
+    }
+
+    /**
+     * Returns the total time spent in the stage, in nanoseconds.
+     *
+     * @return as described
+     */
+    public long getTotalNanos() {
+      return totalNanos;
+    }
+
+    /**
+     * Returns the total number of bytes processed in the stage.
+     *
+     * @return as described
+     */
+    public long getTotalBytes() {
+      return totalBytes;
+    }
+
+    /**
+     * Returns the total number of entries processed in the stage.
+     *
+     * @return as described
+     */
+    public long getTotalEntries() {
+      return totalEntries;
+    }
+
+    /**
+     * Returns the throughput of the stage.
+     *
+     * @return the number of bytes processed per second, or zero if no time was measured
+     */
+    public double getBytesPerSecond() {
+      return totalNanos == 0 ? 0 : totalBytes * 1000000000d / totalNanos;
+    }
+  }
+
+  private final Map<Stage, StageMetrics> stageMetrics = new EnumMap<>(Stage.class);
+  private long largeBufferCount = 0;
+  private long largeBufferTotalBytes = 0;
+  private long largestBufferBytes = 0;
+  private long peakTempDiskBytes = 0;
+
+  @Override
+  public synchronized void stageCompleted(
+      Stage stage, long durationNanos, long bytesProcessed, long entriesProcessed) {
+    StageMetrics metrics = stageMetrics.get(stage);
+    if (metrics == null) {
+      metrics = new StageMetrics();
+      stageMetrics.put(stage, metrics);
+    }
+    metrics.count++;
+    metrics.totalNanos += durationNanos;
+    metrics.totalBytes += bytesProcessed;
+    metrics.totalEntries += entriesProcessed;
+  }
+
+  @Override
+  public synchronized void largeBufferAllocated(String purpose, long bytes) {
+    largeBufferCount++;
+    largeBufferTotalBytes += bytes;
+    largestBufferBytes = Math.max(largestBufferBytes, bytes);
+  }
+
+  @Override
+  public synchronized void tempDiskUsage(long bytes) {
+    peakTempDiskBytes = Math.max(peakTempDiskBytes, bytes);
+  }
+
+  /**
+   * Returns a snapshot of the aggregated measurements of the specified stage.
+   *
+   * @param stage the stage
+   * @return the measurements; all zero if the stage never completed
+   */
+  public synchronized StageMetrics getStageMetrics(Stage stage) {
+    StageMetrics metrics = stageMetrics.get(stage);
+    return metrics == null ? new StageMetrics() : new StageMetrics(metrics);
+  }
+
+  /**
+   * Returns the number of large buffers allocated.
+   *
+   * @return as described
+   */
+  public synchronized long getLargeBufferCount() {
+    return largeBufferCount;
+  }
+
+  /**
+   * Returns the total size of all large buffers allocated.
+   *
+   * @return as described
+   */
+  public synchronized long getLargeBufferTotalBytes() {
+    return largeBufferTotalBytes;
+  }
+
+  /**
+   * Returns the size of the largest buffer allocated.
+   *
+   * @return as described
+   */
+  public synchronized long getLargestBufferBytes() {
+    return largestBufferBytes;
+  }
+
+  /**
+   * Returns the largest total size of temp files in use that was reported.
+   *
+   * @return as described
+   */
+  public synchronized long getPeakTempDiskBytes() {
+    return peakTempDiskBytes;
+  }
+
+  /**
+   * Returns all the measurements as a flat map with stable, lower-case keys such as
+   * "suffix_sort.nanos", for export to a monitoring system. Stages that never completed are
+   * included with zero values.
+   *
+   * @return the measurements, in a stable order
+   */
+  public synchronized Map<String, Long> toMap() {
+    Map<String, Long> result = new LinkedHashMap<>();
+    for (Stage stage : Stage.values()) {
+      StageMetrics metrics = getStageMetrics(stage);
+      String prefix = stage.name().toLowerCase(Locale.US) + ".";
+      result.put(prefix + "count", metrics.getCount());
+      result.put(prefix + "nanos", metrics.getTotalNanos());
+      result.put(prefix + "bytes", metrics.getTotalBytes());
+      result.put(prefix + "entries", metrics.getTotalEntries());
+    }
+    result.put("large_buffers.count", largeBufferCount);
+    result.put("large_buffers.bytes", largeBufferTotalBytes);
+    result.put("large_buffers.max_bytes", largestBufferBytes);
+    result.put("temp_disk.peak_bytes", peakTempDiskBytes);
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return "GenerationMetricsCollector " + toMap();
+  }
+}
@@ -0,0 +1,116 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator;
+
+/**
+ * Receives measurements of where the time and resources of patch generation go. Implementations
+ * must be thread-safe if they are shared between generators running concurrently. Callbacks are
+ * made on the generating thread, so they should return quickly.
+ *
+ * <p>Use {@link #NO_OP} when no measurements are wanted; {@link GenerationMetricsCollector} is a
+ * simple implementation that aggregates the measurements for export.
+ */
+public interface GenerationMetricsListener {
+  /**
+   * The stages of patch generation. Stages may be nested: {@link #SUFFIX_SORT} is part of {@link
+   * #GENERATE_DELTA}.
+   */
+  public enum Stage {
+    /**
+     * Divining the deflate parameters of the entries of the new archive. Bytes are the compressed
+     * bytes of the entries; entries are all entries of the new archive.
+     */
+    DIVINE_DEFLATE_PARAMETERS,
+
+    /**
+     * Deciding what to do with each entry of the new archive, including comparing compressed bytes
+     * and finding renamed entries. Bytes are not reported; entries are the recommendations made.
+     */
+    PLAN,
+
+    /**
+     * Writing the delta-friendly old and new files. Bytes are the bytes written; entries are the
+     * entries uncompressed.
+     */
+    WRITE_DELTA_FRIENDLY_FILES,
+
+    /**
+     * Sorting the suffixes of the delta-friendly old file. Bytes are the bytes sorted; entries are
+     * not reported.
+     */
+    SUFFIX_SORT,
+
+    /**
+     * Generating the delta between the delta-friendly files, including the suffix sort. Bytes are
+     * the bytes of the delta-friendly new file; entries are not reported.
+     */
+    GENERATE_DELTA,
+
+    /**
+     * Writing the patch, including copying the delta into it. Bytes are the bytes of the patch;
+     * entries are not reported. If the delta is streamed into the patch, the time is only that of
+     * writing the patch header, as the delta is written during {@link #GENERATE_DELTA}.
+     */
+    WRITE_PATCH
+  }
+
+  /**
+   * A listener that ignores everything.
+   */
+  public static final GenerationMetricsListener NO_OP =
+      new GenerationMetricsListener() {
+        @Override
+        public void stageCompleted(
+            Stage stage, long durationNanos, long bytesProcessed, long entriesProcessed) {
+          // Nothing
+        }
+
+        @Override
+        public void largeBufferAllocated(String purpose, long bytes) {
+          // Nothing
+        }
+
+        @Override
+        public void tempDiskUsage(long bytes) {
+          // Nothing
+        }
+      };
+
+  /**
+   * Invoked when a stage completes successfully.
+   *
+   * @param stage the stage
+   * @param durationNanos the wall time that the stage took, in nanoseconds
+   * @param bytesProcessed the number of bytes processed, as described for each stage, or zero
+   * @param entriesProcessed the number of entries processed, as described for each stage, or zero
+   */
+  void stageCompleted(Stage stage, long durationNanos, long bytesProcessed, long entriesProcessed);
+
+  /**
+   * Invoked when a buffer large enough to matter for capacity planning has been allocated, on the
+   * heap, off the heap or in a temp file.
+   *
+   * @param purpose a short, fixed description of what the buffer is for, e.g. "suffix array"
+   * @param bytes the size of the buffer
+   */
+  void largeBufferAllocated(String purpose, long bytes);
+
+  /**
+   * Invoked when the total size of the temp files in use changes significantly.
+   *
+   * @param bytes the total size of the temp files in use
+   */
+  void tempDiskUsage(long bytes);
+}
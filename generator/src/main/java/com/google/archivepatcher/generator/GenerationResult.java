@@ -0,0 +1,92 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator;
+
+/**
+ * The outcome of generating a patch with {@link
+ * FileByFileV1DeltaGenerator#generateDeltaWithResult(java.io.File, java.io.File,
+ * java.io.OutputStream)}: which strategy produced the patch, and how long generation took in
+ * total.
+ */
+public final class GenerationResult {
+  /**
+   * The strategies that are tried in turn when a deadline is set with {@link
+   * FileByFileV1DeltaGenerator.Builder#withDeadline(long)}, from the most to the least expensive.
+   */
+  public static enum Strategy {
+    /** The patch was generated as configured, within the deadline. */
+    CONFIGURED,
+
+    /**
+     * The configured strategy ran out of time. No entries were uncompressed, and the delta was
+     * generated with gdiff; the patch is larger, but still contains copies of the unchanged parts
+     * of the old archive.
+     */
+    REDUCED,
+
+    /**
+     * The reduced strategy also ran out of time. No entries were uncompressed, and the delta holds
+     * the whole of the new archive inline, so the patch is slightly larger than the new archive.
+     */
+    COPY_ONLY;
+  }
+
+  /** The strategy that produced the patch. */
+  private final Strategy strategy;
+
+  /** The total time taken, including abandoned strategies, in nanoseconds. */
+  private final long elapsedNanos;
+
+  /**
+   * Creates a new result.
+   *
+   * @param strategy the strategy that produced the patch
+   * @param elapsedNanos the total time taken, including abandoned strategies, in nanoseconds
+   */
+  public GenerationResult(Strategy strategy, long elapsedNanos) {
+    if (strategy == null) {
+      throw new IllegalArgumentException("strategy cannot be null");
+    }
+    this.strategy = strategy;
+    this.elapsedNanos = elapsedNanos;
+  }
+
+  /**
+   * Returns the strategy that produced the patch.
+   *
+   * @return as described
+   */
+  public Strategy getStrategy() {
+    return strategy;
+  }
+
+  /**
+   * Returns true if the configured strategy ran out of time and a cheaper one produced the patch.
+   *
+   * @return as described
+   */
+  public boolean isDegraded() {
+    return strategy != Strategy.CONFIGURED;
+  }
+
+  /**
+   * Returns the total time taken, including any strategies that ran out of time, in nanoseconds.
+   *
+   * @return as described
+   */
+  public long getElapsedNanos() {
+    return elapsedNanos;
+  }
+}
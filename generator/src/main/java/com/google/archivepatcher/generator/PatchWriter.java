@@ -14,6 +14,7 @@
 
 package com.google.archivepatcher.generator;
 
+import com.google.archivepatcher.shared.ArchiveFingerprint;
 import com.google.archivepatcher.shared.JreDeflateParameters;
 import com.google.archivepatcher.shared.PatchConstants;
 import com.google.archivepatcher.shared.TypedRange;
@@ -28,6 +29,127 @@ import java.io.OutputStream;
  * Writes patches.
  */
 public class PatchWriter {
+  /**
+   * Builder for {@link PatchWriter} instances. Without a delta file, the writer is for a delta that
+   * will be streamed into the patch by the caller; see {@link
+   * #writeV1PatchHeaderForStreamedDelta(OutputStream)}.
+   */
+  public static final class Builder {
+    private final PreDiffPlan plan;
+    private final long deltaFriendlyOldFileSize;
+    private final long deltaFriendlyNewFileSize;
+    private File deltaFile;
+    private PatchConstants.DeltaFormat deltaFormat = PatchConstants.DeltaFormat.BSDIFF;
+    private PatchConstants.DeltaCompression deltaCompression =
+        PatchConstants.DeltaCompression.NONE;
+    private byte[] newArchiveSha256;
+    private byte[] oldArchiveFingerprint;
+
+    /**
+     * Creates a new builder for a patch writer.
+     *
+     * @param plan the patch plan
+     * @param deltaFriendlyOldFileSize the expected size of the delta-friendly old file, provided as
+     *     a convenience for the patch <strong>applier</strong> to reserve space on the filesystem
+     *     for applying the patch
+     * @param deltaFriendlyNewFileSize the expected size of the delta-friendly new file, provided
+     *     for forward compatibility
+     */
+    public Builder(PreDiffPlan plan, long deltaFriendlyOldFileSize, long deltaFriendlyNewFileSize) {
+      this.plan = plan;
+      this.deltaFriendlyOldFileSize = deltaFriendlyOldFileSize;
+      this.deltaFriendlyNewFileSize = deltaFriendlyNewFileSize;
+    }
+
+    /**
+     * Sets the delta to copy into the patch, as compressed by {@link
+     * #withDeltaCompression(PatchConstants.DeltaCompression)}.
+     *
+     * @param deltaFile the delta that transforms the old delta-friendly file into the new
+     *     delta-friendly file
+     * @return this builder
+     */
+    public Builder withDeltaFile(File deltaFile) {
+      if (deltaFile == null) {
+        throw new IllegalArgumentException("deltaFile cannot be null");
+      }
+      this.deltaFile = deltaFile;
+      return this;
+    }
+
+    /**
+     * Sets the format of the delta. Defaults to {@link PatchConstants.DeltaFormat#BSDIFF}.
+     *
+     * @param deltaFormat the format of the delta
+     * @return this builder
+     */
+    public Builder withDeltaFormat(PatchConstants.DeltaFormat deltaFormat) {
+      if (deltaFormat == null) {
+        throw new IllegalArgumentException("deltaFormat cannot be null");
+      }
+      this.deltaFormat = deltaFormat;
+      return this;
+    }
+
+    /**
+     * Sets the compression that was applied to the delta. Defaults to {@link
+     * PatchConstants.DeltaCompression#NONE}.
+     *
+     * @param deltaCompression the compression that was applied to the delta
+     * @return this builder
+     */
+    public Builder withDeltaCompression(PatchConstants.DeltaCompression deltaCompression) {
+      if (deltaCompression == null) {
+        throw new IllegalArgumentException("deltaCompression cannot be null");
+      }
+      this.deltaCompression = deltaCompression;
+      return this;
+    }
+
+    /**
+     * Sets the SHA-256 digest of the new archive to record in the patch, so that appliers can
+     * verify the archive that they produce without reading it again. By default none is recorded.
+     *
+     * @param newArchiveSha256 the digest, {@link PatchConstants#SHA256_LENGTH} bytes long
+     * @return this builder
+     */
+    public Builder withNewArchiveSha256(byte[] newArchiveSha256) {
+      if (newArchiveSha256 == null || newArchiveSha256.length != PatchConstants.SHA256_LENGTH) {
+        throw new IllegalArgumentException(
+            "newArchiveSha256 must be " + PatchConstants.SHA256_LENGTH + " bytes long");
+      }
+      this.newArchiveSha256 = newArchiveSha256;
+      return this;
+    }
+
+    /**
+     * Sets the {@link ArchiveFingerprint} of the old archive to record in the patch, so that
+     * appliers can reject the wrong old archive before doing any expensive work. By default none
+     * is recorded.
+     *
+     * @param oldArchiveFingerprint the fingerprint, {@link PatchConstants#SHA256_LENGTH} bytes long
+     * @return this builder
+     */
+    public Builder withOldArchiveFingerprint(byte[] oldArchiveFingerprint) {
+      if (oldArchiveFingerprint == null
+          || oldArchiveFingerprint.length != PatchConstants.SHA256_LENGTH) {
+        throw new IllegalArgumentException(
+            "oldArchiveFingerprint must be " + PatchConstants.SHA256_LENGTH + " bytes long");
+      }
+      this.oldArchiveFingerprint = oldArchiveFingerprint;
+      return this;
+    }
+
+    /**
+     * Builds the patch writer.
+     *
+     * @return the patch writer
+     */
+    public PatchWriter build() {
+      return new PatchWriter(this);
+    }
+  }
+
   /**
    * The patch plan.
    */
@@ -45,12 +167,33 @@ public class PatchWriter {
   private final long deltaFriendlyNewFileSize;
 
   /**
-   * The delta that transforms the old delta-friendly file into the new delta-friendly file.
+   * The delta that transforms the old delta-friendly file into the new delta-friendly file, or null
+   * if the delta is streamed.
    */
   private final File deltaFile;
 
   /**
-   * Creates a new patch writer.
+   * The format of the delta.
+   */
+  private final PatchConstants.DeltaFormat deltaFormat;
+
+  /**
+   * The compression that was applied to the delta.
+   */
+  private final PatchConstants.DeltaCompression deltaCompression;
+
+  /**
+   * The SHA-256 digest of the new archive to record in the patch, or null to record none.
+   */
+  private final byte[] newArchiveSha256;
+
+  /**
+   * The fingerprint of the old archive to record in the patch, or null to record none.
+   */
+  private final byte[] oldArchiveFingerprint;
+
+  /**
+   * Creates a new patch writer for a bsdiff delta.
    *
    * @param plan the patch plan
    * @param deltaFriendlyOldFileSize the expected size of the delta-friendly old file, provided as a
@@ -70,22 +213,96 @@ public class PatchWriter {
     this.deltaFriendlyOldFileSize = deltaFriendlyOldFileSize;
     this.deltaFriendlyNewFileSize = deltaFriendlyNewFileSize;
     this.deltaFile = deltaFile;
+    this.deltaFormat = PatchConstants.DeltaFormat.BSDIFF;
+    this.deltaCompression = PatchConstants.DeltaCompression.NONE;
+    this.newArchiveSha256 = null;
+    this.oldArchiveFingerprint = null;
+  }
+
+  private PatchWriter(Builder builder) {
+    this.plan = builder.plan;
+    this.deltaFriendlyOldFileSize = builder.deltaFriendlyOldFileSize;
+    this.deltaFriendlyNewFileSize = builder.deltaFriendlyNewFileSize;
+    this.deltaFile = builder.deltaFile;
+    this.deltaFormat = builder.deltaFormat;
+    this.deltaCompression = builder.deltaCompression;
+    this.newArchiveSha256 = builder.newArchiveSha256;
+    this.oldArchiveFingerprint = builder.oldArchiveFingerprint;
   }
 
   /**
    * Write a v1-style patch to the specified output stream.
    * @param out the stream to write the patch to
    * @throws IOException if anything goes wrong
+   * @throws IllegalStateException if this writer was created for a streamed delta
    */
   public void writeV1Patch(OutputStream out) throws IOException {
+    if (deltaFile == null) {
+      throw new IllegalStateException("No delta file; use writeV1PatchHeaderForStreamedDelta");
+    }
     // Use DataOutputStream for ease of writing. This is deliberately left open, as closing it would
     // close the output stream that was passed in and that is not part of the method's documented
     // behavior.
     @SuppressWarnings("resource")
     DataOutputStream dataOut = new DataOutputStream(out);
+    writeV1PatchHeader(dataOut, deltaFile.length());
+    try (FileInputStream deltaFileIn = new FileInputStream(deltaFile);
+        BufferedInputStream deltaIn = new BufferedInputStream(deltaFileIn)) {
+      byte[] buffer = new byte[32768];
+      int numRead = 0;
+      while ((numRead = deltaIn.read(buffer)) >= 0) {
+        dataOut.write(buffer, 0, numRead);
+      }
+    }
+    dataOut.flush();
+  }
+
+  /**
+   * Write everything in a v1-style patch up to the first byte of the delta to the specified output
+   * stream, recording the delta length as {@link PatchConstants#STREAMED_DELTA_LENGTH}. The caller
+   * then writes the delta to the same stream as it is generated, without needing to know its length
+   * in advance; the patch ends with the last byte of the delta.
+   * @param out the stream to write the patch to
+   * @throws IOException if anything goes wrong
+   */
+  public void writeV1PatchHeaderForStreamedDelta(OutputStream out) throws IOException {
+    // See writeV1Patch for why this is left open.
+    @SuppressWarnings("resource")
+    DataOutputStream dataOut = new DataOutputStream(out);
+    writeV1PatchHeader(dataOut, PatchConstants.STREAMED_DELTA_LENGTH);
+    dataOut.flush();
+  }
 
-    dataOut.write(PatchConstants.IDENTIFIER.getBytes("US-ASCII"));
-    dataOut.writeInt(0); // Flags (reserved)
+  /**
+   * Write everything in a v1-style patch up to the first byte of the delta.
+   * @param dataOut the stream to write to
+   * @param deltaLength the length of the delta to record
+   * @throws IOException if anything goes wrong
+   */
+  private void writeV1PatchHeader(DataOutputStream dataOut, long deltaLength) throws IOException {
+    // Flags: all but the delta compression and the presence of the new archive digest and the old
+    // archive fingerprint reserved
+    int flags = deltaCompression.patchValue;
+    if (newArchiveSha256 != null) {
+      flags |= PatchConstants.NEW_ARCHIVE_SHA256_FLAG;
+    }
+    if (oldArchiveFingerprint != null) {
+      flags |= PatchConstants.OLD_ARCHIVE_FINGERPRINT_FLAG;
+    }
+    // Compressed deltas and fields after the flags need the extended identifier, so that older
+    // appliers reject the patch.
+    String identifier =
+        (flags & PatchConstants.EXTENDED_HEADER_FLAGS) != 0
+            ? PatchConstants.EXTENDED_IDENTIFIER
+            : PatchConstants.IDENTIFIER;
+    dataOut.write(identifier.getBytes("US-ASCII"));
+    dataOut.writeInt(flags);
+    if (newArchiveSha256 != null) {
+      dataOut.write(newArchiveSha256);
+    }
+    if (oldArchiveFingerprint != null) {
+      dataOut.write(oldArchiveFingerprint);
+    }
     dataOut.writeLong(deltaFriendlyOldFileSize);
 
     // Write out all the delta-friendly old file uncompression instructions
@@ -112,8 +329,7 @@ public class PatchWriter {
     // delta, and it is for the entire input; in future versions there may be multiple deltas, of
     // arbitrary types.
     dataOut.writeInt(1);
-    // In v1 the delta format is always bsdiff, so write it unconditionally.
-    dataOut.write(PatchConstants.DeltaFormat.BSDIFF.patchValue);
+    dataOut.write(deltaFormat.patchValue);
 
     // Write the working ranges. In v1 these are always the entire contents of the delta-friendly
     // old file and the delta-friendly new file. These are for forward compatibility with future
@@ -123,16 +339,7 @@ public class PatchWriter {
     dataOut.writeLong(0); // i.e., start of the working range in the delta-friendly new file
     dataOut.writeLong(deltaFriendlyNewFileSize); // i.e., length of the working range in new
 
-    // Finally, the length of the delta and the delta itself.
-    dataOut.writeLong(deltaFile.length());
-    try (FileInputStream deltaFileIn = new FileInputStream(deltaFile);
-        BufferedInputStream deltaIn = new BufferedInputStream(deltaFileIn)) {
-      byte[] buffer = new byte[32768];
-      int numRead = 0;
-      while ((numRead = deltaIn.read(buffer)) >= 0) {
-        dataOut.write(buffer, 0, numRead);
-      }
-    }
-    dataOut.flush();
+    // Finally, the length of the delta. The delta itself follows.
+    dataOut.writeLong(deltaLength);
   }
 }
@@ -23,6 +23,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -41,6 +42,12 @@ public class PreDiffExecutor {
     private File deltaFriendlyNewFile;
     private List<RecommendationModifier> recommendationModifiers =
         new ArrayList<RecommendationModifier>();
+    private CompressedDataDigests oldArchiveDigests;
+    private CompressedDataDigests newArchiveDigests;
+    private boolean detectSimilarContent = false;
+    private int maxDivinationLevelsPerStrategy = Integer.MAX_VALUE;
+    private boolean divineDeflateParameters = true;
+    private GenerationMetricsListener metricsListener = GenerationMetricsListener.NO_OP;
 
     /**
      * Sets the original, read-only input files to the patch generation process. This has to be
@@ -91,6 +98,85 @@ public class PreDiffExecutor {
       return this;
     }
 
+    /**
+     * Sets optional, previously computed {@link CompressedDataDigests} for the original files, e.g.
+     * loaded from a cache kept alongside each build artifact. Digests that were not computed for
+     * the corresponding original file, as determined by {@link CompressedDataDigests#isFor(File)},
+     * are ignored. If not set, or ignored, the digests are computed during planning.
+     *
+     * @param oldArchiveDigests the digests for the original old file, or null
+     * @param newArchiveDigests the digests for the original new file, or null
+     * @return this builder
+     */
+    public Builder withCompressedDataDigests(
+        CompressedDataDigests oldArchiveDigests, CompressedDataDigests newArchiveDigests) {
+      this.oldArchiveDigests = oldArchiveDigests;
+      this.newArchiveDigests = newArchiveDigests;
+      return this;
+    }
+
+    /**
+     * Sets whether to look for a similar entry in the old archive for each entry that exists only
+     * in the new archive and has no identical copy there, so that files that were renamed and
+     * modified at the same time can be diffed against their old version. This requires the
+     * uncompressed content of all entries that were added or removed to be read. Defaults to
+     * false.
+     *
+     * @param detectSimilarContent whether to detect renamed-and-modified entries
+     * @return this builder
+     */
+    public Builder withContentSimilarityDetection(boolean detectSimilarContent) {
+      this.detectSimilarContent = detectSimilarContent;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of deflate levels to try for each strategy when divining the
+     * compression settings of the entries of the new archive, as described in {@link
+     * DefaultDeflateCompressionDiviner#DefaultDeflateCompressionDiviner(int)}. Defaults to trying
+     * every level.
+     *
+     * @param maxDivinationLevelsPerStrategy the maximum number of levels; must be positive
+     * @return this builder
+     */
+    public Builder withMaxDivinationLevelsPerStrategy(int maxDivinationLevelsPerStrategy) {
+      if (maxDivinationLevelsPerStrategy <= 0) {
+        throw new IllegalArgumentException(
+            "maxDivinationLevelsPerStrategy must be positive: " + maxDivinationLevelsPerStrategy);
+      }
+      this.maxDivinationLevelsPerStrategy = maxDivinationLevelsPerStrategy;
+      return this;
+    }
+
+    /**
+     * Sets whether to divine the compression settings of the entries of the new archive. Without
+     * them no entry of the new archive can be recompressed, so none is uncompressed; this is only
+     * useful when the recommendation modifiers prevent uncompressing anything anyway, and saves
+     * the time that divination would take. Defaults to true.
+     *
+     * @param divineDeflateParameters whether to divine the compression settings
+     * @return this builder
+     */
+    public Builder withDeflateDivination(boolean divineDeflateParameters) {
+      this.divineDeflateParameters = divineDeflateParameters;
+      return this;
+    }
+
+    /**
+     * Sets a listener to report the duration and throughput of divination, planning and the
+     * writing of the delta-friendly files to. Defaults to {@link GenerationMetricsListener#NO_OP}.
+     *
+     * @param metricsListener the listener
+     * @return this builder
+     */
+    public Builder withMetricsListener(GenerationMetricsListener metricsListener) {
+      if (metricsListener == null) {
+        throw new IllegalArgumentException("metricsListener cannot be null");
+      }
+      this.metricsListener = metricsListener;
+      return this;
+    }
+
     /**
      * Builds and returns a {@link PreDiffExecutor} according to the currnet configuration.
      *
@@ -106,7 +192,13 @@ public class PreDiffExecutor {
           originalNewFile,
           deltaFriendlyOldFile,
           deltaFriendlyNewFile,
-          recommendationModifiers);
+          recommendationModifiers,
+          oldArchiveDigests,
+          newArchiveDigests,
+          detectSimilarContent,
+          maxDivinationLevelsPerStrategy,
+          divineDeflateParameters,
+          metricsListener);
     }
   }
 
@@ -133,40 +225,86 @@ public class PreDiffExecutor {
    */
   private final List<RecommendationModifier> recommendationModifiers;
 
+  /** Optional digests for the original old file; may be null. */
+  private final CompressedDataDigests oldArchiveDigests;
+
+  /** Optional digests for the original new file; may be null. */
+  private final CompressedDataDigests newArchiveDigests;
+
+  /** Whether to detect renamed-and-modified entries by the similarity of their content. */
+  private final boolean detectSimilarContent;
+
+  /** The maximum number of deflate levels to try for each strategy during divination. */
+  private final int maxDivinationLevelsPerStrategy;
+
+  /** Whether to divine the compression settings of the entries of the new archive. */
+  private final boolean divineDeflateParameters;
+
+  /** The listener to report measurements to. */
+  private final GenerationMetricsListener metricsListener;
+
   /** Constructs a new PreDiffExecutor to work with the specified configuration. */
   private PreDiffExecutor(
       File originalOldFile,
       File originalNewFile,
       File deltaFriendlyOldFile,
       File deltaFriendlyNewFile,
-      List<RecommendationModifier> recommendationModifiers) {
+      List<RecommendationModifier> recommendationModifiers,
+      CompressedDataDigests oldArchiveDigests,
+      CompressedDataDigests newArchiveDigests,
+      boolean detectSimilarContent,
+      int maxDivinationLevelsPerStrategy,
+      boolean divineDeflateParameters,
+      GenerationMetricsListener metricsListener) {
     this.originalOldFile = originalOldFile;
     this.originalNewFile = originalNewFile;
     this.deltaFriendlyOldFile = deltaFriendlyOldFile;
     this.deltaFriendlyNewFile = deltaFriendlyNewFile;
     this.recommendationModifiers = recommendationModifiers;
+    this.oldArchiveDigests = oldArchiveDigests;
+    this.newArchiveDigests = newArchiveDigests;
+    this.detectSimilarContent = detectSimilarContent;
+    this.maxDivinationLevelsPerStrategy = maxDivinationLevelsPerStrategy;
+    this.divineDeflateParameters = divineDeflateParameters;
+    this.metricsListener = metricsListener;
   }
 
   /**
    * Prepare resources for diffing and returns the completed plan.
    *
+   * <p>If no delta-friendly files were specified, nothing is written: the plan for recompressing
+   * the delta-friendly new file and the sizes of the delta-friendly files are computed from the
+   * uncompressed sizes recorded in the archives' metadata rather than by uncompressing the entries.
+   * For well-formed archives the result is the same as when the files are written.
+   *
    * @return the plan
    * @throws IOException if unable to complete the operation due to an I/O error
    */
   public PreDiffPlan prepareForDiffing() throws IOException {
     PreDiffPlan preDiffPlan = generatePreDiffPlan();
-    List<TypedRange<JreDeflateParameters>> deltaFriendlyNewFileRecompressionPlan = null;
-    if (deltaFriendlyOldFile != null) {
-      // Builder.writingDeltaFriendlyFiles() ensures old and new are non-null when called, so a
-      // check on either is sufficient.
-      deltaFriendlyNewFileRecompressionPlan =
-          Collections.unmodifiableList(generateDeltaFriendlyFiles(preDiffPlan));
+    if (deltaFriendlyOldFile == null) {
+      DeltaFriendlyLayout oldLayout = DeltaFriendlyLayout.forOldFile(preDiffPlan);
+      DeltaFriendlyLayout newLayout = DeltaFriendlyLayout.forNewFile(preDiffPlan);
+      return new PreDiffPlan(
+          preDiffPlan.getQualifiedRecommendations(),
+          preDiffPlan.getOldFileUncompressionPlan(),
+          preDiffPlan.getNewFileUncompressionPlan(),
+          Collections.unmodifiableList(
+              newLayout.getDeltaFriendlyRanges(preDiffPlan.getNewFileUncompressionPlan())),
+          oldLayout.getDeltaFriendlyLength(originalOldFile.length()),
+          newLayout.getDeltaFriendlyLength(originalNewFile.length()));
     }
+    // Builder.writingDeltaFriendlyFiles() ensures old and new are non-null when called, so a check
+    // on either is sufficient.
+    List<TypedRange<JreDeflateParameters>> deltaFriendlyNewFileRecompressionPlan =
+        Collections.unmodifiableList(generateDeltaFriendlyFiles(preDiffPlan));
     return new PreDiffPlan(
         preDiffPlan.getQualifiedRecommendations(),
         preDiffPlan.getOldFileUncompressionPlan(),
         preDiffPlan.getNewFileUncompressionPlan(),
-        deltaFriendlyNewFileRecompressionPlan);
+        deltaFriendlyNewFileRecompressionPlan,
+        deltaFriendlyOldFile.length(),
+        deltaFriendlyNewFile.length());
   }
 
   /**
@@ -179,16 +317,28 @@ public class PreDiffExecutor {
    */
   private List<TypedRange<JreDeflateParameters>> generateDeltaFriendlyFiles(PreDiffPlan preDiffPlan)
       throws IOException {
+    long startNanos = System.nanoTime();
     try (FileOutputStream out = new FileOutputStream(deltaFriendlyOldFile);
         BufferedOutputStream bufferedOut = new BufferedOutputStream(out)) {
       DeltaFriendlyFile.generateDeltaFriendlyFile(
           preDiffPlan.getOldFileUncompressionPlan(), originalOldFile, bufferedOut);
     }
+    List<TypedRange<JreDeflateParameters>> recompressionPlan;
     try (FileOutputStream out = new FileOutputStream(deltaFriendlyNewFile);
         BufferedOutputStream bufferedOut = new BufferedOutputStream(out)) {
-      return DeltaFriendlyFile.generateDeltaFriendlyFile(
-          preDiffPlan.getNewFileUncompressionPlan(), originalNewFile, bufferedOut);
+      recompressionPlan =
+          DeltaFriendlyFile.generateDeltaFriendlyFile(
+              preDiffPlan.getNewFileUncompressionPlan(), originalNewFile, bufferedOut);
     }
+    long bytesWritten = deltaFriendlyOldFile.length() + deltaFriendlyNewFile.length();
+    metricsListener.stageCompleted(
+        GenerationMetricsListener.Stage.WRITE_DELTA_FRIENDLY_FILES,
+        System.nanoTime() - startNanos,
+        bytesWritten,
+        preDiffPlan.getOldFileUncompressionPlan().size()
+            + preDiffPlan.getNewFileUncompressionPlan().size());
+    metricsListener.tempDiskUsage(bytesWritten);
+    return recompressionPlan;
   }
 
   /**
@@ -212,14 +362,34 @@ public class PreDiffExecutor {
       originalOldArchiveZipEntriesByPath.put(key, zipEntry);
     }
 
-    DefaultDeflateCompressionDiviner diviner = new DefaultDeflateCompressionDiviner();
-    for (DivinationResult divinationResult : diviner.divineDeflateParameters(originalNewFile)) {
-      ByteArrayHolder key =
-          new ByteArrayHolder(divinationResult.minimalZipEntry.getFileNameBytes());
-      originalNewArchiveZipEntriesByPath.put(key, divinationResult.minimalZipEntry);
-      originalNewArchiveJreDeflateParametersByPath.put(key, divinationResult.divinedParameters);
+    long startNanos = System.nanoTime();
+    if (divineDeflateParameters) {
+      DefaultDeflateCompressionDiviner diviner =
+          new DefaultDeflateCompressionDiviner(maxDivinationLevelsPerStrategy);
+      long compressedBytesDivined = 0;
+      List<DivinationResult> divinationResults = diviner.divineDeflateParameters(originalNewFile);
+      for (DivinationResult divinationResult : divinationResults) {
+        ByteArrayHolder key =
+            new ByteArrayHolder(divinationResult.minimalZipEntry.getFileNameBytes());
+        originalNewArchiveZipEntriesByPath.put(key, divinationResult.minimalZipEntry);
+        originalNewArchiveJreDeflateParametersByPath.put(key, divinationResult.divinedParameters);
+        compressedBytesDivined += divinationResult.minimalZipEntry.getCompressedSize();
+      }
+      metricsListener.stageCompleted(
+          GenerationMetricsListener.Stage.DIVINE_DEFLATE_PARAMETERS,
+          System.nanoTime() - startNanos,
+          compressedBytesDivined,
+          divinationResults.size());
+    } else {
+      // No parameters means that no entry of the new archive qualifies for uncompression.
+      for (MinimalZipEntry zipEntry : MinimalZipArchive.listEntries(originalNewFile)) {
+        ByteArrayHolder key = new ByteArrayHolder(zipEntry.getFileNameBytes());
+        originalNewArchiveZipEntriesByPath.put(key, zipEntry);
+        originalNewArchiveJreDeflateParametersByPath.put(key, null);
+      }
     }
 
+    startNanos = System.nanoTime();
     PreDiffPlanner preDiffPlanner =
         new PreDiffPlanner(
             originalOldFile,
@@ -227,7 +397,37 @@ public class PreDiffExecutor {
             originalNewFile,
             originalNewArchiveZipEntriesByPath,
             originalNewArchiveJreDeflateParametersByPath,
+            getDigests(
+                oldArchiveDigests, originalOldFile, originalOldArchiveZipEntriesByPath.values()),
+            getDigests(
+                newArchiveDigests, originalNewFile, originalNewArchiveZipEntriesByPath.values()),
+            detectSimilarContent,
             recommendationModifiers.toArray(new RecommendationModifier[] {}));
-    return preDiffPlanner.generatePreDiffPlan();
+    PreDiffPlan preDiffPlan = preDiffPlanner.generatePreDiffPlan();
+    metricsListener.stageCompleted(
+        GenerationMetricsListener.Stage.PLAN,
+        System.nanoTime() - startNanos,
+        0,
+        preDiffPlan.getQualifiedRecommendations().size());
+    return preDiffPlan;
+  }
+
+  /**
+   * Returns the specified digests if they were computed for the specified archive, otherwise
+   * computes them.
+   *
+   * @param digests optionally, previously computed digests
+   * @param archive the archive
+   * @param entries the entries in the archive
+   * @return the digests
+   * @throws IOException if unable to read the archive
+   */
+  private static CompressedDataDigests getDigests(
+      CompressedDataDigests digests, File archive, Collection<MinimalZipEntry> entries)
+      throws IOException {
+    if (digests != null && digests.isFor(archive)) {
+      return digests;
+    }
+    return CompressedDataDigests.compute(archive, entries);
   }
 }
@@ -67,6 +67,16 @@ public class PreDiffPlan {
    */
   private final List<QualifiedRecommendation> qualifiedRecommendations;
 
+  /**
+   * The size of the delta-friendly old file, or -1 if not known.
+   */
+  private final long deltaFriendlyOldFileSize;
+
+  /**
+   * The size of the delta-friendly new file, or -1 if not known.
+   */
+  private final long deltaFriendlyNewFileSize;
+
   /**
    * Constructs a new plan.
    * @param qualifiedRecommendations the recommendations upon which the plans are based
@@ -93,6 +103,32 @@ public class PreDiffPlan {
       List<TypedRange<Void>> oldFileUncompressionPlan,
       List<TypedRange<JreDeflateParameters>> newFileUncompressionPlan,
       List<TypedRange<JreDeflateParameters>> deltaFriendlyNewFileRecompressionPlan) {
+    this(
+        qualifiedRecommendations,
+        oldFileUncompressionPlan,
+        newFileUncompressionPlan,
+        deltaFriendlyNewFileRecompressionPlan,
+        -1,
+        -1);
+  }
+
+  /**
+   * Constructs a new plan.
+   * @param qualifiedRecommendations the recommendations upon which the plans are based
+   * @param oldFileUncompressionPlan the plan for uncompressing the old file, in file order
+   * @param newFileUncompressionPlan the plan for uncompressing the new file, in file order
+   * @param deltaFriendlyNewFileRecompressionPlan the plan for recompression the delta-friendly new
+   * file, in file order
+   * @param deltaFriendlyOldFileSize the size of the delta-friendly old file, or -1 if not known
+   * @param deltaFriendlyNewFileSize the size of the delta-friendly new file, or -1 if not known
+   */
+  public PreDiffPlan(
+      List<QualifiedRecommendation> qualifiedRecommendations,
+      List<TypedRange<Void>> oldFileUncompressionPlan,
+      List<TypedRange<JreDeflateParameters>> newFileUncompressionPlan,
+      List<TypedRange<JreDeflateParameters>> deltaFriendlyNewFileRecompressionPlan,
+      long deltaFriendlyOldFileSize,
+      long deltaFriendlyNewFileSize) {
     ensureOrdered(oldFileUncompressionPlan);
     ensureOrdered(newFileUncompressionPlan);
     ensureOrdered(deltaFriendlyNewFileRecompressionPlan);
@@ -100,6 +136,8 @@ public class PreDiffPlan {
     this.oldFileUncompressionPlan = oldFileUncompressionPlan;
     this.newFileUncompressionPlan = newFileUncompressionPlan;
     this.deltaFriendlyNewFileRecompressionPlan = deltaFriendlyNewFileRecompressionPlan;
+    this.deltaFriendlyOldFileSize = deltaFriendlyOldFileSize;
+    this.deltaFriendlyNewFileSize = deltaFriendlyNewFileSize;
   }
 
   /**
@@ -152,4 +190,20 @@ public class PreDiffPlan {
   public final List<QualifiedRecommendation> getQualifiedRecommendations() {
     return qualifiedRecommendations;
   }
+
+  /**
+   * Returns the size of the delta-friendly old file, or -1 if not known.
+   * @return as described
+   */
+  public final long getDeltaFriendlyOldFileSize() {
+    return deltaFriendlyOldFileSize;
+  }
+
+  /**
+   * Returns the size of the delta-friendly new file, or -1 if not known.
+   * @return as described
+   */
+  public final long getDeltaFriendlyNewFileSize() {
+    return deltaFriendlyNewFileSize;
+  }
 }
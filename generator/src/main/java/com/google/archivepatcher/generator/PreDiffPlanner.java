@@ -15,6 +15,7 @@
 package com.google.archivepatcher.generator;
 
 import com.google.archivepatcher.generator.similarity.Crc32SimilarityFinder;
+import com.google.archivepatcher.generator.similarity.MinHashSimilarityFinder;
 import com.google.archivepatcher.generator.similarity.SimilarityFinder;
 import com.google.archivepatcher.shared.JreDeflateParameters;
 import com.google.archivepatcher.shared.RandomAccessFileInputStream;
@@ -64,6 +65,22 @@ class PreDiffPlanner {
    */
   private final List<RecommendationModifier> recommendationModifiers;
 
+  /**
+   * Optional digests of the compressed data of the entries in the old archive; may be null.
+   */
+  private final CompressedDataDigests oldArchiveDigests;
+
+  /**
+   * Optional digests of the compressed data of the entries in the new archive; may be null.
+   */
+  private final CompressedDataDigests newArchiveDigests;
+
+  /**
+   * Whether to search the old archive for entries with similar content for new entries that have
+   * neither a counterpart at the same path nor an identical copy at a different path.
+   */
+  private final boolean detectSimilarContent;
+
   /**
    * Constructs a new planner that will work on the specified inputs
    *
@@ -84,6 +101,51 @@ class PreDiffPlanner {
       Map<ByteArrayHolder, MinimalZipEntry> newArchiveZipEntriesByPath,
       Map<ByteArrayHolder, JreDeflateParameters> newArchiveJreDeflateParametersByPath,
       RecommendationModifier... recommendationModifiers) {
+    this(
+        oldFile,
+        oldArchiveZipEntriesByPath,
+        newFile,
+        newArchiveZipEntriesByPath,
+        newArchiveJreDeflateParametersByPath,
+        null,
+        null,
+        false,
+        recommendationModifiers);
+  }
+
+  /**
+   * Constructs a new planner that will work on the specified inputs, comparing the compressed bytes
+   * of entries by their digests where available and optionally pairing renamed-and-modified
+   * entries by the similarity of their content.
+   *
+   * @param oldFile the old file, used to compare bytes between old and new entries as necessary
+   * @param oldArchiveZipEntriesByPath the entries in the old archive, with paths as keys
+   * @param newFile the new file, used to compare bytes between old and new entries as necessary
+   * @param newArchiveZipEntriesByPath the entries in the new archive, with paths as keys
+   * @param newArchiveJreDeflateParametersByPath the {@link JreDeflateParameters} for each entry in
+   *     the new archive, with paths as keys
+   * @param oldArchiveDigests optionally, the digests of the compressed data of the entries in the
+   *     old archive; if null, compressed bytes are compared directly
+   * @param newArchiveDigests optionally, the digests of the compressed data of the entries in the
+   *     new archive; if null, compressed bytes are compared directly
+   * @param detectSimilarContent whether to pair each entry that exists only in the new archive,
+   *     and has no identical copy in the old archive, with the most similar entry that exists only
+   *     in the old archive (see {@link MinHashSimilarityFinder}); this requires the uncompressed
+   *     content of all such entries to be read
+   * @param recommendationModifiers optionally, {@link RecommendationModifier}s to be applied after
+   *     the default recommendations have been made but before the {@link PreDiffPlan} is generated
+   *     in {@link #generatePreDiffPlan()}.
+   */
+  PreDiffPlanner(
+      File oldFile,
+      Map<ByteArrayHolder, MinimalZipEntry> oldArchiveZipEntriesByPath,
+      File newFile,
+      Map<ByteArrayHolder, MinimalZipEntry> newArchiveZipEntriesByPath,
+      Map<ByteArrayHolder, JreDeflateParameters> newArchiveJreDeflateParametersByPath,
+      CompressedDataDigests oldArchiveDigests,
+      CompressedDataDigests newArchiveDigests,
+      boolean detectSimilarContent,
+      RecommendationModifier... recommendationModifiers) {
     this.oldFile = oldFile;
     this.oldArchiveZipEntriesByPath = oldArchiveZipEntriesByPath;
     this.newFile = newFile;
@@ -91,6 +153,9 @@ class PreDiffPlanner {
     this.newArchiveJreDeflateParametersByPath = newArchiveJreDeflateParametersByPath;
     this.recommendationModifiers =
           Collections.unmodifiableList(Arrays.asList(recommendationModifiers));
+    this.oldArchiveDigests = oldArchiveDigests;
+    this.newArchiveDigests = newArchiveDigests;
+    this.detectSimilarContent = detectSimilarContent;
   }
 
   /**
@@ -155,6 +220,11 @@ class PreDiffPlanner {
     SimilarityFinder trivialRenameFinder =
         new Crc32SimilarityFinder(oldFile, oldArchiveZipEntriesByPath.values());
 
+    // This will be used to find files that have been renamed and modified. It is much more
+    // expensive, as it needs the uncompressed content of every entry it considers, so it is only
+    // constructed on demand and only over entries that have been removed from the old archive.
+    SimilarityFinder fuzzyRenameFinder = null;
+
     // Iterate over every pair of entries and get a recommendation for what to do.
     for (Map.Entry<ByteArrayHolder, MinimalZipEntry> newEntry :
         newArchiveZipEntriesByPath.entrySet()) {
@@ -174,6 +244,16 @@ class PreDiffPlanner {
           // copies of the same file that are compressed differently, so don't bother with that
           // degenerate case.
           oldZipEntry = identicalEntriesInOldArchive.get(0);
+        } else if (detectSimilarContent) {
+          if (fuzzyRenameFinder == null) {
+            fuzzyRenameFinder = new MinHashSimilarityFinder(oldFile, getRemovedOldEntries());
+          }
+          List<MinimalZipEntry> similarEntriesInOldArchive =
+              fuzzyRenameFinder.findSimilarFiles(newFile, newEntry.getValue());
+          if (!similarEntriesInOldArchive.isEmpty()) {
+            // The most similar entry comes first.
+            oldZipEntry = similarEntriesInOldArchive.get(0);
+          }
         }
       }
 
@@ -187,6 +267,22 @@ class PreDiffPlanner {
     return recommendations;
   }
 
+  /**
+   * Returns the entries in the old archive whose paths are not present in the new archive.
+   *
+   * @return as described
+   */
+  private List<MinimalZipEntry> getRemovedOldEntries() {
+    List<MinimalZipEntry> removedEntries = new ArrayList<>();
+    for (Map.Entry<ByteArrayHolder, MinimalZipEntry> oldEntry :
+        oldArchiveZipEntriesByPath.entrySet()) {
+      if (!newArchiveZipEntriesByPath.containsKey(oldEntry.getKey())) {
+        removedEntries.add(oldEntry.getValue());
+      }
+    }
+    return removedEntries;
+  }
+
   /**
    * Determines the right {@link QualifiedRecommendation} for handling the (oldEntry, newEntry)
    * tuple.
@@ -236,7 +332,9 @@ class PreDiffPlanner {
           oldEntry,
           newEntry,
           Recommendation.UNCOMPRESS_NEW,
-          RecommendationReason.UNCOMPRESSED_CHANGED_TO_COMPRESSED);
+          RecommendationReason.UNCOMPRESSED_CHANGED_TO_COMPRESSED,
+          newArchiveJreDeflateParametersByPath.get(
+              new ByteArrayHolder(newEntry.getFileNameBytes())));
     }
 
     if (compressedChangedToUncompressed(oldEntry, newEntry)) {
@@ -253,7 +351,9 @@ class PreDiffPlanner {
           oldEntry,
           newEntry,
           Recommendation.UNCOMPRESS_BOTH,
-          RecommendationReason.COMPRESSED_BYTES_CHANGED);
+          RecommendationReason.COMPRESSED_BYTES_CHANGED,
+          newArchiveJreDeflateParametersByPath.get(
+              new ByteArrayHolder(newEntry.getFileNameBytes())));
     }
 
     // If the compressed bytes have not changed, there is no need to do anything.
@@ -349,7 +449,8 @@ class PreDiffPlanner {
   /**
    * Checks if the compressed bytes in the specified entries have changed. No attempt is made to
    * inflate, this method just examines the raw bytes that represent the content in the specified
-   * entries and returns true if they are different.
+   * entries and returns true if they are different. If digests are available for both entries they
+   * are compared instead of the bytes themselves.
    * @param oldEntry the entry in the old archive
    * @param newEntry the entry in the new archive
    * @return true as described above
@@ -361,6 +462,13 @@ class PreDiffPlanner {
       // Length is not the same, so content cannot match.
       return true;
     }
+    if (oldArchiveDigests != null && newArchiveDigests != null) {
+      byte[] oldDigest = oldArchiveDigests.getDigest(oldEntry);
+      byte[] newDigest = newArchiveDigests.getDigest(newEntry);
+      if (oldDigest != null && newDigest != null) {
+        return !Arrays.equals(oldDigest, newDigest);
+      }
+    }
     byte[] buffer = new byte[4096];
     int numRead = 0;
     try (RandomAccessFileInputStream newRafis =
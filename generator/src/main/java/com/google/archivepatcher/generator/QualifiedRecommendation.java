@@ -14,6 +14,8 @@
 
 package com.google.archivepatcher.generator;
 
+import com.google.archivepatcher.shared.JreDeflateParameters;
+
 /**
  * A fully qualified recommendation, consisting of an {@link MinimalZipEntry} from the old file,
  * a {@link MinimalZipEntry} from the new file, a {@link Recommendation} for how to proceed and a
@@ -40,6 +42,11 @@ public class QualifiedRecommendation {
    */
   private final RecommendationReason reason;
 
+  /**
+   * The parameters that the entry in the new file will be recompressed with; may be null.
+   */
+  private final JreDeflateParameters newEntryDeflateParameters;
+
   /**
    * Construct a new qualified recommendation with the specified data.
    * @param oldEntry the entry in the old file
@@ -52,11 +59,31 @@ public class QualifiedRecommendation {
       MinimalZipEntry newEntry,
       Recommendation recommendation,
       RecommendationReason reason) {
+    this(oldEntry, newEntry, recommendation, reason, null);
+  }
+
+  /**
+   * Construct a new qualified recommendation with the specified data, including the parameters
+   * that the entry in the new file will be recompressed with.
+   * @param oldEntry the entry in the old file
+   * @param newEntry the entry in the new file
+   * @param recommendation the recommendation for this tuple of entries
+   * @param reason the reason for the recommendation
+   * @param newEntryDeflateParameters the parameters that the entry in the new file will be
+   *     recompressed with if the recommendation is to uncompress it, or null if unknown
+   */
+  public QualifiedRecommendation(
+      MinimalZipEntry oldEntry,
+      MinimalZipEntry newEntry,
+      Recommendation recommendation,
+      RecommendationReason reason,
+      JreDeflateParameters newEntryDeflateParameters) {
     super();
     this.oldEntry = oldEntry;
     this.newEntry = newEntry;
     this.recommendation = recommendation;
     this.reason = reason;
+    this.newEntryDeflateParameters = newEntryDeflateParameters;
   }
 
   /**
@@ -91,6 +118,15 @@ public class QualifiedRecommendation {
     return reason;
   }
 
+  /**
+   * Returns the parameters that the entry in the new file will be recompressed with, if known.
+   * These are derived from the new entry, so they are not considered by {@link #equals(Object)}.
+   * @return as described, or null if unknown
+   */
+  public JreDeflateParameters getNewEntryDeflateParameters() {
+    return newEntryDeflateParameters;
+  }
+
   @Override
   public int hashCode() {
     final int prime = 31;
@@ -35,7 +35,17 @@ public class TempFileHolder implements Closeable {
    * @throws IOException if unable to create the file
    */
   public TempFileHolder() throws IOException {
-    file = File.createTempFile("archive_patcher", "tmp");
+    this(null);
+  }
+
+  /**
+   * Create a new temp file in the specified directory and wrap it in an instance of this class, as
+   * in {@link #TempFileHolder()}.
+   * @param directory the directory to create the file in, or null for the default temp directory
+   * @throws IOException if unable to create the file
+   */
+  public TempFileHolder(File directory) throws IOException {
+    file = File.createTempFile("archive_patcher", "tmp", directory);
     file.deleteOnExit();
   }
 
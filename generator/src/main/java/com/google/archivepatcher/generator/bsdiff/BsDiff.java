@@ -50,15 +50,9 @@ class BsDiff {
       throws IOException {
     final int max = Math.min((int) oldData.length() - oldStart, (int) newData.length() - newStart);
     if (max > 0) {
-      // If max is 0, it's sometimes possible for this seek to seek to length + 1 and throw an
+      // If max is 0, it's sometimes possible for a seek to seek to length + 1 and throw an
       // exception unnecessarily.
-      oldData.seek(oldStart);
-      newData.seek(newStart);
-      for (int offset = 0; offset < max; offset++) {
-        if (oldData.readByte() != newData.readByte()) {
-          return offset;
-        }
-      }
+      return BsUtil.mismatch(oldData, oldStart, newData, newStart, max);
     }
 
     return max;
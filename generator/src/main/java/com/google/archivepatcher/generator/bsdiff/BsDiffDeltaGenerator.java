@@ -15,23 +15,212 @@
 package com.google.archivepatcher.generator.bsdiff;
 
 import com.google.archivepatcher.generator.DeltaGenerator;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * An implementation of {@link DeltaGenerator} that uses {@link BsDiffPatchWriter} to write a
- * bsdiff patch that represents the delta between given inputs.
+ * bsdiff patch that represents the delta between given inputs, optionally with its contents in
+ * separate sections as described in {@link SectionedPatchOutputStream}.
  */
 public class BsDiffDeltaGenerator implements DeltaGenerator {
   /**
-   * The minimum match length to use for bsdiff.
+   * The default minimum match length to use for bsdiff.
    */
-  private static final int MATCH_LENGTH_BYTES = 16;
+  public static final int DEFAULT_MATCH_LENGTH_BYTES = 16;
+
+  /**
+   * The default limit on the total match lengths encountered while extending a single match.
+   */
+  public static final long DEFAULT_TOTAL_MATCH_LENGTH_BUDGET =
+      BsDiffMatcher.DEFAULT_TOTAL_MATCH_LENGTH_BUDGET;
+
+  /**
+   * Builder for {@link BsDiffDeltaGenerator} instances.
+   */
+  public static final class Builder {
+    private MemoryBudget memoryBudget;
+    private DirectByteBufferPool directByteBufferPool;
+    private BsDiffOptions options = new BsDiffOptions.Builder().build();
+    private boolean separateSections = false;
+    private File tempDir;
+
+    /**
+     * Sets a {@link MemoryBudget} to place storage according to, as described in {@link
+     * BsDiffPatchWriter#generatePatch(File, File, OutputStream,
+     * RandomAccessObjectFactory.RandomAccessBudgetedObjectFactory, List, BsDiffOptions)}. Pass the
+     * same budget to several generators to have them share it. If no budget is set, file-backed
+     * storage is always used.
+     *
+     * @param memoryBudget the budget to draw from
+     * @return this builder
+     */
+    public Builder withMemoryBudget(MemoryBudget memoryBudget) {
+      if (memoryBudget == null) {
+        throw new IllegalArgumentException("memoryBudget cannot be null");
+      }
+      this.memoryBudget = memoryBudget;
+      return this;
+    }
+
+    /**
+     * Sets a {@link DirectByteBufferPool} to allocate in-budget storage from. If no pool is set,
+     * in-budget storage is on the heap.
+     *
+     * @param directByteBufferPool the pool to borrow buffers from
+     * @return this builder
+     */
+    public Builder withDirectByteBufferPool(DirectByteBufferPool directByteBufferPool) {
+      if (directByteBufferPool == null) {
+        throw new IllegalArgumentException("directByteBufferPool cannot be null");
+      }
+      this.directByteBufferPool = directByteBufferPool;
+      return this;
+    }
+
+    /**
+     * Sets the options to generate the delta with. Defaults to those built by a new {@link
+     * BsDiffOptions.Builder}.
+     *
+     * @param options the options
+     * @return this builder
+     */
+    public Builder withOptions(BsDiffOptions options) {
+      if (options == null) {
+        throw new IllegalArgumentException("options cannot be null");
+      }
+      this.options = options;
+      return this;
+    }
+
+    /**
+     * Sets whether to write the control entries, extra bytes and diff bytes of the delta in
+     * separate sections. Sectioned deltas are the same size as interleaved ones, but compress
+     * better; they take longer to write, as the sections are buffered in temp files until the
+     * delta is complete. Off by default.
+     *
+     * @param separateSections whether to write separate sections
+     * @return this builder
+     */
+    public Builder withSeparateSections(boolean separateSections) {
+      this.separateSections = separateSections;
+      return this;
+    }
+
+    /**
+     * Sets the directory to buffer the sections of a sectioned delta in. Defaults to the default
+     * temp directory.
+     *
+     * @param tempDir the directory, which must exist
+     * @return this builder
+     */
+    public Builder withTempDir(File tempDir) {
+      if (tempDir == null) {
+        throw new IllegalArgumentException("tempDir cannot be null");
+      }
+      this.tempDir = tempDir;
+      return this;
+    }
+
+    /**
+     * Builds the generator.
+     *
+     * @return the generator
+     */
+    public BsDiffDeltaGenerator build() {
+      return new BsDiffDeltaGenerator(this);
+    }
+  }
+
+  /**
+   * Factory that places storage according to a memory budget. Without a budget, a budget of zero
+   * is used, so that all storage is file-backed.
+   */
+  private final RandomAccessObjectFactory.RandomAccessBudgetedObjectFactory budgetedFactory;
+
+  /**
+   * The options to generate the delta with.
+   */
+  private final BsDiffOptions options;
+
+  /**
+   * Whether to write the control entries, extra bytes and diff bytes in separate sections.
+   */
+  private final boolean separateSections;
+
+  /**
+   * The directory to buffer the sections in, or null for the default temp directory.
+   */
+  private final File tempDir;
+
+  /**
+   * Constructs a generator that always uses file-backed storage and the default options.
+   */
+  public BsDiffDeltaGenerator() {
+    this(new Builder());
+  }
+
+  private BsDiffDeltaGenerator(Builder builder) {
+    this.budgetedFactory =
+        new RandomAccessObjectFactory.RandomAccessBudgetedObjectFactory(
+            builder.memoryBudget == null ? new MemoryBudget(0) : builder.memoryBudget,
+            builder.directByteBufferPool);
+    this.options = builder.options;
+    this.separateSections = builder.separateSections;
+    this.tempDir = builder.tempDir;
+  }
 
   @Override
   public void generateDelta(File oldBlob, File newBlob, OutputStream deltaOut)
       throws IOException, InterruptedException {
-    BsDiffPatchWriter.generatePatch(oldBlob, newBlob, deltaOut, MATCH_LENGTH_BYTES);
+    generateDelta(oldBlob, newBlob, Collections.<CopyRange>emptyList(), deltaOut);
+  }
+
+  /**
+   * Generates a delta as in {@link #generateDelta(File, File, OutputStream)}, but treats the
+   * specified regions of the new blob as copies of the old blob: they are excluded from the suffix
+   * sort and the search for matches, which can save a great deal of time when most of the new blob
+   * is unchanged. Ranges that turn out not to be identical are ignored.
+   *
+   * @param oldBlob the old blob
+   * @param newBlob the new blob
+   * @param copyRanges regions of the new blob that are believed to be identical to regions of the
+   *     old blob; may be empty
+   * @param deltaOut the stream to write the delta to
+   * @throws IOException in the event of an I/O error reading the input files or writing to the
+   *     delta output stream
+   * @throws InterruptedException if any thread has interrupted the current thread
+   */
+  public void generateDelta(
+      File oldBlob, File newBlob, List<CopyRange> copyRanges, OutputStream deltaOut)
+      throws IOException, InterruptedException {
+    if (!separateSections) {
+      generateInterleavedDelta(oldBlob, newBlob, copyRanges, deltaOut);
+      return;
+    }
+    try (SectionedPatchOutputStream sectionedOut =
+        new SectionedPatchOutputStream(deltaOut, tempDir)) {
+      // Buffer ahead of the rewriting, as the patch writer writes the control entries a byte at a
+      // time.
+      BufferedOutputStream bufferedOut = new BufferedOutputStream(sectionedOut);
+      generateInterleavedDelta(oldBlob, newBlob, copyRanges, bufferedOut);
+      bufferedOut.flush();
+      sectionedOut.finish();
+    }
+  }
+
+  /**
+   * Generates a delta as in {@link #generateDelta(File, File, List, OutputStream)}, with its
+   * contents interleaved.
+   */
+  private void generateInterleavedDelta(
+      File oldBlob, File newBlob, List<CopyRange> copyRanges, OutputStream deltaOut)
+      throws IOException, InterruptedException {
+    BsDiffPatchWriter.generatePatch(
+        oldBlob, newBlob, deltaOut, budgetedFactory, copyRanges, options);
   }
 }
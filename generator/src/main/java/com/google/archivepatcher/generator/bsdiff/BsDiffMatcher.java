@@ -27,6 +27,12 @@ import java.io.IOException;
  * </ul>
  */
 class BsDiffMatcher implements Matcher {
+  /**
+   * The default limit on the total match lengths encountered while extending a single match; see
+   * {@link #mTotalMatchLenBudget}.
+   */
+  static final long DEFAULT_TOTAL_MATCH_LENGTH_BUDGET = 1L << 26;  // ~64 million.
+
   private final RandomAccessObject mOldData;
   private final RandomAccessObject mNewData;
 
@@ -37,16 +43,28 @@ class BsDiffMatcher implements Matcher {
   private final RandomAccessObject mGroupArray;
 
   /**
-   * The index in |oldData| of the first byte of the match. Zero if no matches have been found yet.
+   * The index in |oldData| of the first byte of the match. Equal to the index at which the search
+   * started if no matches have been found yet.
    */
   private int mOldPos;
 
   /**
-   * The index in |newData| of the first byte of the match. Zero if no matches have been found yet.
-   * The next match will be searched starting at |mNewPos| + |mMatchLen|.
+   * The index in |newData| of the first byte of the match. Equal to the index at which the search
+   * started if no matches have been found yet. The next match will be searched starting at
+   * |mNewPos| + |mMatchLen|.
    */
   private int mNewPos;
 
+  /**
+   * The index in |newData| at which the search for matches stops.
+   */
+  private final long mNewEnd;
+
+  /**
+   * Optional index to narrow the search for matches in |mGroupArray|; may be null.
+   */
+  private final SeedIndex mSeedIndex;
+
   /**
    * Minimum match length in bytes.
    */
@@ -56,7 +74,7 @@ class BsDiffMatcher implements Matcher {
    * A limit on how many total match lengths encountered, to exit the match extension loop in next()
    * and prevent O(n^2) behavior.
    */
-  private final long mTotalMatchLenBudget = 1L << 26;  // ~64 million.
+  private final long mTotalMatchLenBudget;
 
   /**
    * The number of bytes, |n|, which match between newData[mNewPos ... mNewPos + n] and
@@ -74,12 +92,90 @@ class BsDiffMatcher implements Matcher {
       RandomAccessObject oldData,
       RandomAccessObject newData,
       RandomAccessObject groupArray,
-      int minimumMatchLength) {
+      int minimumMatchLength)
+      throws IOException {
+    this(oldData, newData, groupArray, null, minimumMatchLength);
+  }
+
+  /**
+   * Create a BsDiffMatcher that uses a {@link SeedIndex} to speed up the search for matches. The
+   * matches found are the same as without the index.
+   * @param seedIndex the index built for |oldData|, or null to search the whole of |groupArray|
+   * @param minimumMatchLength the minimum "match" (in bytes) for BsDiff to consider between the
+   * oldData and newData.
+   */
+  BsDiffMatcher(
+      RandomAccessObject oldData,
+      RandomAccessObject newData,
+      RandomAccessObject groupArray,
+      SeedIndex seedIndex,
+      int minimumMatchLength)
+      throws IOException {
+    this(oldData, newData, groupArray, seedIndex, minimumMatchLength, 0, newData.length());
+  }
+
+  /**
+   * Create a BsDiffMatcher that only searches for matches that start within
+   * newData[newStart ... newEnd - 1]. A match may extend beyond |newEnd|.
+   * @param seedIndex the index built for |oldData|, or null to search the whole of |groupArray|
+   * @param minimumMatchLength the minimum "match" (in bytes) for BsDiff to consider between the
+   * oldData and newData.
+   * @param newStart the index in |newData| at which to start searching
+   * @param newEnd the index in |newData| at which to stop searching
+   */
+  BsDiffMatcher(
+      RandomAccessObject oldData,
+      RandomAccessObject newData,
+      RandomAccessObject groupArray,
+      SeedIndex seedIndex,
+      int minimumMatchLength,
+      int newStart,
+      long newEnd) {
+    this(
+        oldData,
+        newData,
+        groupArray,
+        seedIndex,
+        minimumMatchLength,
+        DEFAULT_TOTAL_MATCH_LENGTH_BUDGET,
+        newStart,
+        newEnd);
+  }
+
+  /**
+   * Create a BsDiffMatcher as above with the specified limit on the total match lengths
+   * encountered while extending a single match. A larger limit lets the matcher keep looking for a
+   * better match through long runs of near-identical data, which can make the patch smaller at the
+   * cost of time.
+   * @param seedIndex the index built for |oldData|, or null to search the whole of |groupArray|
+   * @param minimumMatchLength the minimum "match" (in bytes) for BsDiff to consider between the
+   * oldData and newData.
+   * @param totalMatchLengthBudget the limit on the total match lengths; must be positive
+   * @param newStart the index in |newData| at which to start searching
+   * @param newEnd the index in |newData| at which to stop searching
+   */
+  BsDiffMatcher(
+      RandomAccessObject oldData,
+      RandomAccessObject newData,
+      RandomAccessObject groupArray,
+      SeedIndex seedIndex,
+      int minimumMatchLength,
+      long totalMatchLengthBudget,
+      int newStart,
+      long newEnd) {
+    if (totalMatchLengthBudget <= 0) {
+      throw new IllegalArgumentException(
+          "totalMatchLengthBudget must be positive: " + totalMatchLengthBudget);
+    }
     mOldData = oldData;
     mNewData = newData;
     mGroupArray = groupArray;
-    mOldPos = 0;
+    mSeedIndex = seedIndex;
+    mOldPos = newStart;
+    mNewPos = newStart;
+    mNewEnd = newEnd;
     mMinimumMatchLength = minimumMatchLength;
+    mTotalMatchLenBudget = totalMatchLengthBudget;
   }
 
   @Override
@@ -105,28 +201,30 @@ class BsDiffMatcher implements Matcher {
     // Sum over all match lengths encountered, to exit loop if we take too long to compute.
     long totalMatchLen = 0;
 
-    while (mNewPos < newData.length()) {
+    while (mNewPos < mNewEnd) {
       if (Thread.interrupted()) {
         throw new InterruptedException();
       }
       BsDiff.Match match =
-          BsDiff.searchForMatch(mGroupArray, oldData, newData, mNewPos, 0, (int) oldData.length());
+          mSeedIndex != null
+              ? mSeedIndex.searchForMatch(mGroupArray, oldData, newData, mNewPos)
+              : BsDiff.searchForMatch(
+                  mGroupArray, oldData, newData, mNewPos, 0, (int) oldData.length());
       mOldPos = match.start;
       mMatchLen = match.length;
       totalMatchLen += mMatchLen;
 
-      // Update |numMatches| for the new value of |matchLen|.
-      for (; matchesCacheSize < mMatchLen; ++matchesCacheSize) {
+      // Update |numMatches| for the new value of |matchLen|. Bytes beyond the end of |oldData|
+      // never match.
+      if (matchesCacheSize < mMatchLen) {
         int oldIndex = mNewPos + previousOldOffset + matchesCacheSize;
         int newIndex = mNewPos + matchesCacheSize;
-        if (oldIndex < oldData.length()) {
-          oldData.seek(oldIndex);
-          newData.seek(newIndex);
-
-          if (oldData.readByte() == newData.readByte()) {
-            ++numMatches;
-          }
+        int length =
+            Math.min(mMatchLen - matchesCacheSize, (int) oldData.length() - oldIndex);
+        if (length > 0) {
+          numMatches += BsUtil.countMatches(oldData, oldIndex, newData, newIndex, length);
         }
+        matchesCacheSize = mMatchLen;
       }
 
       // Also return if we've been trying to extend a large match for a long time.
@@ -0,0 +1,181 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator.bsdiff;
+
+import com.google.archivepatcher.generator.GenerationMetricsListener;
+
+/**
+ * The settings for generating a bsdiff patch with {@link BsDiffPatchWriter}: how to sort the
+ * suffixes of the old data, how to search for matches and where to report measurements. None of
+ * them depend on the data being diffed, so one instance can be used for many patches. Create
+ * instances with {@link Builder}.
+ */
+public final class BsDiffOptions {
+  /**
+   * Builder for {@link BsDiffOptions} instances. The defaults are those of the original bsdiff
+   * implementation.
+   */
+  public static final class Builder {
+    private SuffixSorterAlgorithm suffixSorterAlgorithm = SuffixSorterAlgorithm.DIVSUFSORT;
+    private int minimumMatchLength = BsDiffPatchWriter.DEFAULT_MINIMUM_MATCH_LENGTH;
+    private long totalMatchLengthBudget = BsDiffMatcher.DEFAULT_TOTAL_MATCH_LENGTH_BUDGET;
+    private boolean useSeedIndex = false;
+    private GenerationMetricsListener metricsListener = GenerationMetricsListener.NO_OP;
+
+    /**
+     * Sets the algorithm to sort the suffixes of the old data with. All algorithms produce
+     * identical patches. Defaults to {@link SuffixSorterAlgorithm#DIVSUFSORT}.
+     *
+     * @param suffixSorterAlgorithm the algorithm to use
+     * @return this builder
+     */
+    public Builder withSuffixSorterAlgorithm(SuffixSorterAlgorithm suffixSorterAlgorithm) {
+      if (suffixSorterAlgorithm == null) {
+        throw new IllegalArgumentException("suffixSorterAlgorithm cannot be null");
+      }
+      this.suffixSorterAlgorithm = suffixSorterAlgorithm;
+      return this;
+    }
+
+    /**
+     * Sets the minimum "match" (in bytes) for BsDiff to consider between the old data and the new.
+     * This can have a significant effect on both the generated patch size and the amount of time
+     * and memory required to apply the patch. Defaults to 16.
+     *
+     * @param minimumMatchLength the minimum match length, which must be positive
+     * @return this builder
+     */
+    public Builder withMinimumMatchLength(int minimumMatchLength) {
+      if (minimumMatchLength <= 0) {
+        throw new IllegalArgumentException(
+            "minimumMatchLength must be positive: " + minimumMatchLength);
+      }
+      this.minimumMatchLength = minimumMatchLength;
+      return this;
+    }
+
+    /**
+     * Sets the limit on the total match lengths encountered while extending a single match, as
+     * described in {@link BsDiffMatcher}. A larger limit can find better matches in highly
+     * repetitive data, at the cost of time. Defaults to 2^26.
+     *
+     * @param totalMatchLengthBudget the limit, which must be positive
+     * @return this builder
+     */
+    public Builder withTotalMatchLengthBudget(long totalMatchLengthBudget) {
+      if (totalMatchLengthBudget <= 0) {
+        throw new IllegalArgumentException(
+            "totalMatchLengthBudget must be positive: " + totalMatchLengthBudget);
+      }
+      this.totalMatchLengthBudget = totalMatchLengthBudget;
+      return this;
+    }
+
+    /**
+     * Sets whether to build a {@link SeedIndex} to speed up the search for matches. This does not
+     * change the generated patch, but uses up to 64 MiB of additional heap. Off by default.
+     *
+     * @param useSeedIndex whether to use the index
+     * @return this builder
+     */
+    public Builder withSeedIndex(boolean useSeedIndex) {
+      this.useSeedIndex = useSeedIndex;
+      return this;
+    }
+
+    /**
+     * Sets a listener to report the duration of the suffix sort and of the whole diff to. Defaults
+     * to {@link GenerationMetricsListener#NO_OP}.
+     *
+     * @param metricsListener the listener
+     * @return this builder
+     */
+    public Builder withMetricsListener(GenerationMetricsListener metricsListener) {
+      if (metricsListener == null) {
+        throw new IllegalArgumentException("metricsListener cannot be null");
+      }
+      this.metricsListener = metricsListener;
+      return this;
+    }
+
+    /**
+     * Builds the options.
+     *
+     * @return the options
+     */
+    public BsDiffOptions build() {
+      return new BsDiffOptions(this);
+    }
+  }
+
+  private final SuffixSorterAlgorithm suffixSorterAlgorithm;
+  private final int minimumMatchLength;
+  private final long totalMatchLengthBudget;
+  private final boolean useSeedIndex;
+  private final GenerationMetricsListener metricsListener;
+
+  private BsDiffOptions(Builder builder) {
+    this.suffixSorterAlgorithm = builder.suffixSorterAlgorithm;
+    this.minimumMatchLength = builder.minimumMatchLength;
+    this.totalMatchLengthBudget = builder.totalMatchLengthBudget;
+    this.useSeedIndex = builder.useSeedIndex;
+    this.metricsListener = builder.metricsListener;
+  }
+
+  /**
+   * Returns the algorithm to sort the suffixes of the old data with.
+   *
+   * @return as described
+   */
+  public SuffixSorterAlgorithm getSuffixSorterAlgorithm() {
+    return suffixSorterAlgorithm;
+  }
+
+  /**
+   * Returns the minimum "match" (in bytes) for BsDiff to consider between the old data and the new.
+   *
+   * @return as described
+   */
+  public int getMinimumMatchLength() {
+    return minimumMatchLength;
+  }
+
+  /**
+   * Returns the limit on the total match lengths encountered while extending a single match.
+   *
+   * @return as described
+   */
+  public long getTotalMatchLengthBudget() {
+    return totalMatchLengthBudget;
+  }
+
+  /**
+   * Returns whether to build a {@link SeedIndex} to speed up the search for matches.
+   *
+   * @return as described
+   */
+  public boolean usesSeedIndex() {
+    return useSeedIndex;
+  }
+
+  /**
+   * Returns the listener to report the duration of the suffix sort and of the whole diff to.
+   *
+   * @return as described
+   */
+  public GenerationMetricsListener getMetricsListener() {
+    return metricsListener;
+  }
+}
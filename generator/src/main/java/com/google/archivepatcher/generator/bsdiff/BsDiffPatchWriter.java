@@ -14,11 +14,14 @@
 
 package com.google.archivepatcher.generator.bsdiff;
 
+import com.google.archivepatcher.generator.GenerationMetricsListener;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
 
 // TODO(andrewhayden) clean up the various generatePatch(...) methods, there are too many.
 
@@ -30,6 +33,13 @@ public class BsDiffPatchWriter {
 
   static final int DEFAULT_MINIMUM_MATCH_LENGTH = 16;
 
+  /**
+   * The number of bytes to read at a time when extending matches and writing entries. Reading runs
+   * of bytes in bulk and comparing them in arrays is much faster than seeking and reading one byte
+   * at a time through {@link RandomAccessObject}.
+   */
+  private static final int CHUNK_SIZE = 4096;
+
   /**
    * Write a patch entry.
    *
@@ -46,6 +56,8 @@ public class BsDiffPatchWriter {
    * @param oldPositionOffsetForNextEntry the offset between |oldPosition| for the next entry and
    *     |oldPosition| + |diffLength| for this entry.
    * @param outputStream the output stream to write the patch entry to.
+   * @param newChunk scratch space of {@link #CHUNK_SIZE} bytes
+   * @param oldChunk scratch space of {@link #CHUNK_SIZE} bytes
    * @throws IOException if unable to read or write data
    */
   private static void writeEntry(
@@ -56,31 +68,49 @@ public class BsDiffPatchWriter {
       int diffLength,
       int extraLength,
       int oldPositionOffsetForNextEntry,
-      OutputStream outputStream)
+      OutputStream outputStream,
+      byte[] newChunk,
+      byte[] oldChunk)
       throws IOException {
     // Write control data
     BsUtil.writeFormattedLong(diffLength, outputStream);
     BsUtil.writeFormattedLong(extraLength, outputStream);
     BsUtil.writeFormattedLong(oldPositionOffsetForNextEntry, outputStream);
 
-    newData.seek(newPosition);
-    oldData.seek(oldPosition);
-    // Write diff data
-    for (int i = 0; i < diffLength; ++i) {
-      // TODO(hartmanng): test using a small buffer to insulate read() calls (and write() for that
-      // matter).
-      outputStream.write(newData.readUnsignedByte() - oldData.readUnsignedByte());
+    // Write diff data, a chunk at a time.
+    for (int chunkStart = 0; chunkStart < diffLength; chunkStart += CHUNK_SIZE) {
+      int chunkLength = Math.min(CHUNK_SIZE, diffLength - chunkStart);
+      readChunk(newData, newPosition + chunkStart, newChunk, chunkLength);
+      readChunk(oldData, oldPosition + chunkStart, oldChunk, chunkLength);
+      for (int i = 0; i < chunkLength; ++i) {
+        newChunk[i] = (byte) (newChunk[i] - oldChunk[i]);
+      }
+      outputStream.write(newChunk, 0, chunkLength);
     }
 
-    if (extraLength > 0) {
-      // This seek will throw an IOException sometimes, if we try to seek to the byte after
-      // the end of the RandomAccessObject.
-      newData.seek(newPosition + diffLength);
-      // Write extra data
-      for (int i = 0; i < extraLength; ++i) {
-        // TODO(hartmanng): same as above - test buffering readByte().
-        outputStream.write(newData.readByte());
-      }
+    // Write extra data, a chunk at a time.
+    for (int chunkStart = 0; chunkStart < extraLength; chunkStart += CHUNK_SIZE) {
+      int chunkLength = Math.min(CHUNK_SIZE, extraLength - chunkStart);
+      readChunk(newData, newPosition + diffLength + chunkStart, newChunk, chunkLength);
+      outputStream.write(newChunk, 0, chunkLength);
+    }
+  }
+
+  /**
+   * Reads |length| bytes of |data| starting at |position| into the start of |chunk|.
+   *
+   * @param data the data to read from
+   * @param position the position of the first byte to read
+   * @param chunk the array to read into
+   * @param length the number of bytes to read, which may be zero
+   * @throws IOException if unable to read data
+   */
+  private static void readChunk(RandomAccessObject data, int position, byte[] chunk, int length)
+      throws IOException {
+    if (length > 0) {
+      // Don't seek if there's nothing to read, since |position| may be one past the end.
+      data.seek(position);
+      data.readFully(chunk, 0, length);
     }
   }
 
@@ -102,6 +132,10 @@ public class BsDiffPatchWriter {
       OutputStream outputStream)
       throws IOException, InterruptedException {
     // Compute the differences, writing ctrl as we go
+    final byte[] oldChunk1 = new byte[CHUNK_SIZE];
+    final byte[] newChunk1 = new byte[CHUNK_SIZE];
+    final byte[] oldChunk2 = new byte[CHUNK_SIZE];
+    final byte[] newChunk2 = new byte[CHUNK_SIZE];
     int lastNewPosition = 0;
     int lastOldPosition = 0;
 
@@ -126,18 +160,24 @@ public class BsDiffPatchWriter {
       if (newPosition < newData.length()) {
         int score = 0;
         int bestScore = 0;
-        for (int i = 1; newPosition - i >= lastNewPosition && oldPosition >= i; ++i) {
-          oldData.seek(oldPosition - i);
-          newData.seek(newPosition - i);
-          if (oldData.readByte() == newData.readByte()) {
-            ++score;
-          } else {
-            --score;
-          }
+        // Walk backward over i = 1 ... maxBackward, reading a chunk of bytes ending just before
+        // (|newPosition| - chunkStart, |oldPosition| - chunkStart) at a time.
+        final int maxBackward = Math.min(newPosition - lastNewPosition, oldPosition);
+        for (int chunkStart = 0; chunkStart < maxBackward; chunkStart += CHUNK_SIZE) {
+          final int chunkLength = Math.min(CHUNK_SIZE, maxBackward - chunkStart);
+          readChunk(oldData, oldPosition - chunkStart - chunkLength, oldChunk1, chunkLength);
+          readChunk(newData, newPosition - chunkStart - chunkLength, newChunk1, chunkLength);
+          for (int j = chunkLength - 1; j >= 0; --j) {
+            if (oldChunk1[j] == newChunk1[j]) {
+              ++score;
+            } else {
+              --score;
+            }
 
-          if (score > bestScore) {
-            bestScore = score;
-            backwardExtension = i;
+            if (score > bestScore) {
+              bestScore = score;
+              backwardExtension = chunkStart + chunkLength - j;
+            }
           }
         }
       }
@@ -149,19 +189,22 @@ public class BsDiffPatchWriter {
       {
         int score = 0;
         int bestScore = 0;
-        oldData.seek(lastOldPosition);
-        newData.seek(lastNewPosition);
-        for (int i = 0;
-            lastNewPosition + i < newPosition && lastOldPosition + i < oldData.length();
-            ++i) {
-          if (oldData.readByte() == newData.readByte()) {
-            ++score;
-          } else {
-            --score;
-          }
-          if (score > bestScore) {
-            bestScore = score;
-            forwardExtension = i + 1;
+        final int maxForward =
+            Math.min(newPosition - lastNewPosition, (int) oldData.length() - lastOldPosition);
+        for (int chunkStart = 0; chunkStart < maxForward; chunkStart += CHUNK_SIZE) {
+          final int chunkLength = Math.min(CHUNK_SIZE, maxForward - chunkStart);
+          readChunk(oldData, lastOldPosition + chunkStart, oldChunk1, chunkLength);
+          readChunk(newData, lastNewPosition + chunkStart, newChunk1, chunkLength);
+          for (int j = 0; j < chunkLength; ++j) {
+            if (oldChunk1[j] == newChunk1[j]) {
+              ++score;
+            } else {
+              --score;
+            }
+            if (score > bestScore) {
+              bestScore = score;
+              forwardExtension = chunkStart + j + 1;
+            }
           }
         }
       }
@@ -173,21 +216,32 @@ public class BsDiffPatchWriter {
         int score = 0;
         int bestScore = 0;
         int backwardExtensionDecrement = 0;
-        for (int i = 0; i < overlap; ++i) {
-          newData.seek(lastNewPosition + forwardExtension - overlap + i);
-          oldData.seek(lastOldPosition + forwardExtension - overlap + i);
-          if (newData.readByte() == oldData.readByte()) {
-            ++score;
-          }
+        for (int chunkStart = 0; chunkStart < overlap; chunkStart += CHUNK_SIZE) {
+          final int chunkLength = Math.min(CHUNK_SIZE, overlap - chunkStart);
+          readChunk(
+              newData,
+              lastNewPosition + forwardExtension - overlap + chunkStart,
+              newChunk1,
+              chunkLength);
+          readChunk(
+              oldData,
+              lastOldPosition + forwardExtension - overlap + chunkStart,
+              oldChunk1,
+              chunkLength);
+          readChunk(newData, newPosition - backwardExtension + chunkStart, newChunk2, chunkLength);
+          readChunk(oldData, oldPosition - backwardExtension + chunkStart, oldChunk2, chunkLength);
+          for (int j = 0; j < chunkLength; ++j) {
+            if (newChunk1[j] == oldChunk1[j]) {
+              ++score;
+            }
 
-          newData.seek(newPosition - backwardExtension + i);
-          oldData.seek(oldPosition - backwardExtension + i);
-          if (newData.readByte() == oldData.readByte()) {
-            --score;
-          }
-          if (score > bestScore) {
-            bestScore = score;
-            backwardExtensionDecrement = i + 1;
+            if (newChunk2[j] == oldChunk2[j]) {
+              --score;
+            }
+            if (score > bestScore) {
+              bestScore = score;
+              backwardExtensionDecrement = chunkStart + j + 1;
+            }
           }
         }
         forwardExtension -= overlap - backwardExtensionDecrement;
@@ -223,7 +277,9 @@ public class BsDiffPatchWriter {
           forwardExtension,
           newNoMatchLength,
           oldPositionOffset,
-          outputStream);
+          outputStream,
+          newChunk1,
+          oldChunk1);
 
       lastNewPosition = newPosition - backwardExtension;
       lastOldPosition = oldPosition - backwardExtension;
@@ -357,6 +413,60 @@ public class BsDiffPatchWriter {
     System.runFinalization();
   }
 
+  /**
+   * Generate a diff between the old data and the new, writing to the specified stream, with the
+   * specified options. Storage for the inputs and for ancillary allocations is chosen by the
+   * specified factory according to its {@link MemoryBudget}: the suffix array, which is accessed
+   * randomly and is the largest allocation, has priority for in-memory storage, and the inputs are
+   * read into memory only if there is room for them in addition to the suffix array. Anything that
+   * doesn't fit is file-backed.
+   *
+   * <p>The specified regions of the new data are treated as known copies of the old data: they are
+   * excluded from the suffix sort and from the search for matches, and are written as copies of the
+   * old data; see {@link CopyRangeMatcher}. Ranges that aren't actually identical, or that overlap
+   * a previous range in the new data, are ignored.
+   *
+   * @param oldData a file containing the old data
+   * @param newData a file containing the new data
+   * @param outputStream where output should be written
+   * @param randomAccessObjectFactory factory to create storage during BsDiff
+   * @param copyRanges regions of the new data that are believed to be identical to regions of the
+   *     old data; may be empty
+   * @param options the options to generate the diff with
+   * @throws IOException if unable to read or write data
+   * @throws InterruptedException if any thread interrupts this thread
+   */
+  public static void generatePatch(
+      final File oldData,
+      final File newData,
+      final OutputStream outputStream,
+      final RandomAccessObjectFactory.RandomAccessBudgetedObjectFactory randomAccessObjectFactory,
+      final List<CopyRange> copyRanges,
+      final BsDiffOptions options)
+      throws IOException, InterruptedException {
+    final long startNanos = System.nanoTime();
+    final long suffixArrayBytes = (oldData.length() + 1) * 4;
+    try (RandomAccessObject oldDataRAO =
+            randomAccessObjectFactory.open(oldData, suffixArrayBytes);
+        RandomAccessObject newDataRAO =
+            randomAccessObjectFactory.open(newData, suffixArrayBytes); ) {
+      generatePatch(
+          oldDataRAO, newDataRAO, outputStream, randomAccessObjectFactory, copyRanges, options);
+    }
+    options
+        .getMetricsListener()
+        .stageCompleted(
+            GenerationMetricsListener.Stage.GENERATE_DELTA,
+            System.nanoTime() - startNanos,
+            newData.length(),
+            0);
+
+    // See generatePatch(File, File, OutputStream, int) for why this is necessary: either the inputs
+    // or the suffix array may have been mapped.
+    System.gc();
+    System.runFinalization();
+  }
+
   /**
    * Generate a diff between the old data and the new, writing to the specified stream.
    *
@@ -377,14 +487,82 @@ public class BsDiffPatchWriter {
       final RandomAccessObjectFactory randomAccessObjectFactory,
       final int minimumMatchLength)
       throws IOException, InterruptedException {
+    generatePatch(
+        oldData,
+        newData,
+        outputStream,
+        randomAccessObjectFactory,
+        Collections.<CopyRange>emptyList(),
+        new BsDiffOptions.Builder().withMinimumMatchLength(minimumMatchLength).build());
+  }
+
+  /**
+   * Generate a diff between the old data and the new, writing to the specified stream, with the
+   * specified options and copy ranges as described in {@link #generatePatch(File, File,
+   * OutputStream, RandomAccessObjectFactory.RandomAccessBudgetedObjectFactory, List,
+   * BsDiffOptions)}.
+   *
+   * @param oldData the old data
+   * @param newData the new data
+   * @param outputStream where output should be written
+   * @param randomAccessObjectFactory factory to create the suffix array and, if there are usable
+   *     copy ranges, the old data without the copied regions
+   * @param copyRanges regions of the new data that are believed to be identical to regions of the
+   *     old data; may be empty
+   * @param options the options to generate the diff with
+   * @throws IOException if unable to read or write data
+   * @throws InterruptedException if any thread interrupts this thread
+   */
+  // Visible for testing only
+  static void generatePatch(
+      final RandomAccessObject oldData,
+      final RandomAccessObject newData,
+      final OutputStream outputStream,
+      final RandomAccessObjectFactory randomAccessObjectFactory,
+      final List<CopyRange> copyRanges,
+      final BsDiffOptions options)
+      throws IOException, InterruptedException {
+    SuffixSorter suffixSorter =
+        options.getSuffixSorterAlgorithm().newSuffixSorter(randomAccessObjectFactory);
+    if (options.getMetricsListener() != GenerationMetricsListener.NO_OP) {
+      suffixSorter = new MeasuringSuffixSorter(suffixSorter, options.getMetricsListener());
+    }
+    final List<CopyRange> usableCopyRanges =
+        CopyRangeMatcher.selectCopyRanges(oldData, newData, copyRanges);
+
     // Write header (signature + new file length)
     outputStream.write("ENDSLEY/BSDIFF43".getBytes(StandardCharsets.US_ASCII));
     BsUtil.writeFormattedLong(newData.length(), outputStream);
 
-    // Do the suffix search.
-    try (final RandomAccessObject groupArray =
-        new DivSuffixSorter(randomAccessObjectFactory).suffixSort(oldData)) {
-      BsDiffMatcher matcher = new BsDiffMatcher(oldData, newData, groupArray, minimumMatchLength);
+    if (usableCopyRanges.isEmpty()) {
+      // Do the suffix search.
+      try (final RandomAccessObject groupArray = suffixSorter.suffixSort(oldData)) {
+        SeedIndex seedIndex = options.usesSeedIndex() ? SeedIndex.build(oldData) : null;
+        BsDiffMatcher matcher =
+            new BsDiffMatcher(
+                oldData,
+                newData,
+                groupArray,
+                seedIndex,
+                options.getMinimumMatchLength(),
+                options.getTotalMatchLengthBudget(),
+                0,
+                newData.length());
+        generatePatchWithMatcher(oldData, newData, matcher, outputStream);
+      }
+      return;
+    }
+
+    try (CopyRangeMatcher matcher =
+        CopyRangeMatcher.create(
+            oldData,
+            newData,
+            usableCopyRanges,
+            suffixSorter,
+            randomAccessObjectFactory,
+            options.getMinimumMatchLength(),
+            options.getTotalMatchLengthBudget(),
+            options.usesSeedIndex())) {
       generatePatchWithMatcher(oldData, newData, matcher, outputStream);
     }
   }
@@ -17,6 +17,8 @@ package com.google.archivepatcher.generator.bsdiff;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 /**
  * Utility functions to be shared between BsDiff and BsPatch.
@@ -88,19 +90,139 @@ class BsUtil {
       final int start2,
       final int length2)
       throws IOException {
-    int bytesLeft = Math.min(length1, length2);
+    final int length = Math.min(length1, length2);
+    final int matching = mismatch(data1, start1, data2, start2, length);
+    if (matching < length) {
+      data1.seek(start1 + matching);
+      data2.seek(start2 + matching);
+      return data1.readUnsignedByte() - data2.readUnsignedByte();
+    }
 
-    data1.seek(start1);
-    data2.seek(start2);
-    while (bytesLeft-- > 0) {
-      final int i1 = data1.readUnsignedByte();
-      final int i2 = data2.readUnsignedByte();
+    return length1 - length2;
+  }
 
-      if (i1 != i2) {
-        return i1 - i2;
+  /**
+   * Returns the number of bytes at the start of data1[start1 ... start1 + length - 1] that are
+   * equal to the corresponding bytes of data2[start2 ... start2 + length - 1]. When both objects
+   * are backed by a {@link ByteBuffer} (as {@link RandomAccessObject.RandomAccessByteArrayObject}
+   * and its subclasses are), the bytes are compared eight at a time without moving the position of
+   * either object; otherwise this falls back to reading a byte at a time, and the positions of the
+   * objects are modified.
+   *
+   * @param data1 the first object
+   * @param start1 index in the first object at which to start comparing
+   * @param data2 the second object
+   * @param start2 index in the second object at which to start comparing
+   * @param length the maximum number of bytes to compare; both ranges must lie within their objects
+   * @return the number of leading bytes that are equal, from 0 to |length| inclusive
+   * @throws IOException if unable to read data
+   */
+  static int mismatch(
+      final RandomAccessObject data1,
+      final int start1,
+      final RandomAccessObject data2,
+      final int start2,
+      final int length)
+      throws IOException {
+    final ByteBuffer buffer1 = backingBuffer(data1);
+    final ByteBuffer buffer2 = backingBuffer(data2);
+    if (buffer1 != null && buffer2 != null && buffer1.order() == buffer2.order()) {
+      final boolean bigEndian = buffer1.order() == ByteOrder.BIG_ENDIAN;
+      int offset = 0;
+      for (; offset <= length - 8; offset += 8) {
+        final long difference = buffer1.getLong(start1 + offset) ^ buffer2.getLong(start2 + offset);
+        if (difference != 0) {
+          return offset
+              + ((bigEndian
+                      ? Long.numberOfLeadingZeros(difference)
+                      : Long.numberOfTrailingZeros(difference))
+                  >>> 3);
+        }
+      }
+      for (; offset < length; ++offset) {
+        if (buffer1.get(start1 + offset) != buffer2.get(start2 + offset)) {
+          return offset;
+        }
       }
+      return length;
     }
 
-    return length1 - length2;
+    if (length > 0) {
+      data1.seek(start1);
+      data2.seek(start2);
+      for (int offset = 0; offset < length; ++offset) {
+        if (data1.readByte() != data2.readByte()) {
+          return offset;
+        }
+      }
+    }
+    return Math.max(length, 0);
+  }
+
+  /**
+   * Returns the number of positions |i| in [0, length) for which data1[start1 + i] equals
+   * data2[start2 + i]. Objects are accessed as described in {@link #mismatch(RandomAccessObject,
+   * int, RandomAccessObject, int, int)}.
+   *
+   * @param data1 the first object
+   * @param start1 index in the first object at which to start comparing
+   * @param data2 the second object
+   * @param start2 index in the second object at which to start comparing
+   * @param length the number of bytes to compare; both ranges must lie within their objects
+   * @return the number of equal bytes
+   * @throws IOException if unable to read data
+   */
+  static int countMatches(
+      final RandomAccessObject data1,
+      final int start1,
+      final RandomAccessObject data2,
+      final int start2,
+      final int length)
+      throws IOException {
+    int matches = 0;
+    final ByteBuffer buffer1 = backingBuffer(data1);
+    final ByteBuffer buffer2 = backingBuffer(data2);
+    if (buffer1 != null && buffer2 != null && buffer1.order() == buffer2.order()) {
+      int offset = 0;
+      for (; offset <= length - 8; offset += 8) {
+        // Fold each byte of the difference down to its lowest bit, which is then set only for the
+        // bytes that differ.
+        long difference = buffer1.getLong(start1 + offset) ^ buffer2.getLong(start2 + offset);
+        difference |= difference >>> 4;
+        difference |= difference >>> 2;
+        difference |= difference >>> 1;
+        matches += 8 - Long.bitCount(difference & 0x0101010101010101L);
+      }
+      for (; offset < length; ++offset) {
+        if (buffer1.get(start1 + offset) == buffer2.get(start2 + offset)) {
+          ++matches;
+        }
+      }
+      return matches;
+    }
+
+    if (length > 0) {
+      data1.seek(start1);
+      data2.seek(start2);
+      for (int offset = 0; offset < length; ++offset) {
+        if (data1.readByte() == data2.readByte()) {
+          ++matches;
+        }
+      }
+    }
+    return matches;
+  }
+
+  /**
+   * Returns the buffer that backs the specified object, if there is one.
+   *
+   * @param data the object
+   * @return the buffer, or null if the object is not backed by a buffer
+   */
+  private static ByteBuffer backingBuffer(final RandomAccessObject data) {
+    if (data instanceof RandomAccessObject.RandomAccessByteArrayObject) {
+      return ((RandomAccessObject.RandomAccessByteArrayObject) data).mByteBuffer;
+    }
+    return null;
   }
 }
@@ -0,0 +1,106 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator.bsdiff;
+
+/**
+ * A region of the new data that is known to be identical to a region of the old data, such as the
+ * bytes of an archive entry whose compressed bytes did not change. Copy ranges are excluded from
+ * the suffix sort and from the search for matches, and are written to the patch directly as copies
+ * of the old data.
+ */
+public final class CopyRange {
+  /** The offset in the old data at which the range starts. */
+  private final long mOldOffset;
+
+  /** The offset in the new data at which the range starts. */
+  private final long mNewOffset;
+
+  /** The length of the range. */
+  private final long mLength;
+
+  /**
+   * Constructs a new range with the specified parameters.
+   *
+   * @param oldOffset the offset in the old data at which the range starts
+   * @param newOffset the offset in the new data at which the range starts
+   * @param length the length of the range
+   */
+  public CopyRange(long oldOffset, long newOffset, long length) {
+    if (oldOffset < 0 || newOffset < 0 || length < 0) {
+      throw new IllegalArgumentException(
+          "offsets and length must be non-negative: " + oldOffset + ", " + newOffset + ", "
+              + length);
+    }
+    mOldOffset = oldOffset;
+    mNewOffset = newOffset;
+    mLength = length;
+  }
+
+  /**
+   * Returns the offset in the old data at which the range starts.
+   *
+   * @return as described
+   */
+  public long getOldOffset() {
+    return mOldOffset;
+  }
+
+  /**
+   * Returns the offset in the new data at which the range starts.
+   *
+   * @return as described
+   */
+  public long getNewOffset() {
+    return mNewOffset;
+  }
+
+  /**
+   * Returns the length of the range.
+   *
+   * @return as described
+   */
+  public long getLength() {
+    return mLength;
+  }
+
+  @Override
+  public String toString() {
+    return "old offset " + mOldOffset + ", new offset " + mNewOffset + ", length " + mLength;
+  }
+
+  @Override
+  public int hashCode() {
+    final int prime = 31;
+    int result = 1;
+    result = prime * result + (int) (mLength ^ (mLength >>> 32));
+    result = prime * result + (int) (mNewOffset ^ (mNewOffset >>> 32));
+    result = prime * result + (int) (mOldOffset ^ (mOldOffset >>> 32));
+    return result;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (obj == null || getClass() != obj.getClass()) {
+      return false;
+    }
+    CopyRange other = (CopyRange) obj;
+    return mLength == other.mLength
+        && mNewOffset == other.mNewOffset
+        && mOldOffset == other.mOldOffset;
+  }
+}
@@ -0,0 +1,294 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator.bsdiff;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A {@link Matcher} for new data in which some regions are known to be copies of regions of the old
+ * data, as described by {@link CopyRange}s. The old data is suffix-sorted with the copied regions
+ * removed, and a {@link BsDiffMatcher} searches for matches only in the parts of the new data that
+ * lie between copy ranges. Each copy range is then returned as a match of its own, which {@link
+ * BsDiffPatchWriter#generatePatchWithMatcher} extends forward across the whole of the range.
+ *
+ * <p>When most of the data is copied, as is typical for archives in which most entries are
+ * unchanged, this sorts and searches only a small fraction of the bytes. Because the copied regions
+ * of the old data are not sorted, they can't be the source of matches for other parts of the new
+ * data; the patch may be slightly larger as a result.
+ */
+class CopyRangeMatcher implements Matcher, Closeable {
+  /** Size of the buffer used to copy the remaining regions of the old data. */
+  private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+  private final RandomAccessObject mNewData;
+
+  /** The old data with the copied regions removed. */
+  private final RandomAccessObject mReducedOldData;
+
+  /** The suffix array of |mReducedOldData|. */
+  private final RandomAccessObject mGroupArray;
+
+  /** Optional index for |mReducedOldData|; may be null. */
+  private final SeedIndex mSeedIndex;
+
+  private final int mMinimumMatchLength;
+
+  private final long mTotalMatchLengthBudget;
+
+  /** The copy ranges, in increasing order of their offsets in the new data. */
+  private final List<CopyRange> mCopyRanges;
+
+  /** The start, in the old data, of each region that remains in |mReducedOldData|. */
+  private final int[] mRemainingOldStarts;
+
+  /** The start, in |mReducedOldData|, of each region that remains there. */
+  private final int[] mRemainingReducedStarts;
+
+  /** The index in |mCopyRanges| of the next range to return. */
+  private int mNextCopyRange = 0;
+
+  /** The matcher for the part of the new data before the next copy range; null when not started. */
+  private BsDiffMatcher mSegmentMatcher = null;
+
+  /**
+   * Returns the copy ranges that can be used to generate a patch between the specified data: those
+   * that are non-empty, lie within both the old and the new data, don't overlap a previous range in
+   * the new data, and whose bytes really are identical. The result is in increasing order of offset
+   * in the new data.
+   *
+   * @param oldData the old data
+   * @param newData the new data
+   * @param candidates the candidate copy ranges, in any order
+   * @return the usable ranges, possibly empty
+   * @throws IOException if unable to read data
+   */
+  static List<CopyRange> selectCopyRanges(
+      RandomAccessObject oldData, RandomAccessObject newData, List<CopyRange> candidates)
+      throws IOException {
+    List<CopyRange> sorted = new ArrayList<CopyRange>(candidates);
+    Collections.sort(
+        sorted,
+        new Comparator<CopyRange>() {
+          @Override
+          public int compare(CopyRange range1, CopyRange range2) {
+            return Long.compare(range1.getNewOffset(), range2.getNewOffset());
+          }
+        });
+    List<CopyRange> selected = new ArrayList<CopyRange>(sorted.size());
+    long previousNewEnd = 0;
+    for (CopyRange range : sorted) {
+      if (range.getLength() == 0
+          || range.getNewOffset() < previousNewEnd
+          || range.getOldOffset() + range.getLength() > oldData.length()
+          || range.getNewOffset() + range.getLength() > newData.length()) {
+        continue;
+      }
+      int length = (int) range.getLength();
+      if (BsUtil.mismatch(
+              oldData, (int) range.getOldOffset(), newData, (int) range.getNewOffset(), length)
+          != length) {
+        continue;
+      }
+      selected.add(range);
+      previousNewEnd = range.getNewOffset() + length;
+    }
+    return selected;
+  }
+
+  /**
+   * Creates a matcher for the specified data. The old data is copied, without the copied regions,
+   * into storage from the specified factory and then suffix-sorted.
+   *
+   * @param oldData the old data
+   * @param newData the new data
+   * @param copyRanges the copy ranges, as returned by {@link #selectCopyRanges}
+   * @param suffixSorter the sorter to sort the suffixes of the remaining old data with
+   * @param randomAccessObjectFactory factory to create the storage for the remaining old data
+   * @param minimumMatchLength the minimum "match" (in bytes) for BsDiff to consider between the
+   *     oldData and newData
+   * @param totalMatchLengthBudget the limit on the total match lengths encountered while extending
+   *     a single match, as described in {@link BsDiffMatcher}
+   * @param useSeedIndex whether to build a {@link SeedIndex} for the remaining old data
+   * @return the matcher, which must be closed when no longer needed
+   * @throws IOException if unable to read or write data
+   * @throws InterruptedException if any thread interrupts this thread
+   */
+  static CopyRangeMatcher create(
+      RandomAccessObject oldData,
+      RandomAccessObject newData,
+      List<CopyRange> copyRanges,
+      SuffixSorter suffixSorter,
+      RandomAccessObjectFactory randomAccessObjectFactory,
+      int minimumMatchLength,
+      long totalMatchLengthBudget,
+      boolean useSeedIndex)
+      throws IOException, InterruptedException {
+    // Find the regions of the old data that aren't covered by any copy range. Copy ranges may
+    // overlap in the old data, e.g. if two new entries are copies of the same old entry.
+    long[][] oldSpans = new long[copyRanges.size()][];
+    for (int x = 0; x < oldSpans.length; x++) {
+      CopyRange range = copyRanges.get(x);
+      oldSpans[x] = new long[] {range.getOldOffset(), range.getOldOffset() + range.getLength()};
+    }
+    Arrays.sort(
+        oldSpans,
+        new Comparator<long[]>() {
+          @Override
+          public int compare(long[] span1, long[] span2) {
+            return Long.compare(span1[0], span2[0]);
+          }
+        });
+    List<long[]> remaining = new ArrayList<long[]>();
+    long remainingStart = 0;
+    for (long[] span : oldSpans) {
+      if (span[0] > remainingStart) {
+        remaining.add(new long[] {remainingStart, span[0]});
+      }
+      remainingStart = Math.max(remainingStart, span[1]);
+    }
+    if (oldData.length() > remainingStart) {
+      remaining.add(new long[] {remainingStart, oldData.length()});
+    }
+
+    int[] remainingOldStarts = new int[remaining.size()];
+    int[] remainingReducedStarts = new int[remaining.size()];
+    int reducedLength = 0;
+    for (int x = 0; x < remaining.size(); x++) {
+      remainingOldStarts[x] = (int) remaining.get(x)[0];
+      remainingReducedStarts[x] = reducedLength;
+      reducedLength += (int) (remaining.get(x)[1] - remaining.get(x)[0]);
+    }
+
+    RandomAccessObject reducedOldData = randomAccessObjectFactory.create(reducedLength);
+    RandomAccessObject groupArray = null;
+    try {
+      byte[] buffer = new byte[COPY_BUFFER_SIZE];
+      reducedOldData.seek(0);
+      for (long[] region : remaining) {
+        oldData.seek(region[0]);
+        for (long position = region[0]; position < region[1]; position += buffer.length) {
+          int count = (int) Math.min(buffer.length, region[1] - position);
+          oldData.readFully(buffer, 0, count);
+          reducedOldData.write(buffer, 0, count);
+        }
+      }
+      groupArray = suffixSorter.suffixSort(reducedOldData);
+      SeedIndex seedIndex = useSeedIndex ? SeedIndex.build(reducedOldData) : null;
+      return new CopyRangeMatcher(
+          newData,
+          reducedOldData,
+          groupArray,
+          seedIndex,
+          minimumMatchLength,
+          totalMatchLengthBudget,
+          copyRanges,
+          remainingOldStarts,
+          remainingReducedStarts);
+    } catch (IOException | InterruptedException | RuntimeException e) {
+      if (groupArray != null) {
+        groupArray.close();
+      }
+      reducedOldData.close();
+      throw e;
+    }
+  }
+
+  private CopyRangeMatcher(
+      RandomAccessObject newData,
+      RandomAccessObject reducedOldData,
+      RandomAccessObject groupArray,
+      SeedIndex seedIndex,
+      int minimumMatchLength,
+      long totalMatchLengthBudget,
+      List<CopyRange> copyRanges,
+      int[] remainingOldStarts,
+      int[] remainingReducedStarts) {
+    mNewData = newData;
+    mReducedOldData = reducedOldData;
+    mGroupArray = groupArray;
+    mSeedIndex = seedIndex;
+    mMinimumMatchLength = minimumMatchLength;
+    mTotalMatchLengthBudget = totalMatchLengthBudget;
+    mCopyRanges = copyRanges;
+    mRemainingOldStarts = remainingOldStarts;
+    mRemainingReducedStarts = remainingReducedStarts;
+  }
+
+  @Override
+  public Matcher.NextMatch next() throws IOException, InterruptedException {
+    if (mSegmentMatcher == null) {
+      int segmentStart =
+          mNextCopyRange == 0 ? 0 : (int) end(mCopyRanges.get(mNextCopyRange - 1));
+      long segmentEnd =
+          mNextCopyRange < mCopyRanges.size()
+              ? mCopyRanges.get(mNextCopyRange).getNewOffset()
+              : mNewData.length();
+      mSegmentMatcher =
+          new BsDiffMatcher(
+              mReducedOldData,
+              mNewData,
+              mGroupArray,
+              mSeedIndex,
+              mMinimumMatchLength,
+              mTotalMatchLengthBudget,
+              segmentStart,
+              segmentEnd);
+    }
+    Matcher.NextMatch match = mSegmentMatcher.next();
+    if (match.didFindMatch) {
+      return Matcher.NextMatch.of(true, toOldPosition(match.oldPosition), match.newPosition);
+    }
+    if (mNextCopyRange == mCopyRanges.size()) {
+      return match;
+    }
+    CopyRange range = mCopyRanges.get(mNextCopyRange++);
+    mSegmentMatcher = null;
+    return Matcher.NextMatch.of(true, (int) range.getOldOffset(), (int) range.getNewOffset());
+  }
+
+  /**
+   * Translates a position in the remaining old data to the corresponding position in the old data.
+   *
+   * @param reducedPosition the position in the remaining old data
+   * @return the position in the old data
+   */
+  // Visible for testing only
+  int toOldPosition(int reducedPosition) {
+    int index = Arrays.binarySearch(mRemainingReducedStarts, reducedPosition);
+    if (index < 0) {
+      index = -index - 2;
+    }
+    return mRemainingOldStarts[index] + (reducedPosition - mRemainingReducedStarts[index]);
+  }
+
+  private static long end(CopyRange range) {
+    return range.getNewOffset() + range.getLength();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      mGroupArray.close();
+    } finally {
+      mReducedOldData.close();
+    }
+  }
+}
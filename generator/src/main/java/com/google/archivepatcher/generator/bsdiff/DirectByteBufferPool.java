@@ -0,0 +1,184 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator.bsdiff;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A thread-safe pool of direct (off-heap) {@link ByteBuffer}s, organized by size class. Buffers
+ * returned to the pool are retained, up to a configurable total, and handed out again to later
+ * requests that fall into the same size class. This allows a long-running generator to reuse the
+ * large ancillary allocations that BsDiff needs (such as the suffix array) across jobs without
+ * putting pressure on the garbage collector and without creating temp files.
+ *
+ * <p>Size classes are spaced at a quarter of the nearest lower power of two, so that no more than
+ * 25% of any buffer is wasted. Requests smaller than {@link #MIN_SIZE_CLASS} are rounded up to that
+ * size.
+ *
+ * <p>Note that the JVM only frees the native memory of a direct buffer when the buffer object is
+ * garbage collected. Buffers that are dropped because the pool is full are therefore not freed
+ * immediately; the retention limit should be chosen with that in mind.
+ */
+public final class DirectByteBufferPool {
+  /** The smallest size class that the pool will allocate, in bytes. */
+  public static final int MIN_SIZE_CLASS = 64 * 1024;
+
+  /** The maximum number of bytes to retain in the pool while buffers are not in use. */
+  private final long maxRetainedBytes;
+
+  /** Buffers that are available for reuse, keyed by size class. */
+  private final Map<Integer, Deque<ByteBuffer>> availableBuffersBySizeClass = new HashMap<>();
+
+  /** The total capacity of all the buffers in {@link #availableBuffersBySizeClass}. */
+  private long retainedBytes = 0;
+
+  /**
+   * Creates a new pool that will retain at most the specified number of bytes of unused buffers.
+   *
+   * @param maxRetainedBytes the maximum number of bytes to retain; must be non-negative
+   */
+  public DirectByteBufferPool(long maxRetainedBytes) {
+    if (maxRetainedBytes < 0) {
+      throw new IllegalArgumentException(
+          "maxRetainedBytes must be non-negative: " + maxRetainedBytes);
+    }
+    this.maxRetainedBytes = maxRetainedBytes;
+  }
+
+  /**
+   * Returns a direct buffer whose capacity is the size class for the specified size. The buffer is
+   * zero-filled, its position is zero, its limit is equal to its capacity and its byte order is
+   * big-endian. When the buffer is no longer needed it should be passed to {@link
+   * #release(ByteBuffer)}.
+   *
+   * @param size the minimum capacity required, in bytes
+   * @return the buffer
+   */
+  public ByteBuffer acquire(int size) {
+    if (size < 0) {
+      throw new IllegalArgumentException("size must be non-negative: " + size);
+    }
+    int sizeClass = sizeClassFor(size);
+    ByteBuffer buffer = null;
+    synchronized (this) {
+      Deque<ByteBuffer> available = availableBuffersBySizeClass.get(sizeClass);
+      if (available != null && !available.isEmpty()) {
+        buffer = available.pop();
+        retainedBytes -= sizeClass;
+      }
+    }
+    if (buffer == null) {
+      // A freshly allocated direct buffer is already zero-filled.
+      return ByteBuffer.allocateDirect(sizeClass);
+    }
+    zeroFill(buffer);
+    return buffer;
+  }
+
+  /**
+   * Returns a buffer obtained from {@link #acquire(int)} to the pool. If retaining the buffer would
+   * exceed the retention limit, the buffer is dropped instead. The caller must not use the buffer,
+   * or any view of it, after calling this method.
+   *
+   * @param buffer the buffer to release
+   */
+  public void release(ByteBuffer buffer) {
+    int sizeClass = buffer.capacity();
+    if (!buffer.isDirect() || sizeClass != sizeClassFor(sizeClass)) {
+      throw new IllegalArgumentException("buffer was not acquired from this pool");
+    }
+    synchronized (this) {
+      if (retainedBytes + sizeClass > maxRetainedBytes) {
+        return;
+      }
+      Deque<ByteBuffer> available = availableBuffersBySizeClass.get(sizeClass);
+      if (available == null) {
+        available = new ArrayDeque<>();
+        availableBuffersBySizeClass.put(sizeClass, available);
+      }
+      available.push(buffer);
+      retainedBytes += sizeClass;
+    }
+  }
+
+  /**
+   * Returns the total capacity of the buffers currently retained by the pool for reuse.
+   *
+   * @return as described
+   */
+  public synchronized long getRetainedBytes() {
+    return retainedBytes;
+  }
+
+  /**
+   * Returns whether the pool currently retains a buffer of the specified size class, which the next
+   * {@link #acquire(int)} for that size class would reuse.
+   *
+   * @param sizeClass the size class
+   * @return as described
+   */
+  synchronized boolean hasRetained(int sizeClass) {
+    Deque<ByteBuffer> available = availableBuffersBySizeClass.get(sizeClass);
+    return available != null && !available.isEmpty();
+  }
+
+  /**
+   * Drops all of the buffers that are currently retained by the pool.
+   */
+  public synchronized void clear() {
+    availableBuffersBySizeClass.clear();
+    retainedBytes = 0;
+  }
+
+  /**
+   * Returns the size class for the specified size: the smallest multiple of a quarter of the
+   * nearest lower power of two that is at least as large as the size, capped at {@link
+   * Integer#MAX_VALUE}.
+   *
+   * @param size the size
+   * @return the size class
+   */
+  // Visible for testing only
+  static int sizeClassFor(int size) {
+    if (size <= MIN_SIZE_CLASS) {
+      return MIN_SIZE_CLASS;
+    }
+    long step = Integer.highestOneBit(size) / 4;
+    long sizeClass = ((size + step - 1) / step) * step;
+    return (int) Math.min(sizeClass, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Clears the buffer and fills it with zeroes.
+   *
+   * @param buffer the buffer to fill
+   */
+  private static void zeroFill(ByteBuffer buffer) {
+    buffer.clear();
+    while (buffer.remaining() >= 8) {
+      buffer.putLong(0L);
+    }
+    while (buffer.hasRemaining()) {
+      buffer.put((byte) 0);
+    }
+    buffer.clear();
+    buffer.order(ByteOrder.BIG_ENDIAN);
+  }
+}
@@ -0,0 +1,52 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator.bsdiff;
+
+import com.google.archivepatcher.generator.GenerationMetricsListener;
+import java.io.IOException;
+
+/**
+ * A {@link SuffixSorter} that delegates to another and reports the duration of each sort and the
+ * size of the resulting suffix array to a {@link GenerationMetricsListener}.
+ */
+class MeasuringSuffixSorter implements SuffixSorter {
+  private final SuffixSorter delegate;
+  private final GenerationMetricsListener metricsListener;
+
+  /**
+   * Creates a new sorter.
+   *
+   * @param delegate the sorter to delegate to
+   * @param metricsListener the listener to report to
+   */
+  MeasuringSuffixSorter(SuffixSorter delegate, GenerationMetricsListener metricsListener) {
+    this.delegate = delegate;
+    this.metricsListener = metricsListener;
+  }
+
+  @Override
+  public RandomAccessObject suffixSort(RandomAccessObject data)
+      throws IOException, InterruptedException {
+    long startNanos = System.nanoTime();
+    RandomAccessObject suffixArray = delegate.suffixSort(data);
+    metricsListener.stageCompleted(
+        GenerationMetricsListener.Stage.SUFFIX_SORT,
+        System.nanoTime() - startNanos,
+        data.length(),
+        0);
+    metricsListener.largeBufferAllocated("suffix array", suffixArray.length());
+    return suffixArray;
+  }
+}
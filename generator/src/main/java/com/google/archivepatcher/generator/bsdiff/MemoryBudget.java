@@ -0,0 +1,111 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator.bsdiff;
+
+/**
+ * A thread-safe accounting of how many bytes of memory patch generation may use, e.g. "this job may
+ * use 2 GB". Allocations reserve bytes from the budget before they are made and release them when
+ * they are freed; when a reservation cannot be satisfied the caller is expected to fall back to
+ * storage that does not count against the budget, such as a memory-mapped temp file. Several jobs
+ * running in the same process can share one budget so that their combined usage stays within the
+ * limit.
+ *
+ * <p>The budget only tracks what callers tell it; it does not measure actual heap or native memory
+ * usage.
+ */
+public final class MemoryBudget {
+  /** The total number of bytes in the budget. */
+  private final long totalBytes;
+
+  /** The number of bytes currently reserved. */
+  private long reservedBytes = 0;
+
+  /**
+   * Creates a new budget of the specified size.
+   *
+   * @param totalBytes the total number of bytes in the budget; must be non-negative
+   */
+  public MemoryBudget(long totalBytes) {
+    if (totalBytes < 0) {
+      throw new IllegalArgumentException("totalBytes must be non-negative: " + totalBytes);
+    }
+    this.totalBytes = totalBytes;
+  }
+
+  /**
+   * Attempts to reserve the specified number of bytes. Equivalent to calling {@link
+   * #tryReserve(long, long)} with a headroom of zero.
+   *
+   * @param bytes the number of bytes to reserve
+   * @return true if the bytes were reserved, otherwise false
+   */
+  public boolean tryReserve(long bytes) {
+    return tryReserve(bytes, 0);
+  }
+
+  /**
+   * Attempts to reserve the specified number of bytes, succeeding only if at least the specified
+   * headroom would still be available afterwards. The headroom is not reserved; it allows a caller
+   * to make a lower-priority allocation only if a higher-priority allocation that it is about to
+   * make would still fit. If this method returns true, the caller must eventually call {@link
+   * #release(long)} with the same number of bytes.
+   *
+   * @param bytes the number of bytes to reserve
+   * @param headroom the number of bytes that must remain available after the reservation
+   * @return true if the bytes were reserved, otherwise false
+   */
+  public synchronized boolean tryReserve(long bytes, long headroom) {
+    if (bytes < 0 || headroom < 0) {
+      throw new IllegalArgumentException(
+          "bytes and headroom must be non-negative: " + bytes + ", " + headroom);
+    }
+    if (bytes + headroom > totalBytes - reservedBytes) {
+      return false;
+    }
+    reservedBytes += bytes;
+    return true;
+  }
+
+  /**
+   * Releases bytes previously reserved with {@link #tryReserve(long, long)}.
+   *
+   * @param bytes the number of bytes to release
+   */
+  public synchronized void release(long bytes) {
+    if (bytes < 0 || bytes > reservedBytes) {
+      throw new IllegalArgumentException(
+          "Cannot release " + bytes + " bytes, only " + reservedBytes + " are reserved");
+    }
+    reservedBytes -= bytes;
+  }
+
+  /**
+   * Returns the total number of bytes in the budget.
+   *
+   * @return as described
+   */
+  public long getTotalBytes() {
+    return totalBytes;
+  }
+
+  /**
+   * Returns the number of bytes that are currently available to be reserved.
+   *
+   * @return as described
+   */
+  public synchronized long getAvailableBytes() {
+    return totalBytes - reservedBytes;
+  }
+}
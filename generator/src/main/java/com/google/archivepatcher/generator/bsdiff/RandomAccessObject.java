@@ -340,6 +340,43 @@ public interface RandomAccessObject extends DataInput, DataOutput, Closeable {
     }
   }
 
+  /**
+   * A {@link ByteBuffer}-based implementation of {@link RandomAccessObject} that uses direct
+   * (off-heap) memory borrowed from a {@link DirectByteBufferPool}. The memory is returned to the
+   * pool on {@link #close()}, so be sure to call it when you're done; the object must not be used
+   * after it has been closed.
+   */
+  public static class RandomAccessDirectByteBufferObject extends RandomAccessByteArrayObject {
+    private final DirectByteBufferPool mPool;
+    private ByteBuffer mPooledBuffer;
+
+    /**
+     * Borrows a buffer of at least the specified length from the specified pool. This will be
+     * treated as big-endian.
+     *
+     * @param pool the pool to borrow from
+     * @param length the length of the object
+     */
+    public RandomAccessDirectByteBufferObject(final DirectByteBufferPool pool, final int length) {
+      mPool = pool;
+      mPooledBuffer = pool.acquire(length);
+      // The pooled buffer may be larger than requested; expose exactly |length| bytes so that
+      // length() reports the requested size.
+      ByteBuffer view = mPooledBuffer.duplicate();
+      view.limit(length);
+      mByteBuffer = view.slice();
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (mPooledBuffer != null) {
+        mByteBuffer = null;
+        mPool.release(mPooledBuffer);
+        mPooledBuffer = null;
+      }
+    }
+  }
+
   /**
    * A {@link ByteBuffer}-based implementation of {@link RandomAccessObject} that uses files on
    * disk, but is significantly faster than the RandomAccessFile implementation.
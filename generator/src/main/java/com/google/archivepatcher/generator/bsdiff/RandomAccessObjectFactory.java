@@ -15,6 +15,7 @@
 package com.google.archivepatcher.generator.bsdiff;
 
 import com.google.archivepatcher.generator.bsdiff.RandomAccessObject.RandomAccessByteArrayObject;
+import com.google.archivepatcher.generator.bsdiff.RandomAccessObject.RandomAccessDirectByteBufferObject;
 import com.google.archivepatcher.generator.bsdiff.RandomAccessObject.RandomAccessFileObject;
 import com.google.archivepatcher.generator.bsdiff.RandomAccessObject.RandomAccessMmapObject;
 
@@ -75,6 +76,40 @@ public interface RandomAccessObjectFactory {
     }
   }
 
+  /**
+   * A factory that produces {@link RandomAccessDirectByteBufferObject} instances backed by direct
+   * (off-heap) memory from a {@link DirectByteBufferPool}. Sharing one pool between several
+   * factories allows buffers of the same size class to be reused across jobs, avoiding both the
+   * garbage collection pressure of large heap arrays and the temp file creation of the
+   * {@link RandomAccessMmapObjectFactory}.
+   */
+  public static final class RandomAccessDirectByteBufferObjectFactory
+      implements RandomAccessObjectFactory {
+    private final DirectByteBufferPool mPool;
+
+    /**
+     * Factory for a RandomAccessDirectByteBufferObject.
+     * @param pool the pool to borrow buffers from
+     */
+    public RandomAccessDirectByteBufferObjectFactory(DirectByteBufferPool pool) {
+      if (pool == null) {
+        throw new IllegalArgumentException("pool cannot be null");
+      }
+      mPool = pool;
+    }
+
+    /**
+     * Borrows a buffer from the pool and returns it wrapped in a
+     * {@link RandomAccessDirectByteBufferObject}. The caller must ensure that
+     * {@link RandomAccessObject#close()} is called when the object is no longer needed, so that the
+     * buffer is returned to the pool.
+     */
+    @Override
+    public RandomAccessObject create(int size) {
+      return new RandomAccessObject.RandomAccessDirectByteBufferObject(mPool, size);
+    }
+  }
+
   /**
    * A factory that produces {@link RandomAccessMmapObject} instances backed by temp files..
    */
@@ -106,4 +141,182 @@ public interface RandomAccessObjectFactory {
       return new RandomAccessObject.RandomAccessMmapObject(FILE_NAME_PREFIX, mMode, size);
     }
   }
+
+  /**
+   * A factory that chooses where to place each allocation according to a {@link MemoryBudget}.
+   * Allocations that fit within the budget are kept in memory: off-heap in a
+   * {@link RandomAccessDirectByteBufferObject} if a {@link DirectByteBufferPool} was provided, and
+   * otherwise on the heap in a {@link RandomAccessByteArrayObject}. Allocations that do not fit
+   * fall back to a {@link RandomAccessMmapObject} backed by a temp file. Reserved bytes are
+   * returned to the budget when the created object is closed, so several factories (or several
+   * jobs sharing one factory) can draw from the same budget concurrently.
+   *
+   * <p>Direct buffers are charged at their actual capacity, which is the pool's size class for the
+   * requested size. Buffers that the pool retains for reuse still occupy memory, so the factory
+   * leaves room in the budget for them when deciding whether an allocation fits. The pool should
+   * therefore only be shared by factories that draw from the same budget.
+   */
+  public static final class RandomAccessBudgetedObjectFactory
+      implements RandomAccessObjectFactory {
+    private static final String FILE_NAME_PREFIX = "wavsprafof";
+    private final MemoryBudget mBudget;
+    private final DirectByteBufferPool mPool;
+
+    /**
+     * Factory that keeps in-budget allocations on the heap.
+     * @param budget the budget to reserve memory from
+     */
+    public RandomAccessBudgetedObjectFactory(MemoryBudget budget) {
+      this(budget, null);
+    }
+
+    /**
+     * Factory that keeps in-budget allocations in direct buffers from the specified pool.
+     * @param budget the budget to reserve memory from
+     * @param pool the pool to borrow direct buffers from, or null to use the heap instead
+     */
+    public RandomAccessBudgetedObjectFactory(MemoryBudget budget, DirectByteBufferPool pool) {
+      if (budget == null) {
+        throw new IllegalArgumentException("budget cannot be null");
+      }
+      mBudget = budget;
+      mPool = pool;
+    }
+
+    /**
+     * Returns the budget that this factory reserves memory from.
+     * @return as described
+     */
+    public MemoryBudget getBudget() {
+      return mBudget;
+    }
+
+    /**
+     * Creates an object of the specified size in memory if the budget allows, otherwise in a temp
+     * file. The caller must ensure that {@link RandomAccessObject#close()} is called when the
+     * object is no longer needed, so that the memory is returned to the budget (or the temp file
+     * is deleted).
+     */
+    @Override
+    public RandomAccessObject create(int size) throws IOException {
+      if (mPool != null) {
+        return createDirect(size);
+      }
+      if (!mBudget.tryReserve(size)) {
+        return new RandomAccessObject.RandomAccessMmapObject(FILE_NAME_PREFIX, "rw", size);
+      }
+      try {
+        return new BudgetedByteArrayObject(mBudget, new byte[size]);
+      } catch (RuntimeException | Error e) {
+        mBudget.release(size);
+        throw e;
+      }
+    }
+
+    /**
+     * Creates an object of the specified size in a direct buffer from the pool if the budget
+     * allows, otherwise in a temp file.
+     * @param size the size of the object
+     * @return the object
+     * @throws IOException if unable to create the temp file
+     */
+    private RandomAccessObject createDirect(int size) throws IOException {
+      int capacity = DirectByteBufferPool.sizeClassFor(size);
+      // The buffers retained by the pool must still fit in the budget, except for one of the same
+      // size class, which would be reused for this object.
+      long retainedBytes = mPool.getRetainedBytes();
+      if (mPool.hasRetained(capacity)) {
+        retainedBytes -= capacity;
+      }
+      if (!mBudget.tryReserve(capacity, retainedBytes)) {
+        return new RandomAccessObject.RandomAccessMmapObject(FILE_NAME_PREFIX, "rw", size);
+      }
+      try {
+        return new BudgetedDirectByteBufferObject(mBudget, mPool, size, capacity);
+      } catch (RuntimeException | Error e) {
+        mBudget.release(capacity);
+        throw e;
+      }
+    }
+
+    /**
+     * Opens the specified file for reading. If the budget allows, the file is read into memory,
+     * which makes the random reads done during patch generation cheaper; otherwise it is mapped
+     * read-only, which does not count against the budget. The caller must ensure that
+     * {@link RandomAccessObject#close()} is called when the object is no longer needed.
+     * @param file the file to open
+     * @param headroom the number of bytes that must remain available in the budget after the file
+     * is read into memory, e.g. to leave space for a higher-priority allocation that is about to be
+     * made; if there isn't enough space, the file is mapped instead
+     * @return the object
+     * @throws IOException if unable to read the file
+     */
+    public RandomAccessObject open(File file, long headroom) throws IOException {
+      long length = file.length();
+      if (length > Integer.MAX_VALUE || !mBudget.tryReserve(length, headroom)) {
+        return new RandomAccessObject.RandomAccessMmapObject(new RandomAccessFile(file, "r"), "r");
+      }
+      try {
+        byte[] data = new byte[(int) length];
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+          in.readFully(data);
+        }
+        return new BudgetedByteArrayObject(mBudget, data);
+      } catch (IOException | RuntimeException | Error e) {
+        mBudget.release(length);
+        throw e;
+      }
+    }
+
+    /**
+     * A heap object that returns its reservation to a budget when it is closed.
+     */
+    private static final class BudgetedByteArrayObject
+        extends RandomAccessObject.RandomAccessByteArrayObject {
+      private final MemoryBudget mBudget;
+      private final int mLength;
+      private boolean mReleased = false;
+
+      BudgetedByteArrayObject(MemoryBudget budget, byte[] data) {
+        super(data);
+        mBudget = budget;
+        mLength = data.length;
+      }
+
+      @Override
+      public void close() throws IOException {
+        super.close();
+        if (!mReleased) {
+          mReleased = true;
+          mBudget.release(mLength);
+        }
+      }
+    }
+
+    /**
+     * A direct buffer object that returns its reservation to a budget when it is closed.
+     */
+    private static final class BudgetedDirectByteBufferObject
+        extends RandomAccessObject.RandomAccessDirectByteBufferObject {
+      private final MemoryBudget mBudget;
+      private final int mCapacity;
+      private boolean mReleased = false;
+
+      BudgetedDirectByteBufferObject(
+          MemoryBudget budget, DirectByteBufferPool pool, int length, int capacity) {
+        super(pool, length);
+        mBudget = budget;
+        mCapacity = capacity;
+      }
+
+      @Override
+      public void close() throws IOException {
+        super.close();
+        if (!mReleased) {
+          mReleased = true;
+          mBudget.release(mCapacity);
+        }
+      }
+    }
+  }
 }
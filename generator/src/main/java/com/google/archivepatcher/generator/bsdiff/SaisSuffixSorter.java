@@ -0,0 +1,318 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator.bsdiff;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A {@link SuffixSorter} based on the SA-IS (induced sorting) algorithm given in: <pre><code>
+ * Ge Nong, Sen Zhang and Wai Hong Chan, Two Efficient Algorithms for Linear Time Suffix Array
+ * Construction, IEEE Transactions on Computers, 2011.
+ * </code></pre>
+ *
+ * <p>Unlike {@link DivSuffixSorter}, which is usually faster on typical inputs, this runs in O(n)
+ * time regardless of the input; in particular it doesn't degrade on highly repetitive inputs such
+ * as padded resource tables or zero-filled sections of native libraries.
+ *
+ * <p>The sort is done on primitive arrays on the heap: the input is copied into a byte array, and
+ * the suffix array is built in an int array (which also holds the reduced problems during
+ * recursion) before being copied into a {@link RandomAccessObject} from the factory. In addition to
+ * the returned suffix array this needs roughly 6 bytes of heap per input byte.
+ *
+ * <p>The result is identical to that of {@link DivSuffixSorter}: the first int is the length of
+ * the input (the empty suffix, which sorts first), followed by the start positions of the non-empty
+ * suffixes in lexicographical order of their unsigned bytes.
+ */
+public final class SaisSuffixSorter implements SuffixSorter {
+  /** The number of distinct values of a byte. */
+  private static final int ALPHABET_SIZE = 256;
+
+  /** Marks an empty slot in the suffix array while it is being built. */
+  private static final int EMPTY = -1;
+
+  private final RandomAccessObjectFactory randomAccessObjectFactory;
+
+  /**
+   * Creates a new sorter.
+   *
+   * @param randomAccessObjectFactory factory to create the returned suffix array with
+   */
+  public SaisSuffixSorter(RandomAccessObjectFactory randomAccessObjectFactory) {
+    this.randomAccessObjectFactory = randomAccessObjectFactory;
+  }
+
+  @Override
+  public RandomAccessObject suffixSort(RandomAccessObject input)
+      throws IOException, InterruptedException {
+    if (4 * (input.length() + 1) >= Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Input too large (" + input.length() + " bytes)");
+    }
+    int length = (int) input.length();
+
+    byte[] data = new byte[length];
+    input.seek(0);
+    input.readFully(data);
+    int[] sa = new int[length];
+    sais(new ByteText(data), sa, length, ALPHABET_SIZE);
+    data = null;
+
+    RandomAccessObject suffixArray = randomAccessObjectFactory.create((length + 1) * 4);
+    try {
+      suffixArray.seek(0);
+      suffixArray.writeInt(length);
+      writeInts(sa, suffixArray);
+    } catch (IOException | RuntimeException e) {
+      suffixArray.close();
+      throw e;
+    }
+    return suffixArray;
+  }
+
+  /**
+   * Writes the specified ints to the output in big-endian order, in bulk.
+   *
+   * @param values the values to write
+   * @param out the output to write to, at its current position
+   * @throws IOException if unable to write
+   */
+  private static void writeInts(int[] values, RandomAccessObject out) throws IOException {
+    byte[] buffer = new byte[64 * 1024];
+    int bufferPos = 0;
+    for (int value : values) {
+      buffer[bufferPos++] = (byte) (value >>> 24);
+      buffer[bufferPos++] = (byte) (value >>> 16);
+      buffer[bufferPos++] = (byte) (value >>> 8);
+      buffer[bufferPos++] = (byte) value;
+      if (bufferPos == buffer.length) {
+        out.write(buffer, 0, bufferPos);
+        bufferPos = 0;
+      }
+    }
+    out.write(buffer, 0, bufferPos);
+  }
+
+  /**
+   * Read-only view of the text being sorted, so that the same code can sort the original bytes and
+   * the reduced problems (which are ints) during recursion.
+   */
+  private abstract static class Text {
+    abstract int charAt(int index);
+  }
+
+  /** The original input; characters are unsigned bytes. */
+  private static final class ByteText extends Text {
+    private final byte[] data;
+
+    ByteText(byte[] data) {
+      this.data = data;
+    }
+
+    @Override
+    int charAt(int index) {
+      return data[index] & 0xff;
+    }
+  }
+
+  /** A reduced problem, stored in a region of an int array. */
+  private static final class IntText extends Text {
+    private final int[] data;
+    private final int offset;
+
+    IntText(int[] data, int offset) {
+      this.data = data;
+      this.offset = offset;
+    }
+
+    @Override
+    int charAt(int index) {
+      return data[offset + index];
+    }
+  }
+
+  /**
+   * Sorts the suffixes of the specified text into the first |n| entries of |sa|. The text is
+   * considered to be terminated by a virtual sentinel that is smaller than every character; the
+   * sentinel's own (empty) suffix is not included in the output.
+   *
+   * @param s the text, whose characters must all be in the range [0, alphabetSize)
+   * @param sa the output array, of which the first |n| entries are used as working space during
+   *     the sort and hold the suffix array afterwards. The text must not overlap these entries.
+   * @param n the length of the text
+   * @param alphabetSize the number of distinct characters the text may contain
+   * @throws InterruptedException if any thread interrupts this thread
+   */
+  private static void sais(Text s, int[] sa, int n, int alphabetSize)
+      throws InterruptedException {
+    if (Thread.interrupted()) {
+      throw new InterruptedException();
+    }
+    if (n == 0) {
+      return;
+    }
+
+    // Classify each suffix as S-type (true) or L-type (false). The suffix at n-1 is L-type, as it
+    // is larger than the sentinel that follows it.
+    boolean[] isS = new boolean[n];
+    for (int i = n - 2; i >= 0; --i) {
+      int c0 = s.charAt(i);
+      int c1 = s.charAt(i + 1);
+      isS[i] = c0 < c1 || (c0 == c1 && isS[i + 1]);
+    }
+
+    int[] bucketSizes = new int[alphabetSize];
+    for (int i = 0; i < n; ++i) {
+      ++bucketSizes[s.charAt(i)];
+    }
+    int[] buckets = new int[alphabetSize];
+
+    // Stage 1: sort the LMS substrings by placing the LMS suffixes at the ends of their buckets in
+    // any order and inducing the order of the others.
+    Arrays.fill(sa, 0, n, EMPTY);
+    getBucketEnds(bucketSizes, buckets);
+    for (int i = 1; i < n; ++i) {
+      if (isLms(isS, i)) {
+        sa[--buckets[s.charAt(i)]] = i;
+      }
+    }
+    induceSort(s, sa, n, isS, bucketSizes, buckets);
+
+    // Compact the sorted LMS substrings into the first n1 entries of sa. There is at most one LMS
+    // position for every two characters, so n1 <= n / 2.
+    int n1 = 0;
+    for (int i = 0; i < n; ++i) {
+      if (isLms(isS, sa[i])) {
+        sa[n1++] = sa[i];
+      }
+    }
+
+    // Name the LMS substrings: equal substrings get equal names, and names are in sorted order.
+    // Name |p| is stored at sa[n1 + p / 2], which is unique and < n because LMS positions are at
+    // least two apart.
+    Arrays.fill(sa, n1, n, EMPTY);
+    int nameCount = 0;
+    int previous = -1;
+    for (int i = 0; i < n1; ++i) {
+      int position = sa[i];
+      if (previous == -1 || !lmsSubstringsEqual(s, isS, n, previous, position)) {
+        ++nameCount;
+      }
+      previous = position;
+      sa[n1 + (position >> 1)] = nameCount - 1;
+    }
+    // Gather the names in text order into the end of sa to form the reduced string.
+    for (int i = n - 1, j = n - 1; i >= n1; --i) {
+      if (sa[i] >= 0) {
+        sa[j--] = sa[i];
+      }
+    }
+
+    // Stage 2: sort the suffixes of the reduced string, recursing if the names aren't unique.
+    int reducedOffset = n - n1;
+    if (nameCount < n1) {
+      sais(new IntText(sa, reducedOffset), sa, n1, nameCount);
+    } else {
+      for (int i = 0; i < n1; ++i) {
+        sa[sa[reducedOffset + i]] = i;
+      }
+    }
+
+    // Stage 3: map the sorted reduced suffixes back to LMS positions, place them at the ends of
+    // their buckets in sorted order and induce the order of all the other suffixes.
+    for (int i = 1, j = reducedOffset; i < n; ++i) {
+      if (isLms(isS, i)) {
+        sa[j++] = i;
+      }
+    }
+    for (int i = 0; i < n1; ++i) {
+      sa[i] = sa[reducedOffset + sa[i]];
+    }
+    Arrays.fill(sa, n1, n, EMPTY);
+    getBucketEnds(bucketSizes, buckets);
+    for (int i = n1 - 1; i >= 0; --i) {
+      int position = sa[i];
+      sa[i] = EMPTY;
+      sa[--buckets[s.charAt(position)]] = position;
+    }
+    induceSort(s, sa, n, isS, bucketSizes, buckets);
+  }
+
+  /**
+   * Induces the order of the L-type suffixes from the LMS suffixes already in |sa|, then the order
+   * of the S-type suffixes from the L-type suffixes.
+   */
+  private static void induceSort(
+      Text s, int[] sa, int n, boolean[] isS, int[] bucketSizes, int[] buckets) {
+    getBucketStarts(bucketSizes, buckets);
+    // The sentinel sorts first, so its predecessor (which is always L-type) is induced first.
+    sa[buckets[s.charAt(n - 1)]++] = n - 1;
+    for (int i = 0; i < n; ++i) {
+      int j = sa[i] - 1;
+      if (j >= 0 && !isS[j]) {
+        sa[buckets[s.charAt(j)]++] = j;
+      }
+    }
+    getBucketEnds(bucketSizes, buckets);
+    for (int i = n - 1; i >= 0; --i) {
+      int j = sa[i] - 1;
+      if (j >= 0 && isS[j]) {
+        sa[--buckets[s.charAt(j)]] = j;
+      }
+    }
+  }
+
+  /**
+   * Returns true if the two LMS substrings (each running from an LMS position up to and including
+   * the next LMS position) are equal in both characters and types. The LMS substring that ends at
+   * the sentinel is unique.
+   */
+  private static boolean lmsSubstringsEqual(Text s, boolean[] isS, int n, int a, int b) {
+    for (int d = 0; ; ++d) {
+      if (a + d == n || b + d == n) {
+        return false;
+      }
+      if (s.charAt(a + d) != s.charAt(b + d) || isS[a + d] != isS[b + d]) {
+        return false;
+      }
+      if (d > 0 && (isLms(isS, a + d) || isLms(isS, b + d))) {
+        return isLms(isS, a + d) && isLms(isS, b + d);
+      }
+    }
+  }
+
+  /**
+   * Returns true if the suffix at the specified position is a leftmost S-type suffix, i.e. it is
+   * S-type and is preceded by an L-type suffix. The sentinel position n is not considered.
+   */
+  private static boolean isLms(boolean[] isS, int position) {
+    return position > 0 && isS[position] && !isS[position - 1];
+  }
+
+  private static void getBucketStarts(int[] bucketSizes, int[] buckets) {
+    int sum = 0;
+    for (int c = 0; c < bucketSizes.length; ++c) {
+      buckets[c] = sum;
+      sum += bucketSizes[c];
+    }
+  }
+
+  private static void getBucketEnds(int[] bucketSizes, int[] buckets) {
+    int sum = 0;
+    for (int c = 0; c < bucketSizes.length; ++c) {
+      sum += bucketSizes[c];
+      buckets[c] = sum;
+    }
+  }
+}
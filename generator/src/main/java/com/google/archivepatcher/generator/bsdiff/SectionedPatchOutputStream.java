@@ -0,0 +1,260 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator.bsdiff;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * An {@link OutputStream} that accepts a patch in the interleaved format written by {@link
+ * BsDiffPatchWriter} and rewrites it with the control entries, the extra bytes and the diff bytes
+ * in separate sections, so that each section can be compressed on its own. The sectioned patch
+ * consists of:
+ *
+ * <pre>
+ * signature (16 bytes) | new size | control length | extra length | control | extra | diff
+ * </pre>
+ *
+ * where the sizes and lengths are longs in the same format as the control entries, and the diff
+ * section extends to the end of the patch. The diff section comes last so that the applier can
+ * stream it, as it is usually by far the largest.
+ *
+ * <p>Each section must be complete before the next can be written, so the control entries are
+ * buffered in memory and the extra and diff bytes in temp files until {@link #finish()} is called.
+ * Between them the temp files hold nearly the whole patch, even if the underlying stream is not a
+ * file. Closing this stream deletes the temp files but does not close the underlying stream.
+ */
+class SectionedPatchOutputStream extends OutputStream {
+  /** The signature of the interleaved patches that this stream accepts. */
+  private static final byte[] INTERLEAVED_SIGNATURE =
+      "ENDSLEY/BSDIFF43".getBytes(StandardCharsets.US_ASCII);
+
+  /** The signature of the sectioned patches that this stream writes. */
+  private static final byte[] SECTIONED_SIGNATURE =
+      "BSDIFF/SECTIONED".getBytes(StandardCharsets.US_ASCII);
+
+  /** The length of the header of an interleaved patch: the signature and the new size. */
+  private static final int HEADER_LENGTH = INTERLEAVED_SIGNATURE.length + 8;
+
+  /** The length of a control entry, which is three longs. */
+  private static final int CONTROL_ENTRY_LENGTH = 3 * 8;
+
+  /** The stream to write the sectioned patch to. */
+  private final OutputStream mOut;
+
+  /** The header of the interleaved patch, as far as it has been written. */
+  private final byte[] mHeader = new byte[HEADER_LENGTH];
+
+  /** The current control entry, as far as it has been written. */
+  private final byte[] mControlEntry = new byte[CONTROL_ENTRY_LENGTH];
+
+  /** The complete control entries written so far. */
+  private final ByteArrayOutputStream mControl = new ByteArrayOutputStream();
+
+  /** The temp file that buffers the extra section. */
+  private final File mExtraFile;
+
+  /** The temp file that buffers the diff section. */
+  private final File mDiffFile;
+
+  /** The stream that writes to {@link #mExtraFile}. */
+  private final OutputStream mExtraOut;
+
+  /** The stream that writes to {@link #mDiffFile}. */
+  private final OutputStream mDiffOut;
+
+  /** Used by {@link #write(int)} to avoid allocating an array for each byte. */
+  private final byte[] mSingleByte = new byte[1];
+
+  /** The number of bytes of {@link #mHeader} that have been written. */
+  private int mHeaderBytes = 0;
+
+  /** The number of bytes of {@link #mControlEntry} that have been written. */
+  private int mControlEntryBytes = 0;
+
+  /** The number of diff bytes still to come for the current control entry. */
+  private long mDiffBytesRemaining = 0;
+
+  /** The number of extra bytes still to come for the current control entry. */
+  private long mExtraBytesRemaining = 0;
+
+  /** The total length of the extra section. */
+  private long mExtraLength = 0;
+
+  /**
+   * Creates a new stream that writes the sectioned patch to the specified stream, buffering the
+   * extra and diff sections in the default temp directory.
+   *
+   * @param out the stream to write the sectioned patch to
+   * @throws IOException if unable to create the temp files
+   */
+  SectionedPatchOutputStream(OutputStream out) throws IOException {
+    this(out, null);
+  }
+
+  /**
+   * Creates a new stream that writes the sectioned patch to the specified stream, buffering the
+   * extra and diff sections in the specified directory.
+   *
+   * @param out the stream to write the sectioned patch to
+   * @param tempDir the directory to buffer the sections in, or null for the default temp directory
+   * @throws IOException if unable to create the temp files
+   */
+  SectionedPatchOutputStream(OutputStream out, File tempDir) throws IOException {
+    mOut = out;
+    mExtraFile = File.createTempFile("bsdiff", "extra", tempDir);
+    File diffFile = null;
+    OutputStream extraOut = null;
+    try {
+      diffFile = File.createTempFile("bsdiff", "diff", tempDir);
+      extraOut = new BufferedOutputStream(new FileOutputStream(mExtraFile));
+      mDiffOut = new BufferedOutputStream(new FileOutputStream(diffFile));
+    } catch (IOException e) {
+      if (extraOut != null) {
+        extraOut.close();
+      }
+      if (diffFile != null) {
+        diffFile.delete();
+      }
+      mExtraFile.delete();
+      throw e;
+    }
+    mDiffFile = diffFile;
+    mExtraOut = extraOut;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    mSingleByte[0] = (byte) b;
+    write(mSingleByte, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      int count;
+      if (mHeaderBytes < HEADER_LENGTH) {
+        count = Math.min(len, HEADER_LENGTH - mHeaderBytes);
+        System.arraycopy(b, off, mHeader, mHeaderBytes, count);
+        mHeaderBytes += count;
+        if (mHeaderBytes == HEADER_LENGTH
+            && !Arrays.equals(
+                INTERLEAVED_SIGNATURE, Arrays.copyOf(mHeader, INTERLEAVED_SIGNATURE.length))) {
+          throw new IOException("Not an interleaved bsdiff patch");
+        }
+      } else if (mDiffBytesRemaining > 0) {
+        count = (int) Math.min(len, mDiffBytesRemaining);
+        mDiffOut.write(b, off, count);
+        mDiffBytesRemaining -= count;
+      } else if (mExtraBytesRemaining > 0) {
+        count = (int) Math.min(len, mExtraBytesRemaining);
+        mExtraOut.write(b, off, count);
+        mExtraBytesRemaining -= count;
+      } else {
+        count = Math.min(len, CONTROL_ENTRY_LENGTH - mControlEntryBytes);
+        System.arraycopy(b, off, mControlEntry, mControlEntryBytes, count);
+        mControlEntryBytes += count;
+        if (mControlEntryBytes == CONTROL_ENTRY_LENGTH) {
+          mControl.write(mControlEntry);
+          mDiffBytesRemaining = readLength(mControlEntry, 0);
+          mExtraBytesRemaining = readLength(mControlEntry, 8);
+          mExtraLength += mExtraBytesRemaining;
+          mControlEntryBytes = 0;
+        }
+      }
+      off += count;
+      len -= count;
+    }
+  }
+
+  /**
+   * Writes the sectioned patch to the underlying stream. The interleaved patch must be complete.
+   *
+   * @throws IOException if the interleaved patch is incomplete or unable to write the patch
+   */
+  void finish() throws IOException {
+    if (mHeaderBytes < HEADER_LENGTH
+        || mControlEntryBytes > 0
+        || mDiffBytesRemaining > 0
+        || mExtraBytesRemaining > 0) {
+      throw new IOException("Incomplete bsdiff patch");
+    }
+    mExtraOut.close();
+    mDiffOut.close();
+    mOut.write(SECTIONED_SIGNATURE);
+    mOut.write(mHeader, INTERLEAVED_SIGNATURE.length, 8);
+    BsUtil.writeFormattedLong(mControl.size(), mOut);
+    BsUtil.writeFormattedLong(mExtraLength, mOut);
+    mControl.writeTo(mOut);
+    copy(mExtraFile, mOut);
+    copy(mDiffFile, mOut);
+    mOut.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      mExtraOut.close();
+      mDiffOut.close();
+    } finally {
+      mExtraFile.delete();
+      mDiffFile.delete();
+    }
+  }
+
+  /**
+   * Reads one of the lengths of a control entry, which are never negative.
+   *
+   * @param entry the control entry
+   * @param offset the offset of the length within the entry
+   * @return the length
+   * @throws IOException if the length is negative
+   */
+  private static long readLength(byte[] entry, int offset) throws IOException {
+    long result = 0;
+    for (int x = 7; x >= 0; x--) {
+      result = (result << 8) | (entry[offset + x] & 0xff);
+    }
+    if (result < 0) {
+      throw new IOException("Negative length in control entry");
+    }
+    return result;
+  }
+
+  /**
+   * Copies the contents of the specified file to the specified stream.
+   *
+   * @param file the file to copy
+   * @param out the stream to copy to
+   * @throws IOException if unable to read or write
+   */
+  private static void copy(File file, OutputStream out) throws IOException {
+    byte[] buffer = new byte[32 * 1024];
+    try (InputStream in = new FileInputStream(file)) {
+      int numRead;
+      while ((numRead = in.read(buffer)) >= 0) {
+        out.write(buffer, 0, numRead);
+      }
+    }
+  }
+}
@@ -0,0 +1,164 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator.bsdiff;
+
+import java.io.IOException;
+
+/**
+ * An index from every possible k-byte "seed" to the interval of the suffix array that holds the
+ * suffixes of the old data that start with that seed. {@link BsDiff#searchForMatch} does a binary
+ * search over the whole suffix array, paying log2(n) random reads even when nothing in the old data
+ * matches; with the index, the binary search is narrowed to the interval for the first k bytes of
+ * the new data, and if no suffix starts with those bytes the search resolves immediately.
+ *
+ * <p>The narrowed search always finds the same match as the full search, so the index does not
+ * change the generated patch.
+ *
+ * <p>The index is a direct table of 256^k + 1 ints: 256 KiB for k = 2 and 64 MiB for k = 3. It
+ * is built in a single sequential pass over the old data.
+ */
+class SeedIndex {
+  /**
+   * Old data at least this large is indexed with 3-byte seeds, smaller old data with 2-byte seeds,
+   * so that the table is never much larger than the suffix array.
+   */
+  // Visible for testing only
+  static final int THREE_BYTE_SEED_THRESHOLD = 16 * 1024 * 1024;
+
+  /** The number of bytes in a seed. */
+  private final int mSeedLength;
+
+  /** The length of the old data. */
+  private final int mOldLength;
+
+  /**
+   * mIntervalStarts[v] is the index in the suffix array of the first suffix whose first
+   * |mSeedLength| bytes are greater than or equal to |v| when read as a big-endian integer.
+   * Suffixes shorter than |mSeedLength| are treated as though they were padded with zeroes, and
+   * sort before any longer suffix with the same padded seed. There is one extra entry at the end,
+   * equal to the length of the old data plus one.
+   */
+  private final int[] mIntervalStarts;
+
+  /**
+   * Builds an index for the specified old data, choosing the seed length according to its size.
+   *
+   * @param oldData the old data
+   * @return the index
+   * @throws IOException if unable to read the old data
+   */
+  static SeedIndex build(RandomAccessObject oldData) throws IOException {
+    return build(oldData, oldData.length() >= THREE_BYTE_SEED_THRESHOLD ? 3 : 2);
+  }
+
+  /**
+   * Builds an index for the specified old data, using the specified seed length.
+   *
+   * @param oldData the old data
+   * @param seedLength the number of bytes in a seed, from 1 to 3 inclusive
+   * @return the index
+   * @throws IOException if unable to read the old data
+   */
+  // Visible for testing only
+  static SeedIndex build(RandomAccessObject oldData, int seedLength) throws IOException {
+    if (seedLength < 1 || seedLength > 3) {
+      throw new IllegalArgumentException("seedLength must be in [1, 3]: " + seedLength);
+    }
+    final int oldLength = (int) oldData.length();
+    final int seedMask = (1 << (8 * seedLength)) - 1;
+    final int[] intervalStarts = new int[(1 << (8 * seedLength)) + 1];
+
+    // Count the suffixes that start with each seed, keeping a rolling window of the last
+    // |seedLength| bytes. The count for seed v is accumulated in intervalStarts[v + 1].
+    byte[] buffer = new byte[64 * 1024];
+    int seed = 0;
+    oldData.seek(0);
+    for (int bufferStart = 0; bufferStart < oldLength; bufferStart += buffer.length) {
+      int count = Math.min(buffer.length, oldLength - bufferStart);
+      oldData.readFully(buffer, 0, count);
+      for (int x = 0; x < count; x++) {
+        seed = ((seed << 8) | (buffer[x] & 0xff)) & seedMask;
+        if (bufferStart + x >= seedLength - 1) {
+          ++intervalStarts[seed + 1];
+        }
+      }
+    }
+    // The last |seedLength| - 1 suffixes are too short to have a full seed; count them under their
+    // zero-padded seed.
+    for (int start = Math.max(0, oldLength - seedLength + 1); start < oldLength; start++) {
+      int suffixLength = oldLength - start;
+      int paddedSeed =
+          (seed & ((1 << (8 * suffixLength)) - 1)) << (8 * (seedLength - suffixLength));
+      ++intervalStarts[paddedSeed + 1];
+    }
+
+    // The empty suffix always comes first in the suffix array.
+    intervalStarts[0] = 1;
+    for (int v = 1; v < intervalStarts.length; v++) {
+      intervalStarts[v] += intervalStarts[v - 1];
+    }
+    return new SeedIndex(seedLength, oldLength, intervalStarts);
+  }
+
+  private SeedIndex(int seedLength, int oldLength, int[] intervalStarts) {
+    mSeedLength = seedLength;
+    mOldLength = oldLength;
+    mIntervalStarts = intervalStarts;
+  }
+
+  /**
+   * Equivalent to calling {@link BsDiff#searchForMatch} over the whole of the suffix array, but
+   * narrows the search to the interval of suffixes that share a seed with the new data.
+   *
+   * @param groupArray the suffix array of the old data that this index was built for
+   * @param oldData the old data that this index was built for
+   * @param newData the new data to scan
+   * @param newStart the position of the first byte in newData to consider
+   * @return a Match containing the length of the matching range, and the position at which the
+   * matching range begins.
+   * @throws IOException if unable to read data
+   */
+  BsDiff.Match searchForMatch(
+      final RandomAccessObject groupArray,
+      final RandomAccessObject oldData,
+      final RandomAccessObject newData,
+      final int newStart)
+      throws IOException {
+    if (newData.length() - newStart < mSeedLength) {
+      return BsDiff.searchForMatch(groupArray, oldData, newData, newStart, 0, mOldLength);
+    }
+    newData.seek(newStart);
+    int seed = 0;
+    for (int x = 0; x < mSeedLength; x++) {
+      seed = (seed << 8) | newData.readUnsignedByte();
+    }
+    // Every suffix before the interval is less than the new data and every suffix after it is
+    // greater, so the binary search over the full suffix array would end up within
+    // [start - 1, end]. If the interval is empty, this resolves to the base case immediately.
+    // Like the full search, this never considers an upper bound beyond the last suffix.
+    final int rangeStart = mIntervalStarts[seed] - 1;
+    final int rangeEnd = Math.min(mIntervalStarts[seed + 1], mOldLength);
+    return BsDiff.searchForMatch(groupArray, oldData, newData, newStart, rangeStart, rangeEnd);
+  }
+
+  /**
+   * Returns the number of bytes in a seed.
+   *
+   * @return as described
+   */
+  int getSeedLength() {
+    return mSeedLength;
+  }
+}
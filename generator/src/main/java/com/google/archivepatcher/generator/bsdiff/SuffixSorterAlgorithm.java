@@ -0,0 +1,50 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator.bsdiff;
+
+/**
+ * The available {@link SuffixSorter} implementations. All of them produce identical suffix arrays,
+ * and therefore identical patches; they differ only in speed and memory usage.
+ */
+public enum SuffixSorterAlgorithm {
+  /**
+   * {@link DivSuffixSorter}: fast on typical inputs and uses no memory beyond the suffix array, but
+   * can degrade badly on highly repetitive inputs.
+   */
+  DIVSUFSORT {
+    @Override
+    public SuffixSorter newSuffixSorter(RandomAccessObjectFactory randomAccessObjectFactory) {
+      return new DivSuffixSorter(randomAccessObjectFactory);
+    }
+  },
+
+  /**
+   * {@link SaisSuffixSorter}: linear time on all inputs, at the cost of additional heap usage.
+   */
+  SAIS {
+    @Override
+    public SuffixSorter newSuffixSorter(RandomAccessObjectFactory randomAccessObjectFactory) {
+      return new SaisSuffixSorter(randomAccessObjectFactory);
+    }
+  };
+
+  /**
+   * Creates a new sorter that uses this algorithm.
+   *
+   * @param randomAccessObjectFactory factory to create the suffix array with
+   * @return the sorter
+   */
+  public abstract SuffixSorter newSuffixSorter(RandomAccessObjectFactory randomAccessObjectFactory);
+}
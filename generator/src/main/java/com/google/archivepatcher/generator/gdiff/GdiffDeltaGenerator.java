@@ -0,0 +1,243 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator.gdiff;
+
+import com.google.archivepatcher.generator.DeltaGenerator;
+import com.google.archivepatcher.generator.GenerationMetricsListener;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An implementation of {@link DeltaGenerator} that writes a patch in the format described in
+ * http://www.w3.org/TR/NOTE-gdiff-19970901, for application with {@code
+ * com.google.archivepatcher.applier.gdiff.Gdiff}.
+ *
+ * <p>Instead of a suffix array, the old blob is indexed by a hash table of the 16-byte seeds that
+ * start at every few bytes (the stride), with collisions chained. The new blob is scanned once with
+ * a rolling hash; at each position the chained candidates are verified and extended, the longest
+ * match is also extended backwards over the pending inline data, and the scan skips to the end of
+ * the match. Generation takes time linear in the size of the inputs and, besides the memory-mapped
+ * inputs, needs at most about 64 MiB of heap for the index; the stride is increased for old blobs
+ * too large to index at the minimum stride. Matches shorter than the seed length plus the stride
+ * may be missed, so patches are typically larger than those of bsdiff, but are generated much
+ * faster.
+ *
+ * <p>Both blobs must be smaller than 2 GiB.
+ */
+public class GdiffDeltaGenerator implements DeltaGenerator {
+  /** The number of bytes hashed at each position, and the length of the shortest copy. */
+  // Visible for testing only
+  static final int SEED_LENGTH = 16;
+
+  /** The distance between indexed positions of the old blob, if it is small enough. */
+  // Visible for testing only
+  static final int MIN_INDEX_STRIDE = 4;
+
+  /** The maximum number of indexed positions; larger old blobs are indexed at a larger stride. */
+  private static final int MAX_INDEX_ENTRIES = 1 << 23;
+
+  /** The maximum number of candidates to verify at each position of the new blob. */
+  private static final int MAX_CHAIN_LENGTH = 16;
+
+  /** The multiplier of the polynomial rolling hash. */
+  private static final int HASH_MULTIPLIER = 0x01000193;
+
+  /** HASH_MULTIPLIER ^ (SEED_LENGTH - 1), to remove the oldest byte from the rolling hash. */
+  private static final int HASH_REMOVE_MULTIPLIER;
+
+  static {
+    int value = 1;
+    for (int x = 0; x < SEED_LENGTH - 1; x++) {
+      value *= HASH_MULTIPLIER;
+    }
+    HASH_REMOVE_MULTIPLIER = value;
+  }
+
+  /** The listener to report the duration of the diff and the size of the index to. */
+  private final GenerationMetricsListener metricsListener;
+
+  /**
+   * Constructs a generator that reports nothing.
+   */
+  public GdiffDeltaGenerator() {
+    this(GenerationMetricsListener.NO_OP);
+  }
+
+  /**
+   * Constructs a generator that reports the duration of each diff and the size of the index to the
+   * specified listener.
+   *
+   * @param metricsListener the listener to report to
+   */
+  public GdiffDeltaGenerator(GenerationMetricsListener metricsListener) {
+    if (metricsListener == null) {
+      throw new IllegalArgumentException("metricsListener cannot be null");
+    }
+    this.metricsListener = metricsListener;
+  }
+
+  @Override
+  public void generateDelta(File oldBlob, File newBlob, OutputStream deltaOut)
+      throws IOException, InterruptedException {
+    long startNanos = System.nanoTime();
+    try (RandomAccessFile oldRaf = new RandomAccessFile(oldBlob, "r");
+        RandomAccessFile newRaf = new RandomAccessFile(newBlob, "r")) {
+      generatePatch(map(oldRaf), map(newRaf), deltaOut, metricsListener);
+    }
+    metricsListener.stageCompleted(
+        GenerationMetricsListener.Stage.GENERATE_DELTA,
+        System.nanoTime() - startNanos,
+        newBlob.length(),
+        0);
+  }
+
+  private static ByteBuffer map(RandomAccessFile file) throws IOException {
+    if (file.length() > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Only files up to 2GiB in size are supported.");
+    }
+    return file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+  }
+
+  /**
+   * Generates a patch that transforms the old data into the new data.
+   *
+   * @param oldData the old data, from position 0 to the limit
+   * @param newData the new data, from position 0 to the limit
+   * @param out the stream to write the patch to
+   * @param metricsListener the listener to report the size of the index to
+   * @throws IOException if unable to write the patch
+   * @throws InterruptedException if any thread has interrupted the current thread
+   */
+  // Visible for testing only
+  static void generatePatch(
+      ByteBuffer oldData,
+      ByteBuffer newData,
+      OutputStream out,
+      GenerationMetricsListener metricsListener)
+      throws IOException, InterruptedException {
+    final int oldLength = oldData.limit();
+    final int newLength = newData.limit();
+
+    // Index the seeds of the old data at every |stride| bytes. heads[bucket] and chain[entry] hold
+    // one plus the index of an entry, so that zero means none; entries are inserted in order, so
+    // the chains run from the last position in the old data to the first.
+    final int stride = Math.max(MIN_INDEX_STRIDE, (oldLength - 1) / MAX_INDEX_ENTRIES + 1);
+    final int entryCount = oldLength < SEED_LENGTH ? 0 : (oldLength - SEED_LENGTH) / stride + 1;
+    final int tableBits =
+        Math.max(1, 32 - Integer.numberOfLeadingZeros(Math.max(1, entryCount) - 1));
+    final int[] heads = new int[1 << tableBits];
+    final int[] chain = new int[entryCount];
+    metricsListener.largeBufferAllocated("gdiff index", 4L * (heads.length + chain.length));
+    for (int entry = 0; entry < entryCount; entry++) {
+      int bucket = bucket(hash(oldData, entry * stride), tableBits);
+      chain[entry] = heads[bucket];
+      heads[bucket] = entry + 1;
+    }
+
+    GdiffPatchWriter writer = new GdiffPatchWriter(out);
+    writer.writeHeader();
+    int literalStart = 0;
+    int newPos = 0;
+    if (entryCount > 0 && newLength >= SEED_LENGTH) {
+      int hash = hash(newData, 0);
+      while (true) {
+        int bestLength = 0;
+        int bestOldPos = 0;
+        int candidate = heads[bucket(hash, tableBits)];
+        for (int depth = 0; candidate != 0 && depth < MAX_CHAIN_LENGTH; depth++) {
+          int oldPos = (candidate - 1) * stride;
+          int length = matchLength(oldData, oldPos, newData, newPos);
+          if (length > bestLength) {
+            bestLength = length;
+            bestOldPos = oldPos;
+          }
+          candidate = chain[candidate - 1];
+        }
+
+        if (bestLength >= SEED_LENGTH) {
+          if (Thread.interrupted()) {
+            throw new InterruptedException();
+          }
+          // Bytes just before the match may match too, though their seeds weren't indexed.
+          int backLength = 0;
+          while (newPos - backLength > literalStart
+              && bestOldPos - backLength > 0
+              && oldData.get(bestOldPos - backLength - 1)
+                  == newData.get(newPos - backLength - 1)) {
+            backLength++;
+          }
+          writer.writeData(newData, literalStart, newPos - backLength - literalStart);
+          writer.writeCopy(bestOldPos - backLength, bestLength + backLength);
+          newPos += bestLength;
+          literalStart = newPos;
+          if (newPos > newLength - SEED_LENGTH) {
+            break;
+          }
+          hash = hash(newData, newPos);
+        } else {
+          if (newPos + SEED_LENGTH >= newLength) {
+            break;
+          }
+          hash =
+              (hash - (newData.get(newPos) & 0xff) * HASH_REMOVE_MULTIPLIER) * HASH_MULTIPLIER
+                  + (newData.get(newPos + SEED_LENGTH) & 0xff);
+          newPos++;
+        }
+      }
+    }
+    writer.writeData(newData, literalStart, newLength - literalStart);
+    writer.writeEof();
+  }
+
+  /**
+   * Returns the polynomial hash of the {@link #SEED_LENGTH} bytes at the specified position.
+   */
+  private static int hash(ByteBuffer data, int pos) {
+    int hash = 0;
+    for (int x = 0; x < SEED_LENGTH; x++) {
+      hash = hash * HASH_MULTIPLIER + (data.get(pos + x) & 0xff);
+    }
+    return hash;
+  }
+
+  /**
+   * Returns the bucket of the hash table for the specified hash, mixing its bits so that the low
+   * bits of the trailing bytes don't dominate.
+   */
+  private static int bucket(int hash, int tableBits) {
+    return (hash * 0x9E3779B1) >>> (32 - tableBits);
+  }
+
+  /**
+   * Returns the number of bytes that are identical in the old and new data at the specified
+   * positions, comparing eight bytes at a time where possible.
+   */
+  private static int matchLength(ByteBuffer oldData, int oldPos, ByteBuffer newData, int newPos) {
+    int maxLength = Math.min(oldData.limit() - oldPos, newData.limit() - newPos);
+    int length = 0;
+    while (length + 8 <= maxLength
+        && oldData.getLong(oldPos + length) == newData.getLong(newPos + length)) {
+      length += 8;
+    }
+    while (length < maxLength && oldData.get(oldPos + length) == newData.get(newPos + length)) {
+      length++;
+    }
+    return length;
+  }
+}
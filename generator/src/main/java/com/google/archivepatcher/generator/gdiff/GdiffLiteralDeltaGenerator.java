@@ -0,0 +1,78 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator.gdiff;
+
+import com.google.archivepatcher.generator.DeltaGenerator;
+import com.google.archivepatcher.generator.GenerationMetricsListener;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+/**
+ * An implementation of {@link DeltaGenerator} that writes a gdiff patch holding the whole of the
+ * new blob inline, without looking at the old blob. Generation takes time linear in the size of the
+ * new blob and needs no memory beyond the memory-mapped new blob, but the patch is as large as the
+ * new blob; this is the last resort when there is no time to find matches.
+ *
+ * <p>The new blob must be smaller than 2 GiB.
+ */
+public class GdiffLiteralDeltaGenerator implements DeltaGenerator {
+  /** The listener to report the duration of the delta to. */
+  private final GenerationMetricsListener metricsListener;
+
+  /**
+   * Constructs a generator that reports nothing.
+   */
+  public GdiffLiteralDeltaGenerator() {
+    this(GenerationMetricsListener.NO_OP);
+  }
+
+  /**
+   * Constructs a generator that reports the duration of each delta to the specified listener.
+   *
+   * @param metricsListener the listener to report to
+   */
+  public GdiffLiteralDeltaGenerator(GenerationMetricsListener metricsListener) {
+    if (metricsListener == null) {
+      throw new IllegalArgumentException("metricsListener cannot be null");
+    }
+    this.metricsListener = metricsListener;
+  }
+
+  @Override
+  public void generateDelta(File oldBlob, File newBlob, OutputStream deltaOut)
+      throws IOException, InterruptedException {
+    long startNanos = System.nanoTime();
+    try (RandomAccessFile newRaf = new RandomAccessFile(newBlob, "r")) {
+      if (newRaf.length() > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("Only files up to 2GiB in size are supported.");
+      }
+      GdiffPatchWriter writer = new GdiffPatchWriter(deltaOut);
+      writer.writeHeader();
+      writer.writeData(
+          newRaf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, newRaf.length()),
+          0,
+          (int) newRaf.length());
+      writer.writeEof();
+    }
+    metricsListener.stageCompleted(
+        GenerationMetricsListener.Stage.GENERATE_DELTA,
+        System.nanoTime() - startNanos,
+        newBlob.length(),
+        0);
+  }
+}
@@ -0,0 +1,172 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator.gdiff;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes the commands of a patch in the format described in
+ * http://www.w3.org/TR/NOTE-gdiff-19970901, always choosing the most compact encoding of each
+ * command.
+ */
+class GdiffPatchWriter {
+  /** Magic bytes at start of file */
+  private static final int GDIFF_FILE_MAGIC = 0xD1FFD1FF;
+  /** Version code at start of file */
+  private static final int GDIFF_FILE_VERSION = 4;
+
+  /** The end of the patch */
+  private static final int EOF = 0;
+  /** Codes 1..246 represent inline streams of 1..246 bytes */
+  private static final int DATA_MAX = 246;
+  /** Copy inline data. The next two bytes are the number of bytes to copy */
+  private static final int DATA_USHORT = 247;
+  /** Copy inline data. The next four bytes are the number of bytes to copy */
+  private static final int DATA_INT = 248;
+  /**
+   * The copy commands are defined as follows: The first argument is the offset in the original
+   * file, and the second argument is the number of bytes to copy to the new file.
+   */
+  private static final int COPY_USHORT_UBYTE = 249;
+
+  private static final int COPY_USHORT_USHORT = 250;
+  private static final int COPY_USHORT_INT = 251;
+  private static final int COPY_INT_UBYTE = 252;
+  private static final int COPY_INT_USHORT = 253;
+  private static final int COPY_INT_INT = 254;
+  private static final int COPY_LONG_INT = 255;
+
+  /** The largest value of an unsigned byte. */
+  private static final int UBYTE_MAX = 0xff;
+
+  /** The largest value of an unsigned short. */
+  private static final int USHORT_MAX = 0xffff;
+
+  /** The size of the buffer used to copy inline data from the new blob. */
+  private static final int COPY_BUFFER_SIZE = 16 * 1024;
+
+  private final DataOutputStream mOut;
+
+  private final byte[] mBuffer = new byte[COPY_BUFFER_SIZE];
+
+  /**
+   * Creates a new writer.
+   *
+   * @param out the stream to write the patch to; it is not closed by this writer
+   */
+  GdiffPatchWriter(OutputStream out) {
+    mOut = new DataOutputStream(out);
+  }
+
+  /**
+   * Writes the magic signature and version that begin the patch.
+   *
+   * @throws IOException if unable to write
+   */
+  void writeHeader() throws IOException {
+    mOut.writeInt(GDIFF_FILE_MAGIC);
+    mOut.write(GDIFF_FILE_VERSION);
+  }
+
+  /**
+   * Writes a command that copies bytes from the old blob to the new blob.
+   *
+   * @param oldOffset the offset in the old blob of the first byte to copy
+   * @param length the number of bytes to copy; if zero, nothing is written
+   * @throws IOException if unable to write
+   */
+  void writeCopy(long oldOffset, int length) throws IOException {
+    if (length == 0) {
+      return;
+    }
+    if (oldOffset <= USHORT_MAX) {
+      if (length <= UBYTE_MAX) {
+        mOut.write(COPY_USHORT_UBYTE);
+        mOut.writeShort((int) oldOffset);
+        mOut.write(length);
+      } else if (length <= USHORT_MAX) {
+        mOut.write(COPY_USHORT_USHORT);
+        mOut.writeShort((int) oldOffset);
+        mOut.writeShort(length);
+      } else {
+        mOut.write(COPY_USHORT_INT);
+        mOut.writeShort((int) oldOffset);
+        mOut.writeInt(length);
+      }
+    } else if (oldOffset <= Integer.MAX_VALUE) {
+      if (length <= UBYTE_MAX) {
+        mOut.write(COPY_INT_UBYTE);
+        mOut.writeInt((int) oldOffset);
+        mOut.write(length);
+      } else if (length <= USHORT_MAX) {
+        mOut.write(COPY_INT_USHORT);
+        mOut.writeInt((int) oldOffset);
+        mOut.writeShort(length);
+      } else {
+        mOut.write(COPY_INT_INT);
+        mOut.writeInt((int) oldOffset);
+        mOut.writeInt(length);
+      }
+    } else {
+      mOut.write(COPY_LONG_INT);
+      mOut.writeLong(oldOffset);
+      mOut.writeInt(length);
+    }
+  }
+
+  /**
+   * Writes a command that inserts the specified bytes of the new blob inline.
+   *
+   * @param newData the new blob
+   * @param offset the offset in the new blob of the first byte to insert
+   * @param length the number of bytes to insert; if zero, nothing is written
+   * @throws IOException if unable to write
+   */
+  void writeData(ByteBuffer newData, int offset, int length) throws IOException {
+    if (length == 0) {
+      return;
+    }
+    if (length <= DATA_MAX) {
+      mOut.write(length);
+    } else if (length <= USHORT_MAX) {
+      mOut.write(DATA_USHORT);
+      mOut.writeShort(length);
+    } else {
+      mOut.write(DATA_INT);
+      mOut.writeInt(length);
+    }
+    ByteBuffer source = newData.duplicate();
+    source.position(offset);
+    while (length > 0) {
+      int spanLength = Math.min(length, mBuffer.length);
+      source.get(mBuffer, 0, spanLength);
+      mOut.write(mBuffer, 0, spanLength);
+      length -= spanLength;
+    }
+  }
+
+  /**
+   * Writes the command that ends the patch and flushes the output.
+   *
+   * @throws IOException if unable to write
+   */
+  void writeEof() throws IOException {
+    mOut.write(EOF);
+    mOut.flush();
+  }
+}
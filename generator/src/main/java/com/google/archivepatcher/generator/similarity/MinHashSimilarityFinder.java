@@ -0,0 +1,350 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator.similarity;
+
+import com.google.archivepatcher.generator.MinimalZipEntry;
+import com.google.archivepatcher.shared.DeflateUncompressor;
+import com.google.archivepatcher.shared.RandomAccessFileInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Detects files with similar content, such as files that were renamed and modified at the same
+ * time. The uncompressed content of each file is split into content-defined chunks with a rolling
+ * hash, so that an insertion or deletion only changes the chunks around it, and the set of chunks
+ * is summarized by a MinHash signature whose agreement with another signature estimates the
+ * Jaccard similarity of the two sets. Signatures of the base entries are computed once, when the
+ * finder is constructed, and indexed with locality-sensitive hashing: each signature is split into
+ * bands, and only base entries that share at least one whole band with the new entry are scored.
+ * The cost of a search therefore doesn't grow with the number of base entries.
+ *
+ * <p>Base entries that are neither stored nor deflated, or that are too small to yield a
+ * meaningful signature, are never reported as similar.
+ */
+public class MinHashSimilarityFinder extends SimilarityFinder {
+  /**
+   * The default minimum estimated similarity, from 0 to 1, for a base entry to be reported.
+   */
+  public static final double DEFAULT_MINIMUM_SIMILARITY = 0.5;
+
+  /** Entries with less uncompressed data than this are ignored. */
+  private static final long MINIMUM_ENTRY_SIZE = 128;
+
+  /** The number of hash functions in a signature. */
+  private static final int SIGNATURE_LENGTH = 64;
+
+  /** The number of rows in each band of the locality-sensitive hashing index. */
+  private static final int ROWS_PER_BAND = 4;
+
+  /** The number of bands in the locality-sensitive hashing index. */
+  private static final int BANDS = SIGNATURE_LENGTH / ROWS_PER_BAND;
+
+  /** Chunks are never shorter than this, except at the end of the content. */
+  private static final int MINIMUM_CHUNK_SIZE = 16;
+
+  /** Chunks are never longer than this. */
+  private static final int MAXIMUM_CHUNK_SIZE = 256;
+
+  /** A chunk ends where the rolling hash has these bits clear; about 64 bytes past the minimum. */
+  private static final long CHUNK_BOUNDARY_MASK = 0x3fL << 58;
+
+  /** Random values for the rolling hash, one per byte value. */
+  private static final long[] GEAR = new long[256];
+
+  /** Seeds for the hash functions of the signature. */
+  private static final long[] SEEDS = new long[SIGNATURE_LENGTH];
+
+  static {
+    // Fixed seed, so that signatures are the same from run to run.
+    Random random = new Random(0x5ca1ab1e);
+    for (int x = 0; x < GEAR.length; x++) {
+      GEAR[x] = random.nextLong();
+    }
+    for (int x = 0; x < SEEDS.length; x++) {
+      SEEDS[x] = random.nextLong();
+    }
+  }
+
+  /** The minimum estimated similarity for a base entry to be reported. */
+  private final double minimumSimilarity;
+
+  /** The base entries that have signatures. */
+  private final List<MinimalZipEntry> signedEntries = new ArrayList<>();
+
+  /** The signatures of the entries in |signedEntries|, in the same order. */
+  private final List<long[]> signatures = new ArrayList<>();
+
+  /** For each band key, the indices in |signedEntries| of the entries with that band. */
+  private final Map<Long, List<Integer>> entryIndicesByBandKey = new HashMap<>();
+
+  /**
+   * Constructs a new similarity finder with the specified parameters, using {@link
+   * #DEFAULT_MINIMUM_SIMILARITY}. The content of every eligible base entry is read.
+   *
+   * @param baseArchive the base archive that contains the entries to be searched
+   * @param baseEntries the entries in the base archive that are eligible to be searched
+   * @throws IOException if unable to read the base archive
+   */
+  public MinHashSimilarityFinder(File baseArchive, Collection<MinimalZipEntry> baseEntries)
+      throws IOException {
+    this(baseArchive, baseEntries, DEFAULT_MINIMUM_SIMILARITY);
+  }
+
+  /**
+   * Constructs a new similarity finder with the specified parameters. The content of every
+   * eligible base entry is read.
+   *
+   * @param baseArchive the base archive that contains the entries to be searched
+   * @param baseEntries the entries in the base archive that are eligible to be searched
+   * @param minimumSimilarity the minimum estimated similarity, greater than 0 and at most 1, for a
+   *     base entry to be reported
+   * @throws IOException if unable to read the base archive
+   */
+  public MinHashSimilarityFinder(
+      File baseArchive, Collection<MinimalZipEntry> baseEntries, double minimumSimilarity)
+      throws IOException {
+    super(baseArchive, baseEntries);
+    if (!(minimumSimilarity > 0 && minimumSimilarity <= 1)) {
+      throw new IllegalArgumentException(
+          "minimumSimilarity must be in (0, 1]: " + minimumSimilarity);
+    }
+    this.minimumSimilarity = minimumSimilarity;
+    for (MinimalZipEntry baseEntry : baseEntries) {
+      long[] signature = computeSignature(baseArchive, baseEntry);
+      if (signature == null) {
+        continue;
+      }
+      int index = signedEntries.size();
+      signedEntries.add(baseEntry);
+      signatures.add(signature);
+      for (int band = 0; band < BANDS; band++) {
+        long bandKey = bandKey(signature, band);
+        List<Integer> indices = entryIndicesByBandKey.get(bandKey);
+        if (indices == null) {
+          indices = new LinkedList<>();
+          entryIndicesByBandKey.put(bandKey, indices);
+        }
+        indices.add(index);
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Entries are reported in order of decreasing estimated similarity. If the new entry can't be
+   * read, it is treated as having no similar files.
+   */
+  @Override
+  public List<MinimalZipEntry> findSimilarFiles(File newArchive, MinimalZipEntry newEntry) {
+    final long[] signature;
+    try {
+      signature = computeSignature(newArchive, newEntry);
+    } catch (IOException e) {
+      return Collections.emptyList();
+    }
+    if (signature == null) {
+      return Collections.emptyList();
+    }
+
+    Set<Integer> candidates = new HashSet<>();
+    for (int band = 0; band < BANDS; band++) {
+      List<Integer> indices = entryIndicesByBandKey.get(bandKey(signature, band));
+      if (indices != null) {
+        candidates.addAll(indices);
+      }
+    }
+
+    final Map<MinimalZipEntry, Double> similarities = new HashMap<>();
+    for (int index : candidates) {
+      double similarity = estimateSimilarity(signature, signatures.get(index));
+      if (similarity >= minimumSimilarity) {
+        similarities.put(signedEntries.get(index), similarity);
+      }
+    }
+    List<MinimalZipEntry> result = new ArrayList<>(similarities.keySet());
+    Collections.sort(
+        result,
+        new Comparator<MinimalZipEntry>() {
+          @Override
+          public int compare(MinimalZipEntry entry1, MinimalZipEntry entry2) {
+            int bySimilarity = Double.compare(similarities.get(entry2), similarities.get(entry1));
+            if (bySimilarity != 0) {
+              return bySimilarity;
+            }
+            // Break ties deterministically.
+            return Long.compare(
+                entry1.getFileOffsetOfLocalEntry(), entry2.getFileOffsetOfLocalEntry());
+          }
+        });
+    return Collections.unmodifiableList(result);
+  }
+
+  /**
+   * Estimates the Jaccard similarity of the chunk sets that two signatures were computed from.
+   *
+   * @param signature1 the first signature
+   * @param signature2 the second signature
+   * @return the fraction of hash functions for which the signatures agree
+   */
+  // Visible for testing only
+  static double estimateSimilarity(long[] signature1, long[] signature2) {
+    int agreements = 0;
+    for (int x = 0; x < SIGNATURE_LENGTH; x++) {
+      if (signature1[x] == signature2[x]) {
+        agreements++;
+      }
+    }
+    return agreements / (double) SIGNATURE_LENGTH;
+  }
+
+  /**
+   * Computes the signature of the uncompressed content of the specified entry.
+   *
+   * @param archive the archive that contains the entry
+   * @param entry the entry
+   * @return the signature, or null if the entry is too small or its compression method is not
+   *     supported
+   * @throws IOException if unable to read the entry
+   */
+  private static long[] computeSignature(File archive, MinimalZipEntry entry) throws IOException {
+    if (entry.getUncompressedSize() < MINIMUM_ENTRY_SIZE
+        || (entry.getCompressionMethod() != 0 && !entry.isDeflateCompressed())) {
+      return null;
+    }
+    Sketcher sketcher = new Sketcher();
+    try (RandomAccessFileInputStream in =
+        new RandomAccessFileInputStream(
+            archive, entry.getFileOffsetOfCompressedData(), entry.getCompressedSize())) {
+      if (entry.isDeflateCompressed()) {
+        DeflateUncompressor uncompressor = new DeflateUncompressor();
+        uncompressor.setNowrap(true);
+        uncompressor.uncompress(in, sketcher);
+      } else {
+        byte[] buffer = new byte[32768];
+        int numRead;
+        while ((numRead = in.read(buffer)) >= 0) {
+          sketcher.write(buffer, 0, numRead);
+        }
+      }
+    }
+    return sketcher.finish();
+  }
+
+  /**
+   * Returns the key for the specified band of a signature, which identifies both the band and the
+   * values in it.
+   */
+  private static long bandKey(long[] signature, int band) {
+    long key = band;
+    for (int row = 0; row < ROWS_PER_BAND; row++) {
+      key = mix(key * 31 + signature[band * ROWS_PER_BAND + row]);
+    }
+    return key;
+  }
+
+  /** A 64-bit finalizer (from SplitMix64) that spreads the bits of the input. */
+  private static long mix(long value) {
+    value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+    value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+    return value ^ (value >>> 31);
+  }
+
+  /**
+   * Splits the bytes written to it into content-defined chunks and accumulates the MinHash
+   * signature of the set of chunks.
+   */
+  // Visible for testing only
+  static class Sketcher extends OutputStream {
+    /** The signature so far; each value is the minimum hash of any chunk. */
+    private final long[] signature = new long[SIGNATURE_LENGTH];
+
+    /** The rolling hash used to find chunk boundaries. */
+    private long rollingHash = 0;
+
+    /** The FNV-1a hash of the current chunk. */
+    private long chunkHash = FNV_OFFSET_BASIS;
+
+    /** The length of the current chunk. */
+    private int chunkLength = 0;
+
+    /** The number of chunks seen. */
+    private int chunkCount = 0;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    Sketcher() {
+      Arrays.fill(signature, Long.MAX_VALUE);
+    }
+
+    @Override
+    public void write(int b) {
+      b &= 0xff;
+      rollingHash = (rollingHash << 1) + GEAR[b];
+      chunkHash = (chunkHash ^ b) * FNV_PRIME;
+      chunkLength++;
+      if (chunkLength >= MAXIMUM_CHUNK_SIZE
+          || (chunkLength >= MINIMUM_CHUNK_SIZE && (rollingHash & CHUNK_BOUNDARY_MASK) == 0)) {
+        endChunk();
+      }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      for (int x = off; x < off + len; x++) {
+        write(b[x]);
+      }
+    }
+
+    private void endChunk() {
+      for (int x = 0; x < SIGNATURE_LENGTH; x++) {
+        long value = mix(chunkHash ^ SEEDS[x]);
+        if (value < signature[x]) {
+          signature[x] = value;
+        }
+      }
+      chunkCount++;
+      rollingHash = 0;
+      chunkHash = FNV_OFFSET_BASIS;
+      chunkLength = 0;
+    }
+
+    /**
+     * Ends the last chunk and returns the signature.
+     *
+     * @return the signature, or null if nothing was written
+     */
+    long[] finish() {
+      if (chunkLength > 0) {
+        endChunk();
+      }
+      return chunkCount == 0 ? null : signature.clone();
+    }
+  }
+}
@@ -0,0 +1,200 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator;
+
+import com.google.archivepatcher.shared.DeviceCostModel;
+import com.google.archivepatcher.shared.JreDeflateParameters;
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ApplyTimeLimiter}. */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class ApplyTimeLimiterTest {
+
+  private static final File OLD_FILE = null;
+  private static final File NEW_FILE = null;
+
+  /**
+   * A device that inflates at 1 MB/s, deflates at 1 MB/s at level 1 and 0.25 MB/s at level 9, and
+   * has free I/O; i.e. 1 ms per KB, except 4 ms per KB for deflating at level 9.
+   */
+  private static final DeviceCostModel MODEL =
+      new DeviceCostModel.Builder()
+          .withInflateBytesPerSecond(1000 * 1000)
+          .withDeflateBytesPerSecond(1000 * 1000)
+          .withDeflateBytesPerSecond(JreDeflateParameters.LEVEL9_STRATEGY0_NOWRAP, 250 * 1000)
+          .build();
+
+  private static final MinimalZipEntry UNIMPORTANT = makeFakeEntry("/unimportant", 0, 0);
+
+  /**
+   * Make a structurally valid but totally bogus {@link MinimalZipEntry} for the purpose of testing
+   * the {@link RecommendationModifier}.
+   *
+   * @param path the path to set on the entry, to help with debugging
+   * @param compressedSize the compressed size of the entry, in bytes
+   * @param uncompressedSize the uncompressed size of the entry, in bytes
+   * @return the entry
+   */
+  private static MinimalZipEntry makeFakeEntry(
+      String path, long compressedSize, long uncompressedSize) {
+    try {
+      return new MinimalZipEntry(
+          8, // == deflate
+          0, // crc32OfUncompressedData (ignored for this test)
+          compressedSize,
+          uncompressedSize,
+          path.getBytes("UTF8"),
+          true, // generalPurposeFlagBit11 (true=UTF8)
+          0 // fileOffsetOfLocalEntry (ignored for this test)
+          );
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e); // Impossible on any modern system
+    }
+  }
+
+  /** Makes a recommendation to uncompress a new entry only, so that only deflating costs time. */
+  private static QualifiedRecommendation makeRecommendation(
+      String path, long compressedSize, long uncompressedSize, JreDeflateParameters parameters) {
+    return new QualifiedRecommendation(
+        UNIMPORTANT,
+        makeFakeEntry(path, compressedSize, uncompressedSize),
+        Recommendation.UNCOMPRESS_NEW,
+        RecommendationReason.UNCOMPRESSED_CHANGED_TO_COMPRESSED,
+        parameters);
+  }
+
+  private static QualifiedRecommendation suppressed(QualifiedRecommendation original) {
+    return new QualifiedRecommendation(
+        original.getOldEntry(),
+        original.getNewEntry(),
+        Recommendation.UNCOMPRESS_NEITHER,
+        RecommendationReason.RESOURCE_CONSTRAINED);
+  }
+
+  @Test
+  public void testBadArguments() {
+    try {
+      new ApplyTimeLimiter(MODEL, -1);
+      Assert.fail("Set a negative limit");
+    } catch (IllegalArgumentException expected) {
+      // Pass
+    }
+    try {
+      new ApplyTimeLimiter(null, 1);
+      Assert.fail("Set a null model");
+    } catch (IllegalArgumentException expected) {
+      // Pass
+    }
+  }
+
+  @Test
+  public void testEstimateCostNanos() {
+    ApplyTimeLimiter limiter =
+        new ApplyTimeLimiter(
+            new DeviceCostModel.Builder()
+                .withInflateBytesPerSecond(1000 * 1000)
+                .withDeflateBytesPerSecond(500 * 1000)
+                .withIoNanosPerByte(10)
+                .build(),
+            1000);
+    QualifiedRecommendation recommendation =
+        new QualifiedRecommendation(
+            makeFakeEntry("/old", 400, 1000),
+            makeFakeEntry("/new", 500, 2000),
+            Recommendation.UNCOMPRESS_BOTH,
+            RecommendationReason.COMPRESSED_BYTES_CHANGED,
+            JreDeflateParameters.LEVEL6_STRATEGY0_NOWRAP);
+    // Inflate 1000 bytes (1 ms), deflate 2000 bytes (4 ms) and the I/O for 600 + 1500 extra bytes.
+    Assert.assertEquals(
+        1000 * 1000 + 4 * 1000 * 1000 + 21000, limiter.estimateCostNanos(recommendation));
+    Assert.assertEquals(
+        0,
+        limiter.estimateCostNanos(
+            new QualifiedRecommendation(
+                UNIMPORTANT,
+                UNIMPORTANT,
+                Recommendation.UNCOMPRESS_NEITHER,
+                RecommendationReason.COMPRESSED_BYTES_IDENTICAL)));
+  }
+
+  @Test
+  public void testPrefersCheaperLevels() {
+    // The byte-based limiter would keep the largest entry; it is level 9, so it costs 400 ms, as
+    // much as both of the others together, while saving less.
+    QualifiedRecommendation level9 =
+        makeRecommendation("/level9", 30000, 100000, JreDeflateParameters.LEVEL9_STRATEGY0_NOWRAP);
+    QualifiedRecommendation level1a =
+        makeRecommendation("/level1a", 25000, 80000, JreDeflateParameters.LEVEL1_STRATEGY0_NOWRAP);
+    QualifiedRecommendation level1b =
+        makeRecommendation("/level1b", 25000, 80000, JreDeflateParameters.LEVEL1_STRATEGY0_NOWRAP);
+    QualifiedRecommendation free =
+        new QualifiedRecommendation(
+            UNIMPORTANT,
+            UNIMPORTANT,
+            Recommendation.UNCOMPRESS_NEITHER,
+            RecommendationReason.COMPRESSED_BYTES_IDENTICAL);
+    List<QualifiedRecommendation> result =
+        new ApplyTimeLimiter(MODEL, 200)
+            .getModifiedRecommendations(
+                OLD_FILE, NEW_FILE, Arrays.asList(level9, free, level1a, level1b));
+    Assert.assertEquals(Arrays.asList(suppressed(level9), free, level1a, level1b), result);
+
+    // With room for everything (560 ms, plus a little for rounding), nothing is suppressed.
+    result =
+        new ApplyTimeLimiter(MODEL, 570)
+            .getModifiedRecommendations(
+                OLD_FILE, NEW_FILE, Arrays.asList(level9, free, level1a, level1b));
+    Assert.assertEquals(Arrays.asList(level9, free, level1a, level1b), result);
+  }
+
+  @Test
+  public void testZeroLimit() {
+    QualifiedRecommendation level1 =
+        makeRecommendation("/level1", 25000, 80000, JreDeflateParameters.LEVEL1_STRATEGY0_NOWRAP);
+    Assert.assertEquals(
+        Arrays.asList(suppressed(level1)),
+        new ApplyTimeLimiter(MODEL, 0)
+            .getModifiedRecommendations(OLD_FILE, NEW_FILE, Arrays.asList(level1)));
+  }
+
+  @Test
+  public void testUnknownParametersAssumedSlowest() {
+    QualifiedRecommendation unknown = makeRecommendation("/unknown", 25000, 80000, null);
+    // 80 ms at level 1, 320 ms at level 9.
+    Assert.assertEquals(
+        Arrays.asList(suppressed(unknown)),
+        new ApplyTimeLimiter(MODEL, 100)
+            .getModifiedRecommendations(OLD_FILE, NEW_FILE, Arrays.asList(unknown)));
+  }
+
+  @Test
+  public void testSolveKnapsack() {
+    // The greedy choice by value (the item of value 10) is not optimal.
+    Assert.assertArrayEquals(
+        new boolean[] {false, true, true, true},
+        ApplyTimeLimiter.solveKnapsack(new int[] {6, 3, 3, 0}, new long[] {10, 6, 6, 1}, 6));
+    Assert.assertArrayEquals(
+        new boolean[] {false, true},
+        ApplyTimeLimiter.solveKnapsack(new int[] {7, 0}, new long[] {10, 0}, 6));
+  }
+}
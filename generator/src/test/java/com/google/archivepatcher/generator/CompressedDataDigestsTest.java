@@ -0,0 +1,181 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator;
+
+import com.google.archivepatcher.shared.UnitTestZipArchive;
+import com.google.archivepatcher.shared.UnitTestZipEntry;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link CompressedDataDigests}.
+ */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class CompressedDataDigestsTest {
+
+  @Test
+  public void testCompute() throws Exception {
+    try (TempFileHolder archive = new TempFileHolder()) {
+      UnitTestZipArchive.saveTestZip(archive.file);
+      List<MinimalZipEntry> entries = MinimalZipArchive.listEntries(archive.file);
+      CompressedDataDigests digests = CompressedDataDigests.compute(archive.file, entries);
+      Assert.assertEquals(archive.file.length(), digests.getArchiveLength());
+      for (MinimalZipEntry entry : entries) {
+        UnitTestZipEntry expectedEntry = findUnitTestEntry(entry.getFileName());
+        Assert.assertArrayEquals(
+            MessageDigest.getInstance("SHA-256")
+                .digest(expectedEntry.getCompressedBinaryContent()),
+            digests.getDigest(entry));
+      }
+    }
+  }
+
+  @Test
+  public void testGetDigest_UnknownEntry() throws Exception {
+    try (TempFileHolder archive = new TempFileHolder()) {
+      UnitTestZipArchive.saveTestZip(archive.file);
+      List<MinimalZipEntry> entries = MinimalZipArchive.listEntries(archive.file);
+      // Only compute the digest of the first entry.
+      CompressedDataDigests digests =
+          CompressedDataDigests.compute(archive.file, entries.subList(0, 1));
+      Assert.assertNotNull(digests.getDigest(entries.get(0)));
+      Assert.assertNull(digests.getDigest(entries.get(1)));
+    }
+  }
+
+  @Test
+  public void testWriteToAndReadFrom() throws Exception {
+    try (TempFileHolder archive = new TempFileHolder()) {
+      UnitTestZipArchive.saveTestZip(archive.file);
+      List<MinimalZipEntry> entries = MinimalZipArchive.listEntries(archive.file);
+      CompressedDataDigests digests = CompressedDataDigests.compute(archive.file, entries);
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+      digests.writeTo(buffer);
+      CompressedDataDigests readDigests =
+          CompressedDataDigests.readFrom(new ByteArrayInputStream(buffer.toByteArray()));
+      Assert.assertEquals(digests.getArchiveLength(), readDigests.getArchiveLength());
+      for (MinimalZipEntry entry : entries) {
+        Assert.assertArrayEquals(digests.getDigest(entry), readDigests.getDigest(entry));
+      }
+    }
+  }
+
+  @Test
+  public void testWriteTo_Deterministic() throws Exception {
+    try (TempFileHolder archive = new TempFileHolder()) {
+      UnitTestZipArchive.saveTestZip(archive.file);
+      List<MinimalZipEntry> entries = MinimalZipArchive.listEntries(archive.file);
+      List<MinimalZipEntry> reversedEntries = new ArrayList<MinimalZipEntry>(entries);
+      Collections.reverse(reversedEntries);
+      ByteArrayOutputStream expected = new ByteArrayOutputStream();
+      CompressedDataDigests.compute(archive.file, entries).writeTo(expected);
+      ByteArrayOutputStream actual = new ByteArrayOutputStream();
+      CompressedDataDigests.compute(archive.file, reversedEntries).writeTo(actual);
+      Assert.assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+      // A round trip doesn't change the serialized form either.
+      ByteArrayOutputStream roundTrip = new ByteArrayOutputStream();
+      CompressedDataDigests.readFrom(new ByteArrayInputStream(expected.toByteArray()))
+          .writeTo(roundTrip);
+      Assert.assertArrayEquals(expected.toByteArray(), roundTrip.toByteArray());
+    }
+  }
+
+  @Test
+  public void testIsFor() throws Exception {
+    try (TempFileHolder archive = new TempFileHolder()) {
+      UnitTestZipArchive.saveTestZip(archive.file);
+      List<MinimalZipEntry> entries = MinimalZipArchive.listEntries(archive.file);
+      CompressedDataDigests digests = CompressedDataDigests.compute(archive.file, entries);
+      Assert.assertTrue(digests.isFor(archive.file));
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+      digests.writeTo(buffer);
+      Assert.assertTrue(
+          CompressedDataDigests.readFrom(new ByteArrayInputStream(buffer.toByteArray()))
+              .isFor(archive.file));
+    }
+  }
+
+  @Test
+  public void testIsFor_SameLengthDifferentArchive() throws Exception {
+    try (TempFileHolder archive = new TempFileHolder()) {
+      UnitTestZipArchive.saveTestZip(archive.file);
+      List<MinimalZipEntry> entries = MinimalZipArchive.listEntries(archive.file);
+      CompressedDataDigests digests = CompressedDataDigests.compute(archive.file, entries);
+      // Change one byte of compressed data, keeping the length and the layout of the archive.
+      byte[] modified = UnitTestZipArchive.makeTestZip();
+      modified[(int) entries.get(0).getFileOffsetOfCompressedData()] ^= 1;
+      try (FileOutputStream out = new FileOutputStream(archive.file)) {
+        out.write(modified);
+      }
+      Assert.assertFalse(digests.isFor(archive.file));
+    }
+  }
+
+  @Test
+  public void testIsFor_DifferentLength() throws Exception {
+    try (TempFileHolder archive = new TempFileHolder()) {
+      UnitTestZipArchive.saveTestZip(archive.file);
+      List<MinimalZipEntry> entries = MinimalZipArchive.listEntries(archive.file);
+      CompressedDataDigests digests = CompressedDataDigests.compute(archive.file, entries);
+      try (FileOutputStream out = new FileOutputStream(archive.file, true)) {
+        out.write(0);
+      }
+      Assert.assertFalse(digests.isFor(archive.file));
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testReadFrom_NotDigests() throws Exception {
+    CompressedDataDigests.readFrom(new ByteArrayInputStream(new byte[64]));
+  }
+
+  @Test(expected = IOException.class)
+  public void testCompute_EntryOutsideArchive() throws Exception {
+    try (TempFileHolder archive = new TempFileHolder()) {
+      UnitTestZipArchive.saveTestZip(archive.file);
+      List<MinimalZipEntry> entries = MinimalZipArchive.listEntries(archive.file);
+      // Truncate the archive so that the data of the last entry is missing.
+      byte[] truncated =
+          Arrays.copyOf(
+              UnitTestZipArchive.makeTestZip(),
+              (int) entries.get(entries.size() - 1).getFileOffsetOfCompressedData());
+      try (FileOutputStream out = new FileOutputStream(archive.file)) {
+        out.write(truncated);
+      }
+      CompressedDataDigests.compute(archive.file, entries);
+    }
+  }
+
+  private static UnitTestZipEntry findUnitTestEntry(String path) {
+    for (UnitTestZipEntry entry : UnitTestZipArchive.allEntriesInFileOrder) {
+      if (entry.path.equals(path)) {
+        return entry;
+      }
+    }
+    throw new AssertionError("No such entry: " + path);
+  }
+}
@@ -0,0 +1,112 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link DeadlineInterrupter}.
+ */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class DeadlineInterrupterTest {
+
+  @Test
+  public void testStop_BeforeDeadline() {
+    DeadlineInterrupter interrupter = DeadlineInterrupter.start(TimeUnit.HOURS.toNanos(1));
+    Assert.assertFalse(interrupter.stop());
+    Assert.assertFalse(Thread.currentThread().isInterrupted());
+    // Stopping again has no further effect.
+    Assert.assertFalse(interrupter.stop());
+  }
+
+  @Test
+  public void testStop_AfterDeadline() throws Exception {
+    DeadlineInterrupter interrupter = DeadlineInterrupter.start(TimeUnit.MILLISECONDS.toNanos(1));
+    try {
+      Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+      Assert.fail("Expected the sleep to be interrupted");
+    } catch (InterruptedException expected) {
+      // Expected
+    }
+    Assert.assertTrue(interrupter.stop());
+    Assert.assertFalse(Thread.currentThread().isInterrupted());
+  }
+
+  @Test
+  public void testStop_ClearsUnnoticedInterrupt() {
+    // Work that completes without noticing the interrupt must not leave it pending.
+    DeadlineInterrupter interrupter = DeadlineInterrupter.start(TimeUnit.MILLISECONDS.toNanos(1));
+    long giveUpNanos = System.nanoTime() + TimeUnit.MINUTES.toNanos(1);
+    while (!Thread.currentThread().isInterrupted() && System.nanoTime() < giveUpNanos) {
+      Thread.yield();
+    }
+    Assert.assertTrue(interrupter.stop());
+    Assert.assertFalse(Thread.currentThread().isInterrupted());
+  }
+
+  @Test
+  public void testStop_PreservesEarlierInterrupt() {
+    // An interrupt from elsewhere that is pending when the deadline passes isn't the deadline's.
+    Thread.currentThread().interrupt();
+    DeadlineInterrupter interrupter = DeadlineInterrupter.start(TimeUnit.MILLISECONDS.toNanos(1));
+    long waitUntilNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+    while (System.nanoTime() < waitUntilNanos) {
+      Thread.yield();
+    }
+    try {
+      Assert.assertFalse(interrupter.stop());
+      Assert.assertTrue(Thread.currentThread().isInterrupted());
+    } finally {
+      Thread.interrupted();
+    }
+  }
+
+  @Test
+  public void testStopAfterInterrupt_PreservesLaterInterrupt() throws Exception {
+    DeadlineInterrupter interrupter = DeadlineInterrupter.start(TimeUnit.MILLISECONDS.toNanos(1));
+    try {
+      Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+      Assert.fail("Expected the sleep to be interrupted");
+    } catch (InterruptedException expected) {
+      // Expected
+    }
+    // An interrupt from elsewhere after the work has stopped for the deadline's.
+    Thread.currentThread().interrupt();
+    try {
+      Assert.assertTrue(interrupter.stopAfterInterrupt());
+      Assert.assertTrue(Thread.currentThread().isInterrupted());
+    } finally {
+      Thread.interrupted();
+    }
+  }
+
+  @Test
+  public void testStopAfterInterrupt_AfterDeadline() throws Exception {
+    DeadlineInterrupter interrupter = DeadlineInterrupter.start(TimeUnit.MILLISECONDS.toNanos(1));
+    try {
+      Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+      Assert.fail("Expected the sleep to be interrupted");
+    } catch (InterruptedException expected) {
+      // Expected
+    }
+    Assert.assertTrue(interrupter.stopAfterInterrupt());
+    Assert.assertFalse(Thread.currentThread().isInterrupted());
+  }
+}
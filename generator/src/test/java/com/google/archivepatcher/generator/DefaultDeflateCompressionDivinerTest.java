@@ -25,6 +25,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.List;
 import org.junit.Assert;
 import org.junit.Before;
@@ -105,6 +106,50 @@ public class DefaultDeflateCompressionDivinerTest {
     } // End of iteration on nowrap
   }
 
+  @Test
+  public void testDivineDeflateParameters_MaxLevelsPerStrategy() throws IOException {
+    // Only the three most popular levels (6, 9 and 1) are tried for strategy 0.
+    DefaultDeflateCompressionDiviner shallowDiviner = new DefaultDeflateCompressionDiviner(3);
+    for (int level : new int[] {1, 6, 9}) {
+      JreDeflateParameters parameters = JreDeflateParameters.of(level, 0, true);
+      Assert.assertEquals(
+          parameters,
+          shallowDiviner.divineDeflateParameters(
+              new ByteArrayInputStreamFactory(deflate(parameters))));
+    }
+    for (int level : new int[] {2, 3, 5, 7, 8}) {
+      JreDeflateParameters parameters = JreDeflateParameters.of(level, 0, true);
+      Assert.assertNull(
+          shallowDiviner.divineDeflateParameters(
+              new ByteArrayInputStreamFactory(deflate(parameters))));
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructor_BadMaxLevelsPerStrategy() {
+    new DefaultDeflateCompressionDiviner(0);
+  }
+
+  @Test
+  public void testDivineDeflateParameters_FileInterrupted() throws IOException {
+    File tempFile = File.createTempFile("ddcdt", "tmp");
+    tempFile.deleteOnExit();
+    try {
+      UnitTestZipArchive.saveTestZip(tempFile);
+      Thread.currentThread().interrupt();
+      try {
+        diviner.divineDeflateParameters(tempFile);
+        Assert.fail("Expected an InterruptedIOException");
+      } catch (InterruptedIOException expected) {
+        // Expected; the interrupt has been consumed.
+        Assert.assertFalse(Thread.currentThread().isInterrupted());
+      }
+    } finally {
+      Thread.interrupted();
+      tempFile.delete();
+    }
+  }
+
   @Test
   public void testDivineDeflateParameters_File() throws IOException {
     File tempFile = File.createTempFile("ddcdt", "tmp");
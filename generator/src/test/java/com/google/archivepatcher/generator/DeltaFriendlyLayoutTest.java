@@ -0,0 +1,95 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator;
+
+import com.google.archivepatcher.shared.TypedRange;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link DeltaFriendlyLayout}.
+ */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class DeltaFriendlyLayoutTest {
+
+  @Test
+  public void testToDeltaFriendlyOffset() {
+    // Range [10, 20) inflates to 30 bytes, range [50, 80) inflates to 100 bytes.
+    List<TypedRange<Void>> plan = new ArrayList<TypedRange<Void>>();
+    plan.add(new TypedRange<Void>(10, 10, null));
+    plan.add(new TypedRange<Void>(50, 30, null));
+    Map<Long, Long> uncompressedSizes = new HashMap<Long, Long>();
+    uncompressedSizes.put(10L, 30L);
+    uncompressedSizes.put(50L, 100L);
+    DeltaFriendlyLayout layout = new DeltaFriendlyLayout(plan, uncompressedSizes);
+
+    Assert.assertEquals(0, layout.toDeltaFriendlyOffset(0));
+    Assert.assertEquals(9, layout.toDeltaFriendlyOffset(9));
+    Assert.assertEquals(10, layout.toDeltaFriendlyOffset(10));
+    Assert.assertEquals(40, layout.toDeltaFriendlyOffset(20));
+    Assert.assertEquals(70, layout.toDeltaFriendlyOffset(50));
+    Assert.assertEquals(170, layout.toDeltaFriendlyOffset(80));
+    Assert.assertEquals(190, layout.toDeltaFriendlyOffset(100));
+  }
+
+  @Test
+  public void testGetDeltaFriendlyLengthAndRanges() {
+    List<TypedRange<String>> plan = new ArrayList<TypedRange<String>>();
+    plan.add(new TypedRange<String>(10, 10, "first"));
+    plan.add(new TypedRange<String>(50, 30, "second"));
+    Map<Long, Long> uncompressedSizes = new HashMap<Long, Long>();
+    uncompressedSizes.put(10L, 30L);
+    uncompressedSizes.put(50L, 100L);
+    DeltaFriendlyLayout layout = new DeltaFriendlyLayout(plan, uncompressedSizes);
+
+    Assert.assertEquals(190, layout.getDeltaFriendlyLength(100));
+    List<TypedRange<String>> expected = new ArrayList<TypedRange<String>>();
+    expected.add(new TypedRange<String>(10, 30, "first"));
+    expected.add(new TypedRange<String>(70, 100, "second"));
+    Assert.assertEquals(expected, layout.getDeltaFriendlyRanges(plan));
+  }
+
+  @Test
+  public void testToDeltaFriendlyOffset_EmptyPlan() {
+    DeltaFriendlyLayout layout =
+        new DeltaFriendlyLayout(
+            Collections.<TypedRange<Void>>emptyList(), Collections.<Long, Long>emptyMap());
+    Assert.assertEquals(123, layout.toDeltaFriendlyOffset(123));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testToDeltaFriendlyOffset_InsideRange() {
+    DeltaFriendlyLayout layout =
+        new DeltaFriendlyLayout(
+            Collections.singletonList(new TypedRange<Void>(10, 10, null)),
+            Collections.singletonMap(10L, 30L));
+    layout.toDeltaFriendlyOffset(15);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructor_MissingSize() {
+    new DeltaFriendlyLayout(
+        Collections.singletonList(new TypedRange<Void>(10, 10, null)),
+        Collections.<Long, Long>emptyMap());
+  }
+}
@@ -14,8 +14,22 @@
 
 package com.google.archivepatcher.generator;
 
+import com.google.archivepatcher.generator.bsdiff.CopyRange;
+import com.google.archivepatcher.generator.bsdiff.DirectByteBufferPool;
+import com.google.archivepatcher.generator.bsdiff.MemoryBudget;
+import com.google.archivepatcher.shared.PatchConstants;
 import com.google.archivepatcher.shared.UnitTestZipArchive;
+import com.google.archivepatcher.shared.UnitTestZipEntry;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -48,4 +62,299 @@ public class FileByFileV1DeltaGeneratorTest {
     byte[] result = buffer.toByteArray();
     Assert.assertTrue(result.length > 0);
   }
+
+  @Test
+  public void testGenerateDelta_WithMemoryBudget() throws Exception {
+    // The patch must not depend on where the storage lives.
+    byte[] expected = generateDelta(new FileByFileV1DeltaGenerator.Builder().build());
+    MemoryBudget budget = new MemoryBudget(Long.MAX_VALUE);
+    Assert.assertArrayEquals(
+        expected,
+        generateDelta(new FileByFileV1DeltaGenerator.Builder().withMemoryBudget(budget).build()));
+    Assert.assertArrayEquals(
+        expected,
+        generateDelta(
+            new FileByFileV1DeltaGenerator.Builder()
+                .withMemoryBudget(budget)
+                .withDirectByteBufferPool(new DirectByteBufferPool(Long.MAX_VALUE))
+                .build()));
+    Assert.assertEquals(Long.MAX_VALUE, budget.getAvailableBytes());
+  }
+
+  @Test
+  public void testGenerateDelta_WithIdenticalEntryCopies() throws Exception {
+    FileByFileV1DeltaGenerator generator =
+        new FileByFileV1DeltaGenerator.Builder().withIdenticalEntryCopies(true).build();
+    byte[] result = generateDelta(generator);
+    Assert.assertTrue(result.length > 0);
+  }
+
+  @Test
+  public void testGenerateDelta_WithMetricsListener() throws Exception {
+    // Reporting measurements must not change the patch.
+    byte[] expected = generateDelta(new FileByFileV1DeltaGenerator.Builder().build());
+    GenerationMetricsCollector collector = new GenerationMetricsCollector();
+    Assert.assertArrayEquals(
+        expected,
+        generateDelta(
+            new FileByFileV1DeltaGenerator.Builder().withMetricsListener(collector).build()));
+    for (GenerationMetricsListener.Stage stage : GenerationMetricsListener.Stage.values()) {
+      Assert.assertEquals(stage.name(), 1, collector.getStageMetrics(stage).getCount());
+    }
+    Assert.assertEquals(
+        expected.length,
+        collector.getStageMetrics(GenerationMetricsListener.Stage.WRITE_PATCH).getTotalBytes());
+    Assert.assertTrue(collector.getLargeBufferCount() > 0);
+    Assert.assertTrue(collector.getPeakTempDiskBytes() > 0);
+  }
+
+  @Test
+  public void testGetIdenticalEntryCopyRanges() throws Exception {
+    // The first entry changes and is uncompressed, which moves the second, unchanged entry to a
+    // different offset in the delta-friendly files.
+    UnitTestZipEntry oldChanged =
+        UnitTestZipArchive.makeUnitTestZipEntry("/changed", 6, "old content", null);
+    UnitTestZipEntry newChanged =
+        UnitTestZipArchive.makeUnitTestZipEntry("/changed", 6, "new content", null);
+    UnitTestZipEntry unchanged =
+        UnitTestZipArchive.makeUnitTestZipEntry("/unchanged", 6, "same content", null);
+    try (TempFileHolder oldArchive = new TempFileHolder();
+        TempFileHolder newArchive = new TempFileHolder();
+        TempFileHolder deltaFriendlyOldFile = new TempFileHolder();
+        TempFileHolder deltaFriendlyNewFile = new TempFileHolder()) {
+      write(oldArchive.file, UnitTestZipArchive.makeTestZip(Arrays.asList(oldChanged, unchanged)));
+      write(newArchive.file, UnitTestZipArchive.makeTestZip(Arrays.asList(newChanged, unchanged)));
+      PreDiffPlan plan =
+          new PreDiffExecutor.Builder()
+              .readingOriginalFiles(oldArchive.file, newArchive.file)
+              .writingDeltaFriendlyFiles(deltaFriendlyOldFile.file, deltaFriendlyNewFile.file)
+              .build()
+              .prepareForDiffing();
+      Assert.assertEquals(1, plan.getOldFileUncompressionPlan().size());
+
+      List<CopyRange> copyRanges = FileByFileV1DeltaGenerator.getIdenticalEntryCopyRanges(plan);
+      Assert.assertEquals(1, copyRanges.size());
+      CopyRange copyRange = copyRanges.get(0);
+      Assert.assertEquals(unchanged.getCompressedBinaryContent().length, copyRange.getLength());
+      Assert.assertArrayEquals(
+          unchanged.getCompressedBinaryContent(),
+          read(deltaFriendlyOldFile.file, copyRange.getOldOffset(), copyRange.getLength()));
+      Assert.assertArrayEquals(
+          unchanged.getCompressedBinaryContent(),
+          read(deltaFriendlyNewFile.file, copyRange.getNewOffset(), copyRange.getLength()));
+    }
+  }
+
+  private static void write(File file, byte[] data) throws IOException {
+    try (FileOutputStream out = new FileOutputStream(file)) {
+      out.write(data);
+    }
+  }
+
+  @Test
+  public void testGenerateDelta_WithEffortLevel() throws Exception {
+    // BALANCED is the default configuration, so it must not change the patch.
+    byte[] expected = generateDelta(new FileByFileV1DeltaGenerator.Builder().build());
+    Assert.assertArrayEquals(
+        expected,
+        generateDelta(
+            new FileByFileV1DeltaGenerator.Builder()
+                .withEffortLevel(EffortLevel.BALANCED)
+                .build()));
+    for (EffortLevel effortLevel : EffortLevel.values()) {
+      byte[] result =
+          generateDelta(
+              new FileByFileV1DeltaGenerator.Builder().withEffortLevel(effortLevel).build());
+      Assert.assertTrue(effortLevel.name(), result.length > 0);
+    }
+  }
+
+  @Test
+  public void testGenerateDelta_SettingsOverrideEffortLevel() throws Exception {
+    // Settings made after the effort level take precedence over those of the level.
+    byte[] expected =
+        generateDelta(
+            new FileByFileV1DeltaGenerator.Builder().withIdenticalEntryCopies(true).build());
+    Assert.assertArrayEquals(
+        expected,
+        generateDelta(
+            new FileByFileV1DeltaGenerator.Builder()
+                .withEffortLevel(EffortLevel.FAST)
+                .withEffortLevel(EffortLevel.BALANCED)
+                .withIdenticalEntryCopies(true)
+                .build()));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_NullEffortLevel() {
+    new FileByFileV1DeltaGenerator.Builder().withEffortLevel(null);
+  }
+
+  @Test
+  public void testGenerateDeltaWithResult_NoDeadline() throws Exception {
+    byte[] expected = generateDelta(new FileByFileV1DeltaGenerator());
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    GenerationResult result =
+        generateDeltaWithResult(new FileByFileV1DeltaGenerator.Builder().build(), buffer);
+    Assert.assertEquals(GenerationResult.Strategy.CONFIGURED, result.getStrategy());
+    Assert.assertFalse(result.isDegraded());
+    Assert.assertTrue(result.getElapsedNanos() > 0);
+    Assert.assertArrayEquals(expected, buffer.toByteArray());
+  }
+
+  @Test
+  public void testGenerateDeltaWithResult_DeadlineMet() throws Exception {
+    byte[] expected = generateDelta(new FileByFileV1DeltaGenerator());
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    GenerationResult result =
+        generateDeltaWithResult(
+            new FileByFileV1DeltaGenerator.Builder().withDeadline(Long.MAX_VALUE / 2).build(),
+            buffer);
+    Assert.assertEquals(GenerationResult.Strategy.CONFIGURED, result.getStrategy());
+    Assert.assertArrayEquals(expected, buffer.toByteArray());
+    Assert.assertFalse(Thread.currentThread().isInterrupted());
+  }
+
+  @Test
+  public void testGenerateDeltaWithResult_ZeroDeadline() throws Exception {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    GenerationResult result =
+        generateDeltaWithResult(
+            new FileByFileV1DeltaGenerator.Builder().withDeadline(0).build(), buffer);
+    Assert.assertEquals(GenerationResult.Strategy.COPY_ONLY, result.getStrategy());
+    Assert.assertTrue(result.isDegraded());
+    Assert.assertTrue(buffer.size() > 0);
+  }
+
+  @Test
+  public void testGenerateDelta_StreamedPatchOutput() throws Exception {
+    byte[] expected = generateDelta(new FileByFileV1DeltaGenerator());
+    byte[] actual =
+        generateDelta(
+            new FileByFileV1DeltaGenerator.Builder().withStreamedPatchOutput(true).build());
+    // The patches only differ in the delta length, which follows the header, the old file
+    // uncompression instructions, the new file recompression instructions, the number of deltas,
+    // the delta format and the work ranges.
+    Assert.assertEquals(expected.length, actual.length);
+    DataInputStream patchIn = new DataInputStream(new ByteArrayInputStream(expected));
+    patchIn.skipBytes(8 + 4 + 8);
+    int numOldFileUncompressionInstructions = patchIn.readInt();
+    patchIn.skipBytes(numOldFileUncompressionInstructions * 16);
+    int numNewFileRecompressionInstructions = patchIn.readInt();
+    patchIn.skipBytes(numNewFileRecompressionInstructions * 20);
+    patchIn.skipBytes(4 + 1 + 32);
+    int lengthOffset = expected.length - patchIn.available();
+    Assert.assertEquals(expected.length - lengthOffset - 8, patchIn.readLong());
+    DataInputStream streamedPatchIn =
+        new DataInputStream(new ByteArrayInputStream(actual, lengthOffset, 8));
+    Assert.assertEquals(PatchConstants.STREAMED_DELTA_LENGTH, streamedPatchIn.readLong());
+    for (int x = 0; x < expected.length; x++) {
+      if (x < lengthOffset || x >= lengthOffset + 8) {
+        Assert.assertEquals(expected[x], actual[x]);
+      }
+    }
+  }
+
+  @Test
+  public void testGenerateDelta_DeltaCompression() throws Exception {
+    byte[] uncompressed = generateDelta(new FileByFileV1DeltaGenerator());
+    byte[] compressed =
+        generateDelta(
+            new FileByFileV1DeltaGenerator.Builder()
+                .withDeltaCompression(PatchConstants.DeltaCompression.DEFLATE)
+                .build());
+    // The delta compression is recorded in the flags, which follow the identifier.
+    DataInputStream patchIn = new DataInputStream(new ByteArrayInputStream(compressed));
+    patchIn.skipBytes(8);
+    Assert.assertEquals(PatchConstants.DeltaCompression.DEFLATE.patchValue, patchIn.readInt());
+    Assert.assertTrue(compressed.length < uncompressed.length);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_NullDeltaCompression() {
+    new FileByFileV1DeltaGenerator.Builder().withDeltaCompression(null);
+  }
+
+  @Test
+  public void testGenerateDeltaWithResult_StreamedPatchOutputWithZeroDeadline() throws Exception {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    GenerationResult result =
+        generateDeltaWithResult(
+            new FileByFileV1DeltaGenerator.Builder()
+                .withStreamedPatchOutput(true)
+                .withDeadline(0)
+                .build(),
+            buffer);
+    Assert.assertEquals(GenerationResult.Strategy.COPY_ONLY, result.getStrategy());
+    Assert.assertTrue(buffer.size() > 0);
+  }
+
+  @Test
+  public void testGenerateDelta_TempDir() throws Exception {
+    byte[] expected =
+        generateDelta(
+            new FileByFileV1DeltaGenerator.Builder()
+                .withDeltaFormat(PatchConstants.DeltaFormat.BSDIFF_SECTIONED)
+                .build());
+    File tempDir = Files.createTempDirectory("generator").toFile();
+    try {
+      byte[] actual =
+          generateDelta(
+              new FileByFileV1DeltaGenerator.Builder()
+                  .withDeltaFormat(PatchConstants.DeltaFormat.BSDIFF_SECTIONED)
+                  .withTempDir(tempDir)
+                  .build());
+      Assert.assertArrayEquals(expected, actual);
+      Assert.assertEquals(0, tempDir.list().length);
+    } finally {
+      tempDir.delete();
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testGenerateDelta_MissingTempDir() throws Exception {
+    File tempDir = Files.createTempDirectory("generator").toFile();
+    tempDir.delete();
+    generateDelta(new FileByFileV1DeltaGenerator.Builder().withTempDir(tempDir).build());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_NullTempDir() {
+    new FileByFileV1DeltaGenerator.Builder().withTempDir(null);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_NegativeDeadline() {
+    new FileByFileV1DeltaGenerator.Builder().withDeadline(-1);
+  }
+
+  private static byte[] read(File file, long offset, long length) throws IOException {
+    byte[] result = new byte[(int) length];
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      raf.seek(offset);
+      raf.readFully(result);
+    }
+    return result;
+  }
+
+  private static GenerationResult generateDeltaWithResult(
+      FileByFileV1DeltaGenerator generator, ByteArrayOutputStream buffer) throws Exception {
+    try (TempFileHolder oldArchive = new TempFileHolder();
+        TempFileHolder newArchive = new TempFileHolder()) {
+      UnitTestZipArchive.saveTestZip(oldArchive.file);
+      UnitTestZipArchive.saveTestZip(newArchive.file);
+      return generator.generateDeltaWithResult(oldArchive.file, newArchive.file, buffer);
+    }
+  }
+
+  private static byte[] generateDelta(FileByFileV1DeltaGenerator generator) throws Exception {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    try (TempFileHolder oldArchive = new TempFileHolder();
+        TempFileHolder newArchive = new TempFileHolder()) {
+      UnitTestZipArchive.saveTestZip(oldArchive.file);
+      UnitTestZipArchive.saveTestZip(newArchive.file);
+      generator.generateDelta(oldArchive.file, newArchive.file, buffer);
+    }
+    return buffer.toByteArray();
+  }
 }
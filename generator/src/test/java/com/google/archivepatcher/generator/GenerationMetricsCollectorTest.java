@@ -0,0 +1,86 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator;
+
+import com.google.archivepatcher.generator.GenerationMetricsListener.Stage;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link GenerationMetricsCollector}.
+ */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class GenerationMetricsCollectorTest {
+
+  @Test
+  public void testStageCompleted() {
+    GenerationMetricsCollector collector = new GenerationMetricsCollector();
+    collector.stageCompleted(Stage.SUFFIX_SORT, 1000000000L, 300, 0);
+    collector.stageCompleted(Stage.SUFFIX_SORT, 2000000000L, 600, 0);
+    collector.stageCompleted(Stage.PLAN, 5, 0, 7);
+    GenerationMetricsCollector.StageMetrics sort = collector.getStageMetrics(Stage.SUFFIX_SORT);
+    Assert.assertEquals(2, sort.getCount());
+    Assert.assertEquals(3000000000L, sort.getTotalNanos());
+    Assert.assertEquals(900, sort.getTotalBytes());
+    Assert.assertEquals(300d, sort.getBytesPerSecond(), 0d);
+    Assert.assertEquals(7, collector.getStageMetrics(Stage.PLAN).getTotalEntries());
+
+    GenerationMetricsCollector.StageMetrics none = collector.getStageMetrics(Stage.WRITE_PATCH);
+    Assert.assertEquals(0, none.getCount());
+    Assert.assertEquals(0d, none.getBytesPerSecond(), 0d);
+  }
+
+  @Test
+  public void testStageMetricsIsSnapshot() {
+    GenerationMetricsCollector collector = new GenerationMetricsCollector();
+    collector.stageCompleted(Stage.PLAN, 1, 2, 3);
+    GenerationMetricsCollector.StageMetrics snapshot = collector.getStageMetrics(Stage.PLAN);
+    collector.stageCompleted(Stage.PLAN, 1, 2, 3);
+    Assert.assertEquals(1, snapshot.getCount());
+    Assert.assertEquals(2, collector.getStageMetrics(Stage.PLAN).getCount());
+  }
+
+  @Test
+  public void testLargeBuffersAndTempDisk() {
+    GenerationMetricsCollector collector = new GenerationMetricsCollector();
+    collector.largeBufferAllocated("a", 100);
+    collector.largeBufferAllocated("b", 300);
+    collector.tempDiskUsage(50);
+    collector.tempDiskUsage(500);
+    collector.tempDiskUsage(20);
+    Assert.assertEquals(2, collector.getLargeBufferCount());
+    Assert.assertEquals(400, collector.getLargeBufferTotalBytes());
+    Assert.assertEquals(300, collector.getLargestBufferBytes());
+    Assert.assertEquals(500, collector.getPeakTempDiskBytes());
+  }
+
+  @Test
+  public void testToMap() {
+    GenerationMetricsCollector collector = new GenerationMetricsCollector();
+    collector.stageCompleted(Stage.SUFFIX_SORT, 10, 20, 0);
+    collector.tempDiskUsage(42);
+    Map<String, Long> map = collector.toMap();
+    Assert.assertEquals(Stage.values().length * 4 + 4, map.size());
+    Assert.assertEquals(Long.valueOf(1), map.get("suffix_sort.count"));
+    Assert.assertEquals(Long.valueOf(10), map.get("suffix_sort.nanos"));
+    Assert.assertEquals(Long.valueOf(20), map.get("suffix_sort.bytes"));
+    Assert.assertEquals(Long.valueOf(0), map.get("write_patch.count"));
+    Assert.assertEquals(Long.valueOf(42), map.get("temp_disk.peak_bytes"));
+  }
+}
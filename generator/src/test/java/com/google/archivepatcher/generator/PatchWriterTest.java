@@ -31,6 +31,7 @@ import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -149,4 +150,194 @@ public class PatchWriterTest {
     patchIn.readFully(actualDeltaContent);
     Assert.assertArrayEquals(expectedDeltaContent, actualDeltaContent);
   }
+
+  @Test
+  public void testWriteV1PatchHeaderForStreamedDelta() throws IOException {
+    new PatchWriter(PLAN, DELTA_FRIENDLY_OLD_FILE_SIZE, DELTA_FRIENDLY_NEW_FILE_SIZE, deltaFile)
+        .writeV1Patch(buffer);
+    byte[] patch = buffer.toByteArray();
+    buffer.reset();
+    new PatchWriter.Builder(PLAN, DELTA_FRIENDLY_OLD_FILE_SIZE, DELTA_FRIENDLY_NEW_FILE_SIZE)
+        .build()
+        .writeV1PatchHeaderForStreamedDelta(buffer);
+    byte[] header = buffer.toByteArray();
+
+    // The header is the patch up to the delta, except that the delta length is the streamed one.
+    int deltaLength = DELTA_CONTENT.getBytes("US-ASCII").length;
+    Assert.assertEquals(patch.length - deltaLength, header.length);
+    for (int x = 0; x < header.length - 8; x++) {
+      Assert.assertEquals(patch[x], header[x]);
+    }
+    DataInputStream headerIn =
+        new DataInputStream(new ByteArrayInputStream(header, header.length - 8, 8));
+    Assert.assertEquals(PatchConstants.STREAMED_DELTA_LENGTH, headerIn.readLong());
+  }
+
+  @Test
+  public void testWriteV1Patch_DeltaCompression() throws IOException {
+    new PatchWriter(PLAN, DELTA_FRIENDLY_OLD_FILE_SIZE, DELTA_FRIENDLY_NEW_FILE_SIZE, deltaFile)
+        .writeV1Patch(buffer);
+    byte[] uncompressedPatch = buffer.toByteArray();
+    buffer.reset();
+    new PatchWriter.Builder(PLAN, DELTA_FRIENDLY_OLD_FILE_SIZE, DELTA_FRIENDLY_NEW_FILE_SIZE)
+        .withDeltaFile(deltaFile)
+        .withDeltaCompression(PatchConstants.DeltaCompression.DEFLATE)
+        .build()
+        .writeV1Patch(buffer);
+    byte[] compressedPatch = buffer.toByteArray();
+
+    // Only the identifier and the flags differ, as the delta file is copied as-is.
+    Assert.assertEquals(uncompressedPatch.length, compressedPatch.length);
+    Assert.assertArrayEquals(
+        PatchConstants.EXTENDED_IDENTIFIER.getBytes("US-ASCII"), Arrays.copyOf(compressedPatch, 8));
+    DataInputStream flagsIn = new DataInputStream(new ByteArrayInputStream(compressedPatch, 8, 4));
+    Assert.assertEquals(PatchConstants.DeltaCompression.DEFLATE.patchValue, flagsIn.readInt());
+    for (int x = 0; x < uncompressedPatch.length; x++) {
+      if (x >= 12) {
+        Assert.assertEquals(uncompressedPatch[x], compressedPatch[x]);
+      }
+    }
+  }
+
+  @Test
+  public void testWriteV1Patch_NewArchiveSha256() throws IOException {
+    new PatchWriter(PLAN, DELTA_FRIENDLY_OLD_FILE_SIZE, DELTA_FRIENDLY_NEW_FILE_SIZE, deltaFile)
+        .writeV1Patch(buffer);
+    byte[] patch = buffer.toByteArray();
+    buffer.reset();
+    byte[] sha256 = new byte[PatchConstants.SHA256_LENGTH];
+    for (int x = 0; x < sha256.length; x++) {
+      sha256[x] = (byte) (x + 1);
+    }
+    new PatchWriter.Builder(PLAN, DELTA_FRIENDLY_OLD_FILE_SIZE, DELTA_FRIENDLY_NEW_FILE_SIZE)
+        .withDeltaFile(deltaFile)
+        .withNewArchiveSha256(sha256)
+        .build()
+        .writeV1Patch(buffer);
+    byte[] patchWithSha256 = buffer.toByteArray();
+
+    // The identifier is the extended one, the flag is set and the digest is inserted right after
+    // the flags; the rest is unchanged.
+    Assert.assertEquals(patch.length + sha256.length, patchWithSha256.length);
+    Assert.assertArrayEquals(
+        "GFbFv1_1".getBytes("US-ASCII"), Arrays.copyOf(patchWithSha256, 8));
+    DataInputStream flagsIn = new DataInputStream(new ByteArrayInputStream(patchWithSha256, 8, 4));
+    Assert.assertEquals(PatchConstants.NEW_ARCHIVE_SHA256_FLAG, flagsIn.readInt());
+    for (int x = 0; x < sha256.length; x++) {
+      Assert.assertEquals(sha256[x], patchWithSha256[12 + x]);
+    }
+    for (int x = 0; x < patch.length; x++) {
+      if (x >= 12) {
+        Assert.assertEquals(patch[x], patchWithSha256[x + sha256.length]);
+      }
+    }
+  }
+
+  @Test
+  public void testWriteV1Patch_OldArchiveFingerprint() throws IOException {
+    byte[] sha256 = new byte[PatchConstants.SHA256_LENGTH];
+    byte[] fingerprint = new byte[PatchConstants.SHA256_LENGTH];
+    for (int x = 0; x < sha256.length; x++) {
+      sha256[x] = (byte) (x + 1);
+      fingerprint[x] = (byte) (x + 100);
+    }
+    new PatchWriter.Builder(PLAN, DELTA_FRIENDLY_OLD_FILE_SIZE, DELTA_FRIENDLY_NEW_FILE_SIZE)
+        .withDeltaFile(deltaFile)
+        .withNewArchiveSha256(sha256)
+        .build()
+        .writeV1Patch(buffer);
+    byte[] patch = buffer.toByteArray();
+    buffer.reset();
+    new PatchWriter.Builder(PLAN, DELTA_FRIENDLY_OLD_FILE_SIZE, DELTA_FRIENDLY_NEW_FILE_SIZE)
+        .withDeltaFile(deltaFile)
+        .withNewArchiveSha256(sha256)
+        .withOldArchiveFingerprint(fingerprint)
+        .build()
+        .writeV1Patch(buffer);
+    byte[] patchWithFingerprint = buffer.toByteArray();
+
+    // The flag is set and the fingerprint is inserted right after the new archive digest.
+    int fingerprintOffset = 12 + sha256.length;
+    Assert.assertEquals(patch.length + fingerprint.length, patchWithFingerprint.length);
+    DataInputStream flagsIn =
+        new DataInputStream(new ByteArrayInputStream(patchWithFingerprint, 8, 4));
+    Assert.assertEquals(
+        PatchConstants.NEW_ARCHIVE_SHA256_FLAG | PatchConstants.OLD_ARCHIVE_FINGERPRINT_FLAG,
+        flagsIn.readInt());
+    for (int x = 0; x < fingerprint.length; x++) {
+      Assert.assertEquals(fingerprint[x], patchWithFingerprint[fingerprintOffset + x]);
+    }
+    for (int x = 0; x < patch.length; x++) {
+      if (x < 8 || (x >= 12 && x < fingerprintOffset)) {
+        Assert.assertEquals(patch[x], patchWithFingerprint[x]);
+      } else if (x >= fingerprintOffset) {
+        Assert.assertEquals(patch[x], patchWithFingerprint[x + fingerprint.length]);
+      }
+    }
+  }
+
+  @Test
+  public void testWriteV1Patch_OldArchiveFingerprintWithoutSha256() throws IOException {
+    new PatchWriter.Builder(PLAN, DELTA_FRIENDLY_OLD_FILE_SIZE, DELTA_FRIENDLY_NEW_FILE_SIZE)
+        .withDeltaFile(deltaFile)
+        .withOldArchiveFingerprint(new byte[PatchConstants.SHA256_LENGTH])
+        .build()
+        .writeV1Patch(buffer);
+    byte[] patch = buffer.toByteArray();
+
+    // The fingerprint alone also needs the extended identifier.
+    Assert.assertArrayEquals(
+        PatchConstants.EXTENDED_IDENTIFIER.getBytes("US-ASCII"), Arrays.copyOf(patch, 8));
+    DataInputStream flagsIn = new DataInputStream(new ByteArrayInputStream(patch, 8, 4));
+    Assert.assertEquals(PatchConstants.OLD_ARCHIVE_FINGERPRINT_FLAG, flagsIn.readInt());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testWriteV1Patch_BadOldArchiveFingerprint() {
+    new PatchWriter.Builder(PLAN, DELTA_FRIENDLY_OLD_FILE_SIZE, DELTA_FRIENDLY_NEW_FILE_SIZE)
+        .withDeltaFile(deltaFile)
+        .withOldArchiveFingerprint(new byte[16])
+        .build();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testWriteV1Patch_BadNewArchiveSha256() {
+    new PatchWriter.Builder(PLAN, DELTA_FRIENDLY_OLD_FILE_SIZE, DELTA_FRIENDLY_NEW_FILE_SIZE)
+        .withDeltaFile(deltaFile)
+        .withNewArchiveSha256(new byte[16])
+        .build();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testWriteV1Patch_StreamedDelta() throws IOException {
+    new PatchWriter.Builder(PLAN, DELTA_FRIENDLY_OLD_FILE_SIZE, DELTA_FRIENDLY_NEW_FILE_SIZE)
+        .build()
+        .writeV1Patch(buffer);
+  }
+
+  @Test
+  public void testWriteV1Patch_Gdiff() throws IOException {
+    new PatchWriter(PLAN, DELTA_FRIENDLY_OLD_FILE_SIZE, DELTA_FRIENDLY_NEW_FILE_SIZE, deltaFile)
+        .writeV1Patch(buffer);
+    byte[] bsdiffPatch = buffer.toByteArray();
+    buffer.reset();
+    new PatchWriter.Builder(PLAN, DELTA_FRIENDLY_OLD_FILE_SIZE, DELTA_FRIENDLY_NEW_FILE_SIZE)
+        .withDeltaFile(deltaFile)
+        .withDeltaFormat(PatchConstants.DeltaFormat.GDIFF)
+        .build()
+        .writeV1Patch(buffer);
+    byte[] gdiffPatch = buffer.toByteArray();
+
+    // Only the delta format differs; it follows the number of difference records.
+    Assert.assertEquals(bsdiffPatch.length, gdiffPatch.length);
+    int formatOffset = 8 + 4 + 8 + (4 + 16) + (4 + 16 + 4) + 4;
+    for (int x = 0; x < bsdiffPatch.length; x++) {
+      if (x == formatOffset) {
+        Assert.assertEquals(PatchConstants.DeltaFormat.BSDIFF.patchValue, bsdiffPatch[x]);
+        Assert.assertEquals(PatchConstants.DeltaFormat.GDIFF.patchValue, gdiffPatch[x]);
+      } else {
+        Assert.assertEquals(bsdiffPatch[x], gdiffPatch[x]);
+      }
+    }
+  }
 }
@@ -22,6 +22,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
@@ -228,4 +229,63 @@ public class PreDiffExecutorTest {
     assertFileEquals(oldFile, deltaFriendlyOldFile);
     assertFileEquals(newFile, deltaFriendlyNewFile);
   }
+
+  @Test
+  public void testPrepareForDiffing_OneCompressedEntry_Changed_NoDivination() throws IOException {
+    // Like above, but this time without divination, so the new entry can't be recompressed.
+    byte[] oldBytes = UnitTestZipArchive.makeTestZip(Collections.singletonList(ENTRY_LEVEL_6));
+    File oldFile = store(oldBytes);
+    byte[] newBytes = UnitTestZipArchive.makeTestZip(Collections.singletonList(ENTRY_LEVEL_9));
+    File newFile = store(newBytes);
+    PreDiffExecutor executor =
+        new PreDiffExecutor.Builder()
+            .readingOriginalFiles(oldFile, newFile)
+            .writingDeltaFriendlyFiles(deltaFriendlyOldFile, deltaFriendlyNewFile)
+            .withDeflateDivination(false)
+            .build();
+    PreDiffPlan plan = executor.prepareForDiffing();
+    Assert.assertNotNull(plan);
+    // The plan should be to leave everything alone because nothing can be recompressed.
+    Assert.assertTrue(plan.getOldFileUncompressionPlan().isEmpty());
+    Assert.assertTrue(plan.getNewFileUncompressionPlan().isEmpty());
+    Assert.assertTrue(plan.getDeltaFriendlyNewFileRecompressionPlan().isEmpty());
+    assertFileEquals(oldFile, deltaFriendlyOldFile);
+    assertFileEquals(newFile, deltaFriendlyNewFile);
+  }
+
+  @Test
+  public void testPrepareForDiffing_PlanOnly() throws IOException {
+    // Without delta-friendly files, the recompression plan and the sizes are computed from the
+    // archive metadata, and must be the same as when the delta-friendly files are written.
+    UnitTestZipEntry unchanged =
+        UnitTestZipArchive.makeUnitTestZipEntry("/unchanged", 6, "entry B", null);
+    File oldFile = store(UnitTestZipArchive.makeTestZip(Arrays.asList(ENTRY_LEVEL_6, unchanged)));
+    File newFile = store(UnitTestZipArchive.makeTestZip(Arrays.asList(ENTRY_LEVEL_9, unchanged)));
+    PreDiffPlan expected =
+        new PreDiffExecutor.Builder()
+            .readingOriginalFiles(oldFile, newFile)
+            .writingDeltaFriendlyFiles(deltaFriendlyOldFile, deltaFriendlyNewFile)
+            .build()
+            .prepareForDiffing();
+    Assert.assertEquals(deltaFriendlyOldFile.length(), expected.getDeltaFriendlyOldFileSize());
+    Assert.assertEquals(deltaFriendlyNewFile.length(), expected.getDeltaFriendlyNewFileSize());
+
+    PreDiffPlan actual =
+        new PreDiffExecutor.Builder()
+            .readingOriginalFiles(oldFile, newFile)
+            .build()
+            .prepareForDiffing();
+    Assert.assertEquals(
+        expected.getOldFileUncompressionPlan(), actual.getOldFileUncompressionPlan());
+    Assert.assertEquals(
+        expected.getNewFileUncompressionPlan(), actual.getNewFileUncompressionPlan());
+    Assert.assertEquals(1, actual.getDeltaFriendlyNewFileRecompressionPlan().size());
+    Assert.assertEquals(
+        expected.getDeltaFriendlyNewFileRecompressionPlan(),
+        actual.getDeltaFriendlyNewFileRecompressionPlan());
+    Assert.assertEquals(
+        expected.getDeltaFriendlyOldFileSize(), actual.getDeltaFriendlyOldFileSize());
+    Assert.assertEquals(
+        expected.getDeltaFriendlyNewFileSize(), actual.getDeltaFriendlyNewFileSize());
+  }
 }
@@ -92,6 +92,12 @@ public class PreDiffPlannerTest {
   private static final UnitTestZipEntry SHADOW_ENTRY_A_STORED =
       UnitTestZipArchive.makeUnitTestZipEntry("/same as A stored", 0, "entry A", null);
 
+  // The "modified shadow" entry has a different path from ENTRY_A_* and slightly different content,
+  // so its uncompressed CRC32 doesn't match. It is used for the detection of renames that involve
+  // modification.
+  private static final UnitTestZipEntry MODIFIED_SHADOW_ENTRY_A_LEVEL_6 =
+      UnitTestZipArchive.makeUnitTestZipEntry("/similar to A", 6, "entry A, modified", null);
+
   private List<File> tempFilesCreated;
   private Map<File, Map<ByteArrayHolder, MinimalZipEntry>> entriesByPathByTempFile;
 
@@ -239,6 +245,16 @@ public class PreDiffPlannerTest {
   private PreDiffPlan invokeGeneratePreDiffPlan(
       File oldFile, File newFile, RecommendationModifier... recommendationModifiers)
       throws IOException {
+    return invokeGeneratePreDiffPlan(oldFile, newFile, false, false, recommendationModifiers);
+  }
+
+  private PreDiffPlan invokeGeneratePreDiffPlan(
+      File oldFile,
+      File newFile,
+      boolean useDigests,
+      boolean detectSimilarContent,
+      RecommendationModifier... recommendationModifiers)
+      throws IOException {
     Map<ByteArrayHolder, MinimalZipEntry> originalOldArchiveZipEntriesByPath =
         new LinkedHashMap<ByteArrayHolder, MinimalZipEntry>();
     Map<ByteArrayHolder, MinimalZipEntry> originalNewArchiveZipEntriesByPath =
@@ -265,6 +281,15 @@ public class PreDiffPlannerTest {
             newFile,
             originalNewArchiveZipEntriesByPath,
             originalNewArchiveJreDeflateParametersByPath,
+            useDigests
+                ? CompressedDataDigests.compute(
+                    oldFile, originalOldArchiveZipEntriesByPath.values())
+                : null,
+            useDigests
+                ? CompressedDataDigests.compute(
+                    newFile, originalNewArchiveZipEntriesByPath.values())
+                : null,
+            detectSimilarContent,
             recommendationModifiers);
     return preDiffPlanner.generatePreDiffPlan();
   }
@@ -353,6 +378,42 @@ public class PreDiffPlannerTest {
         RecommendationReason.COMPRESSED_BYTES_CHANGED));
   }
 
+  @Test
+  public void testGeneratePreDiffPlan_OneCompressedEntry_Unchanged_WithDigests()
+      throws IOException {
+    byte[] bytes = UnitTestZipArchive.makeTestZip(Collections.singletonList(ENTRY_A_LEVEL_6));
+    File oldFile = storeAndMapArchive(bytes);
+    File newFile = storeAndMapArchive(bytes);
+    PreDiffPlan plan = invokeGeneratePreDiffPlan(oldFile, newFile, true, false);
+    Assert.assertTrue(plan.getOldFileUncompressionPlan().isEmpty());
+    Assert.assertTrue(plan.getNewFileUncompressionPlan().isEmpty());
+    checkRecommendation(plan, new QualifiedRecommendation(
+        findEntry(oldFile, ENTRY_A_LEVEL_6),
+        findEntry(newFile, ENTRY_A_LEVEL_6),
+        Recommendation.UNCOMPRESS_NEITHER,
+        RecommendationReason.COMPRESSED_BYTES_IDENTICAL));
+  }
+
+  @Test
+  public void testGeneratePreDiffPlan_OneCompressedEntry_BytesChanged_WithDigests()
+      throws IOException {
+    // As above, but the compressed bytes are compared by their digests.
+    byte[] oldBytes =
+        UnitTestZipArchive.makeTestZip(Collections.singletonList(FIXED_LENGTH_ENTRY_C1_LEVEL_6));
+    byte[] newBytes =
+        UnitTestZipArchive.makeTestZip(Collections.singletonList(FIXED_LENGTH_ENTRY_C2_LEVEL_6));
+    File oldFile = storeAndMapArchive(oldBytes);
+    File newFile = storeAndMapArchive(newBytes);
+    PreDiffPlan plan = invokeGeneratePreDiffPlan(oldFile, newFile, true, false);
+    Assert.assertEquals(1, plan.getOldFileUncompressionPlan().size());
+    Assert.assertEquals(1, plan.getNewFileUncompressionPlan().size());
+    checkRecommendation(plan, new QualifiedRecommendation(
+        findEntry(oldFile, FIXED_LENGTH_ENTRY_C1_LEVEL_6),
+        findEntry(newFile, FIXED_LENGTH_ENTRY_C2_LEVEL_6),
+        Recommendation.UNCOMPRESS_BOTH,
+        RecommendationReason.COMPRESSED_BYTES_CHANGED));
+  }
+
   @Test
   public void testGeneratePreDiffPlan_OneUncompressedEntry() throws IOException {
     // Test with uncompressed old and new. It doesn't matter whether the bytes are changed or
@@ -583,6 +644,51 @@ public class PreDiffPlannerTest {
             RecommendationReason.COMPRESSED_BYTES_IDENTICAL));
   }
 
+  @Test
+  public void testGeneratePreDiffPlan_RenamedAndModified() throws IOException {
+    // Test the case where file paths are different and the uncompressed content has changed too.
+    // Without similarity detection there is no diff base for the new entry.
+    byte[] oldBytes = UnitTestZipArchive.makeTestZip(Collections.singletonList(ENTRY_A_LEVEL_6));
+    byte[] newBytes =
+        UnitTestZipArchive.makeTestZip(Collections.singletonList(MODIFIED_SHADOW_ENTRY_A_LEVEL_6));
+    File oldFile = storeAndMapArchive(oldBytes);
+    File newFile = storeAndMapArchive(newBytes);
+    PreDiffPlan plan = invokeGeneratePreDiffPlan(oldFile, newFile);
+    Assert.assertTrue(plan.getQualifiedRecommendations().isEmpty());
+
+    plan = invokeGeneratePreDiffPlan(oldFile, newFile, false, true);
+    Assert.assertEquals(1, plan.getOldFileUncompressionPlan().size());
+    Assert.assertEquals(1, plan.getNewFileUncompressionPlan().size());
+    checkRecommendation(
+        plan,
+        new QualifiedRecommendation(
+            findEntry(oldFile, ENTRY_A_LEVEL_6),
+            findEntry(newFile, MODIFIED_SHADOW_ENTRY_A_LEVEL_6),
+            Recommendation.UNCOMPRESS_BOTH,
+            RecommendationReason.COMPRESSED_BYTES_CHANGED));
+  }
+
+  @Test
+  public void testGeneratePreDiffPlan_RenamedAndModified_OldPathStillPresent()
+      throws IOException {
+    // Entries whose paths are still present in the new archive are never used as the diff base for
+    // a renamed-and-modified entry, as they already have a counterpart.
+    byte[] oldBytes = UnitTestZipArchive.makeTestZip(Collections.singletonList(ENTRY_A_LEVEL_6));
+    byte[] newBytes =
+        UnitTestZipArchive.makeTestZip(
+            Arrays.asList(ENTRY_A_LEVEL_6, MODIFIED_SHADOW_ENTRY_A_LEVEL_6));
+    File oldFile = storeAndMapArchive(oldBytes);
+    File newFile = storeAndMapArchive(newBytes);
+    PreDiffPlan plan = invokeGeneratePreDiffPlan(oldFile, newFile, false, true);
+    checkRecommendation(
+        plan,
+        new QualifiedRecommendation(
+            findEntry(oldFile, ENTRY_A_LEVEL_6),
+            findEntry(newFile, ENTRY_A_LEVEL_6),
+            Recommendation.UNCOMPRESS_NEITHER,
+            RecommendationReason.COMPRESSED_BYTES_IDENTICAL));
+  }
+
   @Test
   public void testGeneratePreDiffPlan_SimpleRename_CompressionLevelChanged() throws IOException {
     // Test the case where file paths are different but the uncompressed content is the same.
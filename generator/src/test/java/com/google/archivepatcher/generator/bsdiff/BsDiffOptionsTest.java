@@ -0,0 +1,76 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator.bsdiff;
+
+import com.google.archivepatcher.generator.GenerationMetricsListener;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link BsDiffOptions}.
+ */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class BsDiffOptionsTest {
+
+  @Test
+  public void testBuild_Defaults() {
+    BsDiffOptions options = new BsDiffOptions.Builder().build();
+    Assert.assertEquals(SuffixSorterAlgorithm.DIVSUFSORT, options.getSuffixSorterAlgorithm());
+    Assert.assertEquals(
+        BsDiffPatchWriter.DEFAULT_MINIMUM_MATCH_LENGTH, options.getMinimumMatchLength());
+    Assert.assertEquals(
+        BsDiffMatcher.DEFAULT_TOTAL_MATCH_LENGTH_BUDGET, options.getTotalMatchLengthBudget());
+    Assert.assertFalse(options.usesSeedIndex());
+    Assert.assertSame(GenerationMetricsListener.NO_OP, options.getMetricsListener());
+  }
+
+  @Test
+  public void testBuild() {
+    BsDiffOptions options =
+        new BsDiffOptions.Builder()
+            .withSuffixSorterAlgorithm(SuffixSorterAlgorithm.SAIS)
+            .withMinimumMatchLength(8)
+            .withTotalMatchLengthBudget(1024)
+            .withSeedIndex(true)
+            .build();
+    Assert.assertEquals(SuffixSorterAlgorithm.SAIS, options.getSuffixSorterAlgorithm());
+    Assert.assertEquals(8, options.getMinimumMatchLength());
+    Assert.assertEquals(1024, options.getTotalMatchLengthBudget());
+    Assert.assertTrue(options.usesSeedIndex());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_NullSuffixSorterAlgorithm() {
+    new BsDiffOptions.Builder().withSuffixSorterAlgorithm(null);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_ZeroMinimumMatchLength() {
+    new BsDiffOptions.Builder().withMinimumMatchLength(0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_ZeroTotalMatchLengthBudget() {
+    new BsDiffOptions.Builder().withTotalMatchLengthBudget(0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_NullMetricsListener() {
+    new BsDiffOptions.Builder().withMetricsListener(null);
+  }
+}
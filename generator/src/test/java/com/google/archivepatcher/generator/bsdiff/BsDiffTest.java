@@ -17,11 +17,14 @@ package com.google.archivepatcher.generator.bsdiff;
 import com.google.archivepatcher.generator.bsdiff.Matcher.NextMatch;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Collections;
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -264,6 +267,56 @@ public class BsDiffTest {
     Assert.assertArrayEquals(actualPatch, expectedPatch);
   }
 
+  @Test
+  public void generatePatchWithMemoryBudgetTest() throws Exception {
+    byte[] oldData = readTestData("minimalBlobA.bin");
+    byte[] newData = readTestData("minimalBlobB.bin");
+    byte[] expectedPatch = readTestData("minimalBlobPatch.patch");
+    long suffixArrayBytes = (oldData.length + 1) * 4;
+    long[] budgets = {
+      0, // Everything file-backed
+      suffixArrayBytes, // Only the suffix array in memory
+      suffixArrayBytes + oldData.length + newData.length // Everything in memory
+    };
+
+    File oldFile = File.createTempFile("BsDiffTest", "old");
+    File newFile = File.createTempFile("BsDiffTest", "new");
+    try {
+      try (FileOutputStream oldOut = new FileOutputStream(oldFile);
+          FileOutputStream newOut = new FileOutputStream(newFile)) {
+        oldOut.write(oldData);
+        newOut.write(newData);
+      }
+      for (long budgetBytes : budgets) {
+        for (DirectByteBufferPool pool :
+            new DirectByteBufferPool[] {null, new DirectByteBufferPool(Long.MAX_VALUE)}) {
+          MemoryBudget budget = new MemoryBudget(budgetBytes);
+          for (SuffixSorterAlgorithm algorithm : SuffixSorterAlgorithm.values()) {
+            for (boolean useSeedIndex : new boolean[] {false, true}) {
+              ByteArrayOutputStream out = new ByteArrayOutputStream();
+              BsDiffPatchWriter.generatePatch(
+                  oldFile,
+                  newFile,
+                  out,
+                  new RandomAccessObjectFactory.RandomAccessBudgetedObjectFactory(budget, pool),
+                  Collections.<CopyRange>emptyList(),
+                  new BsDiffOptions.Builder()
+                      .withSuffixSorterAlgorithm(algorithm)
+                      .withSeedIndex(useSeedIndex)
+                      .build());
+              Assert.assertArrayEquals(expectedPatch, out.toByteArray());
+              // Everything reserved must have been released.
+              Assert.assertEquals(budgetBytes, budget.getAvailableBytes());
+            }
+          }
+        }
+      }
+    } finally {
+      oldFile.delete();
+      newFile.delete();
+    }
+  }
+
   /**
    * Naive implementation of BsDiff.Matcher. Exact matches between newData[a ... a + len - 1] and
    * oldData[b ... b + len - 1] are valid if |len| >= 3.
@@ -21,8 +21,12 @@ import org.junit.runners.JUnit4;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteOrder;
 import java.nio.charset.Charset;
+import java.util.Random;
 
 @RunWith(JUnit4.class)
 public class BsUtilTest {
@@ -127,4 +131,88 @@ public class BsUtilTest {
     r = BsUtil.lexicographicalCompare(s1ro, 0, 2, s2ro, 0, 1);
     Assert.assertTrue(r > 0);
   }
+
+  @Test
+  public void mismatchTest() throws IOException {
+    String s1 = "this is a string that is longer than a long";
+    String s2 = "this is a string that is longer than a lung";
+    byte[] s1b = s1.getBytes(Charset.forName("US-ASCII"));
+    byte[] s2b = s2.getBytes(Charset.forName("US-ASCII"));
+    RandomAccessObject s1ro = new RandomAccessObject.RandomAccessByteArrayObject(s1b);
+    RandomAccessObject s2ro = new RandomAccessObject.RandomAccessByteArrayObject(s2b);
+
+    Assert.assertEquals(40, BsUtil.mismatch(s1ro, 0, s2ro, 0, s1b.length));
+    Assert.assertEquals(40, BsUtil.mismatch(s1ro, 0, s2ro, 0, 40));
+    Assert.assertEquals(7, BsUtil.mismatch(s1ro, 0, s2ro, 0, 7));
+    Assert.assertEquals(2, BsUtil.mismatch(s1ro, 41, s2ro, 41, 2));
+    Assert.assertEquals(0, BsUtil.mismatch(s1ro, 0, s2ro, 1, 10));
+    Assert.assertEquals(0, BsUtil.mismatch(s1ro, 0, s2ro, 0, 0));
+  }
+
+  @Test
+  public void mismatchAndCountMatchesRandomTest() throws IOException {
+    Random rand = new Random(1123458);
+    File tmpFile1 = File.createTempFile("BsUtilTest", "temp");
+    File tmpFile2 = File.createTempFile("BsUtilTest", "temp");
+    try {
+      for (int trial = 0; trial < 100; trial++) {
+        byte[] data1 = new byte[100];
+        byte[] data2 = new byte[100];
+        for (int x = 0; x < data1.length; x++) {
+          // Mostly equal bytes, so there are long runs to compare.
+          data1[x] = (byte) rand.nextInt(256);
+          data2[x] = rand.nextInt(10) == 0 ? (byte) rand.nextInt(256) : data1[x];
+        }
+        int start1 = rand.nextInt(50);
+        int start2 = rand.nextInt(50);
+        int length = rand.nextInt(51);
+
+        int expectedMismatch = 0;
+        while (expectedMismatch < length
+            && data1[start1 + expectedMismatch] == data2[start2 + expectedMismatch]) {
+          expectedMismatch++;
+        }
+        int expectedMatches = 0;
+        for (int x = 0; x < length; x++) {
+          if (data1[start1 + x] == data2[start2 + x]) {
+            expectedMatches++;
+          }
+        }
+
+        // Buffer-backed objects, in both byte orders, take the fast path.
+        for (ByteOrder order : new ByteOrder[] {ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+          RandomAccessObject.RandomAccessByteArrayObject ro1 =
+              new RandomAccessObject.RandomAccessByteArrayObject(data1);
+          RandomAccessObject.RandomAccessByteArrayObject ro2 =
+              new RandomAccessObject.RandomAccessByteArrayObject(data2);
+          ro1.mByteBuffer.order(order);
+          ro2.mByteBuffer.order(order);
+          Assert.assertEquals(
+              expectedMismatch, BsUtil.mismatch(ro1, start1, ro2, start2, length));
+          Assert.assertEquals(
+              expectedMatches, BsUtil.countMatches(ro1, start1, ro2, start2, length));
+        }
+
+        // File-backed objects take the slow path.
+        writeFile(tmpFile1, data1);
+        writeFile(tmpFile2, data2);
+        try (RandomAccessObject ro1 = new RandomAccessObject.RandomAccessFileObject(tmpFile1, "r");
+            RandomAccessObject ro2 = new RandomAccessObject.RandomAccessFileObject(tmpFile2, "r")) {
+          Assert.assertEquals(
+              expectedMismatch, BsUtil.mismatch(ro1, start1, ro2, start2, length));
+          Assert.assertEquals(
+              expectedMatches, BsUtil.countMatches(ro1, start1, ro2, start2, length));
+        }
+      }
+    } finally {
+      tmpFile1.delete();
+      tmpFile2.delete();
+    }
+  }
+
+  private static void writeFile(File file, byte[] data) throws IOException {
+    try (FileOutputStream out = new FileOutputStream(file)) {
+      out.write(data);
+    }
+  }
 }
@@ -0,0 +1,203 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator.bsdiff;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class CopyRangeMatcherTest {
+
+  @Test
+  public void selectCopyRangesTest() throws Exception {
+    byte[] oldBytes = "0123456789abcdef".getBytes("US-ASCII");
+    byte[] newBytes = "89abXX01234567ZZ".getBytes("US-ASCII");
+    RandomAccessObject oldData = new RandomAccessObject.RandomAccessByteArrayObject(oldBytes);
+    RandomAccessObject newData = new RandomAccessObject.RandomAccessByteArrayObject(newBytes);
+
+    List<CopyRange> candidates = new ArrayList<CopyRange>();
+    candidates.add(new CopyRange(0, 6, 8)); // "01234567", valid
+    candidates.add(new CopyRange(8, 0, 4)); // "89ab", valid
+    candidates.add(new CopyRange(4, 10, 4)); // Overlaps the range at new offset 6
+    candidates.add(new CopyRange(0, 4, 2)); // Not identical
+    candidates.add(new CopyRange(0, 5, 0)); // Empty
+    candidates.add(new CopyRange(12, 14, 4)); // Beyond the end of the new data
+    candidates.add(new CopyRange(14, 4, 4)); // Beyond the end of the old data
+
+    List<CopyRange> expected = Arrays.asList(new CopyRange(8, 0, 4), new CopyRange(0, 6, 8));
+    Assert.assertEquals(expected, CopyRangeMatcher.selectCopyRanges(oldData, newData, candidates));
+  }
+
+  @Test
+  public void toOldPositionTest() throws Exception {
+    byte[] oldBytes = new byte[20];
+    RandomAccessObject oldData = new RandomAccessObject.RandomAccessByteArrayObject(oldBytes);
+    RandomAccessObject newData = new RandomAccessObject.RandomAccessByteArrayObject(oldBytes);
+    // Remove [2, 5) and, via two overlapping ranges, [8, 14) from the old data.
+    List<CopyRange> copyRanges =
+        Arrays.asList(new CopyRange(2, 0, 3), new CopyRange(8, 3, 4), new CopyRange(10, 7, 4));
+    try (CopyRangeMatcher matcher = newMatcher(oldData, newData, copyRanges)) {
+      int[] expected = {0, 1, 5, 6, 7, 14, 15, 16, 17, 18, 19};
+      for (int x = 0; x < expected.length; x++) {
+        Assert.assertEquals(expected[x], matcher.toOldPosition(x));
+      }
+    }
+  }
+
+  @Test
+  public void generatePatchWithCopyRangesTest() throws Exception {
+    Random rand = new Random(3141592);
+    byte[] oldBytes = new byte[64 * 1024];
+    rand.nextBytes(oldBytes);
+
+    // The new data is made of changed regions, which are partly derived from the old data, and
+    // copied regions, in a different order than in the old data.
+    ByteArrayOutputStream newOut = new ByteArrayOutputStream();
+    List<CopyRange> copyRanges = new ArrayList<CopyRange>();
+    newOut.write(mutate(rand, Arrays.copyOfRange(oldBytes, 50000, 52000)));
+    copyRanges.add(new CopyRange(30000, newOut.size(), 20000));
+    newOut.write(oldBytes, 30000, 20000);
+    newOut.write(mutate(rand, Arrays.copyOfRange(oldBytes, 0, 3000)));
+    copyRanges.add(new CopyRange(10000, newOut.size(), 15000));
+    newOut.write(oldBytes, 10000, 15000);
+    copyRanges.add(new CopyRange(52000, newOut.size(), 1000));
+    newOut.write(oldBytes, 52000, 1000);
+    byte[] newBytes = newOut.toByteArray();
+
+    byte[] patch = generatePatch(oldBytes, newBytes, copyRanges);
+    Assert.assertArrayEquals(newBytes, applyPatch(oldBytes, patch));
+    // Copied regions are written as diffs against identical old data, i.e. zeroes that compress
+    // away, so nearly all of the non-zero bytes in the patch belong to the changed regions.
+    int nonZeroBytes = 0;
+    for (byte b : patch) {
+      if (b != 0) {
+        nonZeroBytes++;
+      }
+    }
+    Assert.assertTrue(nonZeroBytes < newBytes.length - (20000 + 15000 + 1000));
+  }
+
+  @Test
+  public void generatePatchWithNoUsableCopyRangesTest() throws Exception {
+    Random rand = new Random(2718281);
+    byte[] oldBytes = new byte[8 * 1024];
+    rand.nextBytes(oldBytes);
+    byte[] newBytes = mutate(rand, oldBytes);
+
+    byte[] expected = generatePatch(oldBytes, newBytes, Collections.<CopyRange>emptyList());
+    // Ranges that aren't identical are ignored, leaving the patch unchanged.
+    byte[] actual =
+        generatePatch(oldBytes, newBytes, Collections.singletonList(new CopyRange(0, 1, 1000)));
+    Assert.assertArrayEquals(expected, actual);
+  }
+
+  @Test
+  public void generatePatchWithEverythingCopiedTest() throws Exception {
+    Random rand = new Random(1618033);
+    byte[] oldBytes = new byte[4 * 1024];
+    rand.nextBytes(oldBytes);
+    byte[] newBytes = oldBytes.clone();
+
+    byte[] patch =
+        generatePatch(
+            oldBytes, newBytes, Collections.singletonList(new CopyRange(0, 0, oldBytes.length)));
+    Assert.assertArrayEquals(newBytes, applyPatch(oldBytes, patch));
+  }
+
+  private static CopyRangeMatcher newMatcher(
+      RandomAccessObject oldData, RandomAccessObject newData, List<CopyRange> copyRanges)
+      throws Exception {
+    RandomAccessObjectFactory factory =
+        new RandomAccessObjectFactory.RandomAccessByteArrayObjectFactory();
+    return CopyRangeMatcher.create(
+        oldData,
+        newData,
+        CopyRangeMatcher.selectCopyRanges(oldData, newData, copyRanges),
+        new DivSuffixSorter(factory),
+        factory,
+        BsDiffPatchWriter.DEFAULT_MINIMUM_MATCH_LENGTH,
+        BsDiffMatcher.DEFAULT_TOTAL_MATCH_LENGTH_BUDGET,
+        false);
+  }
+
+  private static byte[] generatePatch(byte[] oldBytes, byte[] newBytes, List<CopyRange> copyRanges)
+      throws Exception {
+    RandomAccessObjectFactory factory =
+        new RandomAccessObjectFactory.RandomAccessByteArrayObjectFactory();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (RandomAccessObject oldData = new RandomAccessObject.RandomAccessByteArrayObject(oldBytes);
+        RandomAccessObject newData = new RandomAccessObject.RandomAccessByteArrayObject(newBytes)) {
+      BsDiffPatchWriter.generatePatch(
+          oldData, newData, out, factory, copyRanges, new BsDiffOptions.Builder().build());
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Returns a copy of the data with roughly one byte in 64 changed and a few bytes inserted.
+   */
+  private static byte[] mutate(Random rand, byte[] data) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (byte b : data) {
+      if (rand.nextInt(64) == 0) {
+        out.write(rand.nextInt(256));
+      } else {
+        out.write(b);
+      }
+      if (rand.nextInt(512) == 0) {
+        out.write(rand.nextInt(256));
+      }
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Applies a patch as generated by {@link BsDiffPatchWriter} to the old data.
+   */
+  private static byte[] applyPatch(byte[] oldBytes, byte[] patch) throws IOException {
+    InputStream in = new ByteArrayInputStream(patch);
+    byte[] signature = new byte[16];
+    Assert.assertEquals(16, in.read(signature));
+    Assert.assertEquals("ENDSLEY/BSDIFF43", new String(signature, "US-ASCII"));
+    byte[] newBytes = new byte[(int) BsUtil.readFormattedLong(in)];
+    int newPosition = 0;
+    int oldPosition = 0;
+    while (newPosition < newBytes.length) {
+      int diffLength = (int) BsUtil.readFormattedLong(in);
+      int extraLength = (int) BsUtil.readFormattedLong(in);
+      int oldPositionOffset = (int) BsUtil.readFormattedLong(in);
+      for (int x = 0; x < diffLength; x++) {
+        newBytes[newPosition++] = (byte) (oldBytes[oldPosition++] + in.read());
+      }
+      for (int x = 0; x < extraLength; x++) {
+        newBytes[newPosition++] = (byte) in.read();
+      }
+      oldPosition += oldPositionOffset;
+    }
+    Assert.assertEquals(-1, in.read());
+    return newBytes;
+  }
+}
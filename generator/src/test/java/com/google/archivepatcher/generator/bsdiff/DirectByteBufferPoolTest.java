@@ -0,0 +1,149 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator.bsdiff;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Tests for {@link DirectByteBufferPool}.
+ */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class DirectByteBufferPoolTest {
+  private static final int MIN = DirectByteBufferPool.MIN_SIZE_CLASS;
+
+  @Test
+  public void testSizeClassFor() {
+    Assert.assertEquals(MIN, DirectByteBufferPool.sizeClassFor(0));
+    Assert.assertEquals(MIN, DirectByteBufferPool.sizeClassFor(1));
+    Assert.assertEquals(MIN, DirectByteBufferPool.sizeClassFor(MIN));
+    Assert.assertEquals(MIN + MIN / 4, DirectByteBufferPool.sizeClassFor(MIN + 1));
+    Assert.assertEquals(1 << 20, DirectByteBufferPool.sizeClassFor(1 << 20));
+    Assert.assertEquals((1 << 20) + (1 << 18), DirectByteBufferPool.sizeClassFor((1 << 20) + 1));
+    Assert.assertEquals(
+        (1 << 20) + (3 << 18), DirectByteBufferPool.sizeClassFor((1 << 20) + (3 << 18) - 1));
+    Assert.assertEquals(1 << 21, DirectByteBufferPool.sizeClassFor((1 << 20) + (3 << 18) + 1));
+    Assert.assertEquals(Integer.MAX_VALUE, DirectByteBufferPool.sizeClassFor(Integer.MAX_VALUE));
+  }
+
+  @Test
+  public void testSizeClassFor_IsStable() {
+    // Every size class must map to itself, or released buffers would be rejected.
+    for (int size = 1; size < (1 << 22); size += 4099) {
+      int sizeClass = DirectByteBufferPool.sizeClassFor(size);
+      Assert.assertTrue(sizeClass >= size);
+      Assert.assertEquals(sizeClass, DirectByteBufferPool.sizeClassFor(sizeClass));
+    }
+  }
+
+  @Test
+  public void testAcquire() {
+    DirectByteBufferPool pool = new DirectByteBufferPool(Long.MAX_VALUE);
+    ByteBuffer buffer = pool.acquire(100);
+    Assert.assertTrue(buffer.isDirect());
+    Assert.assertEquals(MIN, buffer.capacity());
+    Assert.assertEquals(0, buffer.position());
+    Assert.assertEquals(MIN, buffer.limit());
+    Assert.assertEquals(ByteOrder.BIG_ENDIAN, buffer.order());
+  }
+
+  @Test
+  public void testRelease_ReusesBuffer() {
+    DirectByteBufferPool pool = new DirectByteBufferPool(Long.MAX_VALUE);
+    ByteBuffer first = pool.acquire(100);
+    first.put((byte) 7);
+    first.putLong(MIN - 8, 0x0102030405060708L);
+    first.order(ByteOrder.LITTLE_ENDIAN);
+    pool.release(first);
+    Assert.assertEquals(MIN, pool.getRetainedBytes());
+
+    // Any size in the same size class gets the same buffer back, reset to a pristine state.
+    ByteBuffer second = pool.acquire(MIN - 1);
+    Assert.assertSame(first, second);
+    Assert.assertEquals(0, pool.getRetainedBytes());
+    Assert.assertEquals(0, second.position());
+    Assert.assertEquals(MIN, second.limit());
+    Assert.assertEquals(ByteOrder.BIG_ENDIAN, second.order());
+    while (second.hasRemaining()) {
+      Assert.assertEquals(0, second.get());
+    }
+  }
+
+  @Test
+  public void testRelease_DifferentSizeClass() {
+    DirectByteBufferPool pool = new DirectByteBufferPool(Long.MAX_VALUE);
+    ByteBuffer small = pool.acquire(100);
+    pool.release(small);
+    ByteBuffer large = pool.acquire(MIN + 1);
+    Assert.assertNotSame(small, large);
+    Assert.assertEquals(MIN, pool.getRetainedBytes());
+  }
+
+  @Test
+  public void testRelease_RetentionLimit() {
+    DirectByteBufferPool pool = new DirectByteBufferPool(MIN);
+    ByteBuffer first = pool.acquire(1);
+    ByteBuffer second = pool.acquire(1);
+    pool.release(first);
+    pool.release(second);
+    // Only the first buffer fits within the limit.
+    Assert.assertEquals(MIN, pool.getRetainedBytes());
+    Assert.assertSame(first, pool.acquire(1));
+    Assert.assertNotSame(second, pool.acquire(1));
+  }
+
+  @Test
+  public void testRelease_NothingRetained() {
+    DirectByteBufferPool pool = new DirectByteBufferPool(0);
+    pool.release(pool.acquire(1));
+    Assert.assertEquals(0, pool.getRetainedBytes());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testRelease_HeapBuffer() {
+    new DirectByteBufferPool(Long.MAX_VALUE).release(ByteBuffer.allocate(MIN));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testRelease_NotASizeClass() {
+    new DirectByteBufferPool(Long.MAX_VALUE).release(ByteBuffer.allocateDirect(MIN + 1));
+  }
+
+  @Test
+  public void testClear() {
+    DirectByteBufferPool pool = new DirectByteBufferPool(Long.MAX_VALUE);
+    ByteBuffer buffer = pool.acquire(1);
+    pool.release(buffer);
+    pool.clear();
+    Assert.assertEquals(0, pool.getRetainedBytes());
+    Assert.assertNotSame(buffer, pool.acquire(1));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructor_NegativeLimit() {
+    new DirectByteBufferPool(-1);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testAcquire_NegativeSize() {
+    new DirectByteBufferPool(Long.MAX_VALUE).acquire(-1);
+  }
+}
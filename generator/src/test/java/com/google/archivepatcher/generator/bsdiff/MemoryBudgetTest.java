@@ -0,0 +1,101 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator.bsdiff;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link MemoryBudget}.
+ */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class MemoryBudgetTest {
+
+  @Test
+  public void testTryReserve() {
+    MemoryBudget budget = new MemoryBudget(100);
+    Assert.assertEquals(100, budget.getTotalBytes());
+    Assert.assertTrue(budget.tryReserve(60));
+    Assert.assertEquals(40, budget.getAvailableBytes());
+    Assert.assertFalse(budget.tryReserve(41));
+    Assert.assertEquals(40, budget.getAvailableBytes());
+    Assert.assertTrue(budget.tryReserve(40));
+    Assert.assertEquals(0, budget.getAvailableBytes());
+    Assert.assertTrue(budget.tryReserve(0));
+  }
+
+  @Test
+  public void testTryReserve_Headroom() {
+    MemoryBudget budget = new MemoryBudget(100);
+    Assert.assertFalse(budget.tryReserve(60, 41));
+    Assert.assertEquals(100, budget.getAvailableBytes());
+    Assert.assertTrue(budget.tryReserve(60, 40));
+    // The headroom itself is not reserved.
+    Assert.assertEquals(40, budget.getAvailableBytes());
+  }
+
+  @Test
+  public void testRelease() {
+    MemoryBudget budget = new MemoryBudget(100);
+    Assert.assertTrue(budget.tryReserve(100));
+    budget.release(30);
+    Assert.assertEquals(30, budget.getAvailableBytes());
+    Assert.assertTrue(budget.tryReserve(30));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testRelease_MoreThanReserved() {
+    MemoryBudget budget = new MemoryBudget(100);
+    Assert.assertTrue(budget.tryReserve(10));
+    budget.release(11);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTryReserve_Negative() {
+    new MemoryBudget(100).tryReserve(-1);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructor_Negative() {
+    new MemoryBudget(-1);
+  }
+
+  @Test
+  public void testSharedBetweenThreads() throws Exception {
+    final MemoryBudget budget = new MemoryBudget(1000);
+    Thread[] threads = new Thread[8];
+    for (int x = 0; x < threads.length; x++) {
+      threads[x] =
+          new Thread() {
+            @Override
+            public void run() {
+              for (int y = 0; y < 10000; y++) {
+                if (budget.tryReserve(7)) {
+                  budget.release(7);
+                }
+              }
+            }
+          };
+      threads[x].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    Assert.assertEquals(1000, budget.getAvailableBytes());
+  }
+}
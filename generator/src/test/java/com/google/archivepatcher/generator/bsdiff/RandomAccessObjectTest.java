@@ -547,6 +547,176 @@ public class RandomAccessObjectTest {
     }
   }
 
+  @Test
+  public void directLengthTest() throws IOException {
+    DirectByteBufferPool pool = new DirectByteBufferPool(Long.MAX_VALUE);
+    try (RandomAccessObject obj =
+        new RandomAccessObject.RandomAccessDirectByteBufferObject(pool, BLOB.length)) {
+      Assert.assertEquals(13, obj.length());
+    }
+  }
+
+  @Test
+  public void directWriteByteTest() throws IOException {
+    final int len = 13;
+    DirectByteBufferPool pool = new DirectByteBufferPool(Long.MAX_VALUE);
+    try (RandomAccessObject obj =
+        new RandomAccessObject.RandomAccessDirectByteBufferObject(pool, len)) {
+      for (int x = 0; x < len; x++) {
+        obj.writeByte((byte) (5 - x));
+      }
+
+      try {
+        // Writing a byte past the requested length is not ok, even though the pooled buffer is
+        // larger.
+        obj.writeByte((byte) 243);
+        Assert.fail("Should've thrown a BufferOverflowException");
+      } catch (BufferOverflowException expected) {
+      }
+
+      obj.seek(0);
+      for (int x = 0; x < len; x++) {
+        Assert.assertEquals(5 - x, obj.readByte());
+      }
+
+      try {
+        obj.readByte();
+        Assert.fail("Should've thrown a BufferUnderflowException");
+      } catch (BufferUnderflowException expected) {
+      }
+    }
+  }
+
+  @Test
+  public void directSeekTest() throws IOException {
+    DirectByteBufferPool pool = new DirectByteBufferPool(Long.MAX_VALUE);
+    try (RandomAccessObject obj = newDirectObjectWithBlob(pool)) {
+      seekTest(obj);
+    }
+  }
+
+  @Test
+  public void directReadIntTest() throws IOException {
+    DirectByteBufferPool pool = new DirectByteBufferPool(Long.MAX_VALUE);
+    try (RandomAccessObject obj = newDirectObjectWithBlob(pool)) {
+      readIntTest(obj);
+      try {
+        obj.readInt();
+        Assert.fail("Should've thrown a BufferUnderflowException");
+      } catch (BufferUnderflowException expected) {
+      }
+    }
+  }
+
+  @Test
+  public void directSeekToIntAlignedTest() throws IOException {
+    DirectByteBufferPool pool = new DirectByteBufferPool(Long.MAX_VALUE);
+    try (RandomAccessObject obj = newDirectObjectWithBlob(pool)) {
+      seekToIntAlignedTest(obj);
+    }
+  }
+
+  @Test
+  public void directCloseTest() throws IOException {
+    DirectByteBufferPool pool = new DirectByteBufferPool(Long.MAX_VALUE);
+    RandomAccessObject obj = newDirectObjectWithBlob(pool);
+    Assert.assertEquals(0, pool.getRetainedBytes());
+    obj.close();
+    Assert.assertEquals(DirectByteBufferPool.MIN_SIZE_CLASS, pool.getRetainedBytes());
+    // Closing again must not return the buffer to the pool twice.
+    obj.close();
+    Assert.assertEquals(DirectByteBufferPool.MIN_SIZE_CLASS, pool.getRetainedBytes());
+
+    // A reused buffer must not leak the contents written by the previous owner.
+    try (RandomAccessObject reused =
+        new RandomAccessObject.RandomAccessDirectByteBufferObject(pool, BLOB.length)) {
+      Assert.assertEquals(0, pool.getRetainedBytes());
+      for (int x = 0; x < BLOB.length; x++) {
+        Assert.assertEquals(0, reused.readByte());
+      }
+    }
+  }
+
+  @Test
+  public void budgetedCreateTest() throws IOException {
+    MemoryBudget budget = new MemoryBudget(20);
+    RandomAccessObjectFactory factory =
+        new RandomAccessObjectFactory.RandomAccessBudgetedObjectFactory(budget);
+    try (RandomAccessObject inMemory = factory.create(BLOB.length)) {
+      Assert.assertTrue(inMemory instanceof RandomAccessObject.RandomAccessByteArrayObject);
+      Assert.assertFalse(inMemory instanceof RandomAccessObject.RandomAccessMmapObject);
+      Assert.assertEquals(BLOB.length, inMemory.length());
+      Assert.assertEquals(20 - BLOB.length, budget.getAvailableBytes());
+
+      // Doesn't fit in what's left of the budget, so must be file-backed.
+      try (RandomAccessObject fileBacked = factory.create(BLOB.length)) {
+        Assert.assertTrue(fileBacked instanceof RandomAccessObject.RandomAccessMmapObject);
+        Assert.assertEquals(20 - BLOB.length, budget.getAvailableBytes());
+      }
+    }
+    Assert.assertEquals(20, budget.getAvailableBytes());
+  }
+
+  @Test
+  public void budgetedCreateWithPoolTest() throws IOException {
+    final int sizeClass = DirectByteBufferPool.MIN_SIZE_CLASS;
+    MemoryBudget budget = new MemoryBudget(2 * sizeClass);
+    DirectByteBufferPool pool = new DirectByteBufferPool(Long.MAX_VALUE);
+    RandomAccessObjectFactory factory =
+        new RandomAccessObjectFactory.RandomAccessBudgetedObjectFactory(budget, pool);
+    // The buffer is charged at its capacity, not at the requested size.
+    RandomAccessObject obj = factory.create(BLOB.length);
+    Assert.assertTrue(obj instanceof RandomAccessObject.RandomAccessDirectByteBufferObject);
+    Assert.assertEquals(sizeClass, budget.getAvailableBytes());
+    obj.close();
+    // Closing twice must not release twice.
+    obj.close();
+    Assert.assertEquals(2 * sizeClass, budget.getAvailableBytes());
+    Assert.assertEquals(sizeClass, pool.getRetainedBytes());
+
+    // The retained buffer is reused, so it doesn't need room of its own.
+    try (RandomAccessObject reused = factory.create(BLOB.length)) {
+      Assert.assertTrue(reused instanceof RandomAccessObject.RandomAccessDirectByteBufferObject);
+      Assert.assertEquals(sizeClass, budget.getAvailableBytes());
+      Assert.assertEquals(0, pool.getRetainedBytes());
+    }
+
+    // A larger size class would fit in the budget on its own, but not alongside the retained
+    // buffer, so it must be file-backed.
+    int largerSize = sizeClass + 1;
+    Assert.assertTrue(DirectByteBufferPool.sizeClassFor(largerSize) <= 2 * sizeClass);
+    try (RandomAccessObject fileBacked = factory.create(largerSize)) {
+      Assert.assertTrue(fileBacked instanceof RandomAccessObject.RandomAccessMmapObject);
+      Assert.assertEquals(2 * sizeClass, budget.getAvailableBytes());
+    }
+  }
+
+  @Test
+  public void budgetedOpenTest() throws IOException {
+    File tmpFile = storeInTempFile(new ByteArrayInputStream(BLOB));
+    MemoryBudget budget = new MemoryBudget(BLOB.length + 1);
+    RandomAccessObjectFactory.RandomAccessBudgetedObjectFactory factory =
+        new RandomAccessObjectFactory.RandomAccessBudgetedObjectFactory(budget);
+    try {
+      try (RandomAccessObject obj = factory.open(tmpFile, 1)) {
+        Assert.assertFalse(obj instanceof RandomAccessObject.RandomAccessMmapObject);
+        Assert.assertEquals(1, budget.getAvailableBytes());
+        readIntTest(obj);
+      }
+      Assert.assertEquals(BLOB.length + 1, budget.getAvailableBytes());
+
+      // Not enough headroom left, so the file must be mapped.
+      try (RandomAccessObject obj = factory.open(tmpFile, 2)) {
+        Assert.assertTrue(obj instanceof RandomAccessObject.RandomAccessMmapObject);
+        Assert.assertEquals(BLOB.length + 1, budget.getAvailableBytes());
+        readIntTest(obj);
+      }
+      Assert.assertTrue(tmpFile.exists());
+    } finally {
+      tmpFile.delete();
+    }
+  }
+
   private void seekTest(final RandomAccessObject obj) throws IOException {
     obj.seek(7);
     Assert.assertEquals(8, obj.readByte());
@@ -601,6 +771,15 @@ public class RandomAccessObjectTest {
     Assert.assertEquals(0x26391bd2, obj.readInt());
   }
 
+  private RandomAccessObject newDirectObjectWithBlob(DirectByteBufferPool pool)
+      throws IOException {
+    RandomAccessObject obj =
+        new RandomAccessObject.RandomAccessDirectByteBufferObject(pool, BLOB.length);
+    obj.write(BLOB);
+    obj.seek(0);
+    return obj;
+  }
+
   private File storeInTempFile(InputStream content) throws IOException {
     File tmpFile = null;
     try {
@@ -0,0 +1,92 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator.bsdiff;
+
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class SaisSuffixSorterTest extends SuffixSorterTestBase {
+
+  SaisSuffixSorter saisSuffixSorter;
+
+  @Before
+  public void setup() {
+    saisSuffixSorter =
+        new SaisSuffixSorter(new RandomAccessObjectFactory.RandomAccessByteArrayObjectFactory());
+  }
+
+  @Override
+  public SuffixSorter getSuffixSorter() {
+    return saisSuffixSorter;
+  }
+
+  @Test
+  public void suffixSortRepetitiveDataTest() throws Exception {
+    // Highly repetitive inputs exercise the recursion, since many LMS substrings are equal.
+    Random rand = new Random(1123458);
+    checkSameAsDivSuffixSorter(new byte[100000]);
+    checkSameAsDivSuffixSorter(repeat(new byte[] {1, 2}, 50000));
+    checkSameAsDivSuffixSorter(repeat(new byte[] {3, 1, 2}, 33333));
+    checkSameAsDivSuffixSorter(repeat("abracadabra".getBytes("US-ASCII"), 9000));
+    byte[] padded = new byte[100000];
+    for (int i = 0; i < padded.length; i += 4096) {
+      padded[i] = (byte) rand.nextInt();
+    }
+    checkSameAsDivSuffixSorter(padded);
+    for (int alphabetSize = 1; alphabetSize <= 4; alphabetSize++) {
+      byte[] smallAlphabet = new byte[50000];
+      for (int i = 0; i < smallAlphabet.length; i++) {
+        smallAlphabet[i] = (byte) (0xff - rand.nextInt(alphabetSize));
+      }
+      checkSameAsDivSuffixSorter(smallAlphabet);
+    }
+  }
+
+  @Test
+  public void suffixSortAllShortInputsTest() throws Exception {
+    // Every input of up to 8 bytes over a two-letter alphabet.
+    for (int length = 0; length <= 8; length++) {
+      for (int bits = 0; bits < (1 << length); bits++) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+          data[i] = (byte) (((bits >> i) & 1) == 0 ? 'a' : 'b');
+        }
+        checkSameAsDivSuffixSorter(data);
+      }
+    }
+  }
+
+  private void checkSameAsDivSuffixSorter(byte[] data) throws Exception {
+    RandomAccessObject input = new RandomAccessObject.RandomAccessByteArrayObject(data);
+    DivSuffixSorter divSuffixSorter =
+        new DivSuffixSorter(new RandomAccessObjectFactory.RandomAccessByteArrayObjectFactory());
+    int[] expected = randomAccessObjectToIntArray(divSuffixSorter.suffixSort(input));
+    int[] actual = randomAccessObjectToIntArray(saisSuffixSorter.suffixSort(input));
+    Assert.assertArrayEquals(expected, actual);
+  }
+
+  private static byte[] repeat(byte[] pattern, int count) {
+    byte[] result = new byte[pattern.length * count];
+    for (int i = 0; i < count; i++) {
+      System.arraycopy(pattern, 0, result, i * pattern.length, pattern.length);
+    }
+    return result;
+  }
+}
@@ -0,0 +1,136 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator.bsdiff;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link SectionedPatchOutputStream}. */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class SectionedPatchOutputStreamTest {
+
+  /** An interleaved patch with two entries, and the same patch with its contents sectioned. */
+  private static byte[] interleavedPatch;
+
+  private static byte[] sectionedPatch;
+
+  static {
+    try {
+      ByteArrayOutputStream interleaved = new ByteArrayOutputStream();
+      interleaved.write("ENDSLEY/BSDIFF43".getBytes(StandardCharsets.US_ASCII));
+      BsUtil.writeFormattedLong(7, interleaved);
+      writeControlEntry(3, 1, 5, interleaved);
+      interleaved.write(new byte[] {1, 2, 3, 4});
+      writeControlEntry(2, 1, -8, interleaved);
+      interleaved.write(new byte[] {5, 6, 7});
+      interleavedPatch = interleaved.toByteArray();
+
+      ByteArrayOutputStream sectioned = new ByteArrayOutputStream();
+      sectioned.write("BSDIFF/SECTIONED".getBytes(StandardCharsets.US_ASCII));
+      BsUtil.writeFormattedLong(7, sectioned);
+      BsUtil.writeFormattedLong(48, sectioned);
+      BsUtil.writeFormattedLong(2, sectioned);
+      writeControlEntry(3, 1, 5, sectioned);
+      writeControlEntry(2, 1, -8, sectioned);
+      sectioned.write(new byte[] {4, 7});
+      sectioned.write(new byte[] {1, 2, 3, 5, 6});
+      sectionedPatch = sectioned.toByteArray();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Test
+  public void testWrite_Bulk() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (SectionedPatchOutputStream sectionedOut = new SectionedPatchOutputStream(out)) {
+      sectionedOut.write(interleavedPatch);
+      sectionedOut.finish();
+    }
+    Assert.assertArrayEquals(sectionedPatch, out.toByteArray());
+  }
+
+  @Test
+  public void testWrite_SingleBytes() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (SectionedPatchOutputStream sectionedOut = new SectionedPatchOutputStream(out)) {
+      for (byte b : interleavedPatch) {
+        sectionedOut.write(b);
+      }
+      sectionedOut.finish();
+    }
+    Assert.assertArrayEquals(sectionedPatch, out.toByteArray());
+  }
+
+  @Test
+  public void testFinish_Incomplete() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (SectionedPatchOutputStream sectionedOut = new SectionedPatchOutputStream(out)) {
+      sectionedOut.write(interleavedPatch, 0, interleavedPatch.length - 1);
+      try {
+        sectionedOut.finish();
+        Assert.fail("Finished an incomplete patch");
+      } catch (IOException expected) {
+        // Pass
+      }
+    }
+    Assert.assertEquals(0, out.size());
+  }
+
+  @Test
+  public void testWrite_TempDir() throws IOException {
+    File tempDir = Files.createTempDirectory("sectioned").toFile();
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      try (SectionedPatchOutputStream sectionedOut =
+          new SectionedPatchOutputStream(out, tempDir)) {
+        sectionedOut.write(interleavedPatch);
+        // The extra and diff sections are buffered in the specified directory.
+        Assert.assertEquals(2, tempDir.list().length);
+        sectionedOut.finish();
+      }
+      Assert.assertArrayEquals(sectionedPatch, out.toByteArray());
+      Assert.assertEquals(0, tempDir.list().length);
+    } finally {
+      tempDir.delete();
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testWrite_BadSignature() throws IOException {
+    byte[] patch = interleavedPatch.clone();
+    patch[0] = 'X';
+    try (SectionedPatchOutputStream sectionedOut =
+        new SectionedPatchOutputStream(new ByteArrayOutputStream())) {
+      sectionedOut.write(patch);
+    }
+  }
+
+  private static void writeControlEntry(
+      long diffLength, long extraLength, long oldOffset, ByteArrayOutputStream out)
+      throws IOException {
+    BsUtil.writeFormattedLong(diffLength, out);
+    BsUtil.writeFormattedLong(extraLength, out);
+    BsUtil.writeFormattedLong(oldOffset, out);
+  }
+}
@@ -0,0 +1,121 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator.bsdiff;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class SeedIndexTest {
+
+  @Test
+  public void searchForMatchSameAsFullSearchTest() throws Exception {
+    Random rand = new Random(1123458);
+    for (int seedLength = 1; seedLength <= 3; seedLength++) {
+      // Building an index with 3-byte seeds allocates a 64 MiB table, so try fewer of those.
+      int trials = seedLength == 3 ? 1 : 20;
+      for (int oldLength = 0; oldLength <= 8; oldLength++) {
+        for (int trial = 0; trial < trials; trial++) {
+          checkSameAsFullSearch(
+              randomBytes(rand, oldLength, 2), randomBytes(rand, 12, 3), seedLength);
+        }
+      }
+      for (int alphabetSize : new int[] {2, 16, 256}) {
+        checkSameAsFullSearch(
+            randomBytes(rand, 5000, alphabetSize), randomBytes(rand, 2000, alphabetSize),
+            seedLength);
+      }
+    }
+  }
+
+  @Test
+  public void searchForMatchOnTestDataTest() throws Exception {
+    checkSameAsFullSearch(BsDiffTestData.LONG_DATA_99, BsDiffTestData.LONGER_DATA_349, 2);
+    checkSameAsFullSearch(BsDiffTestData.LONGER_DATA_349, BsDiffTestData.LONG_DATA_99, 3);
+  }
+
+  @Test
+  public void generatePatchSameAsWithoutIndexTest() throws Exception {
+    Random rand = new Random(1123458);
+    byte[] oldData = randomBytes(rand, 20000, 4);
+    byte[] newData = new byte[30000];
+    // Copy chunks of the old data, with some noise in between.
+    for (int x = 0; x < newData.length; x += 1000) {
+      System.arraycopy(oldData, rand.nextInt(oldData.length - 1000), newData, x, 900);
+      for (int y = x + 900; y < x + 1000; y++) {
+        newData[y] = (byte) rand.nextInt();
+      }
+    }
+    Assert.assertArrayEquals(generatePatch(oldData, newData, false),
+        generatePatch(oldData, newData, true));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void buildWithBadSeedLengthTest() throws Exception {
+    SeedIndex.build(new RandomAccessObject.RandomAccessByteArrayObject(new byte[10]), 4);
+  }
+
+  @Test
+  public void buildChoosesSeedLengthTest() throws Exception {
+    Assert.assertEquals(
+        2,
+        SeedIndex.build(new RandomAccessObject.RandomAccessByteArrayObject(new byte[100]))
+            .getSeedLength());
+  }
+
+  private static void checkSameAsFullSearch(byte[] oldBytes, byte[] newBytes, int seedLength)
+      throws Exception {
+    RandomAccessObject oldData = new RandomAccessObject.RandomAccessByteArrayObject(oldBytes);
+    RandomAccessObject newData = new RandomAccessObject.RandomAccessByteArrayObject(newBytes);
+    RandomAccessObject groupArray =
+        new DivSuffixSorter(new RandomAccessObjectFactory.RandomAccessByteArrayObjectFactory())
+            .suffixSort(oldData);
+    SeedIndex index = SeedIndex.build(oldData, seedLength);
+    for (int newStart = 0; newStart < newBytes.length; newStart++) {
+      BsDiff.Match expected =
+          BsDiff.searchForMatch(groupArray, oldData, newData, newStart, 0, oldBytes.length);
+      BsDiff.Match actual = index.searchForMatch(groupArray, oldData, newData, newStart);
+      Assert.assertEquals(expected.start, actual.start);
+      Assert.assertEquals(expected.length, actual.length);
+    }
+  }
+
+  private static byte[] generatePatch(byte[] oldBytes, byte[] newBytes, boolean useSeedIndex)
+      throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    BsDiffPatchWriter.generatePatch(
+        new RandomAccessObject.RandomAccessByteArrayObject(oldBytes),
+        new RandomAccessObject.RandomAccessByteArrayObject(newBytes),
+        out,
+        new RandomAccessObjectFactory.RandomAccessByteArrayObjectFactory(),
+        Collections.<CopyRange>emptyList(),
+        new BsDiffOptions.Builder().withSeedIndex(useSeedIndex).build());
+    return out.toByteArray();
+  }
+
+  private static byte[] randomBytes(Random rand, int length, int alphabetSize) {
+    byte[] result = new byte[length];
+    for (int x = 0; x < length; x++) {
+      // Use the top of the byte range too, to exercise unsigned comparisons.
+      result[x] = (byte) (0xff - rand.nextInt(alphabetSize));
+    }
+    return result;
+  }
+}
@@ -0,0 +1,223 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator.gdiff;
+
+import com.google.archivepatcher.generator.GenerationMetricsCollector;
+import com.google.archivepatcher.generator.GenerationMetricsListener;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link GdiffDeltaGenerator}. The patches are checked with a minimal gdiff interpreter,
+ * independent of the one in the applier.
+ */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class GdiffDeltaGeneratorTest {
+
+  @Test
+  public void testGeneratePatch_Identical() throws Exception {
+    byte[] data = randomBytes(new Random(1), 100000);
+    byte[] patch = generatePatch(data, data);
+    Assert.assertArrayEquals(data, applyPatch(data, patch));
+    // Header, one copy command and EOF.
+    Assert.assertEquals(5 + 1 + 2 + 4 + 1, patch.length);
+  }
+
+  @Test
+  public void testGeneratePatch_Empty() throws Exception {
+    byte[] data = randomBytes(new Random(2), 1000);
+    Assert.assertArrayEquals(new byte[0], applyPatch(data, generatePatch(data, new byte[0])));
+    Assert.assertArrayEquals(data, applyPatch(new byte[0], generatePatch(new byte[0], data)));
+    Assert.assertArrayEquals(
+        new byte[0], applyPatch(new byte[0], generatePatch(new byte[0], new byte[0])));
+  }
+
+  @Test
+  public void testGeneratePatch_ShorterThanSeed() throws Exception {
+    Random random = new Random(3);
+    for (int oldLength = 0; oldLength <= GdiffDeltaGenerator.SEED_LENGTH + 1; oldLength++) {
+      for (int newLength = 0; newLength <= GdiffDeltaGenerator.SEED_LENGTH + 1; newLength++) {
+        byte[] oldData = randomBytes(random, oldLength);
+        byte[] newData = randomBytes(random, newLength);
+        Assert.assertArrayEquals(newData, applyPatch(oldData, generatePatch(oldData, newData)));
+        Assert.assertArrayEquals(oldData, applyPatch(oldData, generatePatch(oldData, oldData)));
+      }
+    }
+  }
+
+  @Test
+  public void testGeneratePatch_Edits() throws Exception {
+    Random random = new Random(4);
+    byte[] oldData = randomBytes(random, 300000);
+    ByteArrayOutputStream newDataOut = new ByteArrayOutputStream();
+    // Reorder chunks of the old data, insert new bytes between them and modify single bytes.
+    int oldPos = 0;
+    while (oldPos < oldData.length) {
+      int chunkLength = Math.min(oldData.length - oldPos, 1 + random.nextInt(70000));
+      byte[] chunk = new byte[chunkLength];
+      System.arraycopy(oldData, random.nextInt(oldData.length - chunkLength + 1), chunk, 0,
+          chunkLength);
+      chunk[random.nextInt(chunkLength)] ^= 1;
+      newDataOut.write(chunk);
+      newDataOut.write(randomBytes(random, random.nextInt(300)));
+      oldPos += chunkLength;
+    }
+    byte[] newData = newDataOut.toByteArray();
+    byte[] patch = generatePatch(oldData, newData);
+    Assert.assertArrayEquals(newData, applyPatch(oldData, patch));
+    Assert.assertTrue(patch.length < newData.length / 10);
+  }
+
+  @Test
+  public void testGeneratePatch_Repetitive() throws Exception {
+    byte[] oldData = new byte[200000];
+    byte[] newData = new byte[250000];
+    for (int x = 0; x < newData.length; x++) {
+      newData[x] = (byte) (x % 7);
+      if (x < oldData.length) {
+        oldData[x] = (byte) (x % 5);
+      }
+    }
+    byte[] patch = generatePatch(oldData, newData);
+    Assert.assertArrayEquals(newData, applyPatch(oldData, patch));
+    Assert.assertArrayEquals(oldData, applyPatch(newData, generatePatch(newData, oldData)));
+  }
+
+  @Test
+  public void testGenerateDelta_Files() throws Exception {
+    Random random = new Random(5);
+    byte[] oldData = randomBytes(random, 50000);
+    byte[] newData = oldData.clone();
+    newData[25000] ^= 1;
+    File oldFile = File.createTempFile("gdiff-test", "old");
+    File newFile = File.createTempFile("gdiff-test", "new");
+    try {
+      writeFile(oldFile, oldData);
+      writeFile(newFile, newData);
+      GenerationMetricsCollector collector = new GenerationMetricsCollector();
+      ByteArrayOutputStream patchOut = new ByteArrayOutputStream();
+      new GdiffDeltaGenerator(collector).generateDelta(oldFile, newFile, patchOut);
+      Assert.assertArrayEquals(newData, applyPatch(oldData, patchOut.toByteArray()));
+      GenerationMetricsCollector.StageMetrics stageMetrics =
+          collector.getStageMetrics(GenerationMetricsListener.Stage.GENERATE_DELTA);
+      Assert.assertEquals(1, stageMetrics.getCount());
+      Assert.assertEquals(newData.length, stageMetrics.getTotalBytes());
+      Assert.assertEquals(1, collector.getLargeBufferCount());
+    } finally {
+      oldFile.delete();
+      newFile.delete();
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructor_NullListener() {
+    new GdiffDeltaGenerator(null);
+  }
+
+  private static byte[] generatePatch(byte[] oldData, byte[] newData) throws Exception {
+    ByteArrayOutputStream patchOut = new ByteArrayOutputStream();
+    GdiffDeltaGenerator.generatePatch(
+        ByteBuffer.wrap(oldData),
+        ByteBuffer.wrap(newData),
+        patchOut,
+        GenerationMetricsListener.NO_OP);
+    return patchOut.toByteArray();
+  }
+
+  /** Interprets a gdiff patch as described in http://www.w3.org/TR/NOTE-gdiff-19970901. */
+  private static byte[] applyPatch(byte[] oldData, byte[] patch) throws IOException {
+    DataInputStream patchIn = new DataInputStream(new ByteArrayInputStream(patch));
+    Assert.assertEquals(0xD1FFD1FF, patchIn.readInt());
+    Assert.assertEquals(4, patchIn.read());
+    ByteArrayOutputStream newDataOut = new ByteArrayOutputStream();
+    while (true) {
+      int command = patchIn.read();
+      if (command == 0) {
+        Assert.assertEquals(-1, patchIn.read());
+        return newDataOut.toByteArray();
+      }
+      long offset;
+      int length;
+      if (command <= 248) {
+        if (command == 247) {
+          length = patchIn.readUnsignedShort();
+        } else if (command == 248) {
+          length = patchIn.readInt();
+        } else {
+          length = command;
+        }
+        byte[] data = new byte[length];
+        patchIn.readFully(data);
+        newDataOut.write(data);
+        continue;
+      }
+      switch (command) {
+        case 249:
+          offset = patchIn.readUnsignedShort();
+          length = patchIn.readUnsignedByte();
+          break;
+        case 250:
+          offset = patchIn.readUnsignedShort();
+          length = patchIn.readUnsignedShort();
+          break;
+        case 251:
+          offset = patchIn.readUnsignedShort();
+          length = patchIn.readInt();
+          break;
+        case 252:
+          offset = patchIn.readInt();
+          length = patchIn.readUnsignedByte();
+          break;
+        case 253:
+          offset = patchIn.readInt();
+          length = patchIn.readUnsignedShort();
+          break;
+        case 254:
+          offset = patchIn.readInt();
+          length = patchIn.readInt();
+          break;
+        default:
+          offset = patchIn.readLong();
+          length = patchIn.readInt();
+          break;
+      }
+      Assert.assertTrue(length > 0);
+      newDataOut.write(oldData, (int) offset, length);
+    }
+  }
+
+  private static byte[] randomBytes(Random random, int length) {
+    byte[] result = new byte[length];
+    random.nextBytes(result);
+    return result;
+  }
+
+  private static void writeFile(File file, byte[] content) throws IOException {
+    try (FileOutputStream out = new FileOutputStream(file)) {
+      out.write(content);
+    }
+  }
+}
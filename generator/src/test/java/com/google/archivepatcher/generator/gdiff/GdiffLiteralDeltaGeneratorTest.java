@@ -0,0 +1,94 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator.gdiff;
+
+import com.google.archivepatcher.generator.GenerationMetricsCollector;
+import com.google.archivepatcher.generator.GenerationMetricsListener;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link GdiffLiteralDeltaGenerator}.
+ */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class GdiffLiteralDeltaGeneratorTest {
+
+  @Test
+  public void testGenerateDelta() throws Exception {
+    byte[] newData = new byte[100000];
+    new Random(1).nextBytes(newData);
+    byte[] patch = generateDelta(newData, new GdiffLiteralDeltaGenerator());
+
+    // Header, one inline data command with a four-byte length, the data and EOF.
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(patch));
+    Assert.assertEquals(0xD1FFD1FF, in.readInt());
+    Assert.assertEquals(4, in.readUnsignedByte());
+    Assert.assertEquals(248, in.readUnsignedByte());
+    Assert.assertEquals(newData.length, in.readInt());
+    byte[] data = new byte[newData.length];
+    in.readFully(data);
+    Assert.assertArrayEquals(newData, data);
+    Assert.assertEquals(0, in.readUnsignedByte());
+    Assert.assertEquals(-1, in.read());
+  }
+
+  @Test
+  public void testGenerateDelta_Empty() throws Exception {
+    byte[] patch = generateDelta(new byte[0], new GdiffLiteralDeltaGenerator());
+    // Header and EOF.
+    Assert.assertEquals(5 + 1, patch.length);
+  }
+
+  @Test
+  public void testGenerateDelta_ReportsStage() throws Exception {
+    GenerationMetricsCollector collector = new GenerationMetricsCollector();
+    generateDelta(new byte[1000], new GdiffLiteralDeltaGenerator(collector));
+    GenerationMetricsCollector.StageMetrics metrics =
+        collector.getStageMetrics(GenerationMetricsListener.Stage.GENERATE_DELTA);
+    Assert.assertEquals(1, metrics.getCount());
+    Assert.assertEquals(1000, metrics.getTotalBytes());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructor_NullListener() {
+    new GdiffLiteralDeltaGenerator(null);
+  }
+
+  private static byte[] generateDelta(byte[] newData, GdiffLiteralDeltaGenerator generator)
+      throws Exception {
+    // The old blob is never read.
+    File oldFile = new File("/nonexistent");
+    File newFile = File.createTempFile("gdiff-literal-test", "new");
+    try {
+      try (FileOutputStream out = new FileOutputStream(newFile)) {
+        out.write(newData);
+      }
+      ByteArrayOutputStream patch = new ByteArrayOutputStream();
+      generator.generateDelta(oldFile, newFile, patch);
+      return patch.toByteArray();
+    } finally {
+      newFile.delete();
+    }
+  }
+}
@@ -0,0 +1,170 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator.similarity;
+
+import com.google.archivepatcher.generator.MinimalZipArchive;
+import com.google.archivepatcher.generator.MinimalZipEntry;
+import com.google.archivepatcher.shared.UnitTestZipArchive;
+import com.google.archivepatcher.shared.UnitTestZipEntry;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link MinHashSimilarityFinder}.
+ */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class MinHashSimilarityFinderTest {
+  private File tempFile;
+
+  @Before
+  public void setUp() throws IOException {
+    tempFile = File.createTempFile("MinHashSimilarityFinderTest", "zip");
+    tempFile.deleteOnExit();
+  }
+
+  @After
+  public void tearDown() {
+    tempFile.delete();
+  }
+
+  /** Returns a deterministic string of random words. */
+  private static String makeText(long seed, int wordCount) {
+    Random random = new Random(seed);
+    StringBuilder builder = new StringBuilder();
+    for (int x = 0; x < wordCount; x++) {
+      int wordLength = 2 + random.nextInt(8);
+      for (int y = 0; y < wordLength; y++) {
+        builder.append((char) ('a' + random.nextInt(26)));
+      }
+      builder.append(' ');
+    }
+    return builder.toString();
+  }
+
+  private static long[] sketch(String text) {
+    MinHashSimilarityFinder.Sketcher sketcher = new MinHashSimilarityFinder.Sketcher();
+    byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+    sketcher.write(bytes, 0, bytes.length);
+    return sketcher.finish();
+  }
+
+  private List<MinimalZipEntry> writeArchive(UnitTestZipEntry... entries) throws IOException {
+    try (FileOutputStream out = new FileOutputStream(tempFile)) {
+      out.write(UnitTestZipArchive.makeTestZip(Arrays.asList(entries)));
+    }
+    return MinimalZipArchive.listEntries(tempFile);
+  }
+
+  private static MinimalZipEntry findEntry(List<MinimalZipEntry> entries, String path) {
+    for (MinimalZipEntry entry : entries) {
+      if (entry.getFileName().equals(path)) {
+        return entry;
+      }
+    }
+    throw new IllegalArgumentException("No entry for " + path);
+  }
+
+  @Test
+  public void testSketch_Identical() {
+    String text = makeText(1, 2000);
+    Assert.assertArrayEquals(sketch(text), sketch(text));
+    Assert.assertEquals(
+        1.0, MinHashSimilarityFinder.estimateSimilarity(sketch(text), sketch(text)), 0.0);
+  }
+
+  @Test
+  public void testSketch_Empty() {
+    Assert.assertNull(sketch(""));
+  }
+
+  @Test
+  public void testEstimateSimilarity() {
+    String text = makeText(1, 2000);
+    // An insertion near the start only changes the chunks around it, not all the chunks after it.
+    String modified = text.substring(0, 100) + "inserted text" + text.substring(100);
+    String unrelated = makeText(2, 2000);
+    double similarityOfModified =
+        MinHashSimilarityFinder.estimateSimilarity(sketch(text), sketch(modified));
+    double similarityOfUnrelated =
+        MinHashSimilarityFinder.estimateSimilarity(sketch(text), sketch(unrelated));
+    Assert.assertTrue(
+        "similarity of modified text: " + similarityOfModified, similarityOfModified > 0.8);
+    Assert.assertTrue(
+        "similarity of unrelated text: " + similarityOfUnrelated, similarityOfUnrelated < 0.1);
+  }
+
+  @Test
+  public void testFindSimilarFiles() throws IOException {
+    String text = makeText(1, 2000);
+    String modified = text.substring(0, 5000) + "some new words" + text.substring(5100);
+    List<MinimalZipEntry> entries =
+        writeArchive(
+            new UnitTestZipEntry("original", 6, text, null),
+            new UnitTestZipEntry("unrelated", 6, makeText(2, 2000), null),
+            new UnitTestZipEntry("modified stored", 0, modified, null),
+            new UnitTestZipEntry("modified deflated", 9, modified, null),
+            new UnitTestZipEntry("tiny", 6, "too small", null));
+    MinimalZipEntry original = findEntry(entries, "original");
+    MinimalZipEntry unrelated = findEntry(entries, "unrelated");
+    MinHashSimilarityFinder finder =
+        new MinHashSimilarityFinder(tempFile, Arrays.asList(unrelated, original));
+
+    // Content is compared uncompressed, so the compression method doesn't matter.
+    Assert.assertEquals(
+        Arrays.asList(original),
+        finder.findSimilarFiles(tempFile, findEntry(entries, "modified stored")));
+    Assert.assertEquals(
+        Arrays.asList(original),
+        finder.findSimilarFiles(tempFile, findEntry(entries, "modified deflated")));
+    Assert.assertTrue(finder.findSimilarFiles(tempFile, findEntry(entries, "tiny")).isEmpty());
+  }
+
+  @Test
+  public void testFindSimilarFiles_OrderedBySimilarity() throws IOException {
+    String text = makeText(1, 2000);
+    String slightlyModified = text.substring(0, 5000) + "x" + text.substring(5001);
+    String moreModified = text.substring(0, 3000) + makeText(3, 200) + text.substring(4000);
+    List<MinimalZipEntry> entries =
+        writeArchive(
+            new UnitTestZipEntry("text", 6, text, null),
+            new UnitTestZipEntry("slightly modified", 6, slightlyModified, null),
+            new UnitTestZipEntry("more modified", 6, moreModified, null));
+    MinimalZipEntry slightlyModifiedEntry = findEntry(entries, "slightly modified");
+    MinimalZipEntry moreModifiedEntry = findEntry(entries, "more modified");
+    MinHashSimilarityFinder finder =
+        new MinHashSimilarityFinder(
+            tempFile, Arrays.asList(moreModifiedEntry, slightlyModifiedEntry));
+    Assert.assertEquals(
+        Arrays.asList(slightlyModifiedEntry, moreModifiedEntry),
+        finder.findSimilarFiles(tempFile, findEntry(entries, "text")));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructor_BadMinimumSimilarity() throws IOException {
+    new MinHashSimilarityFinder(tempFile, Arrays.<MinimalZipEntry>asList(), 0);
+  }
+}
@@ -14,8 +14,17 @@
 
 package com.google.archivepatcher.integrationtest;
 
+import com.google.archivepatcher.applier.ApplyResult;
 import com.google.archivepatcher.applier.FileByFileV1DeltaApplier;
+import com.google.archivepatcher.applier.VerificationException;
+import com.google.archivepatcher.generator.EffortLevel;
 import com.google.archivepatcher.generator.FileByFileV1DeltaGenerator;
+import com.google.archivepatcher.generator.GenerationResult;
+import com.google.archivepatcher.generator.QualifiedRecommendation;
+import com.google.archivepatcher.generator.RecommendationModifier;
+import com.google.archivepatcher.shared.PatchConstants.DeltaCompression;
+import com.google.archivepatcher.shared.PatchConstants.DeltaFormat;
+import com.google.archivepatcher.shared.TypedRange;
 import com.google.archivepatcher.shared.UnitTestZipArchive;
 import com.google.archivepatcher.shared.UnitTestZipEntry;
 import java.io.ByteArrayInputStream;
@@ -23,9 +32,18 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Enumeration;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
@@ -142,6 +160,206 @@ public class FileByFileV1IntegrationTest {
    */
   @Test
   public void testPatchAndApply() throws Exception {
+    checkPatchAndApply(new FileByFileV1DeltaGenerator());
+  }
+
+  /**
+   * Like {@link #testPatchAndApply()}, but with a gdiff delta instead of bsdiff.
+   */
+  @Test
+  public void testPatchAndApply_Gdiff() throws Exception {
+    checkPatchAndApply(
+        new FileByFileV1DeltaGenerator.Builder().withDeltaFormat(DeltaFormat.GDIFF).build());
+  }
+
+  /**
+   * Like {@link #testPatchAndApply()}, but with the contents of the bsdiff delta in separate
+   * sections.
+   */
+  @Test
+  public void testPatchAndApply_BsdiffSectioned() throws Exception {
+    checkPatchAndApply(
+        new FileByFileV1DeltaGenerator.Builder()
+            .withDeltaFormat(DeltaFormat.BSDIFF_SECTIONED)
+            .build());
+  }
+
+  /**
+   * Like {@link #testPatchAndApply()}, but with the delta streamed into the patch, in each format.
+   */
+  @Test
+  public void testPatchAndApply_StreamedPatchOutput() throws Exception {
+    for (DeltaFormat deltaFormat : DeltaFormat.values()) {
+      checkPatchAndApply(
+          new FileByFileV1DeltaGenerator.Builder()
+              .withDeltaFormat(deltaFormat)
+              .withStreamedPatchOutput(true)
+              .build());
+    }
+  }
+
+  /**
+   * Like {@link #testPatchAndApply()}, but with the delta compressed, in each format and both
+   * with and without streaming.
+   */
+  @Test
+  public void testPatchAndApply_DeltaCompression() throws Exception {
+    for (DeltaFormat deltaFormat : DeltaFormat.values()) {
+      for (boolean streamed : new boolean[] {false, true}) {
+        checkPatchAndApply(
+            new FileByFileV1DeltaGenerator.Builder()
+                .withDeltaFormat(deltaFormat)
+                .withStreamedPatchOutput(streamed)
+                .withDeltaCompression(DeltaCompression.DEFLATE)
+                .build());
+      }
+    }
+  }
+
+  /**
+   * Like {@link #testPatchAndApply()}, but with the digest of the new archive recorded in the patch
+   * so that the applier verifies it.
+   */
+  @Test
+  public void testPatchAndApply_NewArchiveSha256() throws Exception {
+    for (boolean streamed : new boolean[] {false, true}) {
+      checkPatchAndApply(
+          new FileByFileV1DeltaGenerator.Builder()
+              .withStreamedPatchOutput(streamed)
+              .withNewArchiveSha256(true)
+              .build());
+    }
+  }
+
+  /**
+   * Like {@link #testPatchAndApply()}, but with the fingerprint of the old archive recorded in the
+   * patch so that the applier checks it first, and checks that the patch is rejected for a
+   * different old archive.
+   */
+  @Test
+  public void testPatchAndApply_OldArchiveFingerprint() throws Exception {
+    FileByFileV1DeltaGenerator generator =
+        new FileByFileV1DeltaGenerator.Builder().withOldArchiveFingerprint(true).build();
+    checkPatchAndApply(generator);
+    ByteArrayOutputStream patchBuffer = new ByteArrayOutputStream();
+    generator.generateDelta(oldFile, newFile, patchBuffer);
+    try {
+      // The new archive isn't the old archive that the patch was generated against.
+      new FileByFileV1DeltaApplier(tempDir)
+          .applyDelta(
+              newFile,
+              new ByteArrayInputStream(patchBuffer.toByteArray()),
+              new ByteArrayOutputStream());
+      Assert.fail("Expected a VerificationException");
+    } catch (VerificationException expected) {
+      // Pass
+    }
+  }
+
+  /**
+   * Checks that the digests computed while applying a patch match those of the new archive.
+   */
+  @Test
+  public void testApplyDeltaWithResult() throws Exception {
+    // Write the archives and check that the patch applies, then apply it again for the digests.
+    FileByFileV1DeltaGenerator generator = new FileByFileV1DeltaGenerator();
+    checkPatchAndApply(generator);
+    byte[] newArchiveBytes = Files.readAllBytes(newFile.toPath());
+    ByteArrayOutputStream patchBuffer = new ByteArrayOutputStream();
+    generator.generateDelta(oldFile, newFile, patchBuffer);
+    ByteArrayOutputStream newOut = new ByteArrayOutputStream();
+    ApplyResult result =
+        new FileByFileV1DeltaApplier(tempDir)
+            .applyDeltaWithResult(
+                oldFile,
+                new ByteArrayInputStream(patchBuffer.toByteArray()),
+                newOut,
+                EnumSet.allOf(ApplyResult.Digest.class));
+    Assert.assertArrayEquals(newArchiveBytes, newOut.toByteArray());
+
+    CRC32 crc32 = new CRC32();
+    crc32.update(newArchiveBytes);
+    Assert.assertEquals(Long.valueOf(crc32.getValue()), result.getCrc32());
+    Assert.assertArrayEquals(
+        MessageDigest.getInstance("SHA-256").digest(newArchiveBytes), result.getSha256());
+
+    // Every recompressed entry is a compressed entry of the new archive, with the same CRC-32.
+    Set<Long> compressedEntryCrc32s = new HashSet<Long>();
+    try (ZipFile zipFile = new ZipFile(newFile)) {
+      Enumeration<? extends ZipEntry> entries = zipFile.entries();
+      while (entries.hasMoreElements()) {
+        ZipEntry entry = entries.nextElement();
+        if (entry.getMethod() == ZipEntry.DEFLATED) {
+          compressedEntryCrc32s.add(entry.getCrc());
+        }
+      }
+    }
+    Assert.assertFalse(result.getEntryCrc32s().isEmpty());
+    for (TypedRange<Long> entryCrc32 : result.getEntryCrc32s()) {
+      Assert.assertTrue(compressedEntryCrc32s.contains(entryCrc32.getMetadata()));
+    }
+  }
+
+  /**
+   * Like {@link #testPatchAndApply()}, but at each effort level.
+   */
+  @Test
+  public void testPatchAndApply_EffortLevels() throws Exception {
+    for (EffortLevel effortLevel : EffortLevel.values()) {
+      checkPatchAndApply(
+          new FileByFileV1DeltaGenerator.Builder().withEffortLevel(effortLevel).build());
+    }
+  }
+
+  /**
+   * Like {@link #testPatchAndApply()}, but with no time to generate the patch as configured, so
+   * that it falls back to the copy-only strategy.
+   */
+  @Test
+  public void testPatchAndApply_CopyOnly() throws Exception {
+    FileByFileV1DeltaGenerator generator =
+        new FileByFileV1DeltaGenerator.Builder().withDeadline(0).build();
+    Assert.assertEquals(
+        GenerationResult.Strategy.COPY_ONLY, checkPatchAndApply(generator).getStrategy());
+  }
+
+  /**
+   * Like {@link #testPatchAndApply()}, but with a recommendation modifier that stalls the first
+   * time it is called, so that generation falls back to the reduced strategy when the deadline
+   * passes.
+   */
+  @Test
+  public void testPatchAndApply_Reduced() throws Exception {
+    RecommendationModifier stallOnce =
+        new RecommendationModifier() {
+          private boolean stalled = false;
+
+          @Override
+          public List<QualifiedRecommendation> getModifiedRecommendations(
+              File oldFile, File newFile, List<QualifiedRecommendation> originalRecommendations) {
+            if (!stalled) {
+              stalled = true;
+              try {
+                Thread.sleep(Long.MAX_VALUE);
+              } catch (InterruptedException e) {
+                // Leave the interrupt for the delta generator to notice.
+                Thread.currentThread().interrupt();
+              }
+            }
+            return originalRecommendations;
+          }
+        };
+    FileByFileV1DeltaGenerator generator =
+        new FileByFileV1DeltaGenerator.Builder()
+            .withRecommendationModifier(stallOnce)
+            .withDeadline(500)
+            .build();
+    Assert.assertEquals(
+        GenerationResult.Strategy.REDUCED, checkPatchAndApply(generator).getStrategy());
+  }
+
+  private GenerationResult checkPatchAndApply(FileByFileV1DeltaGenerator generator)
+      throws Exception {
     // Write the old archive to disk.
     byte[] oldArchiveBytes = UnitTestZipArchive.makeTestZip(Arrays.asList(
         OLD_ENTRY1,
@@ -181,8 +399,7 @@ public class FileByFileV1IntegrationTest {
 
     // Generate the patch.
     ByteArrayOutputStream patchBuffer = new ByteArrayOutputStream();
-    FileByFileV1DeltaGenerator generator = new FileByFileV1DeltaGenerator();
-    generator.generateDelta(oldFile, newFile, patchBuffer);
+    GenerationResult result = generator.generateDeltaWithResult(oldFile, newFile, patchBuffer);
 
     // Apply the patch.
     FileByFileV1DeltaApplier applier = new FileByFileV1DeltaApplier(tempDir);
@@ -193,5 +410,6 @@ public class FileByFileV1IntegrationTest {
     // Finally, expect that the result of applying the patch is exactly the same as the new archive
     // that was written to disk.
     Assert.assertArrayEquals(newArchiveBytes, newOut.toByteArray());
+    return result;
   }
 }
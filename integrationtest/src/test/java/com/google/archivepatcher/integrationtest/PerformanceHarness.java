@@ -0,0 +1,574 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.integrationtest;
+
+import com.google.archivepatcher.applier.ApplyMetricsCollector;
+import com.google.archivepatcher.applier.ApplyMetricsListener;
+import com.google.archivepatcher.applier.FileByFileV1DeltaApplier;
+import com.google.archivepatcher.generator.FileByFileV1DeltaGenerator;
+import com.google.archivepatcher.generator.GenerationMetricsCollector;
+import com.google.archivepatcher.integrationtest.PerformanceReport.Metric;
+import com.google.archivepatcher.shared.CountingOutputStream;
+import com.google.archivepatcher.shared.SyntheticArchivePairGenerator;
+import com.google.archivepatcher.shared.SyntheticArchivePairGenerator.MutationStyle;
+import com.google.archivepatcher.tools.AbstractTool;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * An end-to-end performance harness: generates and applies patches for a corpus of synthetic
+ * archive pairs, records the {@link Metric}s of each and optionally compares them against a stored
+ * baseline, failing if anything regressed by more than its tolerance.
+ *
+ * <p>The corpus is generated from fixed seeds by {@link SyntheticArchivePairGenerator}, so runs on
+ * the same machine are comparable. Timings are the median of several iterations and peaks are the
+ * maximum. Baselines are only meaningful on the machine (and JVM) that recorded them.
+ *
+ * <p>Peak RSS is only available on Linux. It is measured exactly where the kernel allows resetting
+ * the high-water mark and is sampled otherwise. Peak temp disk usage during application is the
+ * larger of what the applier reports it writes and the sampled size of its temp directory.
+ */
+public class PerformanceHarness extends AbstractTool {
+
+  /** Usage instructions for the command line. */
+  private static final String USAGE =
+      "java -cp <classpath> com.google.archivepatcher.integrationtest.PerformanceHarness"
+          + " <options>\n"
+          + "\nOptions:\n"
+          + "  --scale           multiplies the number of entries in the corpus (default 1, about\n"
+          + "                    120 MB per archive; use 10 for about 1.2 GB)\n"
+          + "  --iterations      the number of times to generate and apply each patch (default 3)\n"
+          + "  --work-dir        where to write the archives and patches (default: a directory in\n"
+          + "                    the system temp directory)\n"
+          + "  --baseline        a report to compare against; exits with status 2 on regressions\n"
+          + "  --tolerance       the relative change for the worse to accept for every metric,\n"
+          + "                    instead of each metric's default\n"
+          + "  --write-baseline  where to write the report, for use as a future baseline\n"
+          + "\nExamples:\n"
+          + "  To record a baseline:\n"
+          + "    java -cp <classpath> com.google.archivepatcher.integrationtest.PerformanceHarness"
+          + " \\\n"
+          + "      --write-baseline perf-baseline.properties\n"
+          + "  To check for regressions against it:\n"
+          + "    java -cp <classpath> com.google.archivepatcher.integrationtest.PerformanceHarness"
+          + " \\\n"
+          + "      --baseline perf-baseline.properties";
+
+  /** How often to sample the temp directory and RSS, in milliseconds. */
+  private static final long SAMPLE_INTERVAL_MILLIS = 5;
+
+  /** The process status file on Linux, used to read the RSS. */
+  private static final File PROC_STATUS = new File("/proc/self/status");
+
+  /** Writing "5" here resets the RSS high-water mark on Linux 4.0 and later. */
+  private static final File PROC_CLEAR_REFS = new File("/proc/self/clear_refs");
+
+  /**
+   * An archive pair in the corpus.
+   */
+  public static final class ArchivePair {
+    /** The name of the pair, used in the keys of the report. */
+    public final String name;
+
+    /** The configuration of the pair. */
+    public final SyntheticArchivePairGenerator.Builder builder;
+
+    /**
+     * Creates a new archive pair.
+     *
+     * @param name the name of the pair, used in the keys of the report
+     * @param builder the configuration of the pair
+     */
+    public ArchivePair(String name, SyntheticArchivePairGenerator.Builder builder) {
+      this.name = name;
+      this.builder = builder;
+    }
+  }
+
+  /**
+   * Returns the default corpus: an archive dominated by many small resources with scattered
+   * edits, one dominated by a few large native libraries that have been recompiled, and one
+   * dominated by stored media.
+   *
+   * @param scale multiplies the number of entries in every archive
+   * @return the corpus
+   */
+  public static List<ArchivePair> defaultCorpus(int scale) {
+    return Arrays.asList(
+        new ArchivePair(
+            "resources",
+            new SyntheticArchivePairGenerator.Builder()
+                .withSeed(1)
+                .withEntryCount(2000 * scale)
+                .withEntrySizes(256, 64 * 1024)
+                .withStoredFraction(0.05)
+                .withLevels(6, 9)
+                .withChurn(0.2, 0.02, 0.05, 0.02)
+                .withMutationStyles(MutationStyle.INSERTS)),
+        new ArchivePair(
+            "native",
+            new SyntheticArchivePairGenerator.Builder()
+                .withSeed(2)
+                .withEntryCount(50 * scale)
+                .withEntrySizes(64 * 1024, 4 * 1024 * 1024)
+                .withStoredFraction(0)
+                .withLevels(9)
+                .withChurn(0.6, 0, 0.02, 0)
+                .withMutationStyles(MutationStyle.RECOMPILE, MutationStyle.SHIFT)),
+        new ArchivePair(
+            "media",
+            new SyntheticArchivePairGenerator.Builder()
+                .withSeed(3)
+                .withEntryCount(200 * scale)
+                .withEntrySizes(16 * 1024, 1024 * 1024)
+                .withStoredFraction(0.8)
+                .withLevels(6)
+                .withChurn(0.1, 0.05, 0.05, 0.05)
+                .withMutationStyles(MutationStyle.INSERTS)));
+  }
+
+  /**
+   * Runs the harness. See usage instructions for more information.
+   *
+   * @param args command line arguments
+   * @throws IOException if anything goes wrong
+   * @throws InterruptedException if any thread has interrupted the current thread
+   */
+  public static void main(String... args) throws IOException, InterruptedException {
+    new PerformanceHarness().run(args);
+  }
+
+  /**
+   * Runs the harness.
+   *
+   * @param args command line arguments
+   * @throws IOException if anything goes wrong
+   * @throws InterruptedException if any thread has interrupted the current thread
+   */
+  public void run(String... args) throws IOException, InterruptedException {
+    int scale = 1;
+    int iterations = 3;
+    File workDir = new File(System.getProperty("java.io.tmpdir"), "archive-patcher-perf");
+    File baselineFile = null;
+    File writeBaselineFile = null;
+    Double tolerance = null;
+    Iterator<String> argIterator = new LinkedList<String>(Arrays.asList(args)).iterator();
+    while (argIterator.hasNext()) {
+      String arg = argIterator.next();
+      if ("--scale".equals(arg)) {
+        scale = Integer.parseInt(popOrDie(argIterator, "--scale"));
+        if (scale < 1) {
+          exitWithUsage("--scale must be positive: " + scale);
+        }
+      } else if ("--iterations".equals(arg)) {
+        iterations = Integer.parseInt(popOrDie(argIterator, "--iterations"));
+        if (iterations < 1) {
+          exitWithUsage("--iterations must be positive: " + iterations);
+        }
+      } else if ("--work-dir".equals(arg)) {
+        workDir = new File(popOrDie(argIterator, "--work-dir"));
+      } else if ("--baseline".equals(arg)) {
+        baselineFile = getRequiredFileOrDie(popOrDie(argIterator, "--baseline"), "baseline");
+      } else if ("--tolerance".equals(arg)) {
+        tolerance = Double.parseDouble(popOrDie(argIterator, "--tolerance"));
+        if (tolerance < 0) {
+          exitWithUsage("--tolerance cannot be negative: " + tolerance);
+        }
+      } else if ("--write-baseline".equals(arg)) {
+        writeBaselineFile = new File(popOrDie(argIterator, "--write-baseline"));
+      } else {
+        exitWithUsage("unknown argument: " + arg);
+      }
+    }
+
+    PerformanceReport report = measure(defaultCorpus(scale), iterations, workDir);
+    System.out.print(report);
+    if (writeBaselineFile != null) {
+      report.write(writeBaselineFile);
+    }
+    if (baselineFile != null) {
+      List<String> regressions =
+          report.findRegressions(PerformanceReport.read(baselineFile), tolerance);
+      if (!regressions.isEmpty()) {
+        System.err.println("Regressions against " + baselineFile + ":");
+        for (String regression : regressions) {
+          System.err.println("  " + regression);
+        }
+        System.exit(2);
+      }
+      System.out.println("No regressions against " + baselineFile);
+    }
+  }
+
+  @Override
+  protected String getUsage() {
+    return USAGE;
+  }
+
+  /**
+   * Generates and applies a patch for every pair in the corpus, and measures it.
+   *
+   * @param corpus the archive pairs
+   * @param iterations the number of times to generate and apply each patch
+   * @param workDir where to write the archives, patches and temp files; created if necessary
+   * @return the measurements
+   * @throws IOException if anything goes wrong, including a patch that does not reproduce the new
+   *     archive
+   * @throws InterruptedException if any thread has interrupted the current thread
+   */
+  public PerformanceReport measure(List<ArchivePair> corpus, int iterations, File workDir)
+      throws IOException, InterruptedException {
+    PerformanceReport report = new PerformanceReport();
+    workDir.mkdirs();
+    for (ArchivePair pair : corpus) {
+      measure(pair, iterations, workDir, report);
+    }
+    return report;
+  }
+
+  private void measure(ArchivePair pair, int iterations, File workDir, PerformanceReport report)
+      throws IOException, InterruptedException {
+    final File oldFile = new File(workDir, pair.name + "-old.zip");
+    final File newFile = new File(workDir, pair.name + "-new.zip");
+    final File patchFile = new File(workDir, pair.name + ".patch");
+    final File resultFile = new File(workDir, pair.name + "-result.zip");
+    final File applyTempDir = new File(workDir, pair.name + "-apply-tmp");
+    applyTempDir.mkdirs();
+    try {
+      SyntheticArchivePairGenerator generator = pair.builder.build();
+      generator.writeOldArchive(oldFile);
+      generator.writeNewArchive(newFile);
+
+      List<Measurement> generateMeasurements = new ArrayList<Measurement>();
+      List<Measurement> applyMeasurements = new ArrayList<Measurement>();
+      for (int iteration = 0; iteration < iterations; iteration++) {
+        final GenerationMetricsCollector generationMetrics = new GenerationMetricsCollector();
+        Measurement generate =
+            measure(
+                null,
+                new Task() {
+                  @Override
+                  public void run() throws IOException, InterruptedException {
+                    try (OutputStream patchOut =
+                        new BufferedOutputStream(new FileOutputStream(patchFile))) {
+                      new FileByFileV1DeltaGenerator.Builder()
+                          .withMetricsListener(generationMetrics)
+                          .build()
+                          .generateDelta(oldFile, newFile, patchOut);
+                    }
+                  }
+                });
+        generate.peakTempDiskBytes = generationMetrics.getPeakTempDiskBytes();
+        generateMeasurements.add(generate);
+
+        final ApplyMetricsCollector applyMetrics = new ApplyMetricsCollector();
+        Measurement apply =
+            measure(
+                applyTempDir,
+                new Task() {
+                  @Override
+                  public void run() throws IOException {
+                    try (InputStream patchIn =
+                            new BufferedInputStream(new FileInputStream(patchFile));
+                        OutputStream resultOut =
+                            new BufferedOutputStream(new FileOutputStream(resultFile))) {
+                      new FileByFileV1DeltaApplier(applyTempDir, applyMetrics)
+                          .applyDelta(oldFile, patchIn, resultOut);
+                    }
+                  }
+                });
+        apply.peakTempDiskBytes =
+            Math.max(
+                apply.peakTempDiskBytes,
+                applyMetrics.getPhaseBytes(
+                    ApplyMetricsListener.Phase.WRITE_DELTA_FRIENDLY_OLD_BLOB));
+        applyMeasurements.add(apply);
+        if (!sameContent(newFile, resultFile)) {
+          throw new IOException("Applying the patch for " + pair.name + " produced wrong output");
+        }
+      }
+
+      Measurement generate = summarize(generateMeasurements);
+      report.put(pair.name, Metric.GENERATE_WALL_MILLIS, generate.wallNanos / 1e6);
+      report.put(pair.name, Metric.GENERATE_CPU_MILLIS, generate.cpuNanos / 1e6);
+      report.put(pair.name, Metric.GENERATE_PEAK_HEAP_BYTES, generate.peakHeapBytes);
+      report.put(pair.name, Metric.GENERATE_PEAK_RSS_BYTES, generate.peakRssBytes);
+      report.put(pair.name, Metric.GENERATE_PEAK_TEMP_DISK_BYTES, generate.peakTempDiskBytes);
+      report.put(pair.name, Metric.PATCH_BYTES, deflatedSize(patchFile));
+      Measurement apply = summarize(applyMeasurements);
+      report.put(pair.name, Metric.APPLY_WALL_MILLIS, apply.wallNanos / 1e6);
+      report.put(pair.name, Metric.APPLY_CPU_MILLIS, apply.cpuNanos / 1e6);
+      report.put(pair.name, Metric.APPLY_PEAK_HEAP_BYTES, apply.peakHeapBytes);
+      report.put(pair.name, Metric.APPLY_PEAK_RSS_BYTES, apply.peakRssBytes);
+      report.put(pair.name, Metric.APPLY_PEAK_TEMP_DISK_BYTES, apply.peakTempDiskBytes);
+      report.put(
+          pair.name,
+          Metric.APPLY_BYTES_PER_SECOND,
+          apply.wallNanos == 0 ? -1 : newFile.length() * 1e9 / apply.wallNanos);
+    } finally {
+      oldFile.delete();
+      newFile.delete();
+      patchFile.delete();
+      resultFile.delete();
+      applyTempDir.delete();
+    }
+  }
+
+  /** Something to measure. */
+  private interface Task {
+    void run() throws IOException, InterruptedException;
+  }
+
+  /** The measurements of one run of a {@link Task}. Values are -1 where not available. */
+  private static final class Measurement {
+    long wallNanos;
+    long cpuNanos;
+    long peakHeapBytes;
+    long peakRssBytes;
+    long peakTempDiskBytes;
+  }
+
+  /**
+   * Runs the task and measures it.
+   *
+   * @param tempDir if not null, a directory whose total size to sample as the temp disk usage
+   * @param task the task
+   * @return the measurement
+   */
+  private static Measurement measure(File tempDir, Task task)
+      throws IOException, InterruptedException {
+    System.gc();
+    List<MemoryPoolMXBean> heapPools = new ArrayList<MemoryPoolMXBean>();
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+        pool.resetPeakUsage();
+        heapPools.add(pool);
+      }
+    }
+    boolean rssHighWaterMarkReset = resetRssHighWaterMark();
+    Sampler sampler = new Sampler(tempDir);
+    sampler.start();
+    long startCpuNanos = getProcessCpuNanos();
+    long startNanos = System.nanoTime();
+    try {
+      task.run();
+    } finally {
+      sampler.interrupt();
+      sampler.join();
+    }
+    Measurement result = new Measurement();
+    result.wallNanos = System.nanoTime() - startNanos;
+    result.cpuNanos = startCpuNanos < 0 ? -1 : getProcessCpuNanos() - startCpuNanos;
+    for (MemoryPoolMXBean pool : heapPools) {
+      result.peakHeapBytes += pool.getPeakUsage().getUsed();
+    }
+    result.peakRssBytes =
+        rssHighWaterMarkReset ? readProcStatusBytes("VmHWM:") : sampler.peakRssBytes;
+    result.peakTempDiskBytes = tempDir == null ? -1 : sampler.peakTempDiskBytes;
+    return result;
+  }
+
+  /**
+   * Takes the median of the times and the maximum of the peaks.
+   */
+  private static Measurement summarize(List<Measurement> measurements) {
+    Measurement result = new Measurement();
+    List<Long> wallNanos = new ArrayList<Long>();
+    List<Long> cpuNanos = new ArrayList<Long>();
+    for (Measurement measurement : measurements) {
+      wallNanos.add(measurement.wallNanos);
+      cpuNanos.add(measurement.cpuNanos);
+      result.peakHeapBytes = Math.max(result.peakHeapBytes, measurement.peakHeapBytes);
+      result.peakRssBytes = Math.max(result.peakRssBytes, measurement.peakRssBytes);
+      result.peakTempDiskBytes = Math.max(result.peakTempDiskBytes, measurement.peakTempDiskBytes);
+    }
+    result.wallNanos = median(wallNanos);
+    result.cpuNanos = median(cpuNanos);
+    return result;
+  }
+
+  private static long median(List<Long> values) {
+    Collections.sort(values);
+    return values.get(values.size() / 2);
+  }
+
+  /**
+   * Samples the total size of the files in a directory and the RSS of the process until
+   * interrupted.
+   */
+  private static final class Sampler extends Thread {
+    private final File directory;
+    private volatile long peakTempDiskBytes = 0;
+    private volatile long peakRssBytes = -1;
+
+    Sampler(File directory) {
+      this.directory = directory;
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        sample();
+        try {
+          Thread.sleep(SAMPLE_INTERVAL_MILLIS);
+        } catch (InterruptedException e) {
+          sample();
+          return;
+        }
+      }
+    }
+
+    private void sample() {
+      if (directory != null) {
+        long total = 0;
+        File[] files = directory.listFiles();
+        if (files != null) {
+          for (File file : files) {
+            total += file.length();
+          }
+        }
+        peakTempDiskBytes = Math.max(peakTempDiskBytes, total);
+      }
+      peakRssBytes = Math.max(peakRssBytes, readProcStatusBytes("VmRSS:"));
+    }
+  }
+
+  /**
+   * Returns the CPU time used by the process so far.
+   *
+   * @return the time in nanoseconds, or -1 if not available on this JVM
+   */
+  private static long getProcessCpuNanos() {
+    OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    if (os instanceof com.sun.management.OperatingSystemMXBean) {
+      return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+    }
+    return -1;
+  }
+
+  /**
+   * Resets the high-water mark of the RSS of the process, if the platform allows it.
+   *
+   * @return true if the high-water mark was reset
+   */
+  private static boolean resetRssHighWaterMark() {
+    if (!PROC_CLEAR_REFS.exists()) {
+      return false;
+    }
+    try (Writer out = new FileWriter(PROC_CLEAR_REFS)) {
+      out.write("5");
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Reads a field of the process status on Linux, such as "VmRSS:", which is in kB.
+   *
+   * @param field the field, including the colon
+   * @return the value in bytes, or -1 if not available
+   */
+  private static long readProcStatusBytes(String field) {
+    if (!PROC_STATUS.exists()) {
+      return -1;
+    }
+    try (BufferedReader in = new BufferedReader(new FileReader(PROC_STATUS))) {
+      String line;
+      while ((line = in.readLine()) != null) {
+        if (line.startsWith(field)) {
+          String[] parts = line.substring(field.length()).trim().split("\\s+");
+          return Long.parseLong(parts[0]) * 1024;
+        }
+      }
+    } catch (IOException | NumberFormatException e) {
+      // Fall through
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the size of the file after deflating it at level 9, as it would be for transport.
+   */
+  private static long deflatedSize(File file) throws IOException {
+    Deflater deflater = new Deflater(9, true);
+    try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+      CountingOutputStream counter = new CountingOutputStream(NULL_OUTPUT_STREAM);
+      DeflaterOutputStream deflaterOut = new DeflaterOutputStream(counter, deflater, 32768);
+      byte[] buffer = new byte[32768];
+      int numRead;
+      while ((numRead = in.read(buffer)) >= 0) {
+        deflaterOut.write(buffer, 0, numRead);
+      }
+      deflaterOut.finish();
+      return counter.getNumBytesWritten();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /** Discards everything. */
+  private static final OutputStream NULL_OUTPUT_STREAM =
+      new OutputStream() {
+        @Override
+        public void write(int b) {
+          // Nothing
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+          // Nothing
+        }
+      };
+
+  private static boolean sameContent(File file1, File file2) throws IOException {
+    if (file1.length() != file2.length()) {
+      return false;
+    }
+    try (InputStream in1 = new BufferedInputStream(new FileInputStream(file1));
+        InputStream in2 = new BufferedInputStream(new FileInputStream(file2))) {
+      int b;
+      while ((b = in1.read()) >= 0) {
+        if (b != in2.read()) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,128 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.integrationtest;
+
+import com.google.archivepatcher.integrationtest.PerformanceReport.Metric;
+import com.google.archivepatcher.shared.SyntheticArchivePairGenerator;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link PerformanceHarness} and {@link PerformanceReport}.
+ */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class PerformanceHarnessTest {
+  private File tempDir = null;
+
+  @Before
+  public void setUp() throws IOException {
+    tempDir = File.createTempFile("perf-harness-test", "dir");
+    tempDir.delete();
+    tempDir.mkdirs();
+  }
+
+  @After
+  public void tearDown() {
+    File[] files = tempDir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    tempDir.delete();
+  }
+
+  @Test
+  public void testFindRegressions() {
+    PerformanceReport baseline = new PerformanceReport();
+    baseline.put("pair", Metric.PATCH_BYTES, 1000);
+    baseline.put("pair", Metric.APPLY_WALL_MILLIS, 1000);
+    baseline.put("pair", Metric.APPLY_BYTES_PER_SECOND, 1000);
+    baseline.put("pair", Metric.GENERATE_WALL_MILLIS, 0);
+
+    PerformanceReport current = new PerformanceReport();
+    current.put("pair", Metric.PATCH_BYTES, 1010); // Within 2%
+    current.put("pair", Metric.APPLY_WALL_MILLIS, 500); // Better
+    current.put("pair", Metric.APPLY_BYTES_PER_SECOND, 2000); // Better
+    current.put("pair", Metric.GENERATE_WALL_MILLIS, 1000); // Zero in the baseline
+    current.put("pair", Metric.GENERATE_CPU_MILLIS, 1000); // Missing from the baseline
+    Assert.assertTrue(current.findRegressions(baseline, null).isEmpty());
+
+    current.put("pair", Metric.PATCH_BYTES, 1030);
+    current.put("pair", Metric.APPLY_WALL_MILLIS, 1300);
+    current.put("pair", Metric.APPLY_BYTES_PER_SECOND, 700);
+    List<String> regressions = current.findRegressions(baseline, null);
+    Assert.assertEquals(3, regressions.size());
+    Assert.assertTrue(regressions.get(0).startsWith(Metric.PATCH_BYTES.key("pair")));
+    Assert.assertTrue(regressions.get(1).startsWith(Metric.APPLY_WALL_MILLIS.key("pair")));
+    Assert.assertTrue(regressions.get(2).startsWith(Metric.APPLY_BYTES_PER_SECOND.key("pair")));
+
+    // A looser tolerance accepts all of them.
+    Assert.assertTrue(current.findRegressions(baseline, 0.5).isEmpty());
+  }
+
+  @Test
+  public void testPut_IgnoresUnavailable() {
+    PerformanceReport report = new PerformanceReport();
+    report.put("pair", Metric.APPLY_PEAK_RSS_BYTES, -1);
+    Assert.assertNull(report.get("pair", Metric.APPLY_PEAK_RSS_BYTES));
+    Assert.assertTrue(report.getPairNames().isEmpty());
+  }
+
+  @Test
+  public void testWriteAndRead() throws IOException {
+    PerformanceReport report = new PerformanceReport();
+    report.put("pair1", Metric.PATCH_BYTES, 1234);
+    report.put("pair2", Metric.APPLY_BYTES_PER_SECOND, 5678);
+    File file = new File(tempDir, "baseline.properties");
+    report.write(file);
+    PerformanceReport read = PerformanceReport.read(file);
+    Assert.assertEquals(1234d, read.get("pair1", Metric.PATCH_BYTES), 0);
+    Assert.assertEquals(5678d, read.get("pair2", Metric.APPLY_BYTES_PER_SECOND), 0);
+    Assert.assertEquals(report.getPairNames(), read.getPairNames());
+    Assert.assertTrue(read.findRegressions(report, 0d).isEmpty());
+  }
+
+  @Test
+  public void testMeasure() throws Exception {
+    PerformanceHarness.ArchivePair pair =
+        new PerformanceHarness.ArchivePair(
+            "tiny",
+            new SyntheticArchivePairGenerator.Builder()
+                .withSeed(7)
+                .withEntryCount(20)
+                .withEntrySizes(256, 8 * 1024));
+    PerformanceReport report =
+        new PerformanceHarness().measure(Collections.singletonList(pair), 2, tempDir);
+    for (Metric metric : Metric.values()) {
+      if (metric == Metric.GENERATE_PEAK_RSS_BYTES || metric == Metric.APPLY_PEAK_RSS_BYTES) {
+        continue; // Only available on Linux
+      }
+      Assert.assertNotNull(metric.toString(), report.get("tiny", metric));
+    }
+    Assert.assertTrue(report.get("tiny", Metric.PATCH_BYTES) > 0);
+    Assert.assertTrue(report.get("tiny", Metric.APPLY_PEAK_TEMP_DISK_BYTES) > 0);
+    Assert.assertTrue(report.get("tiny", Metric.GENERATE_PEAK_TEMP_DISK_BYTES) > 0);
+  }
+}
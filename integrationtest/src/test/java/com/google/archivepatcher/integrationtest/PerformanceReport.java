@@ -0,0 +1,213 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.integrationtest;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * The measurements of one run of the {@link PerformanceHarness}, keyed by archive pair and {@link
+ * Metric}, which can be stored as a baseline and compared against a later run.
+ */
+public class PerformanceReport {
+  /**
+   * What is measured for each archive pair. Each metric has a default tolerance: the relative
+   * change for the worse that is accepted before the change is reported as a regression. Timings
+   * are noisy, so they are given more room than sizes, which are nearly deterministic.
+   */
+  public enum Metric {
+    /** Wall time to generate the patch. */
+    GENERATE_WALL_MILLIS(false, 0.25),
+    /** CPU time of the process while generating the patch. */
+    GENERATE_CPU_MILLIS(false, 0.25),
+    /** Peak heap usage while generating the patch. */
+    GENERATE_PEAK_HEAP_BYTES(false, 0.2),
+    /** Peak resident set size of the process while generating the patch. */
+    GENERATE_PEAK_RSS_BYTES(false, 0.2),
+    /** Peak total size of temp files while generating the patch. */
+    GENERATE_PEAK_TEMP_DISK_BYTES(false, 0.05),
+    /** Size of the patch, as compressed for transport. */
+    PATCH_BYTES(false, 0.02),
+    /** Wall time to apply the patch. */
+    APPLY_WALL_MILLIS(false, 0.25),
+    /** CPU time of the process while applying the patch. */
+    APPLY_CPU_MILLIS(false, 0.25),
+    /** Peak heap usage while applying the patch. */
+    APPLY_PEAK_HEAP_BYTES(false, 0.2),
+    /** Peak resident set size of the process while applying the patch. */
+    APPLY_PEAK_RSS_BYTES(false, 0.2),
+    /** Peak total size of temp files while applying the patch. */
+    APPLY_PEAK_TEMP_DISK_BYTES(false, 0.05),
+    /** Bytes of new archive produced per second of applying the patch. */
+    APPLY_BYTES_PER_SECOND(true, 0.25);
+
+    /** Whether larger values are better. */
+    public final boolean higherIsBetter;
+
+    /** The relative change for the worse that is accepted by default. */
+    public final double defaultTolerance;
+
+    private Metric(boolean higherIsBetter, double defaultTolerance) {
+      this.higherIsBetter = higherIsBetter;
+      this.defaultTolerance = defaultTolerance;
+    }
+
+    /**
+     * Returns the key for this metric of the specified archive pair.
+     *
+     * @param pairName the name of the archive pair
+     * @return the key, e.g. "resources.patch_bytes"
+     */
+    public String key(String pairName) {
+      return pairName + "." + name().toLowerCase(Locale.US);
+    }
+  }
+
+  /** The measurements, keyed as described in {@link Metric#key(String)}, in sorted order. */
+  private final Map<String, Double> values = new TreeMap<String, Double>();
+
+  /**
+   * Records a measurement, replacing any previous measurement of the same metric.
+   *
+   * @param pairName the name of the archive pair
+   * @param metric the metric
+   * @param value the value; negative values mean "not available" and are ignored
+   */
+  public void put(String pairName, Metric metric, double value) {
+    if (value >= 0) {
+      values.put(metric.key(pairName), value);
+    }
+  }
+
+  /**
+   * Returns a measurement.
+   *
+   * @param pairName the name of the archive pair
+   * @param metric the metric
+   * @return the value, or null if not measured
+   */
+  public Double get(String pairName, Metric metric) {
+    return values.get(metric.key(pairName));
+  }
+
+  /**
+   * Returns the names of the archive pairs that have measurements, in sorted order.
+   *
+   * @return as described
+   */
+  public List<String> getPairNames() {
+    List<String> result = new ArrayList<String>();
+    for (String key : values.keySet()) {
+      String pairName = key.substring(0, key.lastIndexOf('.'));
+      if (!result.contains(pairName)) {
+        result.add(pairName);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Compares this report against a baseline and describes every metric that is worse than in the
+   * baseline by more than its tolerance. Metrics that are missing from either report, or that are
+   * zero in the baseline, are not compared.
+   *
+   * @param baseline the baseline to compare against
+   * @param toleranceOverride if not null, the tolerance to use for every metric instead of its
+   *     default
+   * @return a description of each regression, empty if there are none
+   */
+  public List<String> findRegressions(PerformanceReport baseline, Double toleranceOverride) {
+    List<String> regressions = new ArrayList<String>();
+    for (String pairName : getPairNames()) {
+      for (Metric metric : Metric.values()) {
+        Double current = get(pairName, metric);
+        Double previous = baseline.get(pairName, metric);
+        if (current == null || previous == null || previous == 0) {
+          continue;
+        }
+        double change = (current - previous) / previous;
+        double worsening = metric.higherIsBetter ? -change : change;
+        double tolerance =
+            toleranceOverride != null ? toleranceOverride : metric.defaultTolerance;
+        if (worsening > tolerance) {
+          regressions.add(
+              String.format(
+                  Locale.US,
+                  "%s: %.0f -> %.0f (%+.1f%%, tolerance %.1f%%)",
+                  metric.key(pairName),
+                  previous,
+                  current,
+                  change * 100,
+                  tolerance * 100));
+        }
+      }
+    }
+    return regressions;
+  }
+
+  /**
+   * Reads a report that was written with {@link #write(File)}.
+   *
+   * @param file the file to read
+   * @return the report
+   * @throws IOException if unable to read the file
+   */
+  public static PerformanceReport read(File file) throws IOException {
+    Properties properties = new Properties();
+    try (InputStream in = new FileInputStream(file)) {
+      properties.load(in);
+    }
+    PerformanceReport report = new PerformanceReport();
+    for (String key : properties.stringPropertyNames()) {
+      report.values.put(key, Double.parseDouble(properties.getProperty(key)));
+    }
+    return report;
+  }
+
+  /**
+   * Writes the report as a properties file, e.g. to store it as a baseline.
+   *
+   * @param file the file to write
+   * @throws IOException if unable to write the file
+   */
+  public void write(File file) throws IOException {
+    Properties properties = new Properties();
+    for (Map.Entry<String, Double> entry : values.entrySet()) {
+      properties.setProperty(entry.getKey(), String.format(Locale.US, "%.0f", entry.getValue()));
+    }
+    try (OutputStream out = new FileOutputStream(file)) {
+      properties.store(out, "archive-patcher performance baseline");
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder result = new StringBuilder();
+    for (Map.Entry<String, Double> entry : values.entrySet()) {
+      result.append(String.format(Locale.US, "%-45s %,18.0f%n", entry.getKey(), entry.getValue()));
+    }
+    return result.toString();
+  }
+}
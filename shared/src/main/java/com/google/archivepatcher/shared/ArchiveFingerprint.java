@@ -0,0 +1,148 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.shared;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes a fingerprint of an archive that is cheap to compute and changes whenever the archive
+ * is likely to have changed, so that an applier can check that it has the old archive a patch was
+ * generated against before doing any expensive work. The fingerprint is the SHA-256 digest of:
+ * <ol>
+ *   <li>the length of the archive, as an 8-byte big-endian integer;
+ *   <li>the body of the archive, which is everything before the tail (see below): all of it if it
+ *       is at most {@link #SAMPLE_COUNT} * {@link #SAMPLE_LENGTH} bytes long, otherwise {@link
+ *       #SAMPLE_COUNT} samples of {@link #SAMPLE_LENGTH} bytes, evenly spaced from the start of the
+ *       body to the end, in order;
+ *   <li>the tail of the archive: everything from the start of the central directory to the end of
+ *       the archive. If the end-of-central-directory record can't be found, or doesn't point into
+ *       the archive, the tail is the last {@link #MAX_EOCD_SEARCH_LENGTH} bytes of the archive (or
+ *       all of it, if shorter).
+ * </ol>
+ *
+ * <p>The central directory records the CRC-32 and sizes of every entry, so it changes whenever the
+ * content of an entry does; the samples catch changes to data that the central directory doesn't
+ * describe. Computing the fingerprint reads the last {@link #MAX_EOCD_SEARCH_LENGTH} bytes of the
+ * archive (65,557 bytes) to find the end-of-central-directory record, then the tail and at most
+ * {@link #SAMPLE_COUNT} * {@link #SAMPLE_LENGTH} bytes (64 KiB) of the body: for most archives,
+ * the central directory plus about 128 KiB.
+ */
+public final class ArchiveFingerprint {
+  /** The number of samples of the body of the archive. */
+  public static final int SAMPLE_COUNT = 16;
+
+  /** The length of each sample of the body of the archive. */
+  public static final int SAMPLE_LENGTH = 4096;
+
+  /**
+   * The length of the end of the archive to search for the end-of-central-directory record: the
+   * length of the record plus the maximum length of the archive comment.
+   */
+  public static final int MAX_EOCD_SEARCH_LENGTH = 22 + 0xffff;
+
+  /** The signature of the end-of-central-directory record. */
+  private static final int EOCD_SIGNATURE = 0x06054b50;
+
+  private ArchiveFingerprint() {
+    // Utility class
+  }
+
+  /**
+   * Computes the fingerprint of the specified archive.
+   *
+   * @param archive the archive
+   * @return the fingerprint, {@link PatchConstants#SHA256_LENGTH} bytes long
+   * @throws IOException if unable to read the archive
+   */
+  public static byte[] compute(File archive) throws IOException {
+    MessageDigest digester;
+    try {
+      digester = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException("System doesn't support SHA-256", e);
+    }
+    try (RandomAccessFile raf = new RandomAccessFile(archive, "r")) {
+      long length = raf.length();
+      // The body runs from the start of the archive to the start of the tail.
+      long bodyLength = locateTail(raf, length);
+      for (int shift = 56; shift >= 0; shift -= 8) {
+        digester.update((byte) (length >>> shift));
+      }
+      byte[] buffer = new byte[SAMPLE_LENGTH];
+      if (bodyLength <= (long) SAMPLE_COUNT * SAMPLE_LENGTH) {
+        digestRange(raf, 0, bodyLength, digester, buffer);
+      } else {
+        for (int x = 0; x < SAMPLE_COUNT; x++) {
+          long offset = x * (bodyLength - SAMPLE_LENGTH) / (SAMPLE_COUNT - 1);
+          digestRange(raf, offset, SAMPLE_LENGTH, digester, buffer);
+        }
+      }
+      digestRange(raf, bodyLength, length - bodyLength, digester, buffer);
+    }
+    return digester.digest();
+  }
+
+  /**
+   * Returns the offset of the tail of the archive, as defined in the class documentation.
+   *
+   * @param raf the archive
+   * @param length the length of the archive
+   * @return the offset
+   * @throws IOException if unable to read the archive
+   */
+  private static long locateTail(RandomAccessFile raf, long length) throws IOException {
+    int searchLength = (int) Math.min(MAX_EOCD_SEARCH_LENGTH, length);
+    long searchStart = length - searchLength;
+    byte[] buffer = new byte[searchLength];
+    raf.seek(searchStart);
+    raf.readFully(buffer);
+    // Scan backwards for the signature, which is little-endian; the record is 22 bytes long.
+    for (int offset = searchLength - 22; offset >= 0; offset--) {
+      if (readLittleEndian(buffer, offset, 4) == EOCD_SIGNATURE) {
+        // The offset of the central directory is at byte 16 of the record.
+        long centralDirectoryOffset = readLittleEndian(buffer, offset + 16, 4) & 0xffffffffL;
+        if (centralDirectoryOffset <= searchStart + offset) {
+          return centralDirectoryOffset;
+        }
+        break;
+      }
+    }
+    return searchStart;
+  }
+
+  private static int readLittleEndian(byte[] buffer, int offset, int numBytes) {
+    int value = 0;
+    for (int x = numBytes - 1; x >= 0; x--) {
+      value = (value << 8) | (buffer[offset + x] & 0xff);
+    }
+    return value;
+  }
+
+  private static void digestRange(
+      RandomAccessFile raf, long offset, long length, MessageDigest digester, byte[] buffer)
+      throws IOException {
+    raf.seek(offset);
+    while (length > 0) {
+      int numToRead = (int) Math.min(buffer.length, length);
+      raf.readFully(buffer, 0, numToRead);
+      digester.update(buffer, 0, numToRead);
+      length -= numToRead;
+    }
+  }
+}
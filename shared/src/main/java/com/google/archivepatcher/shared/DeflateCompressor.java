@@ -25,7 +25,7 @@ import java.util.zip.DeflaterOutputStream;
  * compression, the default strategy, and no-wrap by default along with a 32k read buffer and a 32k
  * write buffer. Buffers are allocated on-demand and discarded after use.
  */
-public class DeflateCompressor implements Compressor {
+public class DeflateCompressor implements StreamingCompressor {
 
   /**
    * The compression level to use. Defaults to {@link Deflater#DEFAULT_COMPRESSION}.
@@ -232,4 +232,37 @@ public class DeflateCompressor implements Compressor {
     deflaterOut.finish();
     deflaterOut.flush();
   }
+
+  @Override
+  public OutputStream newCompressingStream(OutputStream compressedOut) throws IOException {
+    final Deflater streamDeflater = createOrResetDeflater();
+    return new DeflaterOutputStream(compressedOut, streamDeflater, outputBufferSize) {
+      private boolean closed = false;
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+          throw new IOException("Stream closed");
+        }
+        super.write(b, off, len);
+      }
+
+      @Override
+      public void close() throws IOException {
+        if (closed) {
+          return;
+        }
+        closed = true;
+        // Finish the compressed data, but leave the underlying stream open.
+        try {
+          finish();
+          flush();
+        } finally {
+          if (!isCaching()) {
+            streamDeflater.end();
+          }
+        }
+      }
+    };
+  }
 }
@@ -26,7 +26,7 @@ import java.util.zip.InflaterInputStream;
  * discarded after use. {@link Inflater} instances, which may be expensive, are also created
  * on-demand; This can be changed by using {@link #setCaching(boolean)}.
  */
-public class DeflateUncompressor implements Uncompressor {
+public class DeflateUncompressor implements StreamingUncompressor {
   /**
    * Whether to skip the standard zlib header and checksum fields when
    * reading. Defaults to true.
@@ -177,4 +177,31 @@ public class DeflateUncompressor implements Uncompressor {
       release();
     }
   }
+
+  @Override
+  public InputStream newUncompressingStream(InputStream compressedIn) throws IOException {
+    final Inflater streamInflater = createOrResetInflater();
+    return new InflaterInputStream(compressedIn, streamInflater, inputBufferSize) {
+      private boolean closed = false;
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+          throw new IOException("Stream closed");
+        }
+        return super.read(b, off, len);
+      }
+
+      @Override
+      public void close() {
+        // Leave the underlying stream open.
+        if (!closed) {
+          closed = true;
+          if (!isCaching()) {
+            streamInflater.end();
+          }
+        }
+      }
+    };
+  }
 }
@@ -0,0 +1,262 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.shared;
+
+/**
+ * A model of how long the work of applying a patch takes on a particular kind of device, built
+ * from throughputs measured on that device: how fast it inflates, how fast it deflates with each
+ * combination of level and strategy, how long it takes to read or write a byte of temporary
+ * storage and, optionally, how fast it applies a delta. Deflate throughput varies a great deal by
+ * level; on typical hardware level 9 is several times slower than level 1, so the number of bytes
+ * to recompress alone is a poor predictor of the time it takes.
+ *
+ * <p>Throughputs are in bytes of <em>uncompressed</em> data per second, for both inflating and
+ * deflating. Use the {@link Builder} to construct instances.
+ */
+public final class DeviceCostModel {
+  /** The number of nanoseconds in a second. */
+  private static final double NANOS_PER_SECOND = 1000000000d;
+
+  /** Builder for {@link DeviceCostModel}s. */
+  public static final class Builder {
+    private long inflateBytesPerSecond = -1;
+    private long defaultDeflateBytesPerSecond = -1;
+    private final long[][] deflateBytesPerSecond = newDeflateTable();
+    private double ioNanosPerByte = 0;
+    private long deltaApplyBytesPerSecond = -1;
+
+    /**
+     * Sets the rate at which the device inflates data. Required.
+     *
+     * @param bytesPerSecond the number of uncompressed bytes produced per second; must be positive
+     * @return this builder
+     */
+    public Builder withInflateBytesPerSecond(long bytesPerSecond) {
+      this.inflateBytesPerSecond = checkThroughput(bytesPerSecond);
+      return this;
+    }
+
+    /**
+     * Sets the rate at which the device deflates data with any level and strategy for which no
+     * specific rate has been set with {@link #withDeflateBytesPerSecond(JreDeflateParameters,
+     * long)}. Required.
+     *
+     * @param bytesPerSecond the number of uncompressed bytes consumed per second; must be positive
+     * @return this builder
+     */
+    public Builder withDeflateBytesPerSecond(long bytesPerSecond) {
+      this.defaultDeflateBytesPerSecond = checkThroughput(bytesPerSecond);
+      return this;
+    }
+
+    /**
+     * Sets the rate at which the device deflates data with the level and strategy of the specified
+     * parameters. Wrapping has no meaningful effect on throughput, so the rate applies to both the
+     * wrapped and unwrapped variants.
+     *
+     * @param parameters the parameters whose level and strategy the rate was measured with
+     * @param bytesPerSecond the number of uncompressed bytes consumed per second; must be positive
+     * @return this builder
+     */
+    public Builder withDeflateBytesPerSecond(JreDeflateParameters parameters, long bytesPerSecond) {
+      if (parameters == null) {
+        throw new IllegalArgumentException("parameters cannot be null");
+      }
+      deflateBytesPerSecond[parameters.level][parameters.strategy] =
+          checkThroughput(bytesPerSecond);
+      return this;
+    }
+
+    /**
+     * Sets the time it takes the device to write a byte to temporary storage and read it back.
+     * Defaults to zero, i.e. I/O is free.
+     *
+     * @param ioNanosPerByte the time per byte, in nanoseconds; must be non-negative
+     * @return this builder
+     */
+    public Builder withIoNanosPerByte(double ioNanosPerByte) {
+      if (!(ioNanosPerByte >= 0)) {
+        throw new IllegalArgumentException(
+            "ioNanosPerByte must be non-negative: " + ioNanosPerByte);
+      }
+      this.ioNanosPerByte = ioNanosPerByte;
+      return this;
+    }
+
+    /**
+     * Sets the rate at which the device applies a delta, excluding the I/O for the delta-friendly
+     * old blob, which is accounted for separately. Defaults to unset, i.e. applying the delta is
+     * free.
+     *
+     * @param bytesPerSecond the number of bytes of delta-friendly new blob produced per second;
+     *     must be positive
+     * @return this builder
+     */
+    public Builder withDeltaApplyBytesPerSecond(long bytesPerSecond) {
+      this.deltaApplyBytesPerSecond = checkThroughput(bytesPerSecond);
+      return this;
+    }
+
+    /**
+     * Builds and returns a {@link DeviceCostModel} according to the current configuration.
+     *
+     * @return the model
+     */
+    public DeviceCostModel build() {
+      if (inflateBytesPerSecond < 0 || defaultDeflateBytesPerSecond < 0) {
+        throw new IllegalStateException("inflate and default deflate throughputs must be set");
+      }
+      long[][] table = newDeflateTable();
+      for (int level = 0; level < table.length; level++) {
+        for (int strategy = 0; strategy < table[level].length; strategy++) {
+          long specific = deflateBytesPerSecond[level][strategy];
+          table[level][strategy] = specific > 0 ? specific : defaultDeflateBytesPerSecond;
+        }
+      }
+      return new DeviceCostModel(
+          inflateBytesPerSecond, table, ioNanosPerByte, deltaApplyBytesPerSecond);
+    }
+
+    private static long checkThroughput(long bytesPerSecond) {
+      if (bytesPerSecond <= 0) {
+        throw new IllegalArgumentException("bytesPerSecond must be positive: " + bytesPerSecond);
+      }
+      return bytesPerSecond;
+    }
+
+    /** Returns a table indexed by level (1-9) and strategy (0-2), with unused index 0 for level. */
+    private static long[][] newDeflateTable() {
+      return new long[10][3];
+    }
+  }
+
+  /** The number of uncompressed bytes inflated per second. */
+  private final long inflateBytesPerSecond;
+
+  /** The number of uncompressed bytes deflated per second, indexed by level and strategy. */
+  private final long[][] deflateBytesPerSecond;
+
+  /** The time to write a byte to temporary storage and read it back, in nanoseconds. */
+  private final double ioNanosPerByte;
+
+  /** The number of bytes of delta-friendly new blob produced per second, or -1 if unset. */
+  private final long deltaApplyBytesPerSecond;
+
+  private DeviceCostModel(
+      long inflateBytesPerSecond,
+      long[][] deflateBytesPerSecond,
+      double ioNanosPerByte,
+      long deltaApplyBytesPerSecond) {
+    this.inflateBytesPerSecond = inflateBytesPerSecond;
+    this.deflateBytesPerSecond = deflateBytesPerSecond;
+    this.ioNanosPerByte = ioNanosPerByte;
+    this.deltaApplyBytesPerSecond = deltaApplyBytesPerSecond;
+  }
+
+  /**
+   * Estimates the time it takes to inflate data.
+   *
+   * @param uncompressedBytes the number of bytes the data inflates to
+   * @return the estimated time, in nanoseconds
+   */
+  public long estimateInflateNanos(long uncompressedBytes) {
+    return toNanos(uncompressedBytes, inflateBytesPerSecond);
+  }
+
+  /**
+   * Estimates the time it takes to deflate data with the specified parameters.
+   *
+   * @param parameters the parameters to deflate with, or null if unknown, in which case the
+   *     slowest of all parameters is assumed
+   * @param uncompressedBytes the number of bytes to deflate
+   * @return the estimated time, in nanoseconds
+   */
+  public long estimateDeflateNanos(JreDeflateParameters parameters, long uncompressedBytes) {
+    return toNanos(
+        uncompressedBytes,
+        parameters == null
+            ? getSlowestDeflateBytesPerSecond()
+            : getDeflateBytesPerSecond(parameters));
+  }
+
+  /**
+   * Estimates the time it takes to write data to temporary storage and read it back.
+   *
+   * @param bytes the number of bytes
+   * @return the estimated time, in nanoseconds
+   */
+  public long estimateIoNanos(long bytes) {
+    return (long) Math.ceil(bytes * ioNanosPerByte);
+  }
+
+  /**
+   * Estimates the time it takes to apply a delta, excluding I/O for the delta-friendly old blob.
+   *
+   * @param deltaFriendlyNewBytes the number of bytes of delta-friendly new blob to produce
+   * @return the estimated time, in nanoseconds; zero if no rate was set
+   */
+  public long estimateDeltaApplyNanos(long deltaFriendlyNewBytes) {
+    if (deltaApplyBytesPerSecond < 0) {
+      return 0;
+    }
+    return toNanos(deltaFriendlyNewBytes, deltaApplyBytesPerSecond);
+  }
+
+  /**
+   * Returns the rate at which the device inflates data.
+   *
+   * @return the number of uncompressed bytes produced per second
+   */
+  public long getInflateBytesPerSecond() {
+    return inflateBytesPerSecond;
+  }
+
+  /**
+   * Returns the rate at which the device deflates data with the specified parameters.
+   *
+   * @param parameters the parameters
+   * @return the number of uncompressed bytes consumed per second
+   */
+  public long getDeflateBytesPerSecond(JreDeflateParameters parameters) {
+    return deflateBytesPerSecond[parameters.level][parameters.strategy];
+  }
+
+  /**
+   * Returns the rate at which the device deflates data with the slowest of all parameters.
+   */
+  private long getSlowestDeflateBytesPerSecond() {
+    long slowest = Long.MAX_VALUE;
+    for (JreDeflateParameters parameters : JreDeflateParameters.values()) {
+      slowest = Math.min(slowest, getDeflateBytesPerSecond(parameters));
+    }
+    return slowest;
+  }
+
+  /**
+   * Returns the time it takes the device to write a byte to temporary storage and read it back.
+   *
+   * @return the time per byte, in nanoseconds
+   */
+  public double getIoNanosPerByte() {
+    return ioNanosPerByte;
+  }
+
+  /**
+   * Converts an amount of data and a throughput into a time, rounding up.
+   */
+  private static long toNanos(long bytes, long bytesPerSecond) {
+    return (long) Math.ceil(bytes * NANOS_PER_SECOND / bytesPerSecond);
+  }
+}
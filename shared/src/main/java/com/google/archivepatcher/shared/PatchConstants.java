@@ -19,10 +19,60 @@ package com.google.archivepatcher.shared;
  */
 public class PatchConstants {
   /**
-   * The identifier that begins all patches of this type.
+   * The identifier that begins patches of this type, unless their header has fields that require
+   * {@link #EXTENDED_IDENTIFIER}.
    */
   public static final String IDENTIFIER = "GFbFv1_0"; // Google File-by-File v1.0
 
+  /**
+   * The identifier that begins patches whose deltas are compressed or whose header has fields after
+   * the flags, as indicated by {@link #EXTENDED_HEADER_FLAGS}. The earliest appliers skip the
+   * flags, so they would misread the fields as the rest of the header or the compressed deltas as
+   * uncompressed ones; appliers that predate these flags only accept {@link #IDENTIFIER}, so they
+   * reject such patches instead. Other patches begin with {@link #IDENTIFIER}, so that all
+   * appliers accept them.
+   */
+  public static final String EXTENDED_IDENTIFIER = "GFbFv1_1"; // Google File-by-File v1.1
+
+  /**
+   * The delta length recorded for a delta that was streamed into the patch without its length
+   * being known in advance. Such a delta extends to the end of the patch, so it must be the last.
+   */
+  public static final long STREAMED_DELTA_LENGTH = -1;
+
+  /**
+   * The bits of the flags at the start of a patch that hold the {@link DeltaCompression} of the
+   * deltas. Bits that are neither these nor defined below are reserved and must be zero.
+   */
+  public static final int DELTA_COMPRESSION_FLAGS_MASK = 0xff;
+
+  /**
+   * The bit of the flags at the start of a patch that is set if the SHA-256 digest of the new
+   * archive, {@link #SHA256_LENGTH} bytes long, immediately follows the flags. Appliers verify the
+   * archive that they produce against it.
+   */
+  public static final int NEW_ARCHIVE_SHA256_FLAG = 0x100;
+
+  /**
+   * The bit of the flags at the start of a patch that is set if the {@link ArchiveFingerprint} of
+   * the old archive, {@link #SHA256_LENGTH} bytes long, follows the flags and the new archive
+   * digest (if present). Appliers check the old archive against it before doing anything else.
+   */
+  public static final int OLD_ARCHIVE_FINGERPRINT_FLAG = 0x200;
+
+  /**
+   * The bits of the flags at the start of a patch that compress the deltas or add fields to the
+   * header, which may only be set if the patch begins with {@link #EXTENDED_IDENTIFIER}, and at
+   * least one of which must be if it does.
+   */
+  public static final int EXTENDED_HEADER_FLAGS =
+      DELTA_COMPRESSION_FLAGS_MASK | NEW_ARCHIVE_SHA256_FLAG | OLD_ARCHIVE_FINGERPRINT_FLAG;
+
+  /**
+   * The length of a SHA-256 digest, in bytes.
+   */
+  public static final int SHA256_LENGTH = 32;
+
   /**
    * All available compatibility windows. The {@link #patchValue} field specifies the value for
    * each constant as represented in a patch file.
@@ -68,7 +118,23 @@ public class PatchConstants {
     /**
      * The bsdiff delta format.
      */
-    BSDIFF((byte) 0);
+    BSDIFF((byte) 0),
+
+    /**
+     * The gdiff delta format, as described in http://www.w3.org/TR/NOTE-gdiff-19970901.
+     */
+    GDIFF((byte) 1),
+
+    /**
+     * The bsdiff delta format with the control entries, the extra bytes and the diff bytes each
+     * written as a separate section rather than interleaved, so that each compresses better on
+     * its own: the diff bytes are mostly zeroes, and the extra bytes resemble the new file. This
+     * costs disk when applying the patch: appliers buffer the control and extra sections until
+     * they have read them, in a temp file if together they are larger than 1 MiB. The extra
+     * section can be most of a new entry, so the temp file can be nearly as large as the new
+     * content that the delta adds; avoid this format for devices short of temporary storage.
+     */
+    BSDIFF_SECTIONED((byte) 2);
 
     /**
      * The representation of this enumerated constant in patch files.
@@ -91,6 +157,57 @@ public class PatchConstants {
       switch (patchValue) {
         case 0:
           return BSDIFF;
+        case 1:
+          return GDIFF;
+        case 2:
+          return BSDIFF_SECTIONED;
+        default:
+          return null;
+      }
+    }
+  }
+
+  /**
+   * All available compressions of the deltas in a patch. The {@link #patchValue} field specifies
+   * the value for each constant as represented in a patch file, within the bits of the flags given
+   * by {@link #DELTA_COMPRESSION_FLAGS_MASK}. The delta length in each delta descriptor is the
+   * length of the compressed delta.
+   */
+  public static enum DeltaCompression {
+    /**
+     * The deltas are not compressed.
+     */
+    NONE((byte) 0),
+
+    /**
+     * The deltas are compressed with raw deflate, without the zlib header and checksum, as written
+     * by a {@link DeflateCompressor} with nowrap set.
+     */
+    DEFLATE((byte) 1);
+
+    /**
+     * The representation of this enumerated constant in patch files.
+     */
+    public final byte patchValue;
+
+    /**
+     * Construct a new enumerated constant with the specified value in patch files.
+     */
+    private DeltaCompression(byte patchValue) {
+      this.patchValue = patchValue;
+    }
+
+    /**
+     * Parse a patch value and return the corresponding enumerated constant.
+     * @param patchValue the patch value to parse
+     * @return the corresponding enumerated constant, null if unmatched
+     */
+    public static DeltaCompression fromPatchValue(byte patchValue) {
+      switch (patchValue) {
+        case 0:
+          return NONE;
+        case 1:
+          return DEFLATE;
         default:
           return null;
       }
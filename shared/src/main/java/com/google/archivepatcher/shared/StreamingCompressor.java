@@ -0,0 +1,36 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.shared;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A {@link Compressor} that can also compress data as it is written to a stream, for callers that
+ * produce the uncompressed data incrementally rather than having it available as an input stream.
+ */
+public interface StreamingCompressor extends Compressor {
+  /**
+   * Returns a stream that compresses everything written to it into compressedOut. The compressed
+   * data is complete once the returned stream has been closed; closing it does not close
+   * compressedOut. The compressed data can be uncompressed by the corresponding {@link
+   * Uncompressor} implementation.
+   *
+   * @param compressedOut the stream to write the compressed data to
+   * @return the stream to write the uncompressed data to
+   * @throws IOException if something goes awry while creating the stream
+   */
+  public OutputStream newCompressingStream(OutputStream compressedOut) throws IOException;
+}
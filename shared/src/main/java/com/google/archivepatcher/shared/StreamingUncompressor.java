@@ -0,0 +1,35 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.shared;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An {@link Uncompressor} that can also uncompress data as it is read from a stream, for callers
+ * that consume the uncompressed data incrementally rather than writing it to an output stream.
+ */
+public interface StreamingUncompressor extends Uncompressor {
+  /**
+   * Returns a stream that reads compressed data from compressedIn and returns it uncompressed. The
+   * stream may read ahead in compressedIn beyond the end of the compressed data. Closing the
+   * returned stream releases its resources but does not close compressedIn.
+   *
+   * @param compressedIn the stream to read the compressed data from
+   * @return the stream to read the uncompressed data from
+   * @throws IOException if something goes awry while creating the stream
+   */
+  public InputStream newUncompressingStream(InputStream compressedIn) throws IOException;
+}
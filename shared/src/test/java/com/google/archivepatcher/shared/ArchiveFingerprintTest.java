@@ -0,0 +1,153 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.shared;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Tests for {@link ArchiveFingerprint}.
+ */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class ArchiveFingerprintTest {
+  /** The length of the stored entries, so that the body of the archive is sampled. */
+  private static final int ENTRY_LENGTH = 100 * 1024;
+
+  private File tempFile;
+  private byte[] archive;
+  private int centralDirectoryOffset;
+
+  @Before
+  public void setUp() throws IOException {
+    tempFile = File.createTempFile("archive-fingerprint", "test");
+    tempFile.deleteOnExit();
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    Random random = new Random(0);
+    try (ZipOutputStream zipOut = new ZipOutputStream(buffer)) {
+      for (String name : new String[] {"a", "b"}) {
+        byte[] content = new byte[ENTRY_LENGTH];
+        random.nextBytes(content);
+        CRC32 crc32 = new CRC32();
+        crc32.update(content);
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(content.length);
+        entry.setCrc(crc32.getValue());
+        zipOut.putNextEntry(entry);
+        zipOut.write(content);
+        zipOut.closeEntry();
+      }
+    }
+    archive = buffer.toByteArray();
+    // The offset of the central directory is at byte 16 of the 22-byte EOCD record at the end.
+    int eocdOffset = archive.length - 22;
+    centralDirectoryOffset =
+        (archive[eocdOffset + 16] & 0xff)
+            | (archive[eocdOffset + 17] & 0xff) << 8
+            | (archive[eocdOffset + 18] & 0xff) << 16
+            | (archive[eocdOffset + 19] & 0xff) << 24;
+  }
+
+  @After
+  public void tearDown() {
+    tempFile.delete();
+  }
+
+  private byte[] fingerprint(byte[] data) throws IOException {
+    try (FileOutputStream out = new FileOutputStream(tempFile)) {
+      out.write(data);
+    }
+    return ArchiveFingerprint.compute(tempFile);
+  }
+
+  private byte[] fingerprintWithByteFlipped(int offset) throws IOException {
+    byte[] modified = archive.clone();
+    modified[offset] ^= 1;
+    return fingerprint(modified);
+  }
+
+  @Test
+  public void testCompute() throws IOException {
+    byte[] fingerprint = fingerprint(archive);
+    Assert.assertEquals(PatchConstants.SHA256_LENGTH, fingerprint.length);
+    Assert.assertArrayEquals(fingerprint, fingerprint(archive));
+  }
+
+  @Test
+  public void testCompute_CentralDirectoryChanged() throws IOException {
+    byte[] fingerprint = fingerprint(archive);
+    for (int offset = centralDirectoryOffset; offset < archive.length; offset++) {
+      Assert.assertFalse(Arrays.equals(fingerprint, fingerprintWithByteFlipped(offset)));
+    }
+  }
+
+  @Test
+  public void testCompute_SampleChanged() throws IOException {
+    byte[] fingerprint = fingerprint(archive);
+    // The first and last samples are at the start and end of the body.
+    Assert.assertFalse(Arrays.equals(fingerprint, fingerprintWithByteFlipped(0)));
+    Assert.assertFalse(
+        Arrays.equals(fingerprint, fingerprintWithByteFlipped(centralDirectoryOffset - 1)));
+  }
+
+  @Test
+  public void testCompute_UnsampledChangeIgnored() throws IOException {
+    // Just past the end of the first sample, which is at the start of the body; the second sample
+    // starts about a fifteenth of the way through it.
+    Assert.assertArrayEquals(
+        fingerprint(archive), fingerprintWithByteFlipped(ArchiveFingerprint.SAMPLE_LENGTH));
+  }
+
+  @Test
+  public void testCompute_LengthChanged() throws IOException {
+    Assert.assertFalse(
+        Arrays.equals(
+            fingerprint(archive), fingerprint(Arrays.copyOf(archive, archive.length + 1))));
+  }
+
+  @Test
+  public void testCompute_NotAnArchive() throws IOException {
+    // Without a central directory, the tail is the end of the file and the rest is sampled.
+    byte[] data = new byte[200 * 1024];
+    new Random(1).nextBytes(data);
+    byte[] fingerprint = fingerprint(data);
+    Assert.assertEquals(PatchConstants.SHA256_LENGTH, fingerprint.length);
+    data[data.length - 1] ^= 1;
+    Assert.assertFalse(Arrays.equals(fingerprint, fingerprint(data)));
+  }
+
+  @Test
+  public void testCompute_Small() throws IOException {
+    // Everything is read, whether or not it is an archive.
+    byte[] fingerprint = fingerprint(new byte[] {1, 2, 3});
+    Assert.assertFalse(Arrays.equals(fingerprint, fingerprint(new byte[] {1, 0, 3})));
+    Assert.assertFalse(Arrays.equals(fingerprint, fingerprint(new byte[0])));
+  }
+}
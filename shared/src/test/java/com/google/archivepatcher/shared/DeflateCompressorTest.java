@@ -23,6 +23,7 @@ import org.junit.runners.JUnit4;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.zip.Deflater;
 import java.util.zip.Inflater;
@@ -91,6 +92,41 @@ public class DeflateCompressorTest {
     Assert.assertArrayEquals(CONTENT, uncompressed);
   }
 
+  @Test
+  public void testNewCompressingStream() throws IOException {
+    final boolean[] closed = new boolean[1];
+    ByteArrayOutputStream compressedOut =
+        new ByteArrayOutputStream() {
+          @Override
+          public void close() {
+            closed[0] = true;
+          }
+        };
+    OutputStream compressingOut = compressor.newCompressingStream(compressedOut);
+    // Write in pieces, as a delta generator would.
+    compressingOut.write(CONTENT, 0, 100);
+    compressingOut.write(CONTENT[100]);
+    compressingOut.write(CONTENT, 101, CONTENT.length - 101);
+    compressingOut.close();
+    compressingOut.close(); // Closing twice is harmless.
+    Assert.assertFalse(closed[0]);
+    Assert.assertTrue(compressedOut.size() < CONTENT.length);
+    byte[] uncompressed =
+        uncompressWithJavaInflater(compressor.isNowrap(), compressedOut.toByteArray());
+    Assert.assertArrayEquals(CONTENT, uncompressed);
+
+    // The output is the same as that of compress(...).
+    compressor.compress(rawContentIn, compressedContentOut);
+    Assert.assertArrayEquals(compressedContentOut.toByteArray(), compressedOut.toByteArray());
+  }
+
+  @Test(expected = IOException.class)
+  public void testNewCompressingStream_WriteAfterClose() throws IOException {
+    OutputStream compressingOut = compressor.newCompressingStream(compressedContentOut);
+    compressingOut.close();
+    compressingOut.write(CONTENT);
+  }
+
   @Test
   public void testCorrectDefaults() {
     // Sanity check to ensure that defaults are as we want them to be. Arguably crufty but nobody
@@ -20,7 +20,9 @@ import com.google.archivepatcher.shared.DeflateUncompressor;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Arrays;
 import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
@@ -71,6 +73,35 @@ public class DeflateUncompressorTest {
     assertTrue(Arrays.equals(CONTENT, uncompressedContentOut.toByteArray()));
   }
 
+  @Test
+  public void testNewUncompressingStream() throws IOException {
+    // Trailing bytes after the compressed data are ignored.
+    byte[] compressedWithTrailer = Arrays.copyOf(compressedContent, compressedContent.length + 10);
+    final boolean[] closed = new boolean[1];
+    ByteArrayInputStream compressedIn =
+        new ByteArrayInputStream(compressedWithTrailer) {
+          @Override
+          public void close() {
+            closed[0] = true;
+          }
+        };
+    InputStream uncompressingIn = uncompressor.newUncompressingStream(compressedIn);
+    DataInputStream dataIn = new DataInputStream(uncompressingIn);
+    byte[] uncompressed = new byte[CONTENT.length];
+    dataIn.readFully(uncompressed);
+    Assert.assertArrayEquals(CONTENT, uncompressed);
+    Assert.assertEquals(-1, uncompressingIn.read());
+    uncompressingIn.close();
+    Assert.assertFalse(closed[0]);
+  }
+
+  @Test(expected = IOException.class)
+  public void testNewUncompressingStream_ReadAfterClose() throws IOException {
+    InputStream uncompressingIn = uncompressor.newUncompressingStream(compressedContentIn);
+    uncompressingIn.close();
+    uncompressingIn.read();
+  }
+
   @Test
   public void testCorrectDefaults() {
     // Sanity check to ensure that defaults are as we want them to be. Arguably crufty but nobody
@@ -0,0 +1,92 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.shared;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link DeviceCostModel}.
+ */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class DeviceCostModelTest {
+  @Test
+  public void testEstimates() {
+    DeviceCostModel model =
+        new DeviceCostModel.Builder()
+            .withInflateBytesPerSecond(100 * 1000 * 1000)
+            .withDeflateBytesPerSecond(10 * 1000 * 1000)
+            .withDeflateBytesPerSecond(
+                JreDeflateParameters.LEVEL1_STRATEGY0_NOWRAP, 40 * 1000 * 1000)
+            .withIoNanosPerByte(0.5)
+            .build();
+    Assert.assertEquals(10 * 1000 * 1000L, model.estimateInflateNanos(1000 * 1000));
+    Assert.assertEquals(
+        100 * 1000 * 1000L,
+        model.estimateDeflateNanos(JreDeflateParameters.LEVEL9_STRATEGY0_NOWRAP, 1000 * 1000));
+    Assert.assertEquals(
+        25 * 1000 * 1000L,
+        model.estimateDeflateNanos(JreDeflateParameters.LEVEL1_STRATEGY0_NOWRAP, 1000 * 1000));
+    // Wrapping doesn't matter.
+    Assert.assertEquals(
+        25 * 1000 * 1000L,
+        model.estimateDeflateNanos(JreDeflateParameters.LEVEL1_STRATEGY0_WRAP, 1000 * 1000));
+    // Unknown parameters are assumed to be the slowest.
+    Assert.assertEquals(100 * 1000 * 1000L, model.estimateDeflateNanos(null, 1000 * 1000));
+    Assert.assertEquals(500 * 1000L, model.estimateIoNanos(1000 * 1000));
+    Assert.assertEquals(0.5, model.getIoNanosPerByte(), 0.0);
+  }
+
+  @Test
+  public void testEstimates_RoundUp() {
+    DeviceCostModel model =
+        new DeviceCostModel.Builder()
+            .withInflateBytesPerSecond(3)
+            .withDeflateBytesPerSecond(3)
+            .build();
+    Assert.assertEquals(333333334L, model.estimateInflateNanos(1));
+    Assert.assertEquals(0L, model.estimateIoNanos(1000));
+    Assert.assertEquals(0L, model.estimateDeltaApplyNanos(1000));
+  }
+
+  @Test
+  public void testEstimateDeltaApplyNanos() {
+    DeviceCostModel model =
+        new DeviceCostModel.Builder()
+            .withInflateBytesPerSecond(1)
+            .withDeflateBytesPerSecond(1)
+            .withDeltaApplyBytesPerSecond(50 * 1000 * 1000)
+            .build();
+    Assert.assertEquals(20 * 1000 * 1000L, model.estimateDeltaApplyNanos(1000 * 1000));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testBuild_MissingThroughput() {
+    new DeviceCostModel.Builder().withDeflateBytesPerSecond(1).build();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuild_BadThroughput() {
+    new DeviceCostModel.Builder().withInflateBytesPerSecond(0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuild_BadIoCost() {
+    new DeviceCostModel.Builder().withIoNanosPerByte(-1);
+  }
+}
@@ -0,0 +1,209 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.shared;
+
+import com.google.archivepatcher.shared.SyntheticArchivePairGenerator.Fate;
+import com.google.archivepatcher.shared.SyntheticArchivePairGenerator.MutationStyle;
+import com.google.archivepatcher.shared.SyntheticArchivePairGenerator.PlannedEntry;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link SyntheticArchivePairGenerator}.
+ */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class SyntheticArchivePairGeneratorTest {
+  private File oldFile = null;
+  private File newFile = null;
+
+  @Before
+  public void setup() throws IOException {
+    oldFile = File.createTempFile("synthetic-old", "zip");
+    oldFile.deleteOnExit();
+    newFile = File.createTempFile("synthetic-new", "zip");
+    newFile.deleteOnExit();
+  }
+
+  @After
+  public void tearDown() {
+    oldFile.delete();
+    newFile.delete();
+  }
+
+  private static SyntheticArchivePairGenerator.Builder smallBuilder() {
+    return new SyntheticArchivePairGenerator.Builder()
+        .withEntryCount(200)
+        .withEntrySizes(16, 4096)
+        .withStoredFraction(0.25)
+        .withLevels(1, 6, 9)
+        .withChurn(0.3, 0.1, 0.1, 0.1);
+  }
+
+  @Test
+  public void testDeterministic() throws IOException {
+    smallBuilder().withSeed(42).build().writeOldArchive(oldFile);
+    smallBuilder().withSeed(42).build().writeOldArchive(newFile);
+    Assert.assertArrayEquals(read(oldFile), read(newFile));
+    smallBuilder().withSeed(43).build().writeOldArchive(newFile);
+    Assert.assertFalse(Arrays.equals(read(oldFile), read(newFile)));
+  }
+
+  @Test
+  public void testArchivesMatchPlan() throws IOException {
+    SyntheticArchivePairGenerator generator = smallBuilder().withSeed(1).build();
+    generator.writeOldArchive(oldFile);
+    generator.writeNewArchive(newFile);
+
+    List<String> expectedOldNames = new ArrayList<String>();
+    List<String> expectedNewNames = new ArrayList<String>();
+    for (PlannedEntry entry : generator.getEntries()) {
+      if (entry.getOldName() != null) {
+        expectedOldNames.add(entry.getOldName());
+      }
+      if (entry.getNewName() != null) {
+        expectedNewNames.add(entry.getNewName());
+      }
+    }
+    Assert.assertEquals(200, expectedOldNames.size());
+    Assert.assertEquals(expectedOldNames, checkArchive(oldFile, generator, false));
+    Assert.assertEquals(expectedNewNames, checkArchive(newFile, generator, true));
+  }
+
+  @Test
+  public void testChurn() {
+    SyntheticArchivePairGenerator generator =
+        new SyntheticArchivePairGenerator.Builder()
+            .withSeed(7)
+            .withEntryCount(10000)
+            .withChurn(0.3, 0.1, 0.05, 0.2)
+            .build();
+    Map<Fate, Integer> counts = new EnumMap<Fate, Integer>(Fate.class);
+    for (Fate fate : Fate.values()) {
+      counts.put(fate, 0);
+    }
+    int mutated = 0;
+    for (PlannedEntry entry : generator.getEntries()) {
+      counts.put(entry.getFate(), counts.get(entry.getFate()) + 1);
+      if (entry.getMutationStyle() != null) {
+        mutated++;
+      }
+      Assert.assertTrue(entry.getSize() >= 256 && entry.getSize() <= 1024 * 1024);
+    }
+    Assert.assertEquals(500, (int) counts.get(Fate.ADDED));
+    Assert.assertEquals(2000, counts.get(Fate.REMOVED), 200);
+    Assert.assertEquals(1000, counts.get(Fate.RENAMED), 150);
+    // 30% of the 80% of entries that are not removed.
+    Assert.assertEquals(2400, mutated, 200);
+    Assert.assertEquals(
+        10000,
+        counts.get(Fate.UNCHANGED)
+            + counts.get(Fate.CHANGED)
+            + counts.get(Fate.RENAMED)
+            + counts.get(Fate.REMOVED));
+  }
+
+  @Test
+  public void testMutationStyles() {
+    for (MutationStyle style : MutationStyle.values()) {
+      SyntheticArchivePairGenerator generator =
+          smallBuilder().withChurn(1, 0, 0, 0).withMutationStyles(style).build();
+      for (PlannedEntry entry : generator.getEntries()) {
+        Assert.assertEquals(Fate.CHANGED, entry.getFate());
+        Assert.assertEquals(style, entry.getMutationStyle());
+        byte[] oldContent = generator.getContent(entry, false);
+        Assert.assertEquals(entry.getSize(), oldContent.length);
+        Assert.assertFalse(Arrays.equals(oldContent, generator.getContent(entry, true)));
+      }
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_BadFraction() {
+    new SyntheticArchivePairGenerator.Builder().withStoredFraction(1.5);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_BadLevel() {
+    new SyntheticArchivePairGenerator.Builder().withLevels(0);
+  }
+
+  /**
+   * Checks that the content and compression of each entry in the archive matches the plan, and
+   * returns the names of the entries in file order.
+   */
+  private static List<String> checkArchive(
+      File file, SyntheticArchivePairGenerator generator, boolean isNewArchive)
+      throws IOException {
+    List<String> names = new ArrayList<String>();
+    try (ZipFile zipFile = new ZipFile(file)) {
+      Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+      while (zipEntries.hasMoreElements()) {
+        ZipEntry zipEntry = zipEntries.nextElement();
+        names.add(zipEntry.getName());
+        PlannedEntry entry = find(generator, zipEntry.getName(), isNewArchive);
+        Assert.assertEquals(
+            entry.getLevel() == 0 ? ZipEntry.STORED : ZipEntry.DEFLATED, zipEntry.getMethod());
+        try (InputStream in = zipFile.getInputStream(zipEntry)) {
+          Assert.assertArrayEquals(generator.getContent(entry, isNewArchive), readAll(in));
+        }
+      }
+    }
+    return names;
+  }
+
+  private static PlannedEntry find(
+      SyntheticArchivePairGenerator generator, String name, boolean isNewArchive) {
+    for (PlannedEntry entry : generator.getEntries()) {
+      if (name.equals(isNewArchive ? entry.getNewName() : entry.getOldName())) {
+        return entry;
+      }
+    }
+    throw new AssertionError("Unplanned entry: " + name);
+  }
+
+  private static byte[] read(File file) throws IOException {
+    try (FileInputStream in = new FileInputStream(file)) {
+      return readAll(in);
+    }
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int numRead;
+    while ((numRead = in.read(buffer)) >= 0) {
+      result.write(buffer, 0, numRead);
+    }
+    return result.toByteArray();
+  }
+}
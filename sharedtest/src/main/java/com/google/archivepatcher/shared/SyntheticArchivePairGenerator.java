@@ -0,0 +1,685 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.shared;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generates a pair of old and new archives that resemble two releases of an application, for
+ * performance testing at scales where checking in binaries is out of the question. Everything is
+ * derived from a seed: the same configuration always produces byte-for-byte identical archives.
+ *
+ * <p>Entries are one of three kinds: text (markup-like resources drawn from a vocabulary shared by
+ * the whole archive), code (instruction-like words with many small embedded offsets) and media
+ * (random bytes that do not compress). Entry sizes are log-uniformly distributed between a minimum
+ * and a maximum, so there are many small entries and a few large ones. Each entry is either stored
+ * or deflated at one of the configured levels; an entry keeps its compression settings in the new
+ * archive.
+ *
+ * <p>Going from the old archive to the new one, entries are removed, renamed, changed and added
+ * with configurable probabilities. Changed entries are mutated in one of the configured {@link
+ * MutationStyle}s.
+ *
+ * <p>Content is generated one entry at a time while the archives are written, so memory use is
+ * bounded by the largest entry rather than by the size of the archives.
+ */
+public class SyntheticArchivePairGenerator {
+  /**
+   * How the content of a changed entry differs between the old and new archives.
+   */
+  public enum MutationStyle {
+    /**
+     * Small overwrites, insertions and deletions scattered throughout the entry, like edited
+     * resources.
+     */
+    INSERTS,
+
+    /**
+     * A block inserted near the start of the entry, so that everything after it moves.
+     */
+    SHIFT,
+
+    /**
+     * Every embedded offset after some point changes by the same amount, along with a few small
+     * edits, like code that has been recompiled after a change early in the file.
+     */
+    RECOMPILE
+  }
+
+  /**
+   * What happens to an entry going from the old archive to the new one.
+   */
+  public enum Fate {
+    /** The entry is identical in both archives. */
+    UNCHANGED,
+    /** The entry has the same name in both archives but different content. */
+    CHANGED,
+    /** The entry has a different name in the new archive, and possibly different content. */
+    RENAMED,
+    /** The entry exists only in the old archive. */
+    REMOVED,
+    /** The entry exists only in the new archive. */
+    ADDED
+  }
+
+  /** The kinds of content that entries can hold. */
+  private enum Kind {
+    TEXT("res/xml/", ".xml"),
+    CODE("lib/", ".so"),
+    MEDIA("assets/", ".png");
+
+    final String prefix;
+    final String suffix;
+
+    private Kind(String prefix, String suffix) {
+      this.prefix = prefix;
+      this.suffix = suffix;
+    }
+  }
+
+  /**
+   * The number of words in the vocabulary of text entries.
+   */
+  private static final int VOCABULARY_SIZE = 2048;
+
+  /**
+   * Mutations in the {@link MutationStyle#INSERTS} style make one edit per this many bytes, on
+   * average, and at least one edit.
+   */
+  private static final int MEAN_BYTES_BETWEEN_EDITS = 1024;
+
+  /**
+   * The maximum length of a single small edit.
+   */
+  private static final int MAX_EDIT_LENGTH = 16;
+
+  /**
+   * The maximum length of the block inserted by {@link MutationStyle#SHIFT}.
+   */
+  private static final int MAX_SHIFT_LENGTH = 256;
+
+  /**
+   * In code, little-endian words below this value are considered to be offsets.
+   */
+  private static final int OFFSET_LIMIT = 1 << 20;
+
+  /**
+   * A planned entry of the pair of archives.
+   */
+  public static final class PlannedEntry {
+    private final String oldName;
+    private final String newName;
+    private final Fate fate;
+    private final Kind kind;
+    private final int size;
+    private final int level;
+    private final long seed;
+    private final MutationStyle mutationStyle;
+
+    private PlannedEntry(
+        String oldName,
+        String newName,
+        Fate fate,
+        Kind kind,
+        int size,
+        int level,
+        long seed,
+        MutationStyle mutationStyle) {
+      this.oldName = oldName;
+      this.newName = newName;
+      this.fate = fate;
+      this.kind = kind;
+      this.size = size;
+      this.level = level;
+      this.seed = seed;
+      this.mutationStyle = mutationStyle;
+    }
+
+    /**
+     * Returns the name of the entry in the old archive.
+     *
+     * @return the name, or null if the entry is {@link Fate#ADDED}
+     */
+    public String getOldName() {
+      return oldName;
+    }
+
+    /**
+     * Returns the name of the entry in the new archive.
+     *
+     * @return the name, or null if the entry is {@link Fate#REMOVED}
+     */
+    public String getNewName() {
+      return newName;
+    }
+
+    /**
+     * Returns what happens to the entry going from the old archive to the new one.
+     *
+     * @return as described
+     */
+    public Fate getFate() {
+      return fate;
+    }
+
+    /**
+     * Returns the uncompressed size of the entry in the old archive, or in the new archive if the
+     * entry is {@link Fate#ADDED}. The size of a mutated entry differs slightly in the new archive.
+     *
+     * @return as described
+     */
+    public int getSize() {
+      return size;
+    }
+
+    /**
+     * Returns the deflate level of the entry, the same in both archives.
+     *
+     * @return the level, or 0 if the entry is stored
+     */
+    public int getLevel() {
+      return level;
+    }
+
+    /**
+     * Returns how the content of the entry is mutated in the new archive.
+     *
+     * @return the style, or null if the content is the same in both archives
+     */
+    public MutationStyle getMutationStyle() {
+      return mutationStyle;
+    }
+  }
+
+  /**
+   * Configures and builds a {@link SyntheticArchivePairGenerator}.
+   */
+  public static final class Builder {
+    private long seed = 0;
+    private int entryCount = 1000;
+    private int minEntrySize = 256;
+    private int maxEntrySize = 1024 * 1024;
+    private double storedFraction = 0.1;
+    private int[] levels = {6, 9};
+    private double changedFraction = 0.2;
+    private double renamedFraction = 0.02;
+    private double addedFraction = 0.05;
+    private double removedFraction = 0.02;
+    private MutationStyle[] mutationStyles = MutationStyle.values();
+
+    /**
+     * Sets the seed that everything is derived from. The default is 0.
+     *
+     * @param seed the seed
+     * @return this builder
+     */
+    public Builder withSeed(long seed) {
+      this.seed = seed;
+      return this;
+    }
+
+    /**
+     * Sets the number of entries in the old archive. The default is 1000.
+     *
+     * @param entryCount the number of entries
+     * @return this builder
+     */
+    public Builder withEntryCount(int entryCount) {
+      if (entryCount < 0) {
+        throw new IllegalArgumentException("entryCount must be non-negative: " + entryCount);
+      }
+      this.entryCount = entryCount;
+      return this;
+    }
+
+    /**
+     * Sets the range of uncompressed entry sizes. Sizes are distributed log-uniformly within the
+     * range, so the mean size is (max - min) / ln(max / min). The default is 256 bytes to 1 MiB,
+     * for a mean of about 123 KiB.
+     *
+     * @param minEntrySize the minimum size, at least 1
+     * @param maxEntrySize the maximum size, at least the minimum
+     * @return this builder
+     */
+    public Builder withEntrySizes(int minEntrySize, int maxEntrySize) {
+      if (minEntrySize < 1 || maxEntrySize < minEntrySize) {
+        throw new IllegalArgumentException(
+            "Invalid entry sizes: " + minEntrySize + ", " + maxEntrySize);
+      }
+      this.minEntrySize = minEntrySize;
+      this.maxEntrySize = maxEntrySize;
+      return this;
+    }
+
+    /**
+     * Sets the fraction of entries that are stored rather than deflated. The default is 0.1.
+     *
+     * @param storedFraction the fraction, in [0, 1]
+     * @return this builder
+     */
+    public Builder withStoredFraction(double storedFraction) {
+      this.storedFraction = checkFraction("storedFraction", storedFraction);
+      return this;
+    }
+
+    /**
+     * Sets the deflate levels that deflated entries are compressed with, chosen uniformly. The
+     * default is levels 6 and 9.
+     *
+     * @param levels the levels, each in [1, 9]
+     * @return this builder
+     */
+    public Builder withLevels(int... levels) {
+      if (levels.length == 0) {
+        throw new IllegalArgumentException("At least one level is required");
+      }
+      for (int level : levels) {
+        if (level < 1 || level > 9) {
+          throw new IllegalArgumentException("Levels must be in [1, 9]: " + level);
+        }
+      }
+      this.levels = levels.clone();
+      return this;
+    }
+
+    /**
+     * Sets the probabilities of what happens to each entry of the old archive, and the number of
+     * entries to add relative to the number of entries in the old archive. Renamed entries are
+     * also changed with the probability given for changes. The defaults are 0.2 changed, 0.02
+     * renamed, 0.05 added and 0.02 removed.
+     *
+     * @param changedFraction the probability that an entry is changed
+     * @param renamedFraction the probability that an entry is renamed
+     * @param addedFraction the number of entries to add, as a fraction of the entry count
+     * @param removedFraction the probability that an entry is removed
+     * @return this builder
+     */
+    public Builder withChurn(
+        double changedFraction,
+        double renamedFraction,
+        double addedFraction,
+        double removedFraction) {
+      checkFraction("changedFraction", changedFraction);
+      checkFraction("renamedFraction", renamedFraction);
+      checkFraction("addedFraction", addedFraction);
+      checkFraction("removedFraction", removedFraction);
+      if (renamedFraction + removedFraction > 1) {
+        throw new IllegalArgumentException("renamedFraction + removedFraction must be <= 1");
+      }
+      this.changedFraction = changedFraction;
+      this.renamedFraction = renamedFraction;
+      this.addedFraction = addedFraction;
+      this.removedFraction = removedFraction;
+      return this;
+    }
+
+    /**
+     * Sets the styles that changed entries are mutated in, chosen uniformly. The default is all
+     * styles.
+     *
+     * @param mutationStyles the styles
+     * @return this builder
+     */
+    public Builder withMutationStyles(MutationStyle... mutationStyles) {
+      if (mutationStyles.length == 0) {
+        throw new IllegalArgumentException("At least one mutation style is required");
+      }
+      this.mutationStyles = mutationStyles.clone();
+      return this;
+    }
+
+    /**
+     * Plans the pair of archives. Nothing is written until asked for.
+     *
+     * @return the generator
+     */
+    public SyntheticArchivePairGenerator build() {
+      return new SyntheticArchivePairGenerator(this);
+    }
+
+    private static double checkFraction(String name, double value) {
+      if (!(value >= 0 && value <= 1)) {
+        throw new IllegalArgumentException(name + " must be in [0, 1]: " + value);
+      }
+      return value;
+    }
+  }
+
+  /**
+   * The vocabulary of text entries, shared by the whole archive.
+   */
+  private final byte[][] vocabulary;
+
+  /**
+   * All the entries, in the order of the new archive; removed entries are where they were in the
+   * old archive.
+   */
+  private final List<PlannedEntry> entries;
+
+  private SyntheticArchivePairGenerator(Builder builder) {
+    Random random = new Random(builder.seed);
+    vocabulary = makeVocabulary(new Random(random.nextLong()));
+
+    List<PlannedEntry> planned = new ArrayList<PlannedEntry>();
+    for (int index = 0; index < builder.entryCount; index++) {
+      Kind kind = Kind.values()[random.nextInt(Kind.values().length)];
+      String oldName = String.format(Locale.US, "%sentry%06d%s", kind.prefix, index, kind.suffix);
+      double fateRoll = random.nextDouble();
+      Fate fate;
+      String newName = oldName;
+      if (fateRoll < builder.removedFraction) {
+        fate = Fate.REMOVED;
+        newName = null;
+      } else if (fateRoll < builder.removedFraction + builder.renamedFraction) {
+        fate = Fate.RENAMED;
+        newName = kind.prefix + "moved/" + oldName.substring(kind.prefix.length());
+      } else {
+        fate = Fate.UNCHANGED;
+      }
+      MutationStyle style = null;
+      if (fate != Fate.REMOVED && random.nextDouble() < builder.changedFraction) {
+        style = builder.mutationStyles[random.nextInt(builder.mutationStyles.length)];
+        if (fate == Fate.UNCHANGED) {
+          fate = Fate.CHANGED;
+        }
+      }
+      planned.add(plan(random, builder, kind, oldName, newName, fate, style));
+    }
+
+    int addedCount = (int) Math.round(builder.entryCount * builder.addedFraction);
+    for (int index = 0; index < addedCount; index++) {
+      Kind kind = Kind.values()[random.nextInt(Kind.values().length)];
+      String newName = String.format(Locale.US, "%sadded%06d%s", kind.prefix, index, kind.suffix);
+      PlannedEntry entry = plan(random, builder, kind, null, newName, Fate.ADDED, null);
+      planned.add(random.nextInt(planned.size() + 1), entry);
+    }
+    entries = Collections.unmodifiableList(planned);
+  }
+
+  /**
+   * Chooses the size, compression and seed of an entry.
+   */
+  private static PlannedEntry plan(
+      Random random,
+      Builder builder,
+      Kind kind,
+      String oldName,
+      String newName,
+      Fate fate,
+      MutationStyle style) {
+    double logMin = Math.log(builder.minEntrySize);
+    double logMax = Math.log(builder.maxEntrySize);
+    int size =
+        (int)
+            Math.min(
+                builder.maxEntrySize,
+                Math.round(Math.exp(logMin + random.nextDouble() * (logMax - logMin))));
+    int level =
+        random.nextDouble() < builder.storedFraction
+            ? 0
+            : builder.levels[random.nextInt(builder.levels.length)];
+    return new PlannedEntry(oldName, newName, fate, kind, size, level, random.nextLong(), style);
+  }
+
+  /**
+   * Returns all the entries of the pair of archives, in the order of the new archive. Removed
+   * entries appear where they were in the old archive, which has the same order otherwise.
+   *
+   * @return the entries
+   */
+  public List<PlannedEntry> getEntries() {
+    return entries;
+  }
+
+  /**
+   * Writes the old archive.
+   *
+   * @param file the file to write to
+   * @throws IOException if unable to write the file
+   */
+  public void writeOldArchive(File file) throws IOException {
+    writeArchive(file, false);
+  }
+
+  /**
+   * Writes the new archive.
+   *
+   * @param file the file to write to
+   * @throws IOException if unable to write the file
+   */
+  public void writeNewArchive(File file) throws IOException {
+    writeArchive(file, true);
+  }
+
+  /**
+   * Returns the content of the specified entry in either archive.
+   *
+   * @param entry the entry
+   * @param inNewArchive whether to return the content in the new archive rather than the old one
+   * @return the content
+   */
+  public byte[] getContent(PlannedEntry entry, boolean inNewArchive) {
+    Random random = new Random(entry.seed);
+    byte[] content = generateContent(entry.kind, entry.size, random);
+    if (inNewArchive && entry.mutationStyle != null) {
+      content = mutate(content, entry.kind, entry.mutationStyle, random);
+    }
+    return content;
+  }
+
+  private void writeArchive(File file, boolean newArchive) throws IOException {
+    try (ZipOutputStream zipOut =
+        new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024))) {
+      for (PlannedEntry entry : entries) {
+        String name = newArchive ? entry.newName : entry.oldName;
+        if (name == null) {
+          continue;
+        }
+        byte[] content = getContent(entry, newArchive);
+        ZipEntry zipEntry = new ZipEntry(name);
+        // Normalize MSDOS date/time fields to zero for reproducibility.
+        zipEntry.setTime(0);
+        if (entry.level == 0) {
+          CRC32 crc32 = new CRC32();
+          crc32.update(content);
+          zipEntry.setMethod(ZipEntry.STORED);
+          zipEntry.setCrc(crc32.getValue());
+          zipEntry.setSize(content.length);
+          zipEntry.setCompressedSize(content.length);
+        } else {
+          zipEntry.setMethod(ZipEntry.DEFLATED);
+          zipOut.setLevel(entry.level);
+        }
+        zipOut.putNextEntry(zipEntry);
+        zipOut.write(content);
+        zipOut.closeEntry();
+      }
+    }
+  }
+
+  private static byte[][] makeVocabulary(Random random) {
+    byte[][] words = new byte[VOCABULARY_SIZE][];
+    for (int x = 0; x < words.length; x++) {
+      words[x] = new byte[2 + random.nextInt(11)];
+      for (int y = 0; y < words[x].length; y++) {
+        words[x][y] = (byte) ('a' + random.nextInt(26));
+      }
+    }
+    return words;
+  }
+
+  private byte[] generateContent(Kind kind, int size, Random random) {
+    byte[] content = new byte[size];
+    switch (kind) {
+      case TEXT:
+        generateText(content, random);
+        break;
+      case CODE:
+        generateCode(content, random);
+        break;
+      case MEDIA:
+        random.nextBytes(content);
+        break;
+      default:
+        throw new IllegalStateException("Unknown kind: " + kind);
+    }
+    return content;
+  }
+
+  /**
+   * Fills the buffer with indented, tag-like lines of words from the vocabulary. Word frequencies
+   * are skewed so that the text compresses like real markup.
+   */
+  private void generateText(byte[] content, Random random) {
+    int position = 0;
+    while (position < content.length) {
+      int indent = random.nextInt(8);
+      for (int x = 0; x < indent && position < content.length; x++) {
+        content[position++] = ' ';
+      }
+      int wordCount = 1 + random.nextInt(8);
+      for (int x = 0; x < wordCount && position < content.length; x++) {
+        // Squaring a uniform value favors the start of the vocabulary.
+        double roll = random.nextDouble();
+        byte[] word = vocabulary[(int) (roll * roll * vocabulary.length)];
+        int length = Math.min(word.length, content.length - position);
+        System.arraycopy(word, 0, content, position, length);
+        position += length;
+        if (position < content.length) {
+          content[position++] = (byte) (x == 0 ? '=' : ' ');
+        }
+      }
+      if (position < content.length) {
+        content[position++] = '\n';
+      }
+    }
+  }
+
+  /**
+   * Fills the buffer with little-endian 32-bit words: mostly "instructions" drawn from a small
+   * set of opcodes with random operands, and about one in four an offset below {@link
+   * #OFFSET_LIMIT}.
+   */
+  private static void generateCode(byte[] content, Random random) {
+    int position = 0;
+    while (position < content.length) {
+      int word;
+      if (random.nextInt(4) == 0) {
+        word = random.nextInt(OFFSET_LIMIT);
+      } else {
+        int opcode = 0x40 + random.nextInt(48);
+        word = (opcode << 24) | (random.nextInt(16) << 16) | random.nextInt(1 << 12);
+      }
+      for (int x = 0; x < 4 && position < content.length; x++) {
+        content[position++] = (byte) (word >>> (8 * x));
+      }
+    }
+  }
+
+  private static byte[] mutate(byte[] content, Kind kind, MutationStyle style, Random random) {
+    switch (style) {
+      case INSERTS:
+        return scatterEdits(content, 1 + content.length / MEAN_BYTES_BETWEEN_EDITS, random);
+      case SHIFT:
+        {
+          int shiftAt = random.nextInt(content.length / 2 + 1);
+          byte[] block = new byte[1 + random.nextInt(MAX_SHIFT_LENGTH)];
+          random.nextBytes(block);
+          ByteArrayOutputStream result = new ByteArrayOutputStream(content.length + block.length);
+          result.write(content, 0, shiftAt);
+          result.write(block, 0, block.length);
+          result.write(content, shiftAt, content.length - shiftAt);
+          return result.toByteArray();
+        }
+      case RECOMPILE:
+        {
+          byte[] result = Arrays.copyOf(content, content.length);
+          if (kind == Kind.CODE) {
+            int delta = 4 * (1 + random.nextInt(64));
+            int start = random.nextInt(result.length / 2 + 1) & ~3;
+            for (int position = start; position + 4 <= result.length; position += 4) {
+              int word =
+                  (result[position] & 0xff)
+                      | ((result[position + 1] & 0xff) << 8)
+                      | ((result[position + 2] & 0xff) << 16)
+                      | ((result[position + 3] & 0xff) << 24);
+              if (word >= 0 && word < OFFSET_LIMIT) {
+                word += delta;
+                for (int x = 0; x < 4; x++) {
+                  result[position + x] = (byte) (word >>> (8 * x));
+                }
+              }
+            }
+          }
+          return scatterEdits(result, 1 + random.nextInt(4), random);
+        }
+      default:
+        throw new IllegalStateException("Unknown style: " + style);
+    }
+  }
+
+  /**
+   * Makes the specified number of small overwrites, insertions and deletions at random positions.
+   * The content must not be empty.
+   */
+  private static byte[] scatterEdits(byte[] content, int editCount, Random random) {
+    int[] positions = new int[editCount];
+    for (int x = 0; x < editCount; x++) {
+      positions[x] = random.nextInt(content.length);
+    }
+    Arrays.sort(positions);
+    ByteArrayOutputStream result = new ByteArrayOutputStream(content.length + MAX_EDIT_LENGTH);
+    int position = 0;
+    for (int editAt : positions) {
+      if (editAt < position) {
+        // Overlaps a preceding deletion or overwrite.
+        continue;
+      }
+      result.write(content, position, editAt - position);
+      position = editAt;
+      int length = Math.min(1 + random.nextInt(MAX_EDIT_LENGTH), content.length - position);
+      switch (random.nextInt(3)) {
+        case 0: // Overwrite, making sure that every byte changes
+          for (int x = 0; x < length; x++) {
+            result.write(content[position++] ^ (1 + random.nextInt(255)));
+          }
+          break;
+        case 1: // Insert
+          for (int x = 0; x < length; x++) {
+            result.write(random.nextInt(256));
+          }
+          break;
+        default: // Delete
+          position += length;
+          break;
+      }
+    }
+    result.write(content, position, content.length - position);
+    return result.toByteArray();
+  }
+}
@@ -16,20 +16,19 @@ package com.google.archivepatcher.tools;
 
 import com.google.archivepatcher.applier.FileByFileV1DeltaApplier;
 import com.google.archivepatcher.generator.DeltaFriendlyOldBlobSizeLimiter;
+import com.google.archivepatcher.generator.EffortLevel;
 import com.google.archivepatcher.generator.FileByFileV1DeltaGenerator;
-import com.google.archivepatcher.generator.RecommendationModifier;
 import com.google.archivepatcher.generator.TotalRecompressionLimiter;
+import com.google.archivepatcher.shared.PatchConstants.DeltaFormat;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.List;
 
 /**
  * Simple command-line tool for generating and applying patches.
@@ -47,6 +46,10 @@ public class FileByFileTool extends AbstractTool {
           + "  --patch         the patch file\n"
           + "  --trl           optionally, the total bytes of recompression to allow (see below)\n"
           + "  --dfobsl        optionally, a limit on the total size of the delta-friendly old blob (see below)\n"
+          + "  --format        optionally, the delta format to generate: bsdiff (the default),\n"
+          + "                  bsdiff-sectioned or gdiff (see below)\n"
+          + "  --effort        optionally, how hard to work to make the patch small: fast,\n"
+          + "                  balanced (the default) or max (see below)\n"
           + "\nTotal Recompression Limit (trl):\n"
           + "  When generating a patch, a limit can be specified on the total number of bytes to\n"
           + "  allow to be recompressed during the patch apply process. This can be for a variety\n"
@@ -63,6 +66,19 @@ public class FileByFileTool extends AbstractTool {
           + "  the content. If the limit is less than or equal to the size of the old file, no\n"
           + "  uncompression will be performed at all. Otherwise, the old file can expand into\n"
           + "  delta-friendly old blob until the size reaches this limit.\n"
+          + "\nDelta Format (format):\n"
+          + "  bsdiff produces the smallest patches. gdiff generates patches much faster and with\n"
+          + "  far less memory, but they are larger; it is intended for builds that have to ship\n"
+          + "  quickly. bsdiff-sectioned produces the same delta as bsdiff, laid out so that\n"
+          + "  the patch compresses better when it is served compressed, but applying it\n"
+          + "  buffers the control and extra sections of each delta in a temp file when they\n"
+          + "  exceed 1 MiB, which can take nearly as much disk as the new content that the\n"
+          + "  delta adds; avoid it for devices short of temporary storage. Patches of any\n"
+          + "  format are applied the same way.\n"
+          + "\nEffort Level (effort):\n"
+          + "  fast generates patches sooner at the cost of larger patches, e.g. for continuous\n"
+          + "  integration builds. max generates the smallest patches, e.g. for release builds,\n"
+          + "  and can take much longer for archives with many added and removed entries.\n"
           + "\nExamples:\n"
           + "  To generate a patch from OLD to NEW, saving the patch in PATCH:\n"
           + "    java -cp <classpath> com.google.archivepatcher.tools.FileByFileTool --generate \\\n"
@@ -70,6 +86,12 @@ public class FileByFileTool extends AbstractTool {
           + "  To generate a patch from OLD to NEW, limiting to 1,000,000 recompress bytes:\n"
           + "    java -cp <classpath> com.google.archivepatcher.tools.FileByFileTool --generate \\\n"
           + "      --old OLD --new NEW --trl 1000000 --patch PATCH\n"
+          + "  To generate a gdiff patch from OLD to NEW as quickly as possible:\n"
+          + "    java -cp <classpath> com.google.archivepatcher.tools.FileByFileTool --generate \\\n"
+          + "      --old OLD --new NEW --format gdiff --patch PATCH\n"
+          + "  To generate the smallest patch from OLD to NEW for a release:\n"
+          + "    java -cp <classpath> com.google.archivepatcher.tools.FileByFileTool --generate \\\n"
+          + "      --old OLD --new NEW --effort max --patch PATCH\n"
           + "  To apply a patch PATCH to OLD, saving the result in NEW:\n"
           + "    java -cp <classpath> com.google.archivepatcher.tools.FileByFileTool --apply \\\n"
           + "      --old OLD --patch PATCH --new NEW";
@@ -113,6 +135,8 @@ public class FileByFileTool extends AbstractTool {
     String patchPath = null;
     Long totalRecompressionLimit = null;
     Long deltaFriendlyOldBlobSizeLimit = null;
+    DeltaFormat deltaFormat = null;
+    EffortLevel effortLevel = null;
     Mode mode = null;
     Iterator<String> argIterator = new LinkedList<String>(Arrays.asList(args)).iterator();
     while (argIterator.hasNext()) {
@@ -137,6 +161,28 @@ public class FileByFileTool extends AbstractTool {
         if (deltaFriendlyOldBlobSizeLimit < 0) {
           exitWithUsage("--dfobsl cannot be negative: " + deltaFriendlyOldBlobSizeLimit);
         }
+      } else if ("--format".equals(arg)) {
+        String formatName = popOrDie(argIterator, "--format");
+        if ("bsdiff".equals(formatName)) {
+          deltaFormat = DeltaFormat.BSDIFF;
+        } else if ("bsdiff-sectioned".equals(formatName)) {
+          deltaFormat = DeltaFormat.BSDIFF_SECTIONED;
+        } else if ("gdiff".equals(formatName)) {
+          deltaFormat = DeltaFormat.GDIFF;
+        } else {
+          exitWithUsage("unknown delta format: " + formatName);
+        }
+      } else if ("--effort".equals(arg)) {
+        String effortName = popOrDie(argIterator, "--effort");
+        if ("fast".equals(effortName)) {
+          effortLevel = EffortLevel.FAST;
+        } else if ("balanced".equals(effortName)) {
+          effortLevel = EffortLevel.BALANCED;
+        } else if ("max".equals(effortName)) {
+          effortLevel = EffortLevel.MAX_COMPRESSION;
+        } else {
+          exitWithUsage("unknown effort level: " + effortName);
+        }
       } else {
         exitWithUsage("unknown argument: " + arg);
       }
@@ -150,6 +196,12 @@ public class FileByFileTool extends AbstractTool {
     if (mode == Mode.APPLY && deltaFriendlyOldBlobSizeLimit != null) {
       exitWithUsage("--dfobsl can only be used with --generate");
     }
+    if (mode == Mode.APPLY && deltaFormat != null) {
+      exitWithUsage("--format can only be used with --generate");
+    }
+    if (mode == Mode.APPLY && effortLevel != null) {
+      exitWithUsage("--effort can only be used with --generate");
+    }
     File oldFile = getRequiredFileOrDie(oldPath, "old file");
     if (mode == Mode.GENERATE) {
       File newFile = getRequiredFileOrDie(newPath, "new file");
@@ -158,7 +210,9 @@ public class FileByFileTool extends AbstractTool {
           newFile,
           new File(patchPath),
           totalRecompressionLimit,
-          deltaFriendlyOldBlobSizeLimit);
+          deltaFriendlyOldBlobSizeLimit,
+          deltaFormat == null ? DeltaFormat.BSDIFF : deltaFormat,
+          effortLevel == null ? EffortLevel.BALANCED : effortLevel);
     } else { // mode == Mode.APPLY
       File patchFile = getRequiredFileOrDie(patchPath, "patch file");
       applyPatch(oldFile, patchFile, new File(newPath));
@@ -185,17 +239,85 @@ public class FileByFileTool extends AbstractTool {
       Long totalRecompressionLimit,
       Long deltaFriendlyOldBlobSizeLimit)
       throws IOException, InterruptedException {
-    List<RecommendationModifier> recommendationModifiers = new ArrayList<RecommendationModifier>();
+    generatePatch(
+        oldFile,
+        newFile,
+        patchFile,
+        totalRecompressionLimit,
+        deltaFriendlyOldBlobSizeLimit,
+        DeltaFormat.BSDIFF);
+  }
+
+  /**
+   * Generate a specified patch to transform the specified old file to the specified new file,
+   * using the specified delta format.
+   *
+   * @param oldFile the old file (will be read)
+   * @param newFile the new file (will be read)
+   * @param patchFile the patch file (will be written)
+   * @param totalRecompressionLimit optional limit for total number of bytes of recompression to
+   *     allow in the resulting patch
+   * @param deltaFriendlyOldBlobSizeLimit optional limit for the size of the delta-friendly old
+   *     blob, which implies a limit on the temporary space needed to apply the generated patch
+   * @param deltaFormat the format of the delta between the delta-friendly files
+   * @throws IOException if anything goes wrong
+   * @throws InterruptedException if any thread has interrupted the current thread
+   */
+  public static void generatePatch(
+      File oldFile,
+      File newFile,
+      File patchFile,
+      Long totalRecompressionLimit,
+      Long deltaFriendlyOldBlobSizeLimit,
+      DeltaFormat deltaFormat)
+      throws IOException, InterruptedException {
+    generatePatch(
+        oldFile,
+        newFile,
+        patchFile,
+        totalRecompressionLimit,
+        deltaFriendlyOldBlobSizeLimit,
+        deltaFormat,
+        EffortLevel.BALANCED);
+  }
+
+  /**
+   * Generate a specified patch to transform the specified old file to the specified new file,
+   * using the specified delta format and effort level.
+   *
+   * @param oldFile the old file (will be read)
+   * @param newFile the new file (will be read)
+   * @param patchFile the patch file (will be written)
+   * @param totalRecompressionLimit optional limit for total number of bytes of recompression to
+   *     allow in the resulting patch
+   * @param deltaFriendlyOldBlobSizeLimit optional limit for the size of the delta-friendly old
+   *     blob, which implies a limit on the temporary space needed to apply the generated patch
+   * @param deltaFormat the format of the delta between the delta-friendly files
+   * @param effortLevel the trade-off between the time taken to generate the patch and its size
+   * @throws IOException if anything goes wrong
+   * @throws InterruptedException if any thread has interrupted the current thread
+   */
+  public static void generatePatch(
+      File oldFile,
+      File newFile,
+      File patchFile,
+      Long totalRecompressionLimit,
+      Long deltaFriendlyOldBlobSizeLimit,
+      DeltaFormat deltaFormat,
+      EffortLevel effortLevel)
+      throws IOException, InterruptedException {
+    FileByFileV1DeltaGenerator.Builder builder =
+        new FileByFileV1DeltaGenerator.Builder()
+            .withEffortLevel(effortLevel)
+            .withDeltaFormat(deltaFormat);
     if (totalRecompressionLimit != null) {
-      recommendationModifiers.add(new TotalRecompressionLimiter(totalRecompressionLimit));
+      builder.withRecommendationModifier(new TotalRecompressionLimiter(totalRecompressionLimit));
     }
     if (deltaFriendlyOldBlobSizeLimit != null) {
-      recommendationModifiers.add(
+      builder.withRecommendationModifier(
           new DeltaFriendlyOldBlobSizeLimiter(deltaFriendlyOldBlobSizeLimit));
     }
-    FileByFileV1DeltaGenerator generator =
-        new FileByFileV1DeltaGenerator(
-            recommendationModifiers.toArray(new RecommendationModifier[] {}));
+    FileByFileV1DeltaGenerator generator = builder.build();
     try (FileOutputStream patchOut = new FileOutputStream(patchFile);
         BufferedOutputStream bufferedPatchOut = new BufferedOutputStream(patchOut)) {
       generator.generateDelta(oldFile, newFile, bufferedPatchOut);